@@ -0,0 +1,424 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import org.jboss.byteman.rule.compiler.Compiler;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * counters recording the cost the agent adds to class loading and retransformation. the transformer
+ * records the time spent checking each class it is offered, the bytes it consumed and produced, the
+ * number of rule scripts it tried to inject and the number which were injected. it also records how
+ * often a class checker had to load bytecode as a resource and how long that took. the retransformer
+ * records the number and duration of calls to Instrumentation.retransformClasses. details of the
+ * slowest transforms are retained so that the classes which cost the most can be identified.
+ */
+public class AgentStatistics implements AgentStatisticsMBean
+{
+    /**
+     * the number of slowest transforms for which details are retained
+     */
+    public static final int SLOWEST_COUNT = 20;
+
+    public AgentStatistics()
+    {
+        classesChecked = new AtomicLong();
+        classesTransformed = new AtomicLong();
+        transformNanos = new AtomicLong();
+        maxTransformNanos = new AtomicLong();
+        bytesIn = new AtomicLong();
+        bytesOut = new AtomicLong();
+        rulesAttempted = new AtomicLong();
+        rulesInjected = new AtomicLong();
+        checkerCacheMisses = new AtomicLong();
+        checkerLoadNanos = new AtomicLong();
+        transformCacheHits = new AtomicLong();
+        transformCacheStores = new AtomicLong();
+        retransformCalls = new AtomicLong();
+        retransformedClasses = new AtomicLong();
+        retransformNanos = new AtomicLong();
+        maxRetransformNanos = new AtomicLong();
+        slowest = new TransformRecord[SLOWEST_COUNT];
+        slowestThreshold = 0;
+        current = new ThreadLocal<TransformRecord>();
+    }
+
+    /**
+     * called when the transformer starts checking a class
+     * @param className the name of the class
+     * @param size the size of the supplied bytecode
+     * @return a record which must be passed to endTransform
+     */
+    public TransformRecord beginTransform(String className, int size)
+    {
+        // transforms may nest when checking a class causes another class to be loaded
+        TransformRecord record = new TransformRecord(className, size, current.get());
+        current.set(record);
+        record.start = System.nanoTime();
+        return record;
+    }
+
+    /**
+     * called when the transformer finishes checking a class
+     * @param record the record returned by beginTransform
+     * @param newBytes the transformed bytecode or null if the class was not changed
+     */
+    public void endTransform(TransformRecord record, byte[] newBytes)
+    {
+        long inclusiveNanos = System.nanoTime() - record.start;
+        // time spent in nested transforms is charged to the nested records so exclude it from this one
+        long nanos = inclusiveNanos - record.nestedNanos;
+        TransformRecord outer = record.outer;
+        if (outer != null) {
+            outer.nestedNanos += inclusiveNanos;
+        }
+        current.set(outer);
+        record.outer = null;
+        record.nanos = nanos;
+        record.inclusiveNanos = inclusiveNanos;
+        record.bytesOut = (newBytes == null ? record.bytesIn : newBytes.length);
+
+        classesChecked.incrementAndGet();
+        if (newBytes != null) {
+            classesTransformed.incrementAndGet();
+        }
+        transformNanos.addAndGet(nanos);
+        updateMax(maxTransformNanos, nanos);
+        bytesIn.addAndGet(record.bytesIn);
+        bytesOut.addAndGet(record.bytesOut);
+
+        if (nanos > slowestThreshold) {
+            recordSlow(record);
+        }
+    }
+
+    /**
+     * called when the transformer tries to inject a rule script into a class
+     * @param injected true if the rule was injected
+     */
+    public void recordRuleAttempt(boolean injected)
+    {
+        rulesAttempted.incrementAndGet();
+        if (injected) {
+            rulesInjected.incrementAndGet();
+        }
+        TransformRecord record = current.get();
+        if (record != null) {
+            record.rulesAttempted++;
+            if (injected) {
+                record.rulesInjected++;
+            }
+        }
+    }
+
+    /**
+     * called when a class checker had to load class bytecode because the class was not already loaded
+     * @param nanos the time taken to locate and read the bytecode
+     */
+    public void recordCheckerLoad(long nanos)
+    {
+        checkerCacheMisses.incrementAndGet();
+        checkerLoadNanos.addAndGet(nanos);
+    }
+
+    /**
+     * called when a transform reuses bytecode from the transform cache
+     */
+    public void recordTransformCacheHit()
+    {
+        transformCacheHits.incrementAndGet();
+    }
+
+    /**
+     * called when the result of a transform is written to the transform cache
+     */
+    public void recordTransformCacheStore()
+    {
+        transformCacheStores.incrementAndGet();
+    }
+
+    /**
+     * called after a call to Instrumentation.retransformClasses
+     * @param classCount the number of classes passed in the call
+     * @param nanos the duration of the call
+     */
+    public void recordRetransform(int classCount, long nanos)
+    {
+        retransformCalls.incrementAndGet();
+        retransformedClasses.addAndGet(classCount);
+        retransformNanos.addAndGet(nanos);
+        updateMax(maxRetransformNanos, nanos);
+    }
+
+    public long getClassesChecked()
+    {
+        return classesChecked.get();
+    }
+
+    public long getClassesTransformed()
+    {
+        return classesTransformed.get();
+    }
+
+    public long getTransformNanos()
+    {
+        return transformNanos.get();
+    }
+
+    public long getMaxTransformNanos()
+    {
+        return maxTransformNanos.get();
+    }
+
+    public long getBytesIn()
+    {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut()
+    {
+        return bytesOut.get();
+    }
+
+    public long getRulesAttempted()
+    {
+        return rulesAttempted.get();
+    }
+
+    public long getRulesInjected()
+    {
+        return rulesInjected.get();
+    }
+
+    public long getCheckerCacheMisses()
+    {
+        return checkerCacheMisses.get();
+    }
+
+    public long getCheckerLoadNanos()
+    {
+        return checkerLoadNanos.get();
+    }
+
+    public long getTransformCacheHits()
+    {
+        return transformCacheHits.get();
+    }
+
+    public long getTransformCacheStores()
+    {
+        return transformCacheStores.get();
+    }
+
+    public long getRetransformCalls()
+    {
+        return retransformCalls.get();
+    }
+
+    public long getRetransformedClasses()
+    {
+        return retransformedClasses.get();
+    }
+
+    public long getRetransformNanos()
+    {
+        return retransformNanos.get();
+    }
+
+    public long getMaxRetransformNanos()
+    {
+        return maxRetransformNanos.get();
+    }
+
+    public int getLiveHelperAdapterCount()
+    {
+        return Compiler.getLiveHelperAdapterCount();
+    }
+
+    public int getDefinedHelperAdapterCount()
+    {
+        return Compiler.getDefinedHelperAdapterCount();
+    }
+
+    public synchronized String[] getSlowestTransforms()
+    {
+        int count = 0;
+        while (count < slowest.length && slowest[count] != null) {
+            count++;
+        }
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = slowest[i].toString();
+        }
+        return result;
+    }
+
+    public synchronized void reset()
+    {
+        classesChecked.set(0);
+        classesTransformed.set(0);
+        transformNanos.set(0);
+        maxTransformNanos.set(0);
+        bytesIn.set(0);
+        bytesOut.set(0);
+        rulesAttempted.set(0);
+        rulesInjected.set(0);
+        checkerCacheMisses.set(0);
+        checkerLoadNanos.set(0);
+        transformCacheHits.set(0);
+        transformCacheStores.set(0);
+        retransformCalls.set(0);
+        retransformedClasses.set(0);
+        retransformNanos.set(0);
+        maxRetransformNanos.set(0);
+        for (int i = 0; i < slowest.length; i++) {
+            slowest[i] = null;
+        }
+        slowestThreshold = 0;
+    }
+
+    /**
+     * write the counters one per line as name value pairs followed by the slowest transforms
+     * @param out the output to write to
+     */
+    public void writeTo(PrintWriter out)
+    {
+        out.println("classesChecked " + getClassesChecked());
+        out.println("classesTransformed " + getClassesTransformed());
+        out.println("transformNanos " + getTransformNanos());
+        out.println("maxTransformNanos " + getMaxTransformNanos());
+        out.println("bytesIn " + getBytesIn());
+        out.println("bytesOut " + getBytesOut());
+        out.println("rulesAttempted " + getRulesAttempted());
+        out.println("rulesInjected " + getRulesInjected());
+        out.println("checkerCacheMisses " + getCheckerCacheMisses());
+        out.println("checkerLoadNanos " + getCheckerLoadNanos());
+        out.println("transformCacheHits " + getTransformCacheHits());
+        out.println("transformCacheStores " + getTransformCacheStores());
+        out.println("retransformCalls " + getRetransformCalls());
+        out.println("retransformedClasses " + getRetransformedClasses());
+        out.println("retransformNanos " + getRetransformNanos());
+        out.println("maxRetransformNanos " + getMaxRetransformNanos());
+        out.println("liveHelperAdapters " + getLiveHelperAdapterCount());
+        out.println("definedHelperAdapters " + getDefinedHelperAdapterCount());
+        String[] slowestTransforms = getSlowestTransforms();
+        for (int i = 0; i < slowestTransforms.length; i++) {
+            out.println("slowTransform " + slowestTransforms[i]);
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value)
+    {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * insert a record into the list of slowest transforms, which is kept in descending order of duration
+     * @param record the record to insert
+     */
+    private synchronized void recordSlow(TransformRecord record)
+    {
+        int last = slowest.length - 1;
+        if (slowest[last] != null && slowest[last].nanos >= record.nanos) {
+            return;
+        }
+        int i = last;
+        while (i > 0 && (slowest[i - 1] == null || slowest[i - 1].nanos < record.nanos)) {
+            slowest[i] = slowest[i - 1];
+            i--;
+        }
+        slowest[i] = record;
+        if (slowest[last] != null) {
+            slowestThreshold = slowest[last].nanos;
+        }
+    }
+
+    /**
+     * the details of a single class transform
+     */
+    public static class TransformRecord
+    {
+        private final String className;
+        private final int bytesIn;
+        private TransformRecord outer;
+        private long start;
+        private long nanos;
+        private long inclusiveNanos;
+        private long nestedNanos;
+        private int bytesOut;
+        private int rulesAttempted;
+        private int rulesInjected;
+
+        private TransformRecord(String className, int bytesIn, TransformRecord outer)
+        {
+            this.className = className;
+            this.bytesIn = bytesIn;
+            this.outer = outer;
+        }
+
+        public String toString()
+        {
+            return className + " " + nanos + "ns (" + inclusiveNanos + "ns inclusive) bytes " + bytesIn + "/" + bytesOut + " rules " + rulesInjected + "/" + rulesAttempted;
+        }
+    }
+
+    private final AtomicLong classesChecked;
+    private final AtomicLong classesTransformed;
+    private final AtomicLong transformNanos;
+    private final AtomicLong maxTransformNanos;
+    private final AtomicLong bytesIn;
+    private final AtomicLong bytesOut;
+    private final AtomicLong rulesAttempted;
+    private final AtomicLong rulesInjected;
+    private final AtomicLong checkerCacheMisses;
+    private final AtomicLong checkerLoadNanos;
+    private final AtomicLong transformCacheHits;
+    private final AtomicLong transformCacheStores;
+    private final AtomicLong retransformCalls;
+    private final AtomicLong retransformedClasses;
+    private final AtomicLong retransformNanos;
+    private final AtomicLong maxRetransformNanos;
+
+    /**
+     * the slowest transforms in descending order of duration
+     */
+    private final TransformRecord[] slowest;
+
+    /**
+     * the duration of the fastest retained slow transform once the list is full. this is read without
+     * locking so that most transforms can skip the list update cheaply
+     */
+    private volatile long slowestThreshold;
+
+    /**
+     * the transform in progress in the current thread
+     */
+    private final ThreadLocal<TransformRecord> current;
+}
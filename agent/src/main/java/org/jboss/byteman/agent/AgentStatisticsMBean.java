@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+/**
+ * management interface for the counters which record the cost the agent adds to class loading and
+ * retransformation. all times are in nanoseconds.
+ */
+public interface AgentStatisticsMBean
+{
+    /**
+     * @return the number of classes offered to the transformer which were eligible for transformation
+     */
+    public long getClassesChecked();
+
+    /**
+     * @return the number of classes whose bytecode was changed by the transformer
+     */
+    public long getClassesTransformed();
+
+    /**
+     * @return the total time spent checking and transforming classes. when a class is loaded while another
+     * class is being transformed the time spent on the nested class is only counted once, against the
+     * nested class
+     */
+    public long getTransformNanos();
+
+    /**
+     * @return the longest time spent checking and transforming a single class, excluding time spent on
+     * any nested transforms
+     */
+    public long getMaxTransformNanos();
+
+    /**
+     * @return the total size of the bytecode offered to the transformer
+     */
+    public long getBytesIn();
+
+    /**
+     * @return the total size of the bytecode returned by the transformer
+     */
+    public long getBytesOut();
+
+    /**
+     * @return the number of attempts to inject a rule script into a class
+     */
+    public long getRulesAttempted();
+
+    /**
+     * @return the number of attempts to inject a rule script into a class which succeeded
+     */
+    public long getRulesInjected();
+
+    /**
+     * @return the number of times a super class or interface had to be read as a resource
+     */
+    public long getCheckerCacheMisses();
+
+    /**
+     * @return the time spent reading super classes and interfaces as resources
+     */
+    public long getCheckerLoadNanos();
+
+    /**
+     * @return the number of transforms whose bytecode was taken from the transform cache
+     */
+    public long getTransformCacheHits();
+
+    /**
+     * @return the number of transforms written to the transform cache
+     */
+    public long getTransformCacheStores();
+
+    /**
+     * @return the number of calls to Instrumentation.retransformClasses
+     */
+    public long getRetransformCalls();
+
+    /**
+     * @return the number of classes passed to Instrumentation.retransformClasses
+     */
+    public long getRetransformedClasses();
+
+    /**
+     * @return the total time spent in Instrumentation.retransformClasses
+     */
+    public long getRetransformNanos();
+
+    /**
+     * @return the longest time spent in a single call to Instrumentation.retransformClasses
+     */
+    public long getMaxRetransformNanos();
+
+    /**
+     * @return the number of generated helper adapter classes which have not yet been unloaded
+     */
+    public int getLiveHelperAdapterCount();
+
+    /**
+     * @return the number of helper adapter classes generated since the agent started
+     */
+    public int getDefinedHelperAdapterCount();
+
+    /**
+     * @return a description of each of the slowest transforms in descending order of duration excluding
+     * nested transforms. each description also includes the duration including nested transforms
+     */
+    public String[] getSlowestTransforms();
+
+    /**
+     * zero all counters and discard the slowest transform details
+     */
+    public void reset();
+}
@@ -0,0 +1,161 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import org.jboss.byteman.agent.check.LoadCache;
+import org.jboss.byteman.rule.Rule;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * class used to type check and compile rules on a background thread as soon as their trigger code has been
+ * injected, so that the cost of type resolution and bytecode generation is not paid by the application thread
+ * which first hits the trigger. rules are still checked and compiled lazily when they first fire if the
+ * background thread has not got to them yet. if the background thread is already working on a rule when it
+ * fires then the firing thread waits for it to finish.
+ *
+ * rules are submitted while their trigger class is still being defined. the background thread does not
+ * start work on a rule until the load cache shows that the trigger class has been loaded. that ensures
+ * type resolution never races the thread defining the class.
+ */
+public class BackgroundCompiler
+{
+    /**
+     * the maximum number of rules which may be waiting for background compilation. rules which arrive when
+     * the queue is full are simply left to be compiled when they first fire.
+     */
+    public static final int QUEUE_SIZE = 4096;
+
+    /**
+     * the number of times the background thread checks whether a rule's trigger class has been loaded
+     * before leaving the rule to be compiled when it fires
+     */
+    public static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * the delay before the second check for a trigger class. the delay doubles for each subsequent check
+     */
+    public static final long RETRY_DELAY_MILLIS = 10;
+
+    public BackgroundCompiler(LoadCache loadCache)
+    {
+        this.loadCache = loadCache;
+        this.pending = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "Byteman Background Compiler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * queue a rule for background type checking and compilation
+     * @param rule a rule whose trigger has been injected into its trigger class
+     */
+    public void submit(final Rule rule)
+    {
+        if (pending.incrementAndGet() > QUEUE_SIZE) {
+            pending.decrementAndGet();
+            return;
+        }
+        schedule(rule, 0);
+    }
+
+    /**
+     * stop compiling rules in the background. rules which are still queued will be compiled when they fire.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private void schedule(final Rule rule, final int attempt)
+    {
+        long delay = (attempt == 0 ? 0 : RETRY_DELAY_MILLIS << (attempt - 1));
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    compile(rule, attempt);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // the executor has been shut down so leave the rule to be compiled when it fires
+            pending.decrementAndGet();
+        }
+    }
+
+    private void compile(Rule rule, int attempt)
+    {
+        if (rule.isChecked() || rule.isCheckFailed()) {
+            // the rule has already fired
+            pending.decrementAndGet();
+            return;
+        }
+
+        // we don't want rules triggering inside code run from the type checker and compiler
+        Rule.disableTriggersInternal();
+
+        // make sure the trigger class has been defined before we resolve any types. the load cache
+        // only looks at classes the JVM has already loaded so this cannot cause a class load
+
+        String triggerClass = rule.getTriggerClass();
+        if (triggerClass == null || loadCache.lookupClass(triggerClass.replace('/', '.'), rule.getLoader()) == null) {
+            if (attempt + 1 < MAX_ATTEMPTS) {
+                schedule(rule, attempt + 1);
+            } else {
+                // the class has not been defined so leave the rule to be compiled if it ever fires
+                pending.decrementAndGet();
+                if (Transformer.isVerbose()) {
+                    System.out.println("BackgroundCompiler.compile : trigger class " + triggerClass + " for rule " + rule.getName() + " has not been loaded");
+                }
+            }
+            return;
+        }
+
+        pending.decrementAndGet();
+
+        if (Transformer.isVerbose()) {
+            System.out.println("BackgroundCompiler.compile : compiling rule " + rule.getName() + " for trigger class " + triggerClass);
+        }
+
+        rule.ensureTypeCheckedCompiled();
+    }
+
+    private final LoadCache loadCache;
+
+    /**
+     * the number of rules queued or waiting for their trigger class to be loaded
+     */
+    private final AtomicInteger pending;
+
+    private final ScheduledThreadPoolExecutor executor;
+}
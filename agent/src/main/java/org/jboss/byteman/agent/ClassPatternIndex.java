@@ -0,0 +1,305 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * an immutable index of rule scripts whose CLASS or INTERFACE clause is a pattern containing one or more
+ * '*' wildcards e.g. <code>com.acme.dao.*</code> or <code>*Repository</code>. a wildcard matches any sequence
+ * of characters, including package separators. as with plain names a pattern which contains a '.' is matched
+ * against fully qualified class names and a pattern which does not is matched against unqualified names.
+ *
+ * patterns are indexed in a trie keyed by the text before their first wildcard or, if they start with a
+ * wildcard, in a second trie keyed by the reversed text after their last wildcard. a lookup walks the name
+ * forwards down the first trie and backwards down the second, so the cost depends on the length of the
+ * name and the number of patterns which actually match rather than on the number of pattern rules.
+ */
+public class ClassPatternIndex
+{
+    /**
+     * an index containing no patterns
+     */
+    public static final ClassPatternIndex EMPTY = new ClassPatternIndex(Collections.<RuleScript>emptyList());
+
+    /**
+     * create an index for a list of pattern scripts. the order of the list is preserved in the results of
+     * a lookup.
+     * @param scripts the scripts to be indexed
+     */
+    public ClassPatternIndex(List<RuleScript> scripts)
+    {
+        this.scripts = scripts;
+        this.prefixes = new Node();
+        this.suffixes = new Node();
+        this.unanchored = new ArrayList<Entry>();
+
+        int position = 0;
+        for (RuleScript script : scripts) {
+            String pattern = script.getTargetClass();
+            Entry entry = new Entry(script, position++);
+            int first = pattern.indexOf('*');
+            int last = pattern.lastIndexOf('*');
+            if (first > 0) {
+                prefixes.insert(pattern, 0, first, false, entry);
+            } else if (last < pattern.length() - 1) {
+                suffixes.insert(pattern, last + 1, pattern.length(), true, entry);
+            } else {
+                unanchored.add(entry);
+            }
+        }
+    }
+
+    /**
+     * check whether a CLASS or INTERFACE target is a pattern
+     * @param target the target class or interface name
+     * @return true if the target contains a wildcard
+     */
+    public static boolean isPattern(String target)
+    {
+        return target.indexOf('*') >= 0;
+    }
+
+    /**
+     * check whether a CLASS or INTERFACE target applies to a class. the target may be a fully qualified
+     * name, an unqualified name or a pattern.
+     * @param target the target class or interface name
+     * @param className the fully qualified name of the class
+     * @return true if the target applies to the class
+     */
+    public static boolean matchesTarget(String target, String className)
+    {
+        boolean isQualified = target.indexOf('.') >= 0;
+        String name = className;
+        if (!isQualified) {
+            name = className.substring(className.lastIndexOf('.') + 1);
+        }
+        if (isPattern(target)) {
+            return matches(target, name);
+        }
+        return target.equals(name);
+    }
+
+    /**
+     * test whether a name matches a pattern
+     * @param pattern a pattern in which '*' matches any sequence of characters
+     * @param name the name to test
+     * @return true if the name matches the pattern
+     */
+    public static boolean matches(String pattern, String name)
+    {
+        int first = pattern.indexOf('*');
+        if (first < 0) {
+            return pattern.equals(name);
+        }
+        int last = pattern.lastIndexOf('*');
+        int suffixLength = pattern.length() - (last + 1);
+        if (first + suffixLength > name.length()) {
+            return false;
+        }
+        if (!name.regionMatches(0, pattern, 0, first) ||
+                !name.regionMatches(name.length() - suffixLength, pattern, last + 1, suffixLength)) {
+            return false;
+        }
+        // each literal segment between the first and last wildcard must occur in order in what remains
+        int pos = first;
+        int limit = name.length() - suffixLength;
+        int start = first + 1;
+        while (start <= last) {
+            int end = pattern.indexOf('*', start);
+            if (end > start) {
+                String segment = pattern.substring(start, end);
+                int found = name.indexOf(segment, pos);
+                if (found < 0 || found + segment.length() > limit) {
+                    return false;
+                }
+                pos = found + segment.length();
+            }
+            start = end + 1;
+        }
+        return true;
+    }
+
+    /**
+     * check whether the index contains any patterns
+     * @return true if the index is empty otherwise false
+     */
+    public boolean isEmpty()
+    {
+        return scripts.isEmpty();
+    }
+
+    /**
+     * return the scripts indexed in this index
+     * @return the list of scripts
+     */
+    public List<RuleScript> getScripts()
+    {
+        return scripts;
+    }
+
+    /**
+     * return all scripts whose pattern matches a name. a qualified name is only matched against qualified
+     * patterns and an unqualified name is only matched against unqualified patterns.
+     * @param name the qualified or unqualified name of a class or interface
+     * @return the list of matching scripts in index order or null if there are none
+     */
+    public List<RuleScript> lookup(String name)
+    {
+        if (scripts.isEmpty()) {
+            return null;
+        }
+
+        boolean isQualified = name.indexOf('.') >= 0;
+        List<Entry> candidates = null;
+
+        // walk down the prefix trie collecting the patterns at each node we pass through
+        Node node = prefixes;
+        int length = name.length();
+        for (int i = 0; i < length && node != null; i++) {
+            node = node.child(name.charAt(i));
+            if (node != null && node.entries != null) {
+                candidates = addCandidates(candidates, node.entries, name, isQualified);
+            }
+        }
+
+        // walk down the suffix trie using the name reversed
+        node = suffixes;
+        for (int i = length - 1; i >= 0 && node != null; i--) {
+            node = node.child(name.charAt(i));
+            if (node != null && node.entries != null) {
+                candidates = addCandidates(candidates, node.entries, name, isQualified);
+            }
+        }
+
+        if (!unanchored.isEmpty()) {
+            candidates = addCandidates(candidates, unanchored, name, isQualified);
+        }
+
+        if (candidates == null) {
+            return null;
+        }
+
+        if (candidates.size() > 1) {
+            // restore the index order
+            Collections.sort(candidates);
+        }
+
+        List<RuleScript> result = new ArrayList<RuleScript>(candidates.size());
+        for (Entry entry : candidates) {
+            result.add(entry.script);
+        }
+        return result;
+    }
+
+    private static List<Entry> addCandidates(List<Entry> candidates, List<Entry> entries, String name, boolean isQualified)
+    {
+        for (Entry entry : entries) {
+            if (entry.isQualified == isQualified && matches(entry.script.getTargetClass(), name)) {
+                if (candidates == null) {
+                    candidates = new ArrayList<Entry>();
+                }
+                candidates.add(entry);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * a pattern script together with its position in the index
+     */
+    private static class Entry implements Comparable<Entry>
+    {
+        final RuleScript script;
+        final int position;
+        final boolean isQualified;
+
+        Entry(RuleScript script, int position)
+        {
+            this.script = script;
+            this.position = position;
+            this.isQualified = script.getTargetClass().indexOf('.') >= 0;
+        }
+
+        public int compareTo(Entry other)
+        {
+            return position - other.position;
+        }
+    }
+
+    /**
+     * a trie node. entries records the patterns whose anchored text ends at this node
+     */
+    private static class Node
+    {
+        Map<Character, Node> children;
+        List<Entry> entries;
+
+        Node child(char c)
+        {
+            return (children == null ? null : children.get(c));
+        }
+
+        void insert(String text, int from, int to, boolean reverse, Entry entry)
+        {
+            Node node = this;
+            if (reverse) {
+                for (int i = to - 1; i >= from; i--) {
+                    node = node.childForInsert(text.charAt(i));
+                }
+            } else {
+                for (int i = from; i < to; i++) {
+                    node = node.childForInsert(text.charAt(i));
+                }
+            }
+            if (node.entries == null) {
+                node.entries = new ArrayList<Entry>();
+            }
+            node.entries.add(entry);
+        }
+
+        private Node childForInsert(char c)
+        {
+            if (children == null) {
+                children = new HashMap<Character, Node>();
+            }
+            Node child = children.get(c);
+            if (child == null) {
+                child = new Node();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+
+    private final List<RuleScript> scripts;
+    private final Node prefixes;
+    private final Node suffixes;
+    private final List<Entry> unanchored;
+}
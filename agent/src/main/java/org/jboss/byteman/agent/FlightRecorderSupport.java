@@ -0,0 +1,569 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * support for emitting Java Flight Recorder events which record agent and rule activity. the agent is
+ * built to run on JVMs which do not include the flight recorder so the jdk.jfr API is only ever accessed
+ * reflectively, using EventFactory to define event types at runtime. event types are only registered
+ * once a recording is started and each type caches a flag saying whether its events are currently
+ * enabled. this flag is recomputed whenever a recording changes state so callers which test it before
+ * creating an event pay for a single volatile read when no recording is collecting the event.
+ */
+public class FlightRecorderSupport
+{
+    /**
+     * emitted when a rule's trigger code calls into the rule, timing execution of the rule
+     */
+    public static final EventType RULE_TRIGGERED = new EventType("org.jboss.byteman.RuleTriggered",
+            "Rule Triggered", "Execution of a rule from its trigger point",
+            new String[] { "ruleName", "triggerClass", "triggerMethod" },
+            new Class<?>[] { String.class, String.class, String.class });
+
+    /**
+     * emitted when a rule's condition has been evaluated
+     */
+    public static final EventType RULE_CONDITION = new EventType("org.jboss.byteman.RuleConditionEvaluated",
+            "Rule Condition Evaluated", "Evaluation of a rule condition",
+            new String[] { "ruleName", "triggerClass", "matched" },
+            new Class<?>[] { String.class, String.class, boolean.class });
+
+    /**
+     * emitted when a rule is type checked and compiled, timing the check and compile
+     */
+    public static final EventType RULE_COMPILED = new EventType("org.jboss.byteman.RuleCompiled",
+            "Rule Compiled", "Type check and compilation of a rule before its first execution",
+            new String[] { "ruleName", "triggerClass", "toBytecode", "success" },
+            new Class<?>[] { String.class, String.class, boolean.class, boolean.class });
+
+    /**
+     * emitted when the agent tries to inject a rule into a class, timing the injection
+     */
+    public static final EventType CLASS_TRANSFORMED = new EventType("org.jboss.byteman.ClassTransformed",
+            "Class Transformed", "Injection of a rule into a class",
+            new String[] { "className", "ruleName", "injected" },
+            new Class<?>[] { String.class, String.class, boolean.class });
+
+    /**
+     * emitted when the agent retransforms a batch of classes, timing the retransformation
+     */
+    public static final EventType RETRANSFORM_BATCH = new EventType("org.jboss.byteman.RetransformBatch",
+            "Retransform Batch", "Retransformation of classes affected by a rule update",
+            new String[] { "classCount", "failedCount" },
+            new Class<?>[] { int.class, int.class });
+
+    /**
+     * prefix for the names of event types defined by rules which do not supply a qualified name
+     */
+    public static final String RULE_EVENT_PREFIX = "org.jboss.byteman.rule.";
+
+    /**
+     * register with the flight recorder so that events are emitted whenever a recording is running.
+     * this does nothing if the JVM does not provide the flight recorder API.
+     */
+    public static synchronized void initialize()
+    {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        try {
+            ClassLoader loader = ClassLoader.getSystemClassLoader();
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", false, loader);
+            Class<?> eventClass = Class.forName("jdk.jfr.Event", false, loader);
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement", false, loader);
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor", false, loader);
+            flightRecorderClass = Class.forName("jdk.jfr.FlightRecorder", false, loader);
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener", false, loader);
+            recordingClass = Class.forName("jdk.jfr.Recording", false, loader);
+
+            nameClass = Class.forName("jdk.jfr.Name", false, loader);
+            labelClass = Class.forName("jdk.jfr.Label", false, loader);
+            descriptionClass = Class.forName("jdk.jfr.Description", false, loader);
+            categoryClass = Class.forName("jdk.jfr.Category", false, loader);
+
+            annotationElementConstructor = annotationElementClass.getConstructor(Class.class, Object.class);
+            valueDescriptorConstructor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+            factoryCreate = eventFactoryClass.getMethod("create", List.class, List.class);
+            factoryNewEvent = eventFactoryClass.getMethod("newEvent");
+            eventBegin = eventClass.getMethod("begin");
+            eventSet = eventClass.getMethod("set", int.class, Object.class);
+            eventIsEnabled = eventClass.getMethod("isEnabled");
+            eventShouldCommit = eventClass.getMethod("shouldCommit");
+            eventCommit = eventClass.getMethod("commit");
+
+            // the listener is notified straight away if the recorder has already been initialized
+            Object listener = Proxy.newProxyInstance(loader, new Class<?>[] { listenerClass }, new RecorderListener());
+            flightRecorderClass.getMethod("addListener", listenerClass).invoke(null, listener);
+        } catch (ClassNotFoundException e) {
+            // no flight recorder in this JVM
+            disable(null);
+        } catch (Throwable th) {
+            disable(th);
+        }
+    }
+
+    /**
+     * return true if a recording is currently running
+     * @return true if a recording is running otherwise false
+     */
+    public static boolean isRecording()
+    {
+        return recording;
+    }
+
+    /**
+     * mark the start of evaluation of a rule condition by the current thread so that the outcome can be
+     * reported in a condition event
+     * @return the marker for any evaluation which was in progress in the current thread
+     */
+    public static Object beginCondition()
+    {
+        ConditionMarker saved = conditionMarker.get();
+        conditionMarker.set(new ConditionMarker());
+        return saved;
+    }
+
+    /**
+     * record that the rule condition being evaluated by the current thread was true
+     */
+    public static void conditionMatched()
+    {
+        ConditionMarker marker = conditionMarker.get();
+        if (marker != null) {
+            marker.matched = true;
+        }
+    }
+
+    /**
+     * mark the end of evaluation of a rule condition by the current thread
+     * @param saved the value returned by the corresponding call to beginCondition
+     * @return true if the condition was recorded as matched otherwise false
+     */
+    public static boolean endCondition(Object saved)
+    {
+        ConditionMarker marker = conditionMarker.get();
+        conditionMarker.set((ConditionMarker)saved);
+        return marker != null && marker.matched;
+    }
+
+    /**
+     * emit an event defined by a rule. the event type is defined the first time an event with the given
+     * name is emitted, taking its field names from the supplied names and its field types from the
+     * supplied values. a value of a type the flight recorder does not support is recorded as a String.
+     * when a later event with the same name supplies a value whose type does not match the field it is
+     * converted where possible, names which were not in the original definition are ignored.
+     * @param name the name of the event type
+     * @param names the names of the event fields
+     * @param values the values of the event fields
+     * @return true if the event was committed to a recording otherwise false
+     */
+    public static boolean emitRuleEvent(String name, String[] names, Object[] values)
+    {
+        if (!recording) {
+            return false;
+        }
+        String qualifiedName = (name.indexOf('.') < 0 ? RULE_EVENT_PREFIX + name : name);
+        EventType eventType;
+        synchronized (ruleEventTypes) {
+            eventType = ruleEventTypes.get(qualifiedName);
+            if (eventType == null) {
+                Class<?>[] types = new Class<?>[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    types[i] = fieldType(values[i]);
+                }
+                eventType = new EventType(qualifiedName, name, "Event emitted by a Byteman rule", names, types);
+                ruleEventTypes.put(qualifiedName, eventType);
+            }
+        }
+        return eventType.emit(names, values);
+    }
+
+    /**
+     * a flight recorder event type defined by the agent
+     */
+    public static class EventType
+    {
+        private final String name;
+        private final String label;
+        private final String description;
+        private final String[] fieldNames;
+        private final Class<?>[] fieldTypes;
+        private volatile Object factory;
+        private volatile boolean broken;
+        private volatile boolean enabled;
+
+        private EventType(String name, String label, String description, String[] fieldNames, Class<?>[] fieldTypes)
+        {
+            this.name = name;
+            this.label = label;
+            this.description = description;
+            this.fieldNames = fieldNames;
+            this.fieldTypes = fieldTypes;
+            this.factory = null;
+            this.broken = false;
+            this.enabled = false;
+        }
+
+        /**
+         * return true if events of this type are being collected by a running recording. callers
+         * should check this before creating an event so that they do no work when the event is
+         * disabled
+         * @return true if events of this type are enabled otherwise false
+         */
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        /**
+         * create an event of this type and start timing it
+         * @return the event or null if the event could not be created
+         */
+        public Object begin()
+        {
+            Object event = newEvent();
+            if (event != null) {
+                invoke(eventBegin, event);
+            }
+            return event;
+        }
+
+        /**
+         * stop timing an event created by begin and commit it to the recording
+         * @param event the event returned by begin or null
+         * @param values the field values in the order in which the fields were declared
+         */
+        public void commit(Object event, Object... values)
+        {
+            if (event == null) {
+                return;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    invoke(eventSet, event, i, values[i]);
+                }
+            }
+            // commit ends the event if it has not already been ended
+            invoke(eventCommit, event);
+        }
+
+        /**
+         * create and commit an event which takes no time
+         * @param values the field values in the order in which the fields were declared
+         */
+        public void emit(Object... values)
+        {
+            commit(newEvent(), values);
+        }
+
+        private boolean emit(String[] names, Object[] values)
+        {
+            Object event = newEvent();
+            if (event == null || !Boolean.TRUE.equals(invoke(eventShouldCommit, event))) {
+                return false;
+            }
+            for (int i = 0; i < names.length; i++) {
+                for (int j = 0; j < fieldNames.length; j++) {
+                    if (fieldNames[j].equals(names[i])) {
+                        Object value = convert(values[i], fieldTypes[j]);
+                        if (value != null) {
+                            invoke(eventSet, event, j, value);
+                        }
+                        break;
+                    }
+                }
+            }
+            invoke(eventCommit, event);
+            return true;
+        }
+
+        private Object newEvent()
+        {
+            if (disabled || broken) {
+                return null;
+            }
+            Object eventFactory = factory;
+            if (eventFactory == null) {
+                synchronized (this) {
+                    eventFactory = factory;
+                    if (eventFactory == null) {
+                        try {
+                            eventFactory = factory = createFactory();
+                        } catch (Throwable th) {
+                            // a bad definition only affects this event type
+                            broken = true;
+                            if (th instanceof InvocationTargetException) {
+                                th = th.getCause();
+                            }
+                            System.out.println("FlightRecorderSupport : unable to define event type " + name + " : " + th);
+                            return null;
+                        }
+                    }
+                }
+            }
+            return invoke(factoryNewEvent, eventFactory);
+        }
+
+        private Object createFactory() throws Exception
+        {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotationElementConstructor.newInstance(nameClass, name));
+            annotations.add(annotationElementConstructor.newInstance(labelClass, label));
+            annotations.add(annotationElementConstructor.newInstance(descriptionClass, description));
+            annotations.add(annotationElementConstructor.newInstance(categoryClass, new String[] { "Byteman" }));
+            List<Object> fields = new ArrayList<Object>();
+            for (int i = 0; i < fieldNames.length; i++) {
+                fields.add(valueDescriptorConstructor.newInstance(fieldTypes[i], fieldNames[i], new ArrayList<Object>()));
+            }
+            return factoryCreate.invoke(null, annotations, fields);
+        }
+
+        /**
+         * recompute the enabled flag for this event type
+         * @param isRecording true if a recording is running
+         */
+        private void refresh(boolean isRecording)
+        {
+            if (!isRecording) {
+                enabled = false;
+                return;
+            }
+            // events are registered when their factory is created which applies the recording settings
+            Object event = newEvent();
+            enabled = (event != null && Boolean.TRUE.equals(invoke(eventIsEnabled, event)));
+        }
+    }
+
+    /**
+     * recompute whether a recording is running and which event types it is collecting
+     */
+    private static void refresh()
+    {
+        boolean isRecording = false;
+        try {
+            Object recorder = flightRecorderClass.getMethod("getFlightRecorder").invoke(null);
+            List<?> recordings = (List<?>)flightRecorderClass.getMethod("getRecordings").invoke(recorder);
+            Method getState = recordingClass.getMethod("getState");
+            for (Object recording : recordings) {
+                if ("RUNNING".equals(String.valueOf(getState.invoke(recording)))) {
+                    isRecording = true;
+                    break;
+                }
+            }
+        } catch (Throwable th) {
+            disable(th);
+        }
+        isRecording = isRecording && !disabled;
+        for (EventType eventType : AGENT_EVENT_TYPES) {
+            eventType.refresh(isRecording);
+        }
+        recording = isRecording;
+    }
+
+    private static Object invoke(Method method, Object target, Object... args)
+    {
+        if (disabled) {
+            return null;
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (Throwable th) {
+            disable(th);
+            return null;
+        }
+    }
+
+    /**
+     * stop emitting events after a failure to use the flight recorder API
+     * @param th the failure or null if the API is not available
+     */
+    private static void disable(Throwable th)
+    {
+        disabled = true;
+        recording = false;
+        for (EventType eventType : AGENT_EVENT_TYPES) {
+            eventType.enabled = false;
+        }
+        if (th != null) {
+            System.out.println("FlightRecorderSupport : disabling flight recorder events : " + th);
+            if (Transformer.isVerbose()) {
+                th.printStackTrace(System.out);
+            }
+        }
+    }
+
+    /**
+     * identify the flight recorder field type used to record a value
+     * @param value the value
+     * @return the field type
+     */
+    private static Class<?> fieldType(Object value)
+    {
+        if (value instanceof Integer) {
+            return int.class;
+        } else if (value instanceof Long) {
+            return long.class;
+        } else if (value instanceof Boolean) {
+            return boolean.class;
+        } else if (value instanceof Double) {
+            return double.class;
+        } else if (value instanceof Float) {
+            return float.class;
+        } else if (value instanceof Short) {
+            return short.class;
+        } else if (value instanceof Byte) {
+            return byte.class;
+        } else if (value instanceof Character) {
+            return char.class;
+        } else {
+            return String.class;
+        }
+    }
+
+    /**
+     * convert a value to the type of the field in which it is to be recorded
+     * @param value the value
+     * @param type the field type
+     * @return the converted value or null if it cannot be converted
+     */
+    private static Object convert(Object value, Class<?> type)
+    {
+        if (type == String.class) {
+            if (value == null || value instanceof String) {
+                return value;
+            } else if (value.getClass().isArray()) {
+                // render arrays by element rather than using their identity
+                StringBuilder builder = new StringBuilder("[");
+                int length = Array.getLength(value);
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) {
+                        builder.append(", ");
+                    }
+                    builder.append(Array.get(value, i));
+                }
+                return builder.append(']').toString();
+            }
+            return value.toString();
+        }
+        if (fieldType(value) == type) {
+            return value;
+        }
+        if (value instanceof Number) {
+            Number number = (Number)value;
+            if (type == int.class) {
+                return number.intValue();
+            } else if (type == long.class) {
+                return number.longValue();
+            } else if (type == double.class) {
+                return number.doubleValue();
+            } else if (type == float.class) {
+                return number.floatValue();
+            } else if (type == short.class) {
+                return number.shortValue();
+            } else if (type == byte.class) {
+                return number.byteValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * listener notified by the flight recorder when it is initialized and whenever a recording changes state
+     */
+    private static class RecorderListener implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("recorderInitialized") || name.equals("recordingStateChanged")) {
+                refresh();
+                return null;
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "FlightRecorderSupport.RecorderListener";
+            }
+            return null;
+        }
+    }
+
+    /**
+     * the outcome of a condition evaluation in progress in some thread
+     */
+    private static class ConditionMarker
+    {
+        private boolean matched;
+    }
+
+    private static final EventType[] AGENT_EVENT_TYPES = {
+            RULE_TRIGGERED, RULE_CONDITION, RULE_COMPILED, CLASS_TRANSFORMED, RETRANSFORM_BATCH
+    };
+
+    private static final Map<String, EventType> ruleEventTypes = new HashMap<String, EventType>();
+
+    private static final ThreadLocal<ConditionMarker> conditionMarker = new ThreadLocal<ConditionMarker>();
+
+    private static boolean initialized = false;
+
+    /**
+     * true if a recording is running
+     */
+    private static volatile boolean recording = false;
+
+    /**
+     * true if the flight recorder API is not available or failed when used
+     */
+    private static volatile boolean disabled = false;
+
+    private static Class<?> flightRecorderClass;
+    private static Class<?> recordingClass;
+    private static Class<?> nameClass;
+    private static Class<?> labelClass;
+    private static Class<?> descriptionClass;
+    private static Class<?> categoryClass;
+    private static Constructor<?> annotationElementConstructor;
+    private static Constructor<?> valueDescriptorConstructor;
+    private static Method factoryCreate;
+    private static Method factoryNewEvent;
+    private static Method eventBegin;
+    private static Method eventSet;
+    private static Method eventIsEnabled;
+    private static Method eventShouldCommit;
+    private static Method eventCommit;
+}
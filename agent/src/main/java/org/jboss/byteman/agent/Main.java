@@ -24,6 +24,7 @@
 package org.jboss.byteman.agent;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.ClassFileTransformer;
@@ -36,6 +37,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.FileInputStream;
 import java.net.Socket;
+import java.net.URL;
+import java.util.Enumeration;
 
 /**
  * agent class supplied at JVM startup to install byteman package bytecode transformer
@@ -57,6 +60,7 @@ public class Main {
         }
         boolean allowRedefine = false;
         boolean installPolicy = false;
+        boolean registerMBeans = false;
 
         if (args != null) {
             // args are supplied eparated by ',' characters
@@ -90,6 +94,8 @@ public class Main {
                     scriptPaths.add(arg.substring(SCRIPT_PREFIX.length(), arg.length()));
                 } else if (arg.startsWith(RESOURCE_SCRIPT_PREFIX)) {
                     resourcescriptPaths.add(arg.substring(RESOURCE_SCRIPT_PREFIX.length(), arg.length()));
+                } else if (arg.startsWith(WOVEN_PREFIX)) {
+                    wovenPaths.add(arg.substring(WOVEN_PREFIX.length(), arg.length()));
                 } else if (arg.startsWith(LISTENER_PREFIX)) {
                     String value = arg.substring(LISTENER_PREFIX.length(), arg.length());
                     allowRedefine = Boolean.parseBoolean(value);
@@ -130,6 +136,9 @@ public class Main {
                 } else if (arg.startsWith(POLICY_PREFIX)) {
                     String value = arg.substring(POLICY_PREFIX.length(), arg.length());
                     installPolicy = Boolean.parseBoolean(value);
+                } else if (arg.startsWith(JMX_PREFIX)) {
+                    String value = arg.substring(JMX_PREFIX.length(), arg.length());
+                    registerMBeans = Boolean.parseBoolean(value);
                 } else {
                     System.err.println("org.jboss.byteman.agent.Main:\n" +
                             "  illegal agent argument : " + arg + "\n" +
@@ -201,6 +210,32 @@ public class Main {
             }
         }
 
+        // look up registries of rules woven into classes at build time. a path which does not identify
+        // a file is looked up as a resource and every copy found on the system class path is used
+
+        for (String wovenPath : wovenPaths) {
+            try {
+                File file = new File(wovenPath);
+                if (file.isFile()) {
+                    wovenRegistries.add(readBytes(new FileInputStream(file)));
+                    wovenRegistryPaths.add(wovenPath);
+                } else {
+                    Enumeration<URL> resources = ClassLoader.getSystemResources(wovenPath);
+                    if (!resources.hasMoreElements()) {
+                        throw new Exception("org.jboss.byteman.agent.Main: could not find woven rule registry : " + wovenPath);
+                    }
+                    while (resources.hasMoreElements()) {
+                        URL resource = resources.nextElement();
+                        wovenRegistries.add(readBytes(resource.openStream()));
+                        wovenRegistryPaths.add(resource.toString());
+                    }
+                }
+            } catch (IOException ioe) {
+                System.err.println("org.jboss.byteman.agent.Main: error reading woven rule registry : " + wovenPath);
+                throw ioe;
+            }
+        }
+
         // install an instance of Transformer to instrument the bytecode
         // n.b. this is done with boxing gloves on using explicit class loading and method invocation
         // via reflection for a GOOD reason. This class (Main) gets laoded by the System class loader.
@@ -236,7 +271,29 @@ public class Main {
             transformer = (ClassFileTransformer)constructor.newInstance(new Object[] { inst, scriptPaths, scripts, isRedefine});
         }
 
+        // woven rules must be registered before any woven class can be loaded
+
+        if (!wovenRegistries.isEmpty()) {
+            Method method = transformerClazz.getMethod("addWovenRules", byte[].class, String.class);
+            for (int i = 0; i < wovenRegistries.size(); i++) {
+                method.invoke(transformer, wovenRegistries.get(i), wovenRegistryPaths.get(i));
+            }
+        }
+
         inst.addTransformer(transformer, true);
+
+        // make sure the transformer gets a chance to release its resources when the JVM exits
+        final Method shutdownMethod = transformerClazz.getMethod("shutdown");
+        final ClassFileTransformer shutdownTransformer = transformer;
+        Runtime.getRuntime().addShutdownHook(new Thread("Byteman agent shutdown") {
+            public void run() {
+                try {
+                    shutdownMethod.invoke(shutdownTransformer);
+                } catch (Exception e) {
+                    // nothing we can do about it now
+                }
+            }
+        });
         
         if (allowRedefine && isRedefine) {
             Method method = transformerClazz.getMethod("addTransformListener", String.class, Integer.class);
@@ -248,6 +305,11 @@ public class Main {
             method.invoke(transformer);
         }
 
+        if (registerMBeans) {
+            Method method = transformerClazz.getMethod("registerMBeans");
+            method.invoke(transformer);
+        }
+
         if (isRedefine) {
             Method method;
 
@@ -261,6 +323,22 @@ public class Main {
     {
         premain(args, inst);
     }
+
+    private static byte[] readBytes(InputStream is) throws IOException
+    {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
     /**
      * prefix used to specify port argument for agent
      */
@@ -298,6 +376,12 @@ public class Main {
 
     private static final String RESOURCE_SCRIPT_PREFIX = "resourcescript:";
 
+    /**
+     * prefix used to specify a file or resource containing a registry of rules woven into classes at build time
+     */
+
+    private static final String WOVEN_PREFIX = "woven:";
+
     /**
      * prefix used to specify transformer type argument for agent
      */
@@ -316,6 +400,12 @@ public class Main {
 
     private static final String PROP_PREFIX = "prop:";
 
+    /**
+     * prefix used to request registration of the agent's management beans with the platform MBean server
+     */
+
+    private static final String JMX_PREFIX = "jmx:";
+
     /**
      * list of paths to extra bootstrap jars supplied on command line
      */
@@ -340,6 +430,21 @@ public class Main {
      * list of scripts read from script files
      */
     private static List<String> scripts = new ArrayList<String>();
+
+    /**
+     * list of paths to woven rule registry files or resources supplied on command line
+     */
+    private static List<String> wovenPaths = new ArrayList<String>();
+
+    /**
+     * list of woven rule registries read from woven rule registry files or resources
+     */
+    private static List<byte[]> wovenRegistries = new ArrayList<byte[]>();
+
+    /**
+     * list of the file or resource each woven rule registry was read from
+     */
+    private static List<String> wovenRegistryPaths = new ArrayList<String>();
     
     /**
      * The hostname to bind the listener to, supplied on the command line (optional argument)
@@ -0,0 +1,277 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import org.jboss.byteman.rule.Rule;
+
+import java.io.PrintWriter;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * class used to retransform a batch of classes in a sequence of chunks rather than in one call to
+ * Instrumentation.retransformClasses. the chunk size shrinks when a chunk takes longer than the configured
+ * pause budget and grows back when chunks complete well within it, so that no single retransformation holds
+ * the JVM at a safepoint for too long. a chunk which fails is split and retried so that a class whose
+ * transformed bytecode is rejected does not stop the other classes in the batch being retransformed. in
+ * asynchronous mode batches are retransformed in order on a background thread, pausing between chunks so
+ * that the application can make progress while large rule sets are applied.
+ */
+public class RetransformScheduler
+{
+    public RetransformScheduler(Instrumentation inst, AgentStatistics statistics)
+    {
+        this.inst = inst;
+        this.statistics = statistics;
+    }
+
+    /**
+     * retransform a batch of classes, running a completion action once every class has been processed.
+     * in synchronous mode the outcome for each class is written to out before this method returns. in
+     * asynchronous mode the batch is queued, failures are written to System.out and successful
+     * retransforms are only reported when verbose mode is enabled.
+     * @param classes the classes to be retransformed
+     * @param out a writer to which the outcome for each class is reported
+     * @param completion an action to run once the batch has been processed or null
+     */
+    public void retransform(final Class<?>[] classes, PrintWriter out, final Completion completion)
+    {
+        if (Transformer.isRetransformAsync()) {
+            out.println("scheduled retransformation of " + classes.length + " classes");
+            try {
+                getExecutor().execute(new Runnable() {
+                    public void run() {
+                        PrintWriter log = new PrintWriter(System.out, true);
+                        List<Class<?>> skipped = new ArrayList<Class<?>>();
+                        try {
+                            retransformBatch(classes, log, Transformer.isVerbose(), true, skipped);
+                        } finally {
+                            log.flush();
+                            if (completion != null) {
+                                completion.completed(skipped);
+                            }
+                        }
+                    }
+                });
+                return;
+            } catch (RejectedExecutionException ree) {
+                // the executor has been shut down so fall through and do the work here
+            }
+        }
+
+        List<Class<?>> skipped = new ArrayList<Class<?>>();
+        try {
+            retransformBatch(classes, out, true, false, skipped);
+        } finally {
+            if (completion != null) {
+                completion.completed(skipped);
+            }
+        }
+    }
+
+    /**
+     * stop retransforming classes asynchronously. batches which have been queued but not started are dropped.
+     */
+    public synchronized void shutdown()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * retransform all the classes in a batch chunk by chunk
+     * @param classes the classes to be retransformed
+     * @param out a writer to which the outcome is reported
+     * @param reportSuccess true if each successfully retransformed class should be reported
+     * @param pause true if the thread should sleep between chunks to let the application make progress
+     * @param skipped a list to which any class which was not retransformed is appended
+     */
+    private void retransformBatch(Class<?>[] classes, PrintWriter out, boolean reportSuccess, boolean pause, List<Class<?>> skipped)
+    {
+        int maxChunkSize = Transformer.getRetransformChunkSize();
+        long pauseBudget = Transformer.getRetransformPauseMillis();
+        int total = classes.length;
+
+        if (maxChunkSize <= 0 || maxChunkSize > total) {
+            maxChunkSize = total;
+        }
+
+        int chunkSize = maxChunkSize;
+        int chunks = 0;
+        long start = System.currentTimeMillis();
+        Object event = (FlightRecorderSupport.RETRANSFORM_BATCH.isEnabled() ? FlightRecorderSupport.RETRANSFORM_BATCH.begin() : null);
+
+        // retransforms must not interleave with one another or with other batches
+        synchronized (retransformLock) {
+            int next = 0;
+            while (next < total) {
+                int size = Math.min(chunkSize, total - next);
+                Class<?>[] chunk = new Class<?>[size];
+                System.arraycopy(classes, next, chunk, 0, size);
+                long chunkStart = System.currentTimeMillis();
+                retransformChunk(chunk, out, reportSuccess, skipped);
+                long elapsed = System.currentTimeMillis() - chunkStart;
+                next += size;
+                chunks++;
+                if (pauseBudget > 0) {
+                    // adapt the chunk size so that each call stays within the pause budget
+                    if (elapsed > pauseBudget && chunkSize > 1) {
+                        chunkSize = chunkSize / 2;
+                    } else if (elapsed < pauseBudget / 2 && chunkSize < maxChunkSize) {
+                        chunkSize = Math.min(chunkSize * 2, maxChunkSize);
+                    }
+                    if (pause && next < total) {
+                        try {
+                            Thread.sleep(pauseBudget);
+                        } catch (InterruptedException e) {
+                            // we are being shut down so give up on the rest of the batch but still
+                            // report what we managed to do
+                            Thread.currentThread().interrupt();
+                            out.println("ERROR retransformation interrupted with " + (total - next) + " classes outstanding");
+                            for (int i = next; i < total; i++) {
+                                skipped.add(classes[i]);
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        int failed = skipped.size();
+        FlightRecorderSupport.RETRANSFORM_BATCH.commit(event, total, failed);
+        out.println("retransformed " + (total - failed) + " of " + total + " classes in " + chunks + " chunks in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * retransform a chunk of classes. if the retransform fails and the chunk contains more than one class then
+     * it is split in two and each half is retried so that only the classes which actually fail are left
+     * untransformed
+     * @param chunk the classes to be retransformed
+     * @param out a writer to which the outcome is reported
+     * @param reportSuccess true if each successfully retransformed class should be reported
+     * @param failed a list to which any class which could not be retransformed is appended
+     */
+    private void retransformChunk(Class<?>[] chunk, PrintWriter out, boolean reportSuccess, List<Class<?>> failed)
+    {
+        if (Transformer.isVerbose()) {
+            for (int i = 0; i < chunk.length; i++) {
+                System.out.println("retransforming " + chunk[i].getName());
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            inst.retransformClasses(chunk);
+        } catch (Throwable th) {
+            statistics.recordRetransform(chunk.length, System.nanoTime() - start);
+            if (chunk.length > 1) {
+                // isolate the class or classes which are failing
+                int half = chunk.length / 2;
+                Class<?>[] first = new Class<?>[half];
+                Class<?>[] second = new Class<?>[chunk.length - half];
+                System.arraycopy(chunk, 0, first, 0, first.length);
+                System.arraycopy(chunk, half, second, 0, second.length);
+                retransformChunk(first, out, reportSuccess, failed);
+                retransformChunk(second, out, reportSuccess, failed);
+                return;
+            }
+            String name = chunk[0].getName();
+            System.out.println("RetransformScheduler : failed to retransform class " + name + " : some rules may not have been correctly injected or uninjected!");
+            if (Transformer.isVerbose()) {
+                th.printStackTrace();
+            }
+            out.println("ERROR failed to retransform class " + name + " : " + th);
+            failed.add(chunk[0]);
+            return;
+        }
+        statistics.recordRetransform(chunk.length, System.nanoTime() - start);
+        if (reportSuccess) {
+            for (int i = 0; i < chunk.length; i++) {
+                out.println("retransformed class " + chunk[i].getName());
+            }
+        }
+    }
+
+    /**
+     * return the executor used to retransform batches asynchronously, creating it if necessary
+     * @return the executor
+     */
+    private synchronized ExecutorService getExecutor()
+    {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        public Thread newThread(final Runnable runnable) {
+                            Thread thread = new Thread("Byteman Retransform Scheduler") {
+                                public void run() {
+                                    // we don't want rules triggering inside code run during retransformation
+                                    Rule.disableTriggersInternal();
+                                    runnable.run();
+                                }
+                            };
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return executor;
+    }
+
+    /**
+     * an action run once a batch of classes has been processed
+     */
+    public interface Completion
+    {
+        /**
+         * called once every class in the batch has been retransformed or skipped
+         * @param skipped the classes which failed to retransform or which were not retransformed because
+         * the batch was interrupted. their bytecode is unchanged.
+         */
+        public void completed(List<Class<?>> skipped);
+    }
+
+    private final Instrumentation inst;
+
+    private final AgentStatistics statistics;
+
+    /**
+     * lock used to serialize retransformation of batches
+     */
+    private final Object retransformLock = new Object();
+
+    /**
+     * the executor used to run asynchronous batches. this is only created when it is first needed
+     */
+    private ExecutorService executor = null;
+}
@@ -23,8 +23,20 @@
 */
 package org.jboss.byteman.agent;
 
+import org.jboss.byteman.rule.Rule;
+import org.jboss.byteman.rule.RuleStatistics;
+import org.jboss.byteman.rule.exception.ParseException;
+
 import java.lang.instrument.Instrumentation;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarFile;
 import java.io.PrintWriter;
 
@@ -50,9 +62,19 @@ public class Retransformer extends Transformer {
             throws Exception
     {
         super(inst, scriptPaths, scriptTexts, isRedefine);
+        retransformScheduler = new RetransformScheduler(inst, statistics);
         //addTransformListener(hostname, port);
     }
 
+    /**
+     * release resources held by the retransformer, including any background retransform thread
+     */
+    public void shutdown()
+    {
+        retransformScheduler.shutdown();
+        super.shutdown();
+    }
+
     public void installScript(List<String> scriptTexts, List<String> scriptNames, PrintWriter out) throws Exception
     {
         int length = scriptTexts.size();
@@ -67,18 +89,13 @@ public class Retransformer extends Transformer {
             toBeAdded.addAll(ruleScripts);
         }
 
-        for (RuleScript ruleScript : toBeAdded) {
-            String name = ruleScript.getName();
-            String className = ruleScript.getTargetClass();
-            String baseName = null;
-            int lastDotIdx = className.lastIndexOf('.');
-            if (lastDotIdx >= 0) {
-                baseName = className.substring(lastDotIdx + 1);
-            }
+        // add all the scripts in one update
 
-            RuleScript previous;
+        Iterator<RuleScript> results = scriptRepository.updateScripts(toBeAdded, Collections.<RuleScript>emptyList()).iterator();
 
-            previous = scriptRepository.addScript(ruleScript);
+        for (RuleScript ruleScript : toBeAdded) {
+            String name = ruleScript.getName();
+            RuleScript previous = results.next();
             if (previous != null) {
                 out.println("redefine rule " + name);
                 toBeRemoved.add(previous);
@@ -90,70 +107,321 @@ public class Retransformer extends Transformer {
         // ok, now that we have updated the indexes we need to find all classes which match the scripts and
         // retransform them
 
-        // list all class names for the to be aded and to be removed scripts
+        List<Class<?>> transformed = selectClasses(toBeAdded, toBeRemoved, out);
+
+        // retransform all classes whose rules have changed then purge keys for all deleted scripts
+
+        retransform(transformed, toBeRemoved, out);
+    }
+
+    /**
+     * replace all the rules previously loaded from a set of scripts with the rules those scripts now contain.
+     * rules whose definition is unchanged are left alone, rules whose definition has changed are redefined,
+     * new rules are installed and rules which no longer appear in their script are uninstalled. all the
+     * affected classes are then retransformed in one batch. the scripts are parsed and checked before any
+     * installed rule is touched so if any of them is in error the installed rules are left as they were.
+     * @param scriptTexts the text of each script
+     * @param scriptNames the name of each script identifying the rules it previously installed
+     * @param out a writer to which the outcome of the update is reported
+     * @throws Exception if a script is in error
+     */
+    public void replaceScripts(List<String> scriptTexts, List<String> scriptNames, PrintWriter out) throws Exception
+    {
+        int length = scriptTexts.size();
+        List<RuleScript> replacements = new LinkedList<RuleScript>();
+        Set<String> ruleNames = new HashSet<String>();
+        Set<String> fileNames = new HashSet<String>(scriptNames);
+
+        // parse everything before we modify the repository
+
+        for (int i = 0; i < length ; i++) {
+            String scriptText = scriptTexts.get(i);
+            String scriptName = scriptNames.get(i);
+
+            List<RuleScript> ruleScripts = scriptRepository.processScripts(scriptText, scriptName);
+            for (RuleScript ruleScript : ruleScripts) {
+                String name = ruleScript.getName();
+                if (!ruleNames.add(name)) {
+                    throw new Exception("org.jboss.byteman.agent.Retransformer : duplicate rule name " + name + " in script " + scriptName);
+                }
+                try {
+                    ruleScript.getParseTree();
+                } catch (ParseException pe) {
+                    throw new Exception("org.jboss.byteman.agent.Retransformer : error parsing rule " + name + " in script " + scriptName + " : " + pe.getMessage());
+                }
+                replacements.add(ruleScript);
+            }
+        }
+
+        // now work out which of the currently installed rules are going away
 
-        List<String> deletedClassNames = new LinkedList<String>();
+        List<RuleScript> toBeDeleted = new LinkedList<RuleScript>();
+
+        for (RuleScript current : scriptRepository.currentRules()) {
+            if (fileNames.contains(current.getFile()) && !ruleNames.contains(current.getName())) {
+                toBeDeleted.add(current);
+            }
+        }
+
+        // and which of the replacements actually differ from the installed rules
+
+        List<RuleScript> toBeAdded = new LinkedList<RuleScript>();
+
+        for (RuleScript ruleScript : replacements) {
+            String name = ruleScript.getName();
+            RuleScript current = scriptRepository.scriptForRuleName(name);
+            if (current != null && current.toString().equals(ruleScript.toString())) {
+                out.println("unchanged rule " + name);
+                continue;
+            }
+            toBeAdded.add(ruleScript);
+        }
+
+        // ok, we can update the repository. this is done as a single update so that classes loaded while
+        // we are doing it see either the old set of rules or the new set and never a mixture of the two
+
+        List<RuleScript> toBeRemoved = new LinkedList<RuleScript>();
+        Iterator<RuleScript> results = scriptRepository.updateScripts(toBeAdded, toBeDeleted).iterator();
+
+        for (RuleScript ruleScript : toBeAdded) {
+            RuleScript previous = results.next();
+            if (previous != null) {
+                out.println("redefine rule " + ruleScript.getName());
+                toBeRemoved.add(previous);
+            } else {
+                out.println("install rule " + ruleScript.getName());
+            }
+        }
+
+        for (RuleScript ruleScript : toBeDeleted) {
+            if (results.next() == ruleScript) {
+                out.println("uninstall RULE " + ruleScript.getName());
+                toBeRemoved.add(ruleScript);
+            }
+        }
+
+        // retransform the union of the classes affected by the additions and removals in one go
+
+        List<Class<?>> transformed = selectClasses(toBeAdded, toBeRemoved, out);
+
+        retransform(transformed, toBeRemoved, out);
+    }
+
+    /**
+     * identify the loaded classes which need to be retransformed after a rule update
+     * @param toBeAdded scripts which have been added by the update
+     * @param toBeRemoved scripts which have been deleted by the update
+     * @param out a writer to which the scan timing is reported
+     * @return a list of the classes which need to be retransformed
+     * @throws Exception if an error occurs checking a class
+     */
+    private List<Class<?>> selectClasses(List<RuleScript> toBeAdded, List<RuleScript> toBeRemoved, PrintWriter out)
+            throws Exception
+    {
+        // list all class names for the to be removed scripts
+
+        Set<String> deletedClassNames = new HashSet<String>();
 
         for (RuleScript ruleScript : toBeRemoved) {
             List<Transform> transforms = ruleScript.getTransformed();
-            for (Transform transform : transforms) {
-                String className = transform.getInternalClassName();
-                if (!deletedClassNames.contains(className)) {
-                    deletedClassNames.add(className);
+            if (transforms != null) {
+                for (Transform transform : transforms) {
+                    deletedClassNames.add(transform.getInternalClassName());
                 }
             }
         }
 
         // for added scripts we have to transform anything which might be a match
 
-        ScriptRepository tmpRepository = new ScriptRepository(skipOverrideRules());
-        for (RuleScript ruleScript : toBeAdded) {
-            tmpRepository.addScript(ruleScript);
+        ScriptRepository tmpRepository = null;
+
+        if (!toBeAdded.isEmpty()) {
+            tmpRepository = new ScriptRepository(skipOverrideRules());
+            tmpRepository.updateScripts(toBeAdded, Collections.<RuleScript>emptyList());
         }
 
         // now look for loaded classes whose names are in the deleted list or which match added rules
 
-        List<Class<?>> transformed = new LinkedList<Class<?>>();
+        return selectClasses(deletedClassNames, tmpRepository, out);
+    }
 
-        for (Class clazz : inst.getAllLoadedClasses()) {
-            if (isSkipClass(clazz)) {
-                continue;
-            }
-            if (deletedClassNames.contains(clazz.getName())) {
-                transformed.add(clazz);
-            } else if (tmpRepository.matchClass(clazz)) {
-                    transformed.add(clazz);
+    /**
+     * retransform classes affected by a rule update via the retransform scheduler, purging the keys for any
+     * deleted scripts once the update has been applied. we need to do this after the retransform because the
+     * latter removes the trigger code which uses the rule key. rules injected into a class which could not be
+     * retransformed are not purged since the class still contains their trigger code.
+     * @param transformed the classes to be retransformed
+     * @param toBeRemoved scripts which have been deleted by the update
+     * @param out a writer to which the outcome of the retransform is reported
+     */
+    private void retransform(List<Class<?>> transformed, final List<RuleScript> toBeRemoved, PrintWriter out)
+    {
+        RetransformScheduler.Completion purge = new RetransformScheduler.Completion() {
+            public void completed(List<Class<?>> skipped) {
+                for (RuleScript ruleScript : toBeRemoved) {
+                    ruleScript.purge(skipped);
+                }
             }
-        }
-        // retransform all classes whose rules have changed
+        };
 
-        if (!transformed.isEmpty()) {
+        if (transformed.isEmpty()) {
+            purge.completed(Collections.<Class<?>>emptyList());
+        } else {
             Class<?>[] transformedArray = new Class<?>[transformed.size()];
             transformed.toArray(transformedArray);
-            if (Transformer.isVerbose()) {
-                for (int i = 0; i < transformed.size(); i++) {
-                    System.out.println("retransforming " + transformedArray[i].getName());
-                }
+            retransformScheduler.retransform(transformedArray, out, purge);
+        }
+    }
+
+    /**
+     * identify the loaded classes which need to be retransformed because they were transformed by a deleted
+     * rule or because they may be matched by a newly added rule. for large numbers of loaded classes the scan
+     * is split into slices which are checked in parallel.
+     * @param deletedClassNames the names of classes transformed by deleted rules
+     * @param addedRepository a repository containing only the newly added rules or null if no rules were added
+     * @param out a writer to which the scan timing is reported
+     * @return a list of the classes which need to be retransformed in the order they were returned by the JVM
+     * @throws Exception if an error occurs checking a class
+     */
+    private List<Class<?>> selectClasses(Set<String> deletedClassNames, ScriptRepository addedRepository, PrintWriter out)
+            throws Exception
+    {
+        long start = System.currentTimeMillis();
+        Class<?>[] loadedClasses = inst.getAllLoadedClasses();
+        int count = loadedClasses.length;
+        int sliceCount = Runtime.getRuntime().availableProcessors();
+        List<Class<?>> selected;
+
+        if (count < PARALLEL_SCAN_THRESHOLD || sliceCount < 2) {
+            selected = selectClasses(loadedClasses, 0, count, deletedClassNames, addedRepository);
+        } else {
+            // split the classes into equal slices and check each one in the scan pool
+            List<Future<List<Class<?>>>> futures = new ArrayList<Future<List<Class<?>>>>(sliceCount);
+            int sliceSize = (count + sliceCount - 1) / sliceCount;
+            ExecutorService executor = getScanExecutor(sliceCount);
+            for (int from = 0; from < count; from += sliceSize) {
+                int to = Math.min(from + sliceSize, count);
+                futures.add(executor.submit(new ClassSelector(loadedClasses, from, to, deletedClassNames, addedRepository)));
             }
-            synchronized(this) {
-                try {
-                    inst.retransformClasses(transformedArray);
-                } catch(VerifyError ve) {
-                    System.out.println("Retransformer : VerifyError during retransformation : some rules may not have been correctly injected or uninjected!");
-                    ve.printStackTrace();
-                    out.println("VerifyError during retransformation : some rules may not have been correctly injected or uninjected!");
-                    ve.printStackTrace(out);
+            selected = new ArrayList<Class<?>>();
+            try {
+                for (Future<List<Class<?>>> future : futures) {
+                    selected.addAll(future.get());
+                }
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception)cause;
+                } else if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw ee;
+            } finally {
+                for (Future<List<Class<?>>> future : futures) {
+                    future.cancel(true);
                 }
             }
         }
-        
-        // now we can safely purge keys for all deleted scripts
 
-        for (RuleScript ruleScript : toBeRemoved) {
-            ruleScript.purge();
+        out.println("scanned " + count + " loaded classes in " + (System.currentTimeMillis() - start) + " ms selecting " + selected.size() + " for retransformation");
+
+        return selected;
+    }
+
+    /**
+     * identify the classes in a slice of the loaded classes array which need to be retransformed
+     */
+    private List<Class<?>> selectClasses(Class<?>[] loadedClasses, int from, int to, Set<String> deletedClassNames,
+                                         ScriptRepository addedRepository)
+            throws Exception
+    {
+        List<Class<?>> selected = new ArrayList<Class<?>>();
+
+        for (int i = from; i < to; i++) {
+            Class<?> clazz = loadedClasses[i];
+            if (isSkipClass(clazz)) {
+                continue;
+            }
+            if (deletedClassNames.contains(clazz.getName())) {
+                selected.add(clazz);
+            } else if (addedRepository != null && addedRepository.matchClass(clazz)) {
+                selected.add(clazz);
+            }
         }
+
+        return selected;
     }
 
+    /**
+     * task used to check a slice of the loaded classes in the scan pool
+     */
+    private class ClassSelector implements Callable<List<Class<?>>>
+    {
+        private Class<?>[] loadedClasses;
+        private int from;
+        private int to;
+        private Set<String> deletedClassNames;
+        private ScriptRepository addedRepository;
+
+        ClassSelector(Class<?>[] loadedClasses, int from, int to, Set<String> deletedClassNames, ScriptRepository addedRepository)
+        {
+            this.loadedClasses = loadedClasses;
+            this.from = from;
+            this.to = to;
+            this.deletedClassNames = deletedClassNames;
+            this.addedRepository = addedRepository;
+        }
+
+        public List<Class<?>> call() throws Exception
+        {
+            return selectClasses(loadedClasses, from, to, deletedClassNames, addedRepository);
+        }
+    }
+
+    /**
+     * return the pool used to scan loaded classes in parallel, creating it if necessary. the pool threads
+     * time out when idle so there is no cost once the scan has completed.
+     * @param size the number of threads in the pool
+     * @return the scan pool
+     */
+    private synchronized ExecutorService getScanExecutor(int size)
+    {
+        if (scanExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private int next = 0;
+                        public synchronized Thread newThread(final Runnable runnable) {
+                            Thread thread = new Thread("Byteman Retransformer Scan " + next++) {
+                                public void run() {
+                                    // we don't want rules triggering inside code run from the scan
+                                    Rule.disableTriggersInternal();
+                                    runnable.run();
+                                }
+                            };
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            scanExecutor = executor;
+        }
+        return scanExecutor;
+    }
+
+    /**
+     * the minimum number of loaded classes for which the scan for classes to be retransformed is split
+     * across the scan pool. below this it is cheaper to check them all in the calling thread.
+     */
+    private static final int PARALLEL_SCAN_THRESHOLD = 4096;
+
+    private ExecutorService scanExecutor = null;
+
+    /**
+     * scheduler used to retransform the classes affected by rule updates
+     */
+    private final RetransformScheduler retransformScheduler;
+
     protected void collectAffectedNames(List<RuleScript> ruleScripts, List<String> classList, List<String> interfaceList,
                                    List<String> superClassList, List<String> superInterfaceList)
     {
@@ -203,6 +471,68 @@ public class Retransformer extends Transformer {
         }
     }
 
+    /**
+     * write the runtime counters for each installed rule, one line per rule and trigger class. counts for
+     * the same rule injected into a trigger class loaded by different loaders are combined. each line
+     * contains the following tab separated fields: rule name, trigger class, trigger count, condition
+     * true count, action completed count, exception count, total execution time in nanoseconds and
+     * longest execution time in nanoseconds.
+     * @param out the output to write to
+     * @param reset true if the counters should be zeroed after they are read
+     */
+    protected void listStatistics(PrintWriter out, boolean reset)
+    {
+        Map<String, long[]> statistics = new LinkedHashMap<String, long[]>();
+        // a rule may be recorded against more than one transform but must only be counted once
+        Map<Rule, Rule> counted = new IdentityHashMap<Rule, Rule>();
+
+        for (RuleScript ruleScript : scriptRepository.currentRules()) {
+            synchronized (ruleScript) {
+                List<Transform> transformed = ruleScript.getTransformed();
+                if (transformed == null) {
+                    continue;
+                }
+                for (Transform transform : transformed) {
+                    Rule rule = transform.getRule();
+                    if (rule == null || counted.put(rule, rule) != null) {
+                        continue;
+                    }
+                    String key = ruleScript.getName() + "\t" + transform.getInternalClassName();
+                    long[] values = statistics.get(key);
+                    if (values == null) {
+                        values = new long[RuleStatistics.SIZE];
+                        statistics.put(key, values);
+                    }
+                    rule.getStatistics().addTo(values, reset);
+                }
+            }
+        }
+
+        for (Map.Entry<String, long[]> entry : statistics.entrySet()) {
+            out.print(entry.getKey());
+            long[] values = entry.getValue();
+            for (int i = 0; i < values.length; i++) {
+                out.print('\t');
+                out.print(values[i]);
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * write the counters which record the cost of transforming and retransforming classes, one name
+     * value pair per line
+     * @param out the output to write to
+     * @param reset true if the counters should be zeroed after they are written
+     */
+    protected void listAgentStatistics(PrintWriter out, boolean reset)
+    {
+        statistics.writeTo(out);
+        if (reset) {
+            statistics.reset();
+        }
+    }
+
     public void addTransformListener(String hostname, Integer port)
     {
         TransformListener.initialize(this, hostname, port);
@@ -244,8 +574,10 @@ public class Retransformer extends Transformer {
             return;
         }
         
+        Iterator<RuleScript> results = scriptRepository.updateScripts(Collections.<RuleScript>emptyList(), toBeRemoved).iterator();
+
         for (RuleScript ruleScript : toBeRemoved) {
-            if (scriptRepository.removeScript(ruleScript) != ruleScript) {
+            if (results.next() != ruleScript) {
                 out.println("ERROR remove failed to find script " + ruleScript.getName());
             }
         }
@@ -257,59 +589,15 @@ public class Retransformer extends Transformer {
 
         // now look for loaded classes whose names are in the list
 
-        List<Class<?>> transformed = new LinkedList<Class<?>>();
-        List<String> deletedClassNames = new LinkedList<String>();
+        List<Class<?>> transformed = selectClasses(new LinkedList<RuleScript>(), toBeRemoved, out);
 
-        for (RuleScript ruleScript : toBeRemoved) {
-            List<Transform> transforms = ruleScript.getTransformed();
-            if (transforms != null) {
-                for (Transform transform : transforms) {
-                    String className = transform.getInternalClassName();
-                    if (!deletedClassNames.contains(className)) {
-                        deletedClassNames.add(className);
-                    }
-                }
-            }
-        }
-
-        for (Class clazz : inst.getAllLoadedClasses()) {
-            if (isSkipClass(clazz)) {
-                continue;
-            }
-
-            if (deletedClassNames.contains(clazz.getName())) {
-                transformed.add(clazz);
-            }
-        }
-
-        // retransform all classes affected by the change
-
-        if (!transformed.isEmpty()) {
-            Class<?>[] transformedArray = new Class<?>[transformed.size()];
-            transformed.toArray(transformedArray);
-            if (Transformer.isVerbose()) {
-                for (int i = 0; i < transformed.size(); i++) {
-                    System.out.println("retransforming " + transformedArray[i].getName());
-                }
-            }
-            try {
-                inst.retransformClasses(transformedArray);
-            } catch(VerifyError ve) {
-                System.out.println("Retransformer : VerifyError during retransformation : some rules may not have been correctly uninjected!");
-                ve.printStackTrace();
-                out.println("VerifyError during retransformation : some rules may not have been correctly uninjected!");
-                ve.printStackTrace(out);
-            }
-        }
-
-        // now we can safely purge keys for all the deleted scripts -- we need to do this
-        // after the retransform because the latter removes the trigger code which uses
-        // the rule key
+        // retransform all classes affected by the change then purge keys for all the deleted scripts
 
         for (RuleScript ruleScript : toBeRemoved) {
-            ruleScript.purge();
             out.println("uninstall RULE " + ruleScript.getName());
         }
+
+        retransform(transformed, toBeRemoved, out);
     }
 
     public void appendJarFile(PrintWriter out, JarFile jarfile, boolean isBoot) throws Exception
@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import org.jboss.byteman.rule.Rule;
+import org.jboss.byteman.rule.RuleStatistics;
+import org.jboss.byteman.rule.helper.Helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * management bean exposing the rules installed in the agent and the counters, timers and flags
+ * maintained by the default helper
+ */
+public class RuleEngine implements RuleEngineMXBean
+{
+    public RuleEngine(ScriptRepository scriptRepository)
+    {
+        this.scriptRepository = scriptRepository;
+    }
+
+    public List<RuleInfo> getRules()
+    {
+        List<RuleInfo> rules = new ArrayList<RuleInfo>();
+        for (RuleScript ruleScript : scriptRepository.currentRules()) {
+            List<TransformInfo> transforms = new ArrayList<TransformInfo>();
+            long[] statistics = new long[RuleStatistics.SIZE];
+            // a rule may be recorded against more than one transform but must only be counted once
+            Map<Rule, Rule> counted = new IdentityHashMap<Rule, Rule>();
+            synchronized (ruleScript) {
+                List<Transform> transformed = ruleScript.getTransformed();
+                if (transformed != null) {
+                    for (Transform transform : transformed) {
+                        transforms.add(new TransformInfo(transform.getInternalClassName(),
+                                transform.getTriggerMethodName(),
+                                String.valueOf(transform.getLoader()),
+                                transform.isTransformed(),
+                                transform.isCompiledOk(),
+                                transform.getDetail()));
+                        Rule rule = transform.getRule();
+                        if (rule != null && counted.put(rule, rule) == null) {
+                            rule.getStatistics().addTo(statistics, false);
+                        }
+                    }
+                }
+            }
+            rules.add(new RuleInfo(ruleScript.getName(),
+                    ruleScript.getTargetClass(),
+                    ruleScript.getTargetMethod(),
+                    String.valueOf(ruleScript.getTargetLocation()),
+                    ruleScript.getFile(),
+                    ruleScript.getLine(),
+                    !ruleScript.isDisabled(),
+                    transforms,
+                    statistics));
+        }
+        return rules;
+    }
+
+    public List<String> getRuleNames()
+    {
+        List<String> names = new ArrayList<String>();
+        for (RuleScript ruleScript : scriptRepository.currentRules()) {
+            names.add(ruleScript.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    public Map<String, Integer> getCounters()
+    {
+        return byName(Helper.getCounterValues());
+    }
+
+    public Map<String, Long> getTimers()
+    {
+        return byName(Helper.getTimerValues());
+    }
+
+    /**
+     * re-key a map of helper values by the string form of each identifier. distinct identifiers can
+     * print the same, e.g. the String "1" and the Integer 1, so where names clash any identifier which
+     * is not a String has its class and identity hash code appended to keep it distinct
+     * @param values the helper values keyed by identifier
+     * @return the values keyed by name
+     */
+    private static <T> Map<String, T> byName(Map<Object, T> values)
+    {
+        Map<String, Integer> uses = new HashMap<String, Integer>();
+        for (Object key : values.keySet()) {
+            String name = String.valueOf(key);
+            Integer count = uses.get(name);
+            uses.put(name, (count == null ? 1 : count + 1));
+        }
+        Map<String, T> named = new TreeMap<String, T>();
+        for (Map.Entry<Object, T> entry : values.entrySet()) {
+            Object key = entry.getKey();
+            String name = String.valueOf(key);
+            if (uses.get(name) > 1 && !(key instanceof String)) {
+                name = name + " (" + (key == null ? "null" : key.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(key))) + ")";
+            }
+            named.put(name, entry.getValue());
+        }
+        return named;
+    }
+
+    public List<String> getFlags()
+    {
+        List<String> flags = new ArrayList<String>();
+        for (Object flag : Helper.getFlagValues()) {
+            flags.add(String.valueOf(flag));
+        }
+        Collections.sort(flags);
+        return flags;
+    }
+
+    public boolean enableRule(String ruleName)
+    {
+        return setDisabled(ruleName, false);
+    }
+
+    public boolean disableRule(String ruleName)
+    {
+        return setDisabled(ruleName, true);
+    }
+
+    private boolean setDisabled(String ruleName, boolean disabled)
+    {
+        RuleScript ruleScript = scriptRepository.scriptForRuleName(ruleName);
+        if (ruleScript == null) {
+            return false;
+        }
+        ruleScript.setDisabled(disabled);
+        return true;
+    }
+
+    private final ScriptRepository scriptRepository;
+}
@@ -0,0 +1,242 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import org.jboss.byteman.rule.RuleStatistics;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * management interface exposing the rules installed in the agent and the state maintained by the
+ * default helper. this is an MXBean so the rule details are presented to management clients as open
+ * data and can be read without access to any Byteman classes.
+ */
+public interface RuleEngineMXBean
+{
+    /**
+     * @return details of each rule currently installed in the agent
+     */
+    public List<RuleInfo> getRules();
+
+    /**
+     * @return the names of the rules currently installed in the agent
+     */
+    public List<String> getRuleNames();
+
+    /**
+     * @return the current value of each counter created by a rule, keyed by the counter identifier
+     */
+    public Map<String, Integer> getCounters();
+
+    /**
+     * @return the elapsed time in milliseconds of each timer created by a rule, keyed by the timer identifier
+     */
+    public Map<String, Long> getTimers();
+
+    /**
+     * @return the identifiers of the flags which rules have set
+     */
+    public List<String> getFlags();
+
+    /**
+     * allow an installed rule to execute when it is triggered
+     * @param ruleName the name of the rule
+     * @return true if the rule was found otherwise false
+     */
+    public boolean enableRule(String ruleName);
+
+    /**
+     * stop an installed rule executing when it is triggered. the trigger code remains in place so the
+     * rule can be enabled again without retransforming the classes into which it was injected
+     * @param ruleName the name of the rule
+     * @return true if the rule was found otherwise false
+     */
+    public boolean disableRule(String ruleName);
+
+    /**
+     * details of an installed rule
+     */
+    public static class RuleInfo
+    {
+        private final String name;
+        private final String targetClass;
+        private final String targetMethod;
+        private final String targetLocation;
+        private final String file;
+        private final int line;
+        private final boolean enabled;
+        private final List<TransformInfo> transforms;
+        private final long triggerCount;
+        private final long matchedCount;
+        private final long firedCount;
+        private final long exceptionCount;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        public RuleInfo(String name, String targetClass, String targetMethod, String targetLocation,
+                        String file, int line, boolean enabled, List<TransformInfo> transforms, long[] statistics)
+        {
+            this.name = name;
+            this.targetClass = targetClass;
+            this.targetMethod = targetMethod;
+            this.targetLocation = targetLocation;
+            this.file = file;
+            this.line = line;
+            this.enabled = enabled;
+            this.transforms = transforms;
+            this.triggerCount = statistics[RuleStatistics.TRIGGERS];
+            this.matchedCount = statistics[RuleStatistics.MATCHED];
+            this.firedCount = statistics[RuleStatistics.FIRED];
+            this.exceptionCount = statistics[RuleStatistics.EXCEPTIONS];
+            this.totalNanos = statistics[RuleStatistics.TOTAL_NANOS];
+            this.maxNanos = statistics[RuleStatistics.MAX_NANOS];
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getTargetClass()
+        {
+            return targetClass;
+        }
+
+        public String getTargetMethod()
+        {
+            return targetMethod;
+        }
+
+        public String getTargetLocation()
+        {
+            return targetLocation;
+        }
+
+        public String getFile()
+        {
+            return file;
+        }
+
+        public int getLine()
+        {
+            return line;
+        }
+
+        public boolean isEnabled()
+        {
+            return enabled;
+        }
+
+        public List<TransformInfo> getTransforms()
+        {
+            return transforms;
+        }
+
+        public long getTriggerCount()
+        {
+            return triggerCount;
+        }
+
+        public long getMatchedCount()
+        {
+            return matchedCount;
+        }
+
+        public long getFiredCount()
+        {
+            return firedCount;
+        }
+
+        public long getExceptionCount()
+        {
+            return exceptionCount;
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos;
+        }
+
+        public long getMaxNanos()
+        {
+            return maxNanos;
+        }
+    }
+
+    /**
+     * details of an attempt to inject a rule into a class
+     */
+    public static class TransformInfo
+    {
+        private final String className;
+        private final String triggerMethod;
+        private final String loader;
+        private final boolean transformed;
+        private final boolean compiled;
+        private final String detail;
+
+        public TransformInfo(String className, String triggerMethod, String loader, boolean transformed,
+                             boolean compiled, String detail)
+        {
+            this.className = className;
+            this.triggerMethod = triggerMethod;
+            this.loader = loader;
+            this.transformed = transformed;
+            this.compiled = compiled;
+            this.detail = detail;
+        }
+
+        public String getClassName()
+        {
+            return className;
+        }
+
+        public String getTriggerMethod()
+        {
+            return triggerMethod;
+        }
+
+        public String getLoader()
+        {
+            return loader;
+        }
+
+        public boolean isTransformed()
+        {
+            return transformed;
+        }
+
+        public boolean isCompiled()
+        {
+            return compiled;
+        }
+
+        public String getDetail()
+        {
+            return detail;
+        }
+    }
+}
@@ -24,9 +24,12 @@
 package org.jboss.byteman.agent;
 
 import org.jboss.byteman.rule.Rule;
+import org.jboss.byteman.rule.exception.ParseException;
+import org.jboss.byteman.rule.grammar.ParseNode;
 import org.jboss.byteman.rule.type.TypeHelper;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.io.StringWriter;
 import java.io.PrintWriter;
@@ -57,6 +60,20 @@ public class RuleScript
      * the name of the method of the target class or interface into which the rule should be injected
      */
     private String targetMethod;
+    /**
+     * the name of the annotation identified by a CLASS clause of the form @Name or null if the
+     * CLASS clause names a class or pattern
+     */
+    private String targetClassAnnotation;
+    /**
+     * the name of the annotation identified by a METHOD clause of the form @Name spec or null if
+     * the METHOD clause does not start with an annotation
+     */
+    private String targetMethodAnnotation;
+    /**
+     * the METHOD clause less any leading annotation
+     */
+    private String targetMethodSpec;
     /**
      * true if the rule should be injected into overriding implementations of the target method false
      * if it should only be injected into the implementation defined by the target class or, in the
@@ -81,7 +98,22 @@ public class RuleScript
      * this is set to true if the rule is dynamically deleted or updated so as to inhibit execution of
      * trigger code between the delete/update and recompilation/reinstatement of the affected bytecode.
      */
-    private boolean deleted;
+    private volatile boolean deleted;
+    /**
+     * this is set to true when the rule is disabled via the management interface. trigger code remains in
+     * place but the rule is not executed until it is enabled again. the setting is carried over to any
+     * script which replaces this one.
+     */
+    private volatile boolean disabled;
+    /**
+     * the number of triggers in every samplePeriod triggers for which the rule should be executed
+     */
+    private int sampleCount;
+    /**
+     * the number of triggers over which sampleCount executions are made or 0 if the rule is executed
+     * every time it is triggered
+     */
+    private int samplePeriod;
     /**
      * the line number at which the rule text starts
      */
@@ -95,6 +127,21 @@ public class RuleScript
      * a list of records identifying contexts in which the rule has been applied.
      */
     private List<Transform> transformed;
+    /**
+     * the parse tree derived from the rule text. this is computed the first time a rule is created from
+     * the script and is then shared by every rule subsequently created from it. parse nodes are never
+     * modified once they have been constructed so there is no need to copy the tree.
+     */
+    private ParseNode parseTree;
+    /**
+     * the error message generated if the rule text failed to parse
+     */
+    private String parseError;
+
+    /**
+     * the method name used in a METHOD clause to match any method other than a constructor or class initializer
+     */
+    public static final String ANY_METHOD = "*";
 
     /**
      * standard constructor for a rule
@@ -110,18 +157,61 @@ public class RuleScript
      * @param file the path to the file containing the rule
      */
     public RuleScript(String name, String targetClass, boolean isInterface, boolean isOverride, String targetMethod, String targetHelper, Location targetLocation, String ruleText, int line, String file)
+    {
+        this(name, targetClass, isInterface, isOverride, targetMethod, targetHelper, targetLocation, ruleText, line, file, 0, 0);
+    }
+
+    /**
+     * constructor for a rule which includes a SAMPLE clause
+     * @param name the name of the rule
+     * @param targetClass the name of the class or interface to which the rule applies
+     * @param isInterface true if the ruel applies to an interface false if it appies ot a class
+     * @param isOverride true if the rule should inject down class hierarchies false if it should inly inject into direct implementations
+     * @param targetMethod the name of the method to which the rule applies
+     * @param targetHelper the name of the helper class to be used
+     * @param targetLocation description of where the rule should be injected
+     * @param ruleText the body of the rule as text including the BIND, IF and DO clasue
+     * @param line the line at which the rule starts in it's rule script
+     * @param file the path to the file containing the rule
+     * @param sampleCount the number of triggers in every samplePeriod triggers for which the rule is executed
+     * @param samplePeriod the number of triggers over which sampleCount executions are made or 0 if
+     * the rule is to be executed every time it is triggered
+     */
+    public RuleScript(String name, String targetClass, boolean isInterface, boolean isOverride, String targetMethod, String targetHelper, Location targetLocation, String ruleText, int line, String file, int sampleCount, int samplePeriod)
     {
         this.name = name;
         this.targetClass = targetClass;
         this.isInterface =  isInterface;
         this.isOverride = isOverride;
         this.targetMethod = targetMethod;
+        this.targetClassAnnotation = (targetClass.startsWith("@") ? targetClass.substring(1).trim() : null);
+        if (targetMethod.startsWith("@")) {
+            // the annotation name is followed by the method spec which may be * to match any method
+            String text = targetMethod.substring(1).trim();
+            int end = 0;
+            while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+                end++;
+            }
+            this.targetMethodAnnotation = text.substring(0, end);
+            this.targetMethodSpec = text.substring(end).trim();
+            if (this.targetMethodSpec.length() == 0) {
+                this.targetMethodSpec = ANY_METHOD;
+            }
+        } else {
+            this.targetMethodAnnotation = null;
+            this.targetMethodSpec = targetMethod;
+        }
         this.targetHelper = targetHelper;
         this.targetLocation = (targetLocation != null ? targetLocation : Location.create(LocationType.ENTRY, ""));
         this.ruleText = ruleText;
         this.line = line;
         this.file = file;
         this.transformed = new ArrayList<Transform>();
+        // sampling every trigger is the same as not sampling
+        if (samplePeriod > 0 && sampleCount < samplePeriod) {
+            this.sampleCount = sampleCount;
+            this.samplePeriod = samplePeriod;
+        }
     }
 
     public String getName() {
@@ -144,6 +234,49 @@ public class RuleScript
         return targetMethod;
     }
 
+    /**
+     * return the annotation named by a CLASS clause of the form @Name
+     * @return the annotation name or null if the CLASS clause names a class or pattern
+     */
+    public String getTargetClassAnnotation() {
+        return targetClassAnnotation;
+    }
+
+    /**
+     * return the annotation named at the start of a METHOD clause of the form @Name spec
+     * @return the annotation name or null if the METHOD clause does not start with an annotation
+     */
+    public String getTargetMethodAnnotation() {
+        return targetMethodAnnotation;
+    }
+
+    /**
+     * return the METHOD clause less any leading annotation. this is a method name optionally
+     * followed by a parameter list and preceded by a return type or ANY_METHOD.
+     * @return the target method spec
+     */
+    public String getTargetMethodSpec() {
+        return targetMethodSpec;
+    }
+
+    /**
+     * check whether an annotation named in this script's CLASS or METHOD clause matches an annotation type.
+     * a qualified name must match the full annotation type name and an unqualified name must match the
+     * name less its package.
+     * @param annotation the name from the CLASS or METHOD clause
+     * @param typeName the fully qualified name of the annotation type
+     * @return true if the annotation matches the type
+     */
+    public static boolean matchAnnotation(String annotation, String typeName)
+    {
+        if (annotation.indexOf('.') >= 0) {
+            return annotation.equals(typeName);
+        } else {
+            return typeName.endsWith(annotation) &&
+                    (typeName.length() == annotation.length() || typeName.charAt(typeName.length() - annotation.length() - 1) == '.');
+        }
+    }
+
     public boolean isOverride() {
         return isOverride;
     }
@@ -166,6 +299,27 @@ public class RuleScript
         return file;
     }
 
+    /**
+     * return the parse tree for the rule text, parsing the text if this has not already been done
+     * @return the parse tree for the rule's event, condition and action
+     * @throws ParseException if the rule text contains syntax errors
+     */
+    public synchronized ParseNode getParseTree() throws ParseException
+    {
+        if (parseTree == null) {
+            if (parseError != null) {
+                throw new ParseException(parseError);
+            }
+            try {
+                parseTree = Rule.parse(this);
+            } catch (ParseException pe) {
+                parseError = pe.getMessage();
+                throw pe;
+            }
+        }
+        return parseTree;
+    }
+
     /**
      * getter for list of transforms applied for this script. must be called synchronized on the script.
      * @return the list of transforms
@@ -200,7 +354,9 @@ public class RuleScript
     /**
      * called when indexing a script to ensure that it has not already been deleted. it must only be called
      * when synchronized on the script. This avoids a race where a script can be added by thread A, deleted by
-     * thread B, unindexed -- unsuccessfully -- by thread B then indexed by thread A
+     * thread B, unindexed -- unsuccessfully -- by thread B then indexed by thread A. it may also be called
+     * without synchronization to skip a transform for a script which has already been deleted. the result
+     * is only advisory in that case because the script may be deleted at any point after the check.
      * @return the previous setting of deleted
      */
     public boolean isDeleted()
@@ -208,6 +364,54 @@ public class RuleScript
         return deleted;
     }
 
+    /**
+     * enable or disable execution of the rule at its trigger points
+     * @param disabled true if the rule should not be executed when triggered otherwise false
+     */
+    public void setDisabled(boolean disabled)
+    {
+        this.disabled = disabled;
+    }
+
+    /**
+     * check whether execution of the rule has been disabled
+     * @return true if the rule is not executed when triggered otherwise false
+     */
+    public boolean isDisabled()
+    {
+        return disabled;
+    }
+
+    /**
+     * @return the number of triggers in every sample period for which the rule is executed
+     */
+    public int getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * @return the number of triggers over which the sample count executions are made or 0 if the
+     * rule has no SAMPLE clause
+     */
+    public int getSamplePeriod()
+    {
+        return samplePeriod;
+    }
+
+    /**
+     * decide whether the rule should be executed for the current trigger. a rule with a SAMPLE
+     * clause is executed with probability sampleCount / samplePeriod. the decision uses a random
+     * number generator private to the triggering thread so that it involves no contention and no
+     * allocation.
+     * @return true if the rule should be executed otherwise false
+     */
+    public boolean sample()
+    {
+        int period = samplePeriod;
+        return period == 0 || Sampler.nextInt(period) < sampleCount;
+    }
+
     /**
      * record the fact that an error was thrown when attempting to transform a given class using this rule script
      * @param loader the loader of the class for which injection was attempted
@@ -313,18 +517,37 @@ public class RuleScript
      * not cause a rule trigger call to fail.
      */
     public synchronized void purge()
+    {
+        purge(Collections.<Class<?>>emptyList());
+    }
+
+    /**
+     * purge the rules injected by this script other than those injected into the supplied classes
+     * @param retained classes whose trigger code is still in place
+     */
+    public synchronized void purge(List<Class<?>> retained)
     {
         if (transformed != null) {
             int count = transformed.size();
             for (int i =  0; i < count; i++) {
                 Transform transform = transformed.get(i);
                 Rule rule = transform.getRule();
-                if (rule != null) {
+                if (rule != null && !isRetained(transform, retained)) {
                     rule.purge();
                 }
             }
         }
     }
+
+    private static boolean isRetained(Transform transform, List<Class<?>> retained)
+    {
+        for (Class<?> clazz : retained) {
+            if (clazz.getClassLoader() == transform.getLoader() && clazz.getName().equals(transform.getInternalClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
     
     public String toString()
     {
@@ -358,6 +581,12 @@ public class RuleScript
             writer.print("HELPER ");
             writer.println(targetHelper);
         }
+        if (samplePeriod > 0) {
+            writer.print("SAMPLE ");
+            writer.print(sampleCount);
+            writer.print(" IN ");
+            writer.println(samplePeriod);
+        }
         writer.println(targetLocation.toString());
         writer.println(ruleText);
         writer.println("ENDRULE");
@@ -0,0 +1,64 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+/**
+ * a fast per-thread pseudo-random number generator used to decide whether a rule with a SAMPLE
+ * clause should be executed when it is triggered. each thread owns an xorshift generator so a
+ * decision costs a thread local lookup and a few arithmetic operations. the generator state is
+ * allocated once per thread.
+ */
+final class Sampler
+{
+    private static final ThreadLocal<long[]> state = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            // mix the thread id into the seed so threads started together do not sample in step
+            long seed = System.nanoTime() ^ (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+            return new long[] { (seed == 0 ? 1 : seed) };
+        }
+    };
+
+    private Sampler()
+    {
+    }
+
+    /**
+     * return a pseudo-random value in the range [0, bound)
+     * @param bound the exclusive upper bound which must be greater than zero
+     * @return the next value
+     */
+    static int nextInt(int bound)
+    {
+        long[] seed = state.get();
+        long x = seed[0];
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        seed[0] = x;
+        // use the high order bits which are the most random. the modulo bias is negligible for
+        // any sensible sample period
+        return (int)((x >>> 33) % bound);
+    }
+}
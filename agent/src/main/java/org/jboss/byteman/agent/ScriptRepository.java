@@ -28,16 +28,30 @@ import java.util.*;
 import java.lang.reflect.Method;
 
 /**
- * Class to manage indexing and lookup of rule scripts by rule name and by either class or interface name
+ * Class to manage indexing and lookup of rule scripts by rule name and by either class or interface name.
+ * the indexes are held in an immutable snapshot which is replaced wholesale whenever a script is added or
+ * removed. lookups read the current snapshot without locking so class loading threads never contend with
+ * each other or with a rule update. rules whose CLASS or INTERFACE clause is a pattern are held in a
+ * separate pattern index and are merged with the rules indexed under a class or interface name when that
+ * name is looked up. rules which target a class annotation, or which target a method annotation in classes
+ * matching a pattern, are indexed by annotation name so that the transformer can find them with one lookup
+ * per annotation found in the bytecode of the class being loaded.
  */
 public class ScriptRepository
 {
     public ScriptRepository(boolean skipOverrideRules)
     {
-        targetClassIndex = new HashMap<String, List<RuleScript>>();
-        targetInterfaceIndex = new HashMap<String, List<RuleScript>>();
-        ruleNameIndex = new HashMap<String, RuleScript>();
         this.skipOverrideRules = skipOverrideRules;
+        this.snapshot = new Snapshot(new HashMap<String, List<RuleScript>>(),
+                new HashMap<String, List<RuleScript>>(),
+                new HashMap<String, RuleScript>(),
+                ClassPatternIndex.EMPTY,
+                ClassPatternIndex.EMPTY,
+                new HashMap<String, List<RuleScript>>(),
+                new HashMap<String, List<RuleScript>>(),
+                0,
+                skipOverrideRules);
+        this.updateLock = new Object();
     }
 
     /**
@@ -66,6 +80,8 @@ public class ScriptRepository
             Location targetLocation = null;
             boolean isInterface = false;
             boolean isOverride = false;
+            int sampleCount = 0;
+            int samplePeriod = 0;
             int lineNumber = 0;
             int startNumber = -1;
             int maxLines = lines.length;
@@ -105,6 +121,9 @@ public class ScriptRepository
                     if (targetClass.startsWith("^")) {
                         isOverride = true;
                         targetClass = targetClass.substring(1).trim();
+                        if (targetClass.startsWith("@")) {
+                            throw new Exception("org.jboss.byteman.agent.Transformer : overriding rule may not target an annotation at line " + lineNumber + " in script " + scriptFile);
+                        }
                     }
                 } else if (line.startsWith("INTERFACE ")) {
                     targetClass = line.substring(10).trim();
@@ -113,8 +132,26 @@ public class ScriptRepository
                         isOverride = true;
                         targetClass = targetClass.substring(1).trim();
                     }
+                    if (targetClass.startsWith("@")) {
+                        throw new Exception("org.jboss.byteman.agent.Transformer : INTERFACE rule may not target an annotation at line " + lineNumber + " in script " + scriptFile);
+                    }
                 } else if (line.startsWith("METHOD ")) {
                     targetMethod = line.substring(7).trim();
+                } else if (line.startsWith("SAMPLE ")) {
+                    // SAMPLE n IN m executes the rule for n in every m triggers
+                    String[] words = line.substring(7).trim().split("\\s+");
+                    try {
+                        if (words.length != 3 || !words[1].equals("IN")) {
+                            throw new NumberFormatException();
+                        }
+                        sampleCount = Integer.parseInt(words[0]);
+                        samplePeriod = Integer.parseInt(words[2]);
+                    } catch (NumberFormatException e) {
+                        throw new Exception("org.jboss.byteman.agent.Transformer : invalid SAMPLE clause, expecting SAMPLE n IN m at line " + lineNumber + " in script " + scriptFile);
+                    }
+                    if (sampleCount <= 0 || sampleCount > samplePeriod) {
+                        throw new Exception("org.jboss.byteman.agent.Transformer : SAMPLE count must lie between 1 and the sample period at line " + lineNumber + " in script " + scriptFile);
+                    }
                 } else if ((locationType = LocationType.type(line)) != null) {
                     String parameters = LocationType.parameterText(line);
                     targetLocation = Location.create(locationType, parameters);
@@ -135,7 +172,7 @@ public class ScriptRepository
                         if (targetHelper == null) {
                             targetHelper = defaultHelper;
                         }
-                        RuleScript ruleScript = new RuleScript(name, targetClass, isInterface, isOverride, targetMethod, targetHelper, targetLocation, nextRule, startNumber, scriptFile);
+                        RuleScript ruleScript = new RuleScript(name, targetClass, isInterface, isOverride, targetMethod, targetHelper, targetLocation, nextRule, startNumber, scriptFile, sampleCount, samplePeriod);
                         ruleScripts.add(ruleScript);
                     }
                     name = null;
@@ -143,6 +180,8 @@ public class ScriptRepository
                     targetMethod = null;
                     targetLocation = null;
                     targetHelper = null;
+                    sampleCount = 0;
+                    samplePeriod = 0;
                     nextRule = "";
                     sepr = "";
                     inRule = false;
@@ -173,71 +212,7 @@ public class ScriptRepository
      */
     public RuleScript addScript(RuleScript script)
     {
-        String name = script.getName();
-        RuleScript previous = null;
-
-        // sanity check override rule setting and print warning if necessary
-
-        if (skipOverrideRules && script.isOverride()) {
-            System.err.println("ScriptRepository.addScript : injection into overriding methods disabled but found override rule " + script.getName());
-        }
-
-        // insert the script by name, invalidating any old script
-
-        synchronized (ruleNameIndex) {
-            previous = ruleNameIndex.put(name, script);
-            if (previous != null) {
-                boolean isDeleted = previous.setDeleted();
-                if (isDeleted) {
-                    // it is some other thread's responsibility to remove the script
-                    previous = null;
-                }
-            }
-        }
-
-        boolean isOverride = script.isOverride();
-
-        if (previous == null) {
-            // increment override count if necessary before indexing
-            if (isOverride) {
-                overrideRuleCount++;
-            }
-            // now index the new script
-
-            if (script.isInterface()) {
-                indexTarget(script,  targetInterfaceIndex);
-            } else {
-                indexTarget(script, targetClassIndex);
-            }
-        } else {
-            boolean wasOverride = previous.isOverride();
-            // increment override count if necessary before indexing
-            if (isOverride) {
-                overrideRuleCount++;
-            }
-
-            boolean isInterface =  script.isInterface();
-            boolean wasInterface = previous.isInterface();
-
-            if (isInterface == wasInterface) {
-                // both in the same index so try a reindex
-                Map<String, List<RuleScript>> index = (isInterface ? targetInterfaceIndex : targetClassIndex);
-                reindexTarget(script, previous, index);
-            } else if (isInterface) {
-                // different indexes so unindex then index
-                unindexTarget(previous, targetClassIndex);
-                indexTarget(script, targetInterfaceIndex);
-            } else {
-                unindexTarget(previous, targetInterfaceIndex);
-                indexTarget(script, targetClassIndex);
-            }
-            // decrement count if necessary after unindexing
-            if (wasOverride) {
-                overrideRuleCount--;
-            }
-        }
-
-        return previous;
+        return updateScripts(Collections.singletonList(script), Collections.<RuleScript>emptyList()).get(0);
     }
 
     /**
@@ -249,43 +224,48 @@ public class ScriptRepository
      */
     public RuleScript removeScript(RuleScript script)
     {
-        String name = script.getName();
-        RuleScript current;
+        return updateScripts(Collections.<RuleScript>emptyList(), Collections.singletonList(script)).get(0);
+    }
 
-        // check for the script by name
+    /**
+     * add and remove a batch of rule scripts as a single update. the scripts are added and then removed
+     * in list order but lookups only ever see the repository as it was before the update or as it is
+     * once the whole batch has been applied.
+     * @param added the scripts to be added to the repository
+     * @param removed the scripts to be removed from the repository
+     * @return a list containing one entry for each added script followed by one entry for each removed
+     * script. the entry for an added script is the previous script with the same name or null, as returned
+     * by {@link #addScript}. the entry for a removed script is the script if it was removed or null, as
+     * returned by {@link #removeScript}.
+     */
+    public List<RuleScript> updateScripts(List<RuleScript> added, List<RuleScript> removed)
+    {
+        List<RuleScript> result = new ArrayList<RuleScript>(added.size() + removed.size());
 
-        synchronized (ruleNameIndex) {
-            current = ruleNameIndex.get(name);
-            if (current == script) {
-                ruleNameIndex.remove(current.getName());
-                boolean isDeleted = current.setDeleted();
-                if (isDeleted) {
-                    // it is some other thread's responsibility to remove the script
-                    current = null;
+        // sanity check override rule setting and print warning if necessary
+
+        if (skipOverrideRules) {
+            for (RuleScript script : added) {
+                if (script.isOverride()) {
+                    System.err.println("ScriptRepository.addScript : injection into overriding methods disabled but found override rule " + script.getName());
                 }
-            } else {
-                // it is some other thread's responsibility to remove the script
-                current = null;
             }
         }
 
-        // if we found a script then we have to unindex it
+        synchronized (updateLock) {
+            Update update = new Update(snapshot);
 
-        if (current != null) {
-            Map<String, List<RuleScript>> index = (current.isInterface() ? targetInterfaceIndex : targetClassIndex);
-            unindexTarget(current, index);
-
-            boolean wasOverride = current.isOverride();
-
-            // decrement count if necessary after unindexing
-
-            if (wasOverride) {
-                overrideRuleCount--;
+            for (RuleScript script : added) {
+                result.add(update.insert(script));
+            }
+            for (RuleScript script : removed) {
+                result.add(update.delete(script));
             }
 
+            snapshot = update.toSnapshot(skipOverrideRules);
         }
 
-        return current;
+        return result;
     }
 
     /**
@@ -312,9 +292,7 @@ public class ScriptRepository
      */
     public RuleScript scriptForRuleName(String name)
     {
-        synchronized (ruleNameIndex) {
-            return ruleNameIndex.get(name);
-        }
+        return snapshot.ruleNameIndex.get(name);
     }
 
     /**
@@ -329,9 +307,7 @@ public class ScriptRepository
 
     public List<RuleScript> scriptsForClassName(String name)
     {
-        synchronized (targetClassIndex) {
-            return targetClassIndex.get(name);
-        }
+        return snapshot.scriptsForClassName(name);
     }
 
     /**
@@ -346,9 +322,7 @@ public class ScriptRepository
 
     public List<RuleScript> scriptsForInterfaceName(String name)
     {
-        synchronized (targetInterfaceIndex) {
-            return targetInterfaceIndex.get(name);
-        }
+        return snapshot.scriptsForInterfaceName(name);
     }
 
     /**
@@ -360,115 +334,658 @@ public class ScriptRepository
 
     public boolean matchClass(Class<?> clazz) throws Exception
     {
-        // see if we have any scripts for the class or its supers
-        Class nextClazz = clazz;
-        boolean isOverride = false;
-        // we create these lazily to avoid unnecessary work
+        return snapshot.matchClass(clazz);
+    }
 
-        LinkedList<Class> visited = null;
-        LinkedList<Class> toVisit = null;
+    /**
+     * return a list containing all the currently installed rule scripts.
+     * @return the list of all installed scripts
+     */
+    public List<RuleScript> currentRules()
+    {
+        return new ArrayList<RuleScript>(snapshot.ruleNameIndex.values());
+    }
 
-        while (nextClazz != null) {
-            String name = nextClazz.getName();
+    /**
+     * return the current snapshot of the repository indexes. callers which need to perform several
+     * lookups can use the snapshot to ensure they all see the same set of rules.
+     * @return the current snapshot
+     */
+    Snapshot getSnapshot()
+    {
+        return snapshot;
+    }
 
-            if (matchTarget(name, clazz, false, isOverride)) {
-                return true;
+    /**
+     * see if we need to do any transformation of interfaces
+     * @return true if there are any interface rules false if there are none
+     */
+    public boolean checkInterfaces()
+    {
+        // n.b. there is no way of knowing exactly when a transform request will be sent to the
+        // Transformer so there is always a window between checking and responding to the check.
+        // if an update affects a loaded class then it will get retransformed anyway so the risk
+        // here is that the rule gets applied a little late.
+
+        return snapshot.checkInterfaces();
+    }
+
+    /**
+     * check whether any overriding rules are currently loaded
+     * @return true if there are no overriding rules false if there are any
+     */
+    public boolean skipOverrideRules() {
+        return snapshot.skipOverrideRules();
+    }
+
+    /**
+     * add a rule script to start or end of the index list according to its location type. AT ENTRY rules
+     * are pushed so they are sorted in reverse load order. other rules are appended so they are sorted
+     * in load order.
+     * @param entries
+     * @param script
+     */
+    private static void add(List<RuleScript> entries, RuleScript script)
+    {
+        // ENTRY rules are pushed so they are sorted in reverse load order
+        // other rules are appended so they are sorted in load order
+        if (script.getTargetLocation().getLocationType() == LocationType.ENTRY) {
+            entries.add(0, script);
+        } else {
+            entries.add(script);
+        }
+    }
+
+    /**
+     * a working copy of the indexes in a snapshot used to compute the snapshot which replaces it. an
+     * index map or index list is only copied the first time a script is actually added to or removed
+     * from it. after that the copy belongs to the update and is modified in place so applying a batch
+     * of changes costs one copy of each affected index rather than one per change.
+     */
+    private static final class Update
+    {
+        Map<String, RuleScript> ruleNameIndex;
+        Map<String, List<RuleScript>> targetClassIndex;
+        Map<String, List<RuleScript>> targetInterfaceIndex;
+        ClassPatternIndex classPatternIndex;
+        ClassPatternIndex interfacePatternIndex;
+        Map<String, List<RuleScript>> classAnnotationIndex;
+        Map<String, List<RuleScript>> methodAnnotationIndex;
+        int overrideRuleCount;
+
+        /**
+         * the index maps and lists copied by this update. these are not yet visible to any lookup
+         */
+        private final Set<Object> owned;
+
+        /**
+         * working copies of the pattern index script lists or null if the pattern index is unchanged
+         */
+        private List<RuleScript> classPatterns;
+        private List<RuleScript> interfacePatterns;
+
+        Update(Snapshot snapshot)
+        {
+            ruleNameIndex = new HashMap<String, RuleScript>(snapshot.ruleNameIndex);
+            targetClassIndex = snapshot.targetClassIndex;
+            targetInterfaceIndex = snapshot.targetInterfaceIndex;
+            classPatternIndex = snapshot.classPatternIndex;
+            interfacePatternIndex = snapshot.interfacePatternIndex;
+            classAnnotationIndex = snapshot.classAnnotationIndex;
+            methodAnnotationIndex = snapshot.methodAnnotationIndex;
+            overrideRuleCount = snapshot.overrideRuleCount;
+            owned = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            classPatterns = null;
+            interfacePatterns = null;
+        }
+
+        /**
+         * add a script, invalidating any old script with the same name. the new script inherits the
+         * disabled setting of the old script
+         * @param script the script to be added
+         * @return any previous script with the same name or null
+         */
+        RuleScript insert(RuleScript script)
+        {
+            // insert the script by name, invalidating any old script
+
+            RuleScript previous = ruleNameIndex.put(script.getName(), script);
+            if (previous != null) {
+                // a rule disabled via the management interface stays disabled when it is redefined
+                script.setDisabled(previous.isDisabled());
+                boolean isDeleted = previous.setDeleted();
+                if (isDeleted) {
+                    // it is some other thread's responsibility to remove the script
+                    previous = null;
+                }
             }
 
-            int lastDot = name.lastIndexOf('.');
+            // unindex any previous script then index the new one
 
-            if (lastDot >= 0) {
-                if (matchTarget(name.substring(lastDot + 1), clazz, false, isOverride)) {
-                    return true;
+            if (previous != null) {
+                unindex(previous);
+            }
+
+            // synchronize on the new script to avoid a race with a thread deleting it
+            synchronized (script) {
+                if (!script.isDeleted()) {
+                    index(script);
                 }
             }
 
-            // ok, now see if we need to inject via any interfaces that the class implements
+            return previous;
+        }
+
+        /**
+         * remove a script
+         * @param script the script to be removed
+         * @return the script if it was removed or null if it had already been removed
+         */
+        RuleScript delete(RuleScript script)
+        {
+            String name = script.getName();
+
+            // check for the script by name
+
+            if (ruleNameIndex.get(name) != script) {
+                // it is some other thread's responsibility to remove the script
+                return null;
+            }
+
+            ruleNameIndex.remove(name);
+            boolean isDeleted = script.setDeleted();
+            if (isDeleted) {
+                // it is some other thread's responsibility to remove the script
+                return null;
+            }
+
+            // we found the script so we have to unindex it
+            unindex(script);
+
+            return script;
+        }
 
-            if (checkInterfaces()) {
-                Class[] interfaces = nextClazz.getInterfaces();
-                int l = interfaces.length;
-                if (l > 0) {
-                    // ok, so we have to create the lists here
-                    if (visited == null) {
-                        visited = new LinkedList<Class>();
-                        toVisit = new LinkedList<Class>();
+        void index(RuleScript script)
+        {
+            String targetClass = script.getTargetClass();
+            if (script.getTargetClassAnnotation() != null) {
+                classAnnotationIndex = indexTarget(script.getTargetClassAnnotation(), script, classAnnotationIndex);
+            } else if (ClassPatternIndex.isPattern(targetClass)) {
+                if (script.getTargetMethodAnnotation() != null && !script.isInterface()) {
+                    // the method annotation is more selective than the pattern so index by annotation
+                    methodAnnotationIndex = indexTarget(script.getTargetMethodAnnotation(), script, methodAnnotationIndex);
+                } else if (script.isInterface()) {
+                    if (interfacePatterns == null) {
+                        interfacePatterns = new ArrayList<RuleScript>(interfacePatternIndex.getScripts());
                     }
-                    // add the implements list of this class as interfaces to consider
-                    for (int i = 0; i < interfaces.length; i++) {
-                        Class interfaze = interfaces[i];
-                        if (!visited.contains(interfaze)) {
-                            toVisit.add(interfaze);
-                        }
+                    add(interfacePatterns, script);
+                } else {
+                    if (classPatterns == null) {
+                        classPatterns = new ArrayList<RuleScript>(classPatternIndex.getScripts());
                     }
+                    add(classPatterns, script);
+                }
+            } else if (script.isInterface()) {
+                targetInterfaceIndex = indexTarget(targetClass, script, targetInterfaceIndex);
+            } else {
+                targetClassIndex = indexTarget(targetClass, script, targetClassIndex);
+            }
+            if (script.isOverride()) {
+                overrideRuleCount++;
+            }
+        }
 
-                    while (!toVisit.isEmpty()) {
-                        // check the next interface
-                        Class interfaze = toVisit.pop();
-                        name = interfaze.getName();
-                        if (matchTarget(name, clazz, true, isOverride)) {
-                            return true;
-                        } else {
-                            lastDot = name.lastIndexOf('.');
-                            if (lastDot >= 0) {
-                                if (matchTarget(name.substring(lastDot + 1), clazz, true, isOverride)) {
-                                    return true;
-                                }
-                            }
+        void unindex(RuleScript script)
+        {
+            String targetClass = script.getTargetClass();
+            if (script.getTargetClassAnnotation() != null) {
+                classAnnotationIndex = unindexTarget(script.getTargetClassAnnotation(), script, classAnnotationIndex);
+            } else if (ClassPatternIndex.isPattern(targetClass)) {
+                if (script.getTargetMethodAnnotation() != null && !script.isInterface()) {
+                    methodAnnotationIndex = unindexTarget(script.getTargetMethodAnnotation(), script, methodAnnotationIndex);
+                } else if (script.isInterface()) {
+                    if (interfacePatterns == null) {
+                        interfacePatterns = new ArrayList<RuleScript>(interfacePatternIndex.getScripts());
+                    }
+                    interfacePatterns.remove(script);
+                } else {
+                    if (classPatterns == null) {
+                        classPatterns = new ArrayList<RuleScript>(classPatternIndex.getScripts());
+                    }
+                    classPatterns.remove(script);
+                }
+            } else if (script.isInterface()) {
+                targetInterfaceIndex = unindexTarget(targetClass, script, targetInterfaceIndex);
+            } else {
+                targetClassIndex = unindexTarget(targetClass, script, targetClassIndex);
+            }
+            if (script.isOverride()) {
+                overrideRuleCount--;
+            }
+        }
+
+        /**
+         * insert a script into an index under the supplied key
+         * @param key
+         * @param script
+         * @param index
+         * @return the index or, if the update did not already own it, an updated copy of the index
+         */
+        private Map<String, List<RuleScript>> indexTarget(String key, RuleScript script, Map<String, List<RuleScript>> index)
+        {
+            Map<String, List<RuleScript>> newIndex = own(index);
+            List<RuleScript> entry = newIndex.get(key);
+            // never modify a list we don't own so that we don't affect any in progress iteration of it
+            if (entry == null) {
+                entry = new ArrayList<RuleScript>();
+                owned.add(entry);
+                newIndex.put(key, entry);
+            } else if (!owned.contains(entry)) {
+                entry = new ArrayList<RuleScript>(entry);
+                owned.add(entry);
+                newIndex.put(key, entry);
+            }
+            add(entry, script);
+            return newIndex;
+        }
+
+        /**
+         * remove a script from an index under the supplied key
+         * @param key
+         * @param script
+         * @param index
+         * @return the index or, if the update did not already own it, an updated copy of the index. the
+         * original index is returned if it does not contain the script
+         */
+        private Map<String, List<RuleScript>> unindexTarget(String key, RuleScript script, Map<String, List<RuleScript>> index)
+        {
+            List<RuleScript> entry = index.get(key);
+            if (entry == null || !entry.contains(script)) {
+                return index;
+            }
+            Map<String, List<RuleScript>> newIndex = own(index);
+            if (entry.size() == 1) {
+                // removing the last one so drop the entry
+                newIndex.remove(key);
+            } else {
+                // never modify a list we don't own so that we don't affect any in progress iteration of it
+                if (!owned.contains(entry)) {
+                    entry = new ArrayList<RuleScript>(entry);
+                    owned.add(entry);
+                    newIndex.put(key, entry);
+                }
+                entry.remove(script);
+            }
+            return newIndex;
+        }
+
+        /**
+         * return an index which this update may modify
+         * @param index
+         * @return the index if the update already owns it otherwise a copy of it
+         */
+        private Map<String, List<RuleScript>> own(Map<String, List<RuleScript>> index)
+        {
+            if (owned.contains(index)) {
+                return index;
+            }
+            Map<String, List<RuleScript>> newIndex = new HashMap<String, List<RuleScript>>(index);
+            owned.add(newIndex);
+            return newIndex;
+        }
+
+        Snapshot toSnapshot(boolean skipOverrideRules)
+        {
+            if (classPatterns != null) {
+                classPatternIndex = (classPatterns.isEmpty() ? ClassPatternIndex.EMPTY : new ClassPatternIndex(classPatterns));
+            }
+            if (interfacePatterns != null) {
+                interfacePatternIndex = (interfacePatterns.isEmpty() ? ClassPatternIndex.EMPTY : new ClassPatternIndex(interfacePatterns));
+            }
+            return new Snapshot(targetClassIndex, targetInterfaceIndex, ruleNameIndex,
+                    classPatternIndex, interfacePatternIndex, classAnnotationIndex, methodAnnotationIndex,
+                    overrideRuleCount, skipOverrideRules);
+        }
+    }
+
+    /**
+     * an immutable view of the repository indexes. neither the maps nor the lists they contain are
+     * modified once a snapshot has been published.
+     */
+    static final class Snapshot
+    {
+        /**
+         * a 1-m mapping from target class names which appear in rules to a script object holding the
+         * rule details
+         */
+        private final Map<String, List<RuleScript>> targetClassIndex;
+
+        /**
+         * a 1-m mapping from target interface names which appear in rules to a script object holding the
+         * rule details
+         */
+        private final Map<String, List<RuleScript>> targetInterfaceIndex;
+
+        /**
+         * a 1-1 mapping from rule names which appear in rules to a script object holding the
+         * rule details
+         */
+        private final Map<String, RuleScript> ruleNameIndex;
+
+        /**
+         * an index of class rules whose target is a pattern
+         */
+        private final ClassPatternIndex classPatternIndex;
+
+        /**
+         * an index of interface rules whose target is a pattern
+         */
+        private final ClassPatternIndex interfacePatternIndex;
+
+        /**
+         * a 1-m mapping from annotation names which appear in CLASS @Name clauses to the scripts
+         * which target classes carrying the annotation
+         */
+        private final Map<String, List<RuleScript>> classAnnotationIndex;
+
+        /**
+         * a 1-m mapping from annotation names which appear in METHOD @Name clauses to the scripts which
+         * target annotated methods in classes matching a pattern
+         */
+        private final Map<String, List<RuleScript>> methodAnnotationIndex;
+
+        /**
+         * a count of how many rules there are in the snapshot which employ injection into hierarchies
+         */
+        private final int overrideRuleCount;
+
+        /**
+         * a flag derived from the transformer which enables us to avoid testing superclass rules for
+         * matches if it is set
+         */
+        private final boolean skipOverrideRules;
+
+        Snapshot(Map<String, List<RuleScript>> targetClassIndex, Map<String, List<RuleScript>> targetInterfaceIndex,
+                 Map<String, RuleScript> ruleNameIndex, ClassPatternIndex classPatternIndex,
+                 ClassPatternIndex interfacePatternIndex, Map<String, List<RuleScript>> classAnnotationIndex,
+                 Map<String, List<RuleScript>> methodAnnotationIndex, int overrideRuleCount, boolean skipOverrideRules)
+        {
+            this.classAnnotationIndex = classAnnotationIndex;
+            this.methodAnnotationIndex = methodAnnotationIndex;
+            this.targetClassIndex = targetClassIndex;
+            this.targetInterfaceIndex = targetInterfaceIndex;
+            this.ruleNameIndex = ruleNameIndex;
+            this.classPatternIndex = classPatternIndex;
+            this.interfacePatternIndex = interfacePatternIndex;
+            this.overrideRuleCount = overrideRuleCount;
+            this.skipOverrideRules = skipOverrideRules;
+        }
+
+        List<RuleScript> scriptsForClassName(String name)
+        {
+            return merge(targetClassIndex.get(name), classPatternIndex, name);
+        }
+
+        List<RuleScript> scriptsForInterfaceName(String name)
+        {
+            return merge(targetInterfaceIndex.get(name), interfacePatternIndex, name);
+        }
+
+        boolean checkInterfaces()
+        {
+            return !targetInterfaceIndex.isEmpty() || !interfacePatternIndex.isEmpty();
+        }
+
+        /**
+         * check whether any rules target a class or method annotation
+         * @return true if there are annotation rules otherwise false
+         */
+        boolean checkAnnotations()
+        {
+            return !classAnnotationIndex.isEmpty() || !methodAnnotationIndex.isEmpty();
+        }
+
+        /**
+         * return the scripts which target classes carrying an annotation
+         * @param typeName the fully qualified name of the annotation type
+         * @return the list of scripts or null if there are none
+         */
+        List<RuleScript> scriptsForClassAnnotation(String typeName)
+        {
+            return lookupAnnotation(classAnnotationIndex, typeName);
+        }
+
+        /**
+         * return the scripts which target methods carrying an annotation in classes matching a pattern. the
+         * caller must check the class against the script's CLASS pattern.
+         * @param typeName the fully qualified name of the annotation type
+         * @return the list of scripts or null if there are none
+         */
+        List<RuleScript> scriptsForMethodAnnotation(String typeName)
+        {
+            return lookupAnnotation(methodAnnotationIndex, typeName);
+        }
+
+        /**
+         * look up an annotation type under both its qualified and unqualified name
+         */
+        private static List<RuleScript> lookupAnnotation(Map<String, List<RuleScript>> index, String typeName)
+        {
+            if (index.isEmpty()) {
+                return null;
+            }
+            List<RuleScript> scripts = index.get(typeName);
+            int lastDot = typeName.lastIndexOf('.');
+            if (lastDot >= 0) {
+                List<RuleScript> unqualified = index.get(typeName.substring(lastDot + 1));
+                if (scripts == null) {
+                    scripts = unqualified;
+                } else if (unqualified != null) {
+                    List<RuleScript> result = new ArrayList<RuleScript>(scripts.size() + unqualified.size());
+                    result.addAll(scripts);
+                    result.addAll(unqualified);
+                    scripts = result;
+                }
+            }
+            return scripts;
+        }
+
+        /**
+         * combine the scripts indexed under a name with any pattern scripts which match it. pattern
+         * scripts follow the scripts which name the target explicitly.
+         * @param scripts the scripts indexed under the name or null
+         * @param patternIndex the pattern index to search
+         * @param name the name being looked up
+         * @return the combined list or null if there are no scripts for the name
+         */
+        private static List<RuleScript> merge(List<RuleScript> scripts, ClassPatternIndex patternIndex, String name)
+        {
+            if (patternIndex.isEmpty()) {
+                return scripts;
+            }
+            List<RuleScript> matched = patternIndex.lookup(name);
+            if (matched == null) {
+                return scripts;
+            }
+            if (scripts == null) {
+                return matched;
+            }
+            List<RuleScript> result = new ArrayList<RuleScript>(scripts.size() + matched.size());
+            result.addAll(scripts);
+            result.addAll(matched);
+            return result;
+        }
+
+        boolean skipOverrideRules()
+        {
+            if (skipOverrideRules) {
+                return true;
+            } else {
+                return overrideRuleCount == 0;
+            }
+        }
+
+        boolean matchClass(Class<?> clazz) throws Exception
+        {
+            // see if we have any scripts for the class or its supers
+            Class nextClazz = clazz;
+            boolean isOverride = false;
+            // we create these lazily to avoid unnecessary work
+
+            LinkedList<Class> visited = null;
+            LinkedList<Class> toVisit = null;
+
+            // annotation rules only apply to the class which carries the annotation
+
+            if (checkAnnotations() && matchAnnotations(clazz)) {
+                return true;
+            }
+
+            while (nextClazz != null) {
+                String name = nextClazz.getName();
+
+                if (matchTarget(name, clazz, false, isOverride)) {
+                    return true;
+                }
+
+                int lastDot = name.lastIndexOf('.');
+
+                if (lastDot >= 0) {
+                    if (matchTarget(name.substring(lastDot + 1), clazz, false, isOverride)) {
+                        return true;
+                    }
+                }
+
+                // ok, now see if we need to inject via any interfaces that the class implements
+
+                if (checkInterfaces()) {
+                    Class[] interfaces = nextClazz.getInterfaces();
+                    int l = interfaces.length;
+                    if (l > 0) {
+                        // ok, so we have to create the lists here
+                        if (visited == null) {
+                            visited = new LinkedList<Class>();
+                            toVisit = new LinkedList<Class>();
                         }
-                        visited.add(interfaze);
-                        // check the extends list of this interface for new interfaces to consider
-                        interfaces = interfaze.getInterfaces();
+                        // add the implements list of this class as interfaces to consider
                         for (int i = 0; i < interfaces.length; i++) {
-                            interfaze = interfaces[i];
+                            Class interfaze = interfaces[i];
                             if (!visited.contains(interfaze)) {
                                 toVisit.add(interfaze);
                             }
                         }
+
+                        while (!toVisit.isEmpty()) {
+                            // check the next interface
+                            Class interfaze = toVisit.pop();
+                            name = interfaze.getName();
+                            if (matchTarget(name, clazz, true, isOverride)) {
+                                return true;
+                            } else {
+                                lastDot = name.lastIndexOf('.');
+                                if (lastDot >= 0) {
+                                    if (matchTarget(name.substring(lastDot + 1), clazz, true, isOverride)) {
+                                        return true;
+                                    }
+                                }
+                            }
+                            visited.add(interfaze);
+                            // check the extends list of this interface for new interfaces to consider
+                            interfaces = interfaze.getInterfaces();
+                            for (int i = 0; i < interfaces.length; i++) {
+                                interfaze = interfaces[i];
+                                if (!visited.contains(interfaze)) {
+                                    toVisit.add(interfaze);
+                                }
+                            }
+                        }
                     }
                 }
-            }
 
-            if (skipOverrideRules) {
-                return false;
+                // if there are no overriding rules then nothing further up the hierarchy can match
+
+                if (skipOverrideRules()) {
+                    return false;
+                }
+
+                nextClazz = nextClazz.getSuperclass();
+                isOverride = true;
             }
 
-            nextClazz = nextClazz.getSuperclass();
-            isOverride = true;
+            return false;
         }
 
-        return false;
-    }
+        /**
+         * return true if there are any scripts indexed under name which meet the required matching conditions
+         * @param name the name under which the scripts are indexed
+         * @param clazz a class which should be checked for a method whose name matches the script method name
+         * @param isInterface true if we are interested in matching interface rules false if we are interested in
+         * matching class rules
+         * @param isOverride true if we are only interested in rules which apply to overriding methods false
+         * if we are happy with any rule
+         * @return
+         */
+        private boolean matchTarget(String name, Class<?> clazz, boolean isInterface, boolean isOverride) {
+            List<RuleScript> ruleScripts = (isInterface ? scriptsForInterfaceName(name) : scriptsForClassName(name));
+            return matchScripts(ruleScripts, clazz, isOverride);
+        }
 
-    /**
-     * return a list containing all the currently installed rule scripts.
-     * @return the list of all installed scripts
-     */
-    public List<RuleScript> currentRules()
-    {
-        return new ArrayList(ruleNameIndex.values());
-    }
+        /**
+         * return true if there are any annotation scripts which meet the required matching conditions for a
+         * loaded class. n.b. only annotations retained at runtime are visible here so a class whose annotation
+         * is only retained in its bytecode will not be selected for retransformation.
+         * @param clazz the class to be checked
+         * @return true if an annotation script may apply to the class
+         */
+        private boolean matchAnnotations(Class<?> clazz)
+        {
+            try {
+                java.lang.annotation.Annotation[] annotations = clazz.getDeclaredAnnotations();
+                for (int i = 0; i < annotations.length; i++) {
+                    String typeName = annotations[i].annotationType().getName();
+                    if (matchScripts(scriptsForClassAnnotation(typeName), clazz, false)) {
+                        return true;
+                    }
+                }
+                if (!methodAnnotationIndex.isEmpty()) {
+                    String className = clazz.getName();
+                    Method[] declaredMethods = clazz.getDeclaredMethods();
+                    for (int i = 0; i < declaredMethods.length; i++) {
+                        annotations = declaredMethods[i].getDeclaredAnnotations();
+                        for (int j = 0; j < annotations.length; j++) {
+                            List<RuleScript> ruleScripts = scriptsForMethodAnnotation(annotations[j].annotationType().getName());
+                            if (ruleScripts != null) {
+                                for (RuleScript ruleScript : ruleScripts) {
+                                    if (ClassPatternIndex.matchesTarget(ruleScript.getTargetClass(), className)) {
+                                        return true;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (Throwable th) {
+                // we can get an error if an annotation type cannot be resolved
+                // ignore
+            }
+            return false;
+        }
 
-    /**
-     * return true if there are any scripts indexed under name which meet the required matching conditions
-     * @param name the name under which the scripts are indexed
-     * @param clazz a class which should be checked for a method whose name matches the script method name
-     * @param isInterface true if we are interested in matching interface rules false if we are interested in
-     * matching class rules
-     * @param isOverride true if we are only interested in rules which apply to overriding methods false
-     * if we are happy with any rule
-     * @return
-     */
-    private boolean matchTarget(String name, Class<?> clazz, boolean isInterface, boolean isOverride) {
-        Map<String, List<RuleScript>> index = (isInterface ? targetInterfaceIndex : targetClassIndex);
-        synchronized (index) {
-            List<RuleScript> ruleScripts = index.get(name);
+        /**
+         * return true if any of the supplied scripts meet the required matching conditions
+         * @param ruleScripts the scripts to check or null
+         * @param clazz a class which should be checked for a method whose name matches the script method name
+         * @param isOverride true if we are only interested in rules which apply to overriding methods false
+         * if we are happy with any rule
+         * @return
+         */
+        private boolean matchScripts(List<RuleScript> ruleScripts, Class<?> clazz, boolean isOverride) {
             if (ruleScripts != null) {
                 for (RuleScript ruleScript: ruleScripts) {
                     if (isOverride && !ruleScript.isOverride()) {
                         continue;
                     }
-                    String methodName = ruleScript.getTargetMethod();
+                    String methodName = ruleScript.getTargetMethodSpec();
                     int signaturePos = methodName.indexOf("(");
                     if (signaturePos > 0) {
                         methodName = methodName.substring(0, signaturePos).trim();
@@ -485,6 +1002,10 @@ public class ScriptRepository
                         // every class has some sort of constructor so accept it
                         return true;
                     }
+                    if (RuleScript.ANY_METHOD.equals(methodName)) {
+                        // we don't check method annotations here so accept any class
+                        return true;
+                    }
                     // this filters out cases where the class does not have a method with the correct name
                     try {
                         Method[] declaredMethods = clazz.getDeclaredMethods();
@@ -502,208 +1023,23 @@ public class ScriptRepository
                     }
                 }
             }
+            return false;
         }
-        return false;
     }
 
     /**
-     * insert a script into the index using the script target class name as the index key.
-     * @param script
-     * @param index
-     */
-    private void indexTarget(RuleScript script, Map<String, List<RuleScript>> index)
-    {
-        String key = script.getTargetClass();
-        // synchronize on the new script to avoid ant race with a deleting thread
-        synchronized(script) {
-            if (script.isDeleted()) {
-                return;
-            }
-            synchronized (index) {
-                List<RuleScript> entry = index.get(key);
-                // always create a new list so that we don't affect any in progress iteration of the previous value
-                if (entry == null) {
-                    entry = new ArrayList();
-                    add(entry, script);
-                } else {
-                    entry = new ArrayList(entry);
-                    add(entry, script);
-                }
-                index.put(key, entry);
-            }
-        }
-    }
-
-    /**
-     * remove a script from the index using the script target class name as the index key.
-     * @param script
-     * @param index
-     */
-    private void unindexTarget(RuleScript script, Map<String, List<RuleScript>> index)
-    {
-        synchronized (index) {
-            String key = script.getTargetClass();
-            List<RuleScript> entry = index.get(key);
-            // check it has not been deleted by another thread
-            if (entry != null && entry.contains(script)) {
-                if (entry.size() == 1) {
-                    // removing the last one so reset entry to null
-                    entry = null;
-                } else {
-                    // always create a new list so that we don't affect any in progress iteration of the previous value
-                    entry = new ArrayList<RuleScript>(entry);
-                    entry.remove(script);
-                }
-                index.put(key, entry);
-            }
-        }
-
-    }
-
-    /**
-     * replace a script in the index using the script target class name as the index key.
-     * @param script
-     * @param index
-     */
-    private void reindexTarget(RuleScript script, RuleScript previous, Map<String, List<RuleScript>> index)
-    {
-        // synchronize on the new script to avoid ant race with a deleting thread
-        synchronized (script) {
-            if (script.isDeleted()) {
-                // we just need to delete the old script
-                unindexTarget(previous, index);
-                return;
-            } else {
-                String key = script.getTargetClass();
-                String oldKey = previous.getTargetClass();
-
-                synchronized (index) {
-                    if (key == oldKey) {
-                        // both in the same list so do one update
-                        List<RuleScript> entry = index.get(key);
-                        // check old one  has not been deleted by another thread
-                        if (entry == null || !entry.contains(previous)) {
-                            // some other thread must have deleted the old one so just insert the new one
-
-                            // always create a new list so that we don't affect any in progress iteration of the previous value
-                            entry = new ArrayList<RuleScript>(entry);
-                            add(entry, script);
-                        } else {
-                            // always create a new list so that we don't affect any in progress iteration of the previous value
-                            entry = new ArrayList(entry);
-                            entry.remove(previous);
-                            add(entry, script);
-                        }
-                        index.put(key, entry);
-                    } else {
-                        List<RuleScript> entry = index.get(oldKey);
-                        // check old one  has not been deleted by another thread
-                        if (entry != null && entry.contains(previous)) {
-                            // unindex the previous script
-                            if (entry.size() == 1) {
-                                // removing the last one so reset entry to null
-                                entry = null;
-                            } else {
-                                // always create a new list so that we don't affect any in progress iteration of the previous value
-                                entry = new ArrayList<RuleScript>(entry);
-                                entry.remove(previous);
-                            }
-                            index.put(oldKey, entry);
-                        }
-                        // now index the new one
-                        entry = index.get(key);
-                        // always create a new list so that we don't affect any in progress iteration of the previous value
-                        if (entry == null) {
-                            entry = new ArrayList<RuleScript>();
-                        } else {
-                            entry = new ArrayList<RuleScript>(entry);
-                        }
-                        add(entry, script);
-                        index.put(key, entry);
-                    }
-                }
-            }
-        }
-    }
-
-    /**
-     * add a rule script to start or end of the index list according to its location type. AT ENTRY rules
-     * are pushed so they are sorted in reverse load order. other rules are appended so they are sorted
-     * in load order.
-     * @param entries
-     * @param script
-     */
-    private void add(List<RuleScript> entries, RuleScript script)
-    {
-        // ENTRY rules are pushed so they are sorted in reverse load order
-        // other rules are appended so they are sorted in load order
-        if (script.getTargetLocation().getLocationType() == LocationType.ENTRY) {
-            entries.add(0, script);
-        } else {
-            entries.add(script);
-        }
-    }
-    /**
-     * a 1-1 mapping from target class names which appear in rules to a script object holding the
-     * rule details
+     * the current snapshot of the indexes
      */
-
-    private final Map<String, List<RuleScript>> targetClassIndex;
+    private volatile Snapshot snapshot;
 
     /**
-     * a 1-m mapping from target interface names which appear in rules to a script object holding the
-     * rule details
+     * lock used to serialize updates to the indexes
      */
-
-    private final Map<String, List<RuleScript>> targetInterfaceIndex;
-
-    /**
-     * a 1-m mapping from rule names which appear in rules to a script object holding the
-     * rule details
-     */
-
-    private final Map<String, RuleScript> ruleNameIndex;
+    private final Object updateLock;
 
     /**
      * a flag derived from the transformer which enables us to avoid testing superclass rules for
      * matches if it is set
      */
-
     private final boolean skipOverrideRules;
-
-    /**
-     * a count of how many rules there are in the script repository which employ injection into hierarchies
-     */
-    private int overrideRuleCount = 0;
-
-    /**
-     * see if we need to do any transformation of interfaces
-     * @return true if there are any interface rules false if there are none
-     */
-    public boolean checkInterfaces()
-    {
-        // n.b. this probably ought to be called synchronized rather than ddo its own synchronization
-        // so the caller can avoid the timing window between checking and responding to the check.
-        // but this is a grey area given that there is no way of knowing exactly when a transform
-        // request will be sent to the Transformer and the repsonse is not to ransform anything. if
-        // an uupdate affects a loaded class then it will get retransformed anyway so the risk here
-        // si that the rule gets applied alittle late. we still synchornize here anyway to ensure
-        // the isEmpty check does not get a partial view of the index.
-
-        synchronized (targetInterfaceIndex) {
-            return !targetInterfaceIndex.isEmpty();
-        }
-    }
-
-    /**
-     * check whether any overriding rules are currently loaded
-     * @return true if there are no overriding rules false if there are any
-     */
-    public boolean skipOverrideRules() {
-        if (skipOverrideRules) {
-            return true;
-        } else {
-            return overrideRuleCount == 0;
-        }
-    }
 }
@@ -0,0 +1,441 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * an on-disk cache of the bytecode generated when a rule script is injected into a class. entries are keyed
+ * by a digest of the bytecode being transformed, the full text of the rule script and the agent version so a
+ * cached entry can only be used to repeat exactly the same transform. the key does not cover the super types
+ * of the transformed class so transforms whose stack frames were computed using the class hierarchy must not
+ * be cached. the version is read from a resource generated by the agent build and the cache is not used if it
+ * cannot be found.
+ * n.b. snapshot builds all share the same version so the directory should be cleared when a snapshot
+ * agent is rebuilt.
+ *
+ * the cache directory holds a sequence of segment files. segments written by earlier runs are memory mapped
+ * read only when the cache is opened and indexed by key. entries created by the current run are appended to
+ * a new segment which is only read when the cache is next opened. deleting the directory clears the cache.
+ * the total size of the segments is limited. when the cache is opened the oldest segments are deleted until
+ * the remainder fit within the limit and once the limit is reached no more entries are written.
+ */
+public class TransformCache
+{
+    /**
+     * open the cache in the supplied directory, creating the directory if necessary
+     * @param directory the cache directory
+     * @param limit the maximum total size in bytes of the segments in the directory
+     * @return the cache or null if the directory cannot be used
+     */
+    public static TransformCache open(File directory, long limit)
+    {
+        String version = agentVersion();
+        if (version == null) {
+            // without a version we cannot tell whether entries were generated by this agent
+            System.err.println("TransformCache.open : agent version is unknown so transform cache " + directory + " will not be used");
+            return null;
+        }
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                System.err.println("TransformCache.open : unable to create cache directory " + directory);
+                return null;
+            }
+            TransformCache cache = new TransformCache(directory, version, limit);
+            cache.load();
+            return cache;
+        } catch (Exception e) {
+            System.err.println("TransformCache.open : unable to open cache directory " + directory + " : " + e);
+            return null;
+        }
+    }
+
+    private TransformCache(File directory, String version, long limit) throws Exception
+    {
+        this.directory = directory;
+        this.version = version;
+        this.limit = limit;
+        this.index = new HashMap<String, Location>();
+        this.segments = new ArrayList<MappedByteBuffer>();
+        // make sure the digest classes are loaded now rather than from inside a transform
+        MessageDigest.getInstance(DIGEST_ALGORITHM);
+    }
+
+    /**
+     * compute the key under which the result of applying a rule script to some bytecode is cached
+     * @param ruleScript the script being applied
+     * @param classBytes the bytecode being transformed
+     * @return the key
+     */
+    public String computeKey(RuleScript ruleScript, byte[] classBytes)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            digest.update(version.getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(ruleScript.toString().getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(classBytes);
+            byte[] hash = digest.digest();
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (int i = 0; i < hash.length; i++) {
+                int b = hash[i] & 0xff;
+                builder.append(HEX_DIGITS[b >> 4]);
+                builder.append(HEX_DIGITS[b & 0xf]);
+            }
+            return builder.toString();
+        } catch (Exception e) {
+            // should not happen since we checked the algorithm was available when we opened the cache
+            return null;
+        }
+    }
+
+    /**
+     * find a cached transform
+     * @param key the key for the transform
+     * @return the cached entry or null if there is none
+     */
+    public Entry lookup(String key)
+    {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        try {
+            // use a private view of the segment so concurrent lookups do not interfere
+            ByteBuffer buffer = location.segment.duplicate();
+            buffer.position(location.offset);
+            readString(buffer); // skip the key
+            int count = buffer.getInt();
+            List<String> methods = new ArrayList<String>(count);
+            List<String> ruleKeys = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                methods.add(readString(buffer));
+                ruleKeys.add(readString(buffer));
+            }
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new Entry(methods, ruleKeys, bytes);
+        } catch (RuntimeException e) {
+            // the segment is corrupt so stop using this entry
+            return null;
+        }
+    }
+
+    /**
+     * add a transform to the cache. the entry is written to the current segment and will only be
+     * available for lookup once the cache is reopened.
+     * @param key the key for the transform
+     * @param entry the transform details
+     * @return true if the entry was written otherwise false
+     */
+    public synchronized boolean store(String key, Entry entry)
+    {
+        if (broken || index.containsKey(key)) {
+            return false;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeString(out, key);
+            out.writeInt(entry.methods.size());
+            for (int i = 0; i < entry.methods.size(); i++) {
+                writeString(out, entry.methods.get(i));
+                writeString(out, entry.ruleKeys.get(i));
+            }
+            out.writeInt(entry.bytes.length);
+            out.write(entry.bytes);
+            out.flush();
+            // allow for the segment header and the record length
+            long required = bytes.size() + (output == null ? 8 : 4);
+            if (size + required > limit) {
+                return false;
+            }
+            if (output == null) {
+                output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, SEGMENT_PREFIX + nextSegment + SEGMENT_SUFFIX))));
+                output.writeInt(MAGIC);
+            }
+            output.writeInt(bytes.size());
+            bytes.writeTo(output);
+            output.flush();
+            size += required;
+            return true;
+        } catch (IOException e) {
+            System.err.println("TransformCache.store : unable to write cache segment in " + directory + " : " + e);
+            // don't keep trying to write
+            broken = true;
+            return false;
+        }
+    }
+
+    /**
+     * flush and close the segment being written by this run
+     */
+    public synchronized void close()
+    {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            output = null;
+        }
+        broken = true;
+    }
+
+    /**
+     * map and index every segment in the cache directory, first deleting the oldest segments if the
+     * cache has grown beyond its limit
+     * @throws IOException if a segment cannot be mapped
+     */
+    private void load() throws IOException
+    {
+        File[] files = directory.listFiles();
+        TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                int number;
+                try {
+                    number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segmentFiles.put(number, file);
+                size += file.length();
+            }
+        }
+        nextSegment = (segmentFiles.isEmpty() ? 0 : segmentFiles.lastKey() + 1);
+        // segments are numbered in the order they were written so evict from the front
+        while (size > limit && !segmentFiles.isEmpty()) {
+            File file = segmentFiles.remove(segmentFiles.firstKey());
+            long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            } else {
+                // leave it in place but don't use it
+                System.err.println("TransformCache.load : unable to delete cache segment " + file);
+            }
+        }
+        // index the newest segments first so their entries take precedence
+        for (File file : segmentFiles.descendingMap().values()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                segments.add(segment);
+                indexSegment(segment);
+            } finally {
+                // the mapping remains valid after the file is closed
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * index the entries in a segment. a segment which was being written when a previous run died may
+     * end with a partial record so indexing stops at the first record which does not fit
+     * @param segment the mapped segment
+     */
+    private void indexSegment(MappedByteBuffer segment)
+    {
+        ByteBuffer buffer = segment.duplicate();
+        if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+            return;
+        }
+        while (buffer.remaining() >= 4) {
+            int length = buffer.getInt();
+            int offset = buffer.position();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            try {
+                String key = readString(buffer);
+                if (!index.containsKey(key)) {
+                    index.put(key, new Location(segment, offset));
+                }
+            } catch (RuntimeException e) {
+                break;
+            }
+            buffer.position(offset + length);
+        }
+    }
+
+    /**
+     * read the agent version from the version resource generated by the build
+     * @return the version or null if it is not available
+     */
+    private static String agentVersion()
+    {
+        InputStream is = TransformCache.class.getResourceAsStream(VERSION_RESOURCE);
+        if (is == null) {
+            return null;
+        }
+        try {
+            Properties properties = new Properties();
+            properties.load(is);
+            String version = properties.getProperty("version");
+            // an unfiltered resource still contains the property reference
+            if (version == null || version.length() == 0 || version.startsWith("$")) {
+                return null;
+            }
+            return version;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * the details of a cached transform
+     */
+    public static class Entry
+    {
+        /**
+         * @param methods the name and descriptor of each trigger method, separated by '#'
+         * @param ruleKeys the key of the rule injected into each trigger method
+         * @param bytes the transformed bytecode
+         */
+        public Entry(List<String> methods, List<String> ruleKeys, byte[] bytes)
+        {
+            this.methods = methods;
+            this.ruleKeys = ruleKeys;
+            this.bytes = bytes;
+        }
+
+        public List<String> getMethods()
+        {
+            return methods;
+        }
+
+        public List<String> getRuleKeys()
+        {
+            return ruleKeys;
+        }
+
+        public byte[] getBytes()
+        {
+            return bytes;
+        }
+
+        private final List<String> methods;
+        private final List<String> ruleKeys;
+        private final byte[] bytes;
+    }
+
+    /**
+     * the position of an entry in a mapped segment
+     */
+    private static class Location
+    {
+        Location(MappedByteBuffer segment, int offset)
+        {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        final MappedByteBuffer segment;
+        final int offset;
+    }
+
+    private static final String VERSION_RESOURCE = "version.properties";
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final String SEGMENT_PREFIX = "transforms-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAGIC = 0x424d5443;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final String version;
+
+    /**
+     * the maximum total size of the segments in the cache directory
+     */
+    private final long limit;
+
+    /**
+     * the total size of the segments in the cache directory including the one being written by this run
+     */
+    private long size;
+
+    /**
+     * the mapped segments. we hold on to these so that their mappings stay live
+     */
+    private final List<MappedByteBuffer> segments;
+
+    /**
+     * index of the entries in the mapped segments. this is only updated while the cache is being
+     * opened so it can be read without synchronization
+     */
+    private final Map<String, Location> index;
+
+    private int nextSegment;
+    private DataOutputStream output;
+    private boolean broken;
+}
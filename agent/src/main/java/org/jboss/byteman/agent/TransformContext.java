@@ -29,6 +29,7 @@ import org.jboss.byteman.agent.adapter.BMLocalScopeAdapter;
 import org.jboss.byteman.agent.adapter.RuleCheckAdapter;
 import org.jboss.byteman.agent.adapter.RuleTriggerAdapter;
 import org.jboss.byteman.agent.check.ClassChecker;
+import org.jboss.byteman.agent.check.ClassStructureAdapter;
 import org.jboss.byteman.rule.exception.CompileException;
 import org.jboss.byteman.rule.exception.ParseException;
 import org.jboss.byteman.rule.exception.TypeException;
@@ -36,12 +37,15 @@ import org.jboss.byteman.rule.exception.TypeWarningException;
 import org.jboss.byteman.rule.type.Type;
 import org.jboss.byteman.rule.type.TypeHelper;
 import org.jboss.byteman.rule.Rule;
+import org.jboss.byteman.rule.binding.Binding;
+import org.jboss.byteman.rule.binding.Bindings;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.Opcodes;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -58,7 +62,8 @@ public class TransformContext
         // the method name. if so we modify the target method spec so that the return type appears
         // after the argument list which means we also accept a spec supplied in this format. The
         // parseMethodDescriptor call below will eat specs in this latter format.
-        final String targetMethodSpec = ruleScript.getTargetMethod();
+        // any annotation preceding the method spec is handled separately when methods are matched
+        final String targetMethodSpec = ruleScript.getTargetMethodSpec();
         String mungedMethodSpec = mungeMethodSpecReturnType(targetMethodSpec);
         this.transformer = transformer;
         this.ruleScript =  ruleScript;
@@ -74,6 +79,166 @@ public class TransformContext
     }
 
     public byte[] transform(byte[] targetClassBytes)
+    {
+        if (!FlightRecorderSupport.CLASS_TRANSFORMED.isEnabled()) {
+            return doTransform(targetClassBytes);
+        }
+        Object event = FlightRecorderSupport.CLASS_TRANSFORMED.begin();
+        byte[] result = doTransform(targetClassBytes);
+        FlightRecorderSupport.CLASS_TRANSFORMED.commit(event, triggerClassName, ruleScript.getName(), result != targetClassBytes);
+        return result;
+    }
+
+    /**
+     * set up the rules for trigger code which was woven into a class before it was loaded. the rules are
+     * given the type information, bindings and keys which were computed when the trigger code was woven
+     * so they are bound exactly as if the agent had injected them, without needing to parse the bytecode.
+     * @param triggers details of the woven trigger methods
+     * @return true if the rules were set up otherwise false
+     */
+    public boolean bindWoven(List<WovenClassRegistry.Trigger> triggers)
+    {
+        String ruleName = ruleScript.getName();
+        try {
+            parseRule();
+        } catch (Throwable th) {
+            if (Transformer.isVerbose()) {
+                System.out.println("org.jboss.byteman.agent.Transformer : error parsing woven rule " + ruleName + "\n" + th);
+            }
+            recordFailedTransform(th);
+            return false;
+        }
+
+        List<Rule> rules = new ArrayList<Rule>();
+        List<String> ruleKeys = new ArrayList<String>();
+        for (WovenClassRegistry.Trigger trigger : triggers) {
+            Rule rule = createRule(trigger.getMethodName(), trigger.getDescriptor());
+            rule.setTypeInfo(triggerClassName, trigger.getAccess(), trigger.getMethodName(), trigger.getDescriptor(), trigger.getExceptions());
+            if (!bindWovenVariables(rule, trigger.getVariables())) {
+                Exception ex = new Exception("woven bindings do not match rule " + ruleName + " for method " + trigger.getMethodName() + TypeHelper.internalizeDescriptor(trigger.getDescriptor()));
+                recordFailedTransform(ex);
+                return false;
+            }
+            rules.add(rule);
+            ruleKeys.add(trigger.getRuleKey());
+        }
+
+        // the keys are reserved when the registry is installed so they can only clash if the class
+        // has already been loaded by another loader
+
+        if (!Rule.restoreKeys(rules, ruleKeys)) {
+            Exception ex = new Exception("unable to restore woven trigger keys for rule " + ruleName + " in class " + triggerClassName);
+            if (Transformer.isVerbose()) {
+                System.out.println("org.jboss.byteman.agent.Transformer : " + ex.getMessage());
+            }
+            recordFailedTransform(ex);
+            return false;
+        }
+
+        if (Transformer.isVerbose()) {
+            System.out.println("org.jboss.byteman.agent.Transformer : bound woven trigger for " + ruleName + " in class " + triggerClassName);
+        }
+
+        return notifyRules();
+    }
+
+    /**
+     * return details of the trigger methods into which this context injected its rule
+     * @return the trigger method details or null if the transform did not inject any trigger code
+     */
+    public List<WovenClassRegistry.Trigger> getWovenTriggers()
+    {
+        if (transformedBytes == null) {
+            return null;
+        }
+        List<WovenClassRegistry.Trigger> triggers = new ArrayList<WovenClassRegistry.Trigger>();
+        for (Rule rule : ruleMap.values()) {
+            String ruleKey = rule.lookupKey();
+            if (ruleKey == null) {
+                return null;
+            }
+            List<WovenClassRegistry.Variable> variables = new ArrayList<WovenClassRegistry.Variable>();
+            Iterator<Binding> iterator = rule.getBindings().iterator();
+            while (iterator.hasNext()) {
+                Binding binding = iterator.next();
+                Binding alias = binding.getAlias();
+                variables.add(new WovenClassRegistry.Variable(binding.getName(), binding.getDescriptor(),
+                        binding.getLocalIndex(), binding.getCallArrayIndex(), (alias != null ? alias.getName() : null)));
+            }
+            triggers.add(new WovenClassRegistry.Trigger(rule.getTriggerMethod(), rule.getTriggerDescriptor(), rule.getTriggerAccess(),
+                    rule.getTriggerExceptions(), ruleKey, variables));
+        }
+        return triggers;
+    }
+
+    /**
+     * update the bindings of a newly parsed rule to match those computed by the trigger pass when
+     * the rule was woven. the trigger pass may have added bindings for method parameters which are
+     * aliased by local variable bindings. these are inserted at the front of the binding list.
+     * @param rule the rule
+     * @param variables the woven bindings in binding list order
+     * @return true if the woven bindings are consistent with the rule otherwise false
+     */
+    private boolean bindWovenVariables(Rule rule, List<WovenClassRegistry.Variable> variables)
+    {
+        Bindings bindings = rule.getBindings();
+        List<Binding> added = new ArrayList<Binding>();
+        for (WovenClassRegistry.Variable variable : variables) {
+            Binding binding = bindings.lookup(variable.getName());
+            if (binding == null) {
+                binding = new Binding(rule, variable.getName());
+                added.add(binding);
+            }
+        }
+        bindings.addBindings(added);
+        for (WovenClassRegistry.Variable variable : variables) {
+            Binding binding = bindings.lookup(variable.getName());
+            binding.setDescriptor(variable.getDescriptor());
+            binding.setLocalIndex(variable.getLocalIndex());
+            binding.setCallArrayIndex(variable.getCallArrayIndex());
+            if (variable.getAlias() != null) {
+                Binding alias = bindings.lookup(variable.getAlias());
+                if (alias == null || !binding.isLocalVar()) {
+                    return false;
+                }
+                binding.aliasTo(alias);
+            }
+        }
+        // the woven bindings must include every binding in the rule in the same order
+        Iterator<Binding> iterator = bindings.iterator();
+        for (WovenClassRegistry.Variable variable : variables) {
+            if (!iterator.hasNext() || !iterator.next().getName().equals(variable.getName())) {
+                return false;
+            }
+        }
+        return !iterator.hasNext();
+    }
+
+    /**
+     * return details of the transform performed by this context
+     * @return the trigger methods, rule keys and transformed bytecode or null if the transform did not
+     * inject any trigger code
+     */
+    public TransformCache.Entry getTransformEntry()
+    {
+        if (transformedBytes == null) {
+            return null;
+        }
+        List<String> methods = new ArrayList<String>();
+        List<String> ruleKeys = new ArrayList<String>();
+        for (String key : ruleMap.keySet()) {
+            String ruleKey = ruleMap.get(key).lookupKey();
+            if (ruleKey == null) {
+                // no trigger was injected for this rule so we cannot reuse the transform
+                return null;
+            }
+            methods.add(key.substring(triggerClassName.length() + 1));
+            ruleKeys.add(ruleKey);
+        }
+        return new TransformCache.Entry(methods, ruleKeys, transformedBytes);
+    }
+
+    private byte[] doTransform(byte[] targetClassBytes)
     {
         final Location handlerLocation = ruleScript.getTargetLocation();
 
@@ -111,6 +276,14 @@ public class TransformContext
         // visitor and th eonly safe ting to do is back out the whole transform.
 
         ClassReader cr = new ClassReader(targetClassBytes);
+
+        if (ruleScript.getTargetMethodAnnotation() != null) {
+            // method annotations are only visited after the method itself so we need to
+            // identify the annotated methods before we can match trigger methods
+            classStructure = new ClassStructureAdapter();
+            cr.accept(classStructure, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        }
+
         // need to provide a real writer here so that labels get resolved
         ClassWriter dummy = getNonLoadingClassWriter(0);
         RuleCheckAdapter checkAdapter = handlerLocation.getRuleCheckAdapter(dummy, this);
@@ -140,12 +313,30 @@ public class TransformContext
         if (Transformer.isVerbose()) {
             System.out.println("org.jboss.byteman.agent.Transformer : possible trigger for rule " + ruleScript.getName() + " in class " + triggerClassName);
         }
+        // see if we have already performed this exact transform in a previous run
+
+        TransformCache cache = transformer.getTransformCache();
+        String cacheKey = null;
+        TransformCache.Entry cached = null;
+        if (cache != null && !ruleMap.isEmpty() && !ruleMap.containsKey(triggerClassName)) {
+            cacheKey = cache.computeKey(ruleScript, targetClassBytes);
+            if (cacheKey != null) {
+                cached = restoreKeys(cache.lookup(cacheKey));
+            }
+        }
+
         cr = new ClassReader(targetClassBytes);
-        ClassWriter cw = getNonLoadingClassWriter(ClassWriter.COMPUTE_MAXS|ClassWriter.COMPUTE_FRAMES);
+        // when we are reusing cached bytecode we still need to run the trigger adapter because it sets up
+        // the rule bindings but its output is discarded so there is no need to compute frames
+        // the writer shares the reader's constant pool. that allows methods which do not receive a trigger
+        // to be copied verbatim, including their existing frames, so maxs and frames are only computed for
+        // the trigger methods
+        ClassWriter cw = getNonLoadingClassWriter(cr, cached != null ? 0 : ClassWriter.COMPUTE_MAXS|ClassWriter.COMPUTE_FRAMES);
         RuleTriggerAdapter adapter = handlerLocation.getRuleAdapter(cw, this);
         // insert a JSR inliner between the reader and the adapter so we don't see JSR/RET sequences
         // we use a specialised version which provides us with info about vars going in and out of scope
-        BMJSRInliner jsrInliner = new BMJSRInliner(adapter);
+        // it only inlines the trigger methods so that the others can be passed straight through to the writer
+        BMJSRInliner jsrInliner = new BMJSRInliner(adapter, this);
         try {
             cr.accept(jsrInliner, ClassReader.EXPAND_FRAMES);
         } catch (TransformFailure te) {
@@ -169,9 +360,51 @@ public class TransformContext
         if (!notifyRules()) {
             // rule must have been deleted so forget the transform
             return targetClassBytes;
+        } else if (cached != null) {
+            transformer.getStatistics().recordTransformCacheHit();
+            if (Transformer.isVerbose()) {
+                System.out.println("org.jboss.byteman.agent.Transformer : reused cached transform for " + ruleScript.getName() + " in class " + triggerClassName);
+            }
+            return cached.getBytes();
         } else {
-            return cw.toByteArray();
+            transformedBytes = cw.toByteArray();
+            // the cache key only identifies the transformed class so we cannot cache the result if
+            // computing its frames relied on the class hierarchy
+            if (cacheKey != null && !hierarchyLookup) {
+                TransformCache.Entry entry = getTransformEntry();
+                if (entry != null && cache.store(cacheKey, entry)) {
+                    transformer.getStatistics().recordTransformCacheStore();
+                }
+            }
+            return transformedBytes;
+        }
+    }
+
+    /**
+     * if a previously generated transform injected into exactly the methods we are about to inject
+     * into then make sure our rules use the same keys as the previously generated trigger code
+     * @param entry details of the previous transform or null if there is none
+     * @return the entry or null if it cannot be used
+     */
+    private TransformCache.Entry restoreKeys(TransformCache.Entry entry)
+    {
+        if (entry == null || entry.getMethods().size() != ruleMap.size()) {
+            return null;
+        }
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String method : entry.getMethods()) {
+            Rule rule = ruleMap.get(triggerClassName + "#" + method);
+            if (rule == null) {
+                return null;
+            }
+            rules.add(rule);
         }
+        // if the keys are in use, e.g. because the same class was loaded by another loader, then
+        // we have to generate the trigger code afresh
+        if (!Rule.restoreKeys(rules, entry.getRuleKeys())) {
+            return null;
+        }
+        return entry;
     }
 
     public void parseRule() throws Exception {
@@ -273,8 +506,32 @@ public class TransformContext
     public boolean matchTargetMethod(int access, String name, String desc)
     {
         return ((access & (Opcodes.ACC_NATIVE|Opcodes.ACC_ABSTRACT|Opcodes.ACC_SYNTHETIC)) == 0 &&
-                targetMethodName.equals(name) &&
-                (targetDescriptor.equals("") || TypeHelper.equalDescriptors(targetDescriptor, desc)));
+                (targetMethodName.equals(name) || (RuleScript.ANY_METHOD.equals(targetMethodName) && !name.startsWith("<"))) &&
+                (targetDescriptor.equals("") || TypeHelper.equalDescriptors(targetDescriptor, desc)) &&
+                matchTargetMethodAnnotation(name, desc));
+    }
+
+    /**
+     * check that a candidate trigger method carries the annotation named in the rule's METHOD clause
+     * @param name the name of the candidate method
+     * @param desc the descriptor of the candidate method
+     * @return true if the rule does not name a method annotation or the method carries it otherwise false
+     */
+    private boolean matchTargetMethodAnnotation(String name, String desc)
+    {
+        String annotation = ruleScript.getTargetMethodAnnotation();
+        if (annotation == null) {
+            return true;
+        }
+        if (classStructure == null) {
+            return false;
+        }
+        for (String typeName : classStructure.getMethodAnnotations(name, desc)) {
+            if (RuleScript.matchAnnotation(annotation, typeName)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public boolean injectIntoMethod(String name, String desc)
@@ -315,18 +572,30 @@ public class TransformContext
             ruleScript.recordTransform(loader, triggerClassName, null, null, firstRule, twe);
         }
 
-        for (String key : ruleMap.keySet()) {
-            String triggerMethodName = getKeyTriggerMethodName(key);
-            String triggerMethodDescriptor = getKeyTriggerMethodDescriptor(key);
-            Rule rule = ruleMap.get(key);
-            if (!ruleScript.recordTransform(loader, triggerClassName, triggerMethodName, triggerMethodDescriptor, rule, null))
-            {
+        // the transform ran without holding the script lock so the script may have been deleted while
+        // we were injecting. record all the transforms under the lock so that either they are all
+        // recorded and the transformed code is installed or none are and it is discarded
+
+        synchronized (ruleScript) {
+            if (ruleScript.isDeleted()) {
                 // rule script must have been deleted so purge rules and avoid installing the transformed code
                 purgeRules();
 
                 return false;
             }
 
+            for (String key : ruleMap.keySet()) {
+                String triggerMethodName = getKeyTriggerMethodName(key);
+                String triggerMethodDescriptor = getKeyTriggerMethodDescriptor(key);
+                Rule rule = ruleMap.get(key);
+                ruleScript.recordTransform(loader, triggerClassName, triggerMethodName, triggerMethodDescriptor, rule, null);
+            }
+        }
+
+        // let the transformer know the rules are in place so it can prepare them ahead of triggering
+
+        for (Rule rule : ruleMap.values()) {
+            transformer.notifyInjected(rule);
         }
 
         // ok install the transformed code
@@ -417,14 +686,46 @@ public class TransformContext
      */
     private ClassWriter getNonLoadingClassWriter(int flags)
     {
-        final TransformContext finalContext = this;
-        return new ClassWriter(flags) {
-        TransformContext context = finalContext;
-            protected String getCommonSuperClass(final String type1, final String type2) {
-                // if we always return Object we cannot go wrong
-                return context.findLeastCommonSuper(type1, type2);
-            }
-        };
+        return new NonLoadingClassWriter(this, flags);
+    }
+
+    /**
+     * get a class writer which will not attempt to load classes and which copies its constant pool from
+     * the supplied reader. any method passed through from the reader without modification is copied as is,
+     * which means its maxs and frames are not recomputed.
+     *
+     * @param cr the reader for the class being transformed
+     * @param flags
+     * @return
+     */
+    private ClassWriter getNonLoadingClassWriter(ClassReader cr, int flags)
+    {
+        return new NonLoadingClassWriter(this, cr, flags);
+    }
+
+    /**
+     * a class writer which relies on the transform context to compute common super types
+     */
+    private static class NonLoadingClassWriter extends ClassWriter
+    {
+        NonLoadingClassWriter(TransformContext context, int flags)
+        {
+            super(flags);
+            this.context = context;
+        }
+
+        NonLoadingClassWriter(TransformContext context, ClassReader cr, int flags)
+        {
+            super(cr, flags);
+            this.context = context;
+        }
+
+        protected String getCommonSuperClass(final String type1, final String type2) {
+            // if we always return Object we cannot go wrong
+            return context.findLeastCommonSuper(type1, type2);
+        }
+
+        private TransformContext context;
     }
 
     public final static String TOFU = "java/lang/Object";       // TOFU = top of universe
@@ -439,6 +740,8 @@ public class TransformContext
         if (t1.equals(t2)) {
             return t2;
         }
+        // the result depends upon the super types of t1 and t2 as well as the class being transformed
+        hierarchyLookup = true;
         // switch to canonical names containing "." instead of "/" when
         // checking against names found in bytecode but ensure the returned
         // name contains "/"
@@ -601,6 +904,11 @@ public class TransformContext
     private ClassLoader loader;
     private HelperManager helperManager;
 
+    /**
+     * the structure of the trigger class, only computed when the rule targets annotated methods
+     */
+    private ClassStructureAdapter classStructure;
+
     /**
      * a hashmap indexing Rule instances using key classname.methodnameandsig@loaderhashcode. rules are
      * added to this map when they are created and removed when the transform is recorded as having
@@ -610,4 +918,14 @@ public class TransformContext
     private HashMap<String, Rule> ruleMap;
 
     private Rule firstRule;
+
+    /**
+     * the bytecode generated by a successful transform
+     */
+    private byte[] transformedBytes;
+
+    /**
+     * true if the class writer had to consult the class hierarchy when computing frames for the transform
+     */
+    private boolean hierarchyLookup;
 }
@@ -27,37 +27,83 @@ package org.jboss.byteman.agent;
 import org.jboss.byteman.agent.Retransformer;
 import org.jboss.byteman.rule.Rule;
 
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
 import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.jar.JarFile;
 
 /**
  * a socket based listener class which reads scripts from stdin and installs them in the current runtime
+ *
+ * the listener thread uses a selector to serve any number of client connections. a client may keep its
+ * connection open and send a sequence of commands without waiting for each response. the commands sent on
+ * a connection are executed in order and their responses are written back in order. read only commands
+ * from different connections are executed concurrently by a pool of reader threads while commands which
+ * modify the agent state are queued and executed one at a time by a single writer thread.
  */
 public class TransformListener extends Thread
 {
     public static int DEFAULT_PORT = 9091;
     public static String DEFAULT_HOST = "localhost";
     private static TransformListener theTransformListener = null;
-    private static ServerSocket theServerSocket;
+    private static ServerSocketChannel theServerChannel;
     private Retransformer retransformer;
-
-    private TransformListener(Retransformer retransformer)
+    private Selector selector;
+    private ExecutorService readExecutor;
+    private ExecutorService writeExecutor;
+
+    /**
+     * sessions with response output which the listener thread needs to start writing
+     */
+    private ConcurrentLinkedQueue<Session> pendingWrites;
+
+    /**
+     * commands which only read the agent state and so may be executed concurrently
+     */
+    private static final Set<String> READ_ONLY_COMMANDS = new HashSet<String>(Arrays.asList(
+            "LIST", "VERSION", "LISTBOOT", "LISTSYS", "LISTSYSPROPS", "STATS", "AGENTSTATS"));
+
+    /**
+     * the number of threads used to execute read only commands
+     */
+    private static final int READ_THREADS = 4;
+
+    /**
+     * the charset used to read commands and write responses
+     */
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private TransformListener(Retransformer retransformer, Selector selector)
     {
         this.retransformer = retransformer;
+        this.selector = selector;
+        this.readExecutor = Executors.newFixedThreadPool(READ_THREADS, new ListenerThreadFactory("reader"));
+        this.writeExecutor = Executors.newSingleThreadExecutor(new ListenerThreadFactory("writer"));
+        this.pendingWrites = new ConcurrentLinkedQueue<Session>();
         setDaemon(true);        
     }
 
     public static synchronized boolean initialize(Retransformer retransformer, String hostname, Integer port)
     {
         if (theTransformListener == null) {
+            Selector selector;
             try {
                 if (hostname == null) {
                     hostname = DEFAULT_HOST;
@@ -65,18 +111,29 @@ public class TransformListener extends Thread
                 if (port == null) {
                     port = Integer.valueOf(DEFAULT_PORT);
                 }
-                theServerSocket = new ServerSocket();
-                theServerSocket.bind(new InetSocketAddress(hostname, port.intValue()));
+                theServerChannel = ServerSocketChannel.open();
+                theServerChannel.socket().bind(new InetSocketAddress(hostname, port.intValue()));
+                theServerChannel.configureBlocking(false);
+                selector = Selector.open();
+                theServerChannel.register(selector, SelectionKey.OP_ACCEPT);
                 if (Transformer.isVerbose()) {
                     System.out.println("TransformListener() : accepting requests on " + hostname + ":" + port);
                 }
             } catch (IOException e) {
                 System.out.println("TransformListener() : unexpected exception opening server socket " + e);
                 e.printStackTrace();
+                if (theServerChannel != null) {
+                    try {
+                        theServerChannel.close();
+                    } catch (IOException e1) {
+                        // ignore
+                    }
+                    theServerChannel = null;
+                }
                 return false;
             }
 
-            theTransformListener = new TransformListener(retransformer);
+            theTransformListener = new TransformListener(retransformer, selector);
 
             theTransformListener.start();
         }
@@ -93,7 +150,9 @@ public class TransformListener extends Thread
 
         if (theTransformListener != null) {
             try {
-                theServerSocket.close();
+                theServerChannel.close();
+                // make sure the listener thread notices the close
+                theTransformListener.selector.wakeup();
                 if (Transformer.isVerbose()) {
                     System.out.println("TransformListener() :  closing port " + DEFAULT_PORT);
                 }
@@ -107,7 +166,7 @@ public class TransformListener extends Thread
             }
 
             theTransformListener = null;
-            theServerSocket = null;
+            theServerChannel = null;
         }
 
         return true;
@@ -124,30 +183,91 @@ public class TransformListener extends Thread
         
         Rule.disableTriggersInternal();
 
-        while (true) {
-            if (theServerSocket.isClosed()) {
-                return;
+        ServerSocketChannel serverChannel = theServerChannel;
+
+        try {
+            while (serverChannel.isOpen()) {
+                selector.select();
+
+                // start writing any responses which have been completed since the last select
+
+                Session session;
+                while ((session = pendingWrites.poll()) != null) {
+                    session.responseReady();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                        continue;
+                    }
+                    session = (Session)key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            session.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.write();
+                        }
+                    } catch (IOException e) {
+                        if (Transformer.isVerbose()) {
+                            System.out.println("TransformListener.run : exception " + e + " handling connection on port " + session.channel.socket().getLocalPort());
+                        }
+                        session.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                System.out.println("TransformListener.run : exception from server socket selector " + e);
+                e.printStackTrace();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore
+                }
             }
-            Socket socket = null;
             try {
-                socket = theServerSocket.accept();
+                selector.close();
             } catch (IOException e) {
-                if (!theServerSocket.isClosed()) {
-                    System.out.println("TransformListener.run : exception from server socket accept " + e);
-                    e.printStackTrace();
-                }
-                return;
+                // ignore
             }
+            readExecutor.shutdown();
+            writeExecutor.shutdown();
+        }
+    }
 
+    private void accept(ServerSocketChannel serverChannel)
+    {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
             if (Transformer.isVerbose()) {
-                System.out.println("TransformListener() : handling connection on port " + socket.getLocalPort());
+                System.out.println("TransformListener() : handling connection on port " + channel.socket().getLocalPort());
             }
-            try {
-                handleConnection(socket);
-            } catch (Exception e) {
-                System.out.println("TransformListener() : error handling connection on port " + socket.getLocalPort());
+            channel.configureBlocking(false);
+            Session session = new Session(channel);
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        } catch (IOException e) {
+            if (serverChannel.isOpen()) {
+                System.out.println("TransformListener.run : exception from server socket accept " + e);
+                e.printStackTrace();
+            }
+            if (channel != null) {
                 try {
-                    socket.close();
+                    channel.close();
                 } catch (IOException e1) {
                     // do nothing
                 }
@@ -155,94 +275,370 @@ public class TransformListener extends Thread
         }
     }
 
-    private void handleConnection(Socket socket)
+    /**
+     * execute a command using the handler for that command
+     * @param request the command
+     * @return the response text
+     * @throws Exception if the handler fails
+     */
+    private String execute(Request request) throws Exception
     {
-        InputStream is = null;
-        try {
-            is = socket.getInputStream();
-        } catch (IOException e) {
-            // oops. cannot handle this
-            System.out.println("TransformListener.run : error opening socket input stream " + e);
-            e.printStackTrace();
-            try {
-                socket.close();
-            } catch (IOException e1) {
-                System.out.println("TransformListener.run : exception closing socket after failed input stream open" + e1);
-                e1.printStackTrace();
+        String line = request.command;
+        BufferedReader in = new BufferedReader(new StringReader(request.body.toString()));
+        StringWriter response = new StringWriter();
+        PrintWriter out = new PrintWriter(response);
+
+        if (line.equals("BOOT")) {
+            loadJars(in, out, true);
+        } else if (line.equals("SYS")) {
+            loadJars(in, out, false);
+        } else if (line.equals("LOAD")) {
+            loadScripts(in, out);
+        } else if (line.equals("DELETE")) {
+            deleteScripts(in, out);
+        } else if (line.equals("REPLACE")) {
+            replaceScripts(in, out);
+        } else if (line.equals("LIST")) {
+            listScripts(in, out);
+        } else if (line.equals("DELETEALL")) {
+            purgeScripts(in, out);
+        } else if (line.equals("VERSION")) {
+            getVersion(in, out);
+        } else if (line.equals("LISTBOOT")) {
+            listBootJars(in, out);
+        } else if (line.equals("LISTSYS")) {
+            listSystemJars(in, out);
+        } else if (line.equals("LISTSYSPROPS")) {
+            listSystemProperties(in, out);
+        } else if (line.equals("SETSYSPROPS")) {
+            setSystemProperties(in, out);
+        } else if (line.equals("STATS")) {
+            listStatistics(in, out, false);
+        } else if (line.equals("RESETSTATS")) {
+            listStatistics(in, out, true);
+        } else if (line.equals("AGENTSTATS")) {
+            listAgentStatistics(in, out, false);
+        } else if (line.equals("RESETAGENTSTATS")) {
+            listAgentStatistics(in, out, true);
+        } else {
+            out.println("ERROR");
+            out.println("Unexpected command " + line);
+            out.println("OK");
+            out.flush();
+        }
+
+        out.flush();
+        return response.toString();
+    }
+
+    /**
+     * the state of a client connection. the listener thread reads input from the connection and splits it
+     * into commands which are executed one at a time in the order they were received. responses are queued
+     * by the thread which executes the command and written by the listener thread.
+     */
+    private class Session
+    {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        private ByteArrayOutputStream lineBytes;
+
+        /**
+         * the command currently being read or null if we are between commands
+         */
+        private Request current;
+
+        /**
+         * commands which have been read but not yet executed. guarded by this session
+         */
+        private LinkedList<Request> requests;
+
+        /**
+         * response bytes waiting to be written. guarded by this session
+         */
+        private LinkedList<ByteBuffer> responses;
+
+        /**
+         * true while a command is being executed. guarded by this session
+         */
+        private boolean busy;
+
+        /**
+         * true once the client has stopped sending or a command has failed. guarded by this session
+         */
+        private boolean inputClosed;
+
+        Session(SocketChannel channel)
+        {
+            this.channel = channel;
+            this.readBuffer = ByteBuffer.allocate(4096);
+            this.lineBytes = new ByteArrayOutputStream();
+            this.current = null;
+            this.requests = new LinkedList<Request>();
+            this.responses = new LinkedList<ByteBuffer>();
+            this.busy = false;
+            this.inputClosed = false;
+        }
+
+        /**
+         * called by the listener thread when the connection has input available
+         * @throws IOException if the connection fails
+         */
+        void read() throws IOException
+        {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                // the client has stopped sending. let any command it did not finish report an error
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                synchronized (this) {
+                    if (current != null) {
+                        requests.add(current);
+                        current = null;
+                    }
+                    inputClosed = true;
+                }
+                dispatch();
+                closeIfDone();
+                return;
             }
-            return;
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    addLine(lineBytes.toString(CHARSET.name()));
+                    lineBytes.reset();
+                } else {
+                    lineBytes.write(b);
+                }
+            }
+            dispatch();
         }
 
-        OutputStream os = null;
-        try {
-            os = socket.getOutputStream();
-        } catch (IOException e) {
-            // oops. cannot handle this
-            System.out.println("TransformListener.run : error opening socket output stream " + e);
-            e.printStackTrace();
-            try {
-                socket.close();
-            } catch (IOException e1) {
-                System.out.println("TransformListener.run : exception closing socket after failed output stream open" + e1);
-                e1.printStackTrace();
+        private void addLine(String line)
+        {
+            // strip the carriage return from a CRLF line terminator
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (current == null) {
+                current = new Request(line);
+            } else {
+                current.addLine(line);
+            }
+            if (current.isComplete()) {
+                synchronized (this) {
+                    requests.add(current);
+                }
+                current = null;
             }
-            return;
         }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(is));
-        PrintWriter out = new PrintWriter(new OutputStreamWriter(os));
+        /**
+         * start executing the next command unless one is already being executed
+         */
+        private void dispatch()
+        {
+            final Request request;
+            synchronized (this) {
+                if (busy || requests.isEmpty()) {
+                    return;
+                }
+                busy = true;
+                request = requests.removeFirst();
+            }
+            ExecutorService executor = (READ_ONLY_COMMANDS.contains(request.command) ? readExecutor : writeExecutor);
+            executor.execute(new Runnable() {
+                public void run()
+                {
+                    String response;
+                    boolean failed = false;
+                    try {
+                        response = execute(request);
+                    } catch (Exception e) {
+                        System.out.println("TransformListener.run : exception " + e + " processing command " + request.command);
+                        e.printStackTrace();
+                        response = "";
+                        failed = true;
+                    }
+                    complete(response, failed);
+                }
+            });
+        }
 
-        String line = null;
-        try {
-            line = in.readLine();
-        } catch (IOException e) {
-            System.out.println("TransformListener.run : exception " + e + " while reading command");
-            e.printStackTrace();
+        /**
+         * called by the thread which executed a command to hand back its response
+         * @param response the response text
+         * @param failed true if the command failed in which case the connection is closed once any earlier
+         * responses have been written
+         */
+        private void complete(String response, boolean failed)
+        {
+            synchronized (this) {
+                responses.add(ByteBuffer.wrap(response.getBytes(CHARSET)));
+                busy = false;
+                if (failed) {
+                    inputClosed = true;
+                    requests.clear();
+                }
+            }
+            pendingWrites.add(this);
+            selector.wakeup();
+            dispatch();
         }
 
-        try {
-            if (line == null) {
-                out.println("ERROR");
-                out.println("Expecting input command");
-                out.println("OK");
-            } else if (line.equals("BOOT")) {
-                loadJars(in, out, true);
-            } else if (line.equals("SYS")) {
-                loadJars(in, out, false);
-            } else if (line.equals("LOAD")) {
-                loadScripts(in, out);
-            } else if (line.equals("DELETE")) {
-                deleteScripts(in, out);
-            } else if (line.equals("LIST")) {
-                listScripts(in, out);
-            } else if (line.equals("DELETEALL")) {
-                purgeScripts(in, out);
-            } else if (line.equals("VERSION")) {
-                getVersion(in, out);
-            } else if (line.equals("LISTBOOT")) {
-                listBootJars(in, out);
-            } else if (line.equals("LISTSYS")) {
-                listSystemJars(in, out);
-            } else if (line.equals("LISTSYSPROPS")) {
-                listSystemProperties(in, out);
-            } else if (line.equals("SETSYSPROPS")) {
-                setSystemProperties(in, out);
-            } else {
-                out.println("ERROR");
-                out.println("Unexpected command " + line);
-                out.println("OK");
-                out.flush();
+        /**
+         * called by the listener thread once a response has been queued
+         */
+        void responseReady()
+        {
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
             }
-        } catch (Exception e) {
-            System.out.println("TransformListener.run : exception " + e + " processing command " + line);
-            e.printStackTrace();
+        }
+
+        /**
+         * called by the listener thread when the connection can accept output
+         * @throws IOException if the connection fails
+         */
+        void write() throws IOException
+        {
+            synchronized (this) {
+                while (!responses.isEmpty()) {
+                    ByteBuffer buffer = responses.getFirst();
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        // try again when the connection can accept more output
+                        return;
+                    }
+                    responses.removeFirst();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            closeIfDone();
+        }
+
+        private void closeIfDone()
+        {
+            boolean done;
+            synchronized (this) {
+                done = inputClosed && !busy && requests.isEmpty() && responses.isEmpty();
+            }
+            if (done) {
+                close();
+            }
+        }
+
+        void close()
+        {
+            key.cancel();
             try {
-                socket.close();
-            } catch (IOException e1) {
-                System.out.println("TransformListener.run : exception closing socket " + e1);
-                e.printStackTrace();
+                channel.close();
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+
+    /**
+     * a command read from a client connection. most commands consist of a single line but some are
+     * followed by a body which runs up to an end marker line
+     */
+    private static class Request
+    {
+        private String command;
+        private StringBuilder body;
+        private String endMarker;
+        private boolean isScriptCommand;
+        private boolean inScript;
+        private boolean complete;
+
+        Request(String command)
+        {
+            this.command = command;
+            this.body = new StringBuilder();
+            if (command.equals("BOOT")) {
+                endMarker = "ENDBOOT";
+            } else if (command.equals("SYS")) {
+                endMarker = "ENDSYS";
+            } else if (command.equals("SETSYSPROPS")) {
+                endMarker = "ENDSETSYSPROPS";
+            } else if (command.equals("LOAD") || command.equals("DELETE") || command.equals("REPLACE")) {
+                endMarker = "END" + command;
+                isScriptCommand = true;
+            } else {
+                endMarker = null;
+            }
+            this.inScript = false;
+            this.complete = (endMarker == null);
+        }
+
+        void addLine(String line)
+        {
+            body.append(line);
+            body.append('\n');
+            if (isScriptCommand) {
+                // script text may contain anything so only look for markers between scripts
+                if (inScript) {
+                    if (line.equals("ENDSCRIPT")) {
+                        inScript = false;
+                    }
+                } else if (line.trim().startsWith("SCRIPT ")) {
+                    inScript = true;
+                } else {
+                    // either the end marker or an error which the command handler will report
+                    complete = true;
+                }
+            } else if (line.trim().equals(endMarker)) {
+                complete = true;
             }
         }
+
+        boolean isComplete()
+        {
+            return complete;
+        }
+    }
+
+    /**
+     * thread factory for the command execution threads. triggers are disabled in these threads
+     */
+    private static class ListenerThreadFactory implements ThreadFactory
+    {
+        private String role;
+        private int count;
+
+        ListenerThreadFactory(String role)
+        {
+            this.role = role;
+            this.count = 0;
+        }
+
+        public synchronized Thread newThread(final Runnable runnable)
+        {
+            Thread thread = new Thread("Byteman listener " + role + " " + (count++)) {
+                public void run()
+                {
+                    Rule.disableTriggersInternal();
+                    runnable.run();
+                }
+            };
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * read the next line of a command body with surrounding white space removed
+     * @param in the command body
+     * @return the trimmed line or null if the body is exhausted, which happens when the client
+     * disconnects before sending the whole command
+     * @throws IOException if the body cannot be read
+     */
+    private static String readTrimmedLine(BufferedReader in) throws IOException
+    {
+        String line = in.readLine();
+        return (line == null ? null : line.trim());
     }
 
     private void getVersion(BufferedReader in, PrintWriter out) {
@@ -257,13 +653,13 @@ public class TransformListener extends Thread
 
     private void loadScripts(BufferedReader in, PrintWriter out) throws IOException
     {
-        handleScripts(in, out, false);
+        handleScripts(in, out, "LOAD");
     }
 
     private void loadJars(BufferedReader in, PrintWriter out, boolean isBoot) throws IOException
     {
         final String endMarker = (isBoot) ? "ENDBOOT" : "ENDSYS";
-        String line = in.readLine().trim();
+        String line = readTrimmedLine(in);
         while (line != null && !line.equals(endMarker)) {
             try {
                 JarFile jarfile = new JarFile(new File(line));
@@ -275,7 +671,7 @@ public class TransformListener extends Thread
                 out.append("\n");
                 e.printStackTrace(out);
             }
-            line = in.readLine().trim();
+            line = readTrimmedLine(in);
         }
         if (line == null || !line.equals(endMarker)) {
             out.append("ERROR\n");
@@ -287,17 +683,22 @@ public class TransformListener extends Thread
 
     private void deleteScripts(BufferedReader in, PrintWriter out) throws IOException
     {
-        handleScripts(in, out, true);
+        handleScripts(in, out, "DELETE");
+    }
+
+    private void replaceScripts(BufferedReader in, PrintWriter out) throws IOException
+    {
+        handleScripts(in, out, "REPLACE");
     }
 
-    private void handleScripts(BufferedReader in, PrintWriter out, boolean doDelete) throws IOException
+    private void handleScripts(BufferedReader in, PrintWriter out, String command) throws IOException
     {
         List<String> scripts = new LinkedList<String>();
         List<String> scriptNames = new LinkedList<String>();
 
-        String line = in.readLine().trim();
+        String line = readTrimmedLine(in);
         String scriptName = "<unknown>";
-        while (line.startsWith("SCRIPT ")) {
+        while (line != null && line.startsWith("SCRIPT ")) {
             StringBuffer stringBuffer = new StringBuffer();
             scriptName  = line.substring("SCRIPT ".length());
             line = in.readLine();
@@ -321,8 +722,7 @@ public class TransformListener extends Thread
             line = in.readLine();
         }
 
-        if ((doDelete && !line.equals("ENDDELETE")) ||
-                (!doDelete && !line.equals("ENDLOAD"))) {
+        if (line == null || !line.equals("END" + command)) {
             out.append("ERROR ");
             out.append("Unexpected end of line reading script " + scriptName + "\n");
             out.println("OK");
@@ -331,8 +731,10 @@ public class TransformListener extends Thread
         }
 
         try {
-            if (doDelete) {
+            if (command.equals("DELETE")) {
                 retransformer.removeScripts(scripts, out);
+            } else if (command.equals("REPLACE")) {
+                retransformer.replaceScripts(scripts, scriptNames, out);
             } else {
                 retransformer.installScript(scripts, scriptNames, out);
             }
@@ -380,6 +782,20 @@ public class TransformListener extends Thread
         out.flush();
     }
 
+    private void listStatistics(BufferedReader in, PrintWriter out, boolean reset) throws Exception
+    {
+        retransformer.listStatistics(out, reset);
+        out.println("OK");
+        out.flush();
+    }
+
+    private void listAgentStatistics(BufferedReader in, PrintWriter out, boolean reset) throws Exception
+    {
+        retransformer.listAgentStatistics(out, reset);
+        out.println("OK");
+        out.flush();
+    }
+
     private void listSystemProperties(BufferedReader in, PrintWriter out) throws Exception
     {
         Properties sysProps = System.getProperties();
@@ -407,7 +823,7 @@ public class TransformListener extends Thread
         }
         
         final String endMarker = "ENDSETSYSPROPS";
-        String line = in.readLine().trim();
+        String line = readTrimmedLine(in);
         while (line != null && !line.equals(endMarker)) {
             try {
                 String[] nameValuePair = line.split("=", 2);
@@ -442,7 +858,7 @@ public class TransformListener extends Thread
                 out.append("\n");
                 e.printStackTrace(out);
             }
-            line = in.readLine().trim();
+            line = readTrimmedLine(in);
         }
         if (line == null || !line.equals(endMarker)) {
             out.append("ERROR\n");
@@ -32,17 +32,23 @@ import org.jboss.byteman.rule.exception.ParseException;
 import org.jboss.byteman.rule.exception.TypeException;
 import org.objectweb.asm.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
 import java.security.Policy;
 import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.File;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 /**
  * byte code transformer used to introduce byteman events into JBoss code
  */
@@ -66,7 +72,17 @@ public class Transformer implements ClassFileTransformer {
         scriptRepository = new ScriptRepository(skipOverrideRules);
         loadCache = new LoadCache(inst);
         helperManager = new HelperManager(inst);
+        statistics = new AgentStatistics();
+        String cacheDir = System.getProperty(TRANSFORM_CACHE_DIR);
+        transformCache = (cacheDir != null ? TransformCache.open(new File(cacheDir), computeTransformCacheLimit()) : null);
+        if (!"false".equals(System.getProperty(FLIGHT_RECORDER_EVENTS))) {
+            FlightRecorderSupport.initialize();
+        }
+
+        // check all the scripts for duplicate names then add them to the repository in one update
 
+        Map<String, RuleScript> bootScripts = new HashMap<String, RuleScript>();
+        List<RuleScript> toBeAdded = new ArrayList<RuleScript>();
         Iterator<String> scriptsIter = scriptTexts.iterator();
         Iterator<String> filesIter = scriptPaths.iterator();
         while (scriptsIter.hasNext()) {
@@ -75,9 +91,9 @@ public class Transformer implements ClassFileTransformer {
             List<RuleScript> ruleScripts = scriptRepository.processScripts(scriptText, file);
             for (RuleScript ruleScript : ruleScripts) {
                 String name = ruleScript.getName();
-                RuleScript previous = scriptRepository.scriptForRuleName(name);
+                RuleScript previous = bootScripts.put(name, ruleScript);
                 if (previous == null) {
-                    scriptRepository.addScript(ruleScript);
+                    toBeAdded.add(ruleScript);
                 } else {
                     StringBuffer buffer = new StringBuffer();
                     buffer.append("Transformer : duplicate script name ");
@@ -95,6 +111,7 @@ public class Transformer implements ClassFileTransformer {
                 }
             }
         }
+        scriptRepository.updateScripts(toBeAdded, Collections.<RuleScript>emptyList());
     }
 
     /**
@@ -134,7 +151,9 @@ public class Transformer implements ClassFileTransformer {
                     System.out.println("retransforming " + transformedArray[i].getName());
                 }
             }
+            long start = System.nanoTime();
             inst.retransformClasses(transformedArray);
+            statistics.recordRetransform(transformedArray.length, System.nanoTime() - start);
         }
     }
 
@@ -144,6 +163,37 @@ public class Transformer implements ClassFileTransformer {
         Policy.setPolicy(policy);
     }
 
+    /**
+     * the name under which the agent statistics are registered with the platform MBean server
+     */
+    public static final String AGENT_STATISTICS_MBEAN_NAME = "org.jboss.byteman:type=AgentStatistics";
+
+    /**
+     * the name under which the rule engine management bean is registered with the platform MBean server
+     */
+    public static final String RULE_ENGINE_MBEAN_NAME = "org.jboss.byteman:type=RuleEngine";
+
+    /**
+     * register the agent's management beans with the platform MBean server. this is only called when
+     * the agent is started with the jmx:true option so the management classes are not loaded otherwise.
+     * @throws Exception if the beans cannot be registered
+     */
+    public void registerMBeans() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(statistics, new ObjectName(AGENT_STATISTICS_MBEAN_NAME));
+        server.registerMBean(new RuleEngine(scriptRepository), new ObjectName(RULE_ENGINE_MBEAN_NAME));
+    }
+
+    /**
+     * return the counters which record the cost of transforming and retransforming classes
+     * @return the agent statistics
+     */
+    public AgentStatistics getStatistics()
+    {
+        return statistics;
+    }
+
     /**
      * The implementation of this method may transform the supplied class file and
      * return a new replacement class file.
@@ -208,11 +258,9 @@ public class Transformer implements ClassFileTransformer {
             throws IllegalClassFormatException
     {
         boolean enabled = true;
-        ClassLoader loader = originalLoader;
         try {
             enabled = Rule.disableTriggersInternal();
 
-            byte[] newBuffer = classfileBuffer;
             // we only transform certain classes -- we do allow bootstrap classes whose loader is null
             // but we exclude byteman classes and java.lang classes
             String internalName = TypeHelper.internalizeClass(className);
@@ -221,173 +269,220 @@ public class Transformer implements ClassFileTransformer {
                 return null;
             }
 
-            // we will need the super class name any outer class name and the name of the interfaces the class implements
+            AgentStatistics.TransformRecord record = statistics.beginTransform(internalName, classfileBuffer.length);
+            byte[] result = null;
+            try {
+                result = transformClass(originalLoader, internalName, classBeingRedefined, protectionDomain, classfileBuffer);
+                return result;
+            } finally {
+                statistics.endTransform(record, result);
+            }
+        } finally {
+            if (enabled) {
+                Rule.enableTriggersInternal();
+            }
+        }
+    }
 
-            ClassChecker checker = getClassChecker(newBuffer);// new ClassChecker(newBuffer);
+    /**
+     * check a class which is eligible for transformation against the installed rules and inject any
+     * rules which apply
+     * @param originalLoader the defining loader of the class or null for the bootstrap loader
+     * @param internalName the name of the class in dot format
+     * @param classBeingRedefined the class if this is a retransform otherwise null
+     * @param protectionDomain the protection domain of the class
+     * @param classfileBuffer the input byte buffer in class file format
+     * @return the transformed bytecode or null if no transform is performed
+     */
+    private byte[] transformClass(ClassLoader originalLoader,
+                                  String internalName,
+                                  Class<?> classBeingRedefined,
+                                  ProtectionDomain protectionDomain,
+                                  byte[] classfileBuffer)
+    {
+        ClassLoader loader = originalLoader;
+        byte[] newBuffer = classfileBuffer;
 
-            if (checker == null || checker.isInterface()) {
-                return null;
-            }
+        // take a snapshot of the installed rules so that every lookup made during this transform sees the same rule set
 
-            /*
-            if (checker.hasOuterClass()) {
-                // we don't transform inner classes for now
-                // TODO -- see if we can match and transform inner classes via the outer class
-                return null;
-            }
-            */
+        ScriptRepository.Snapshot snapshot = scriptRepository.getSnapshot();
 
-            // TODO-- reconsider this as it is a bit dodgy as far as security is concerned
-        
-            if (loader == null) {
-                loader = ClassLoader.getSystemClassLoader();
+        // we will need the super class name any outer class name and the name of the interfaces the class implements
+
+        ClassChecker checker = getClassChecker(newBuffer);// new ClassChecker(newBuffer);
+
+        if (checker == null || checker.isInterface()) {
+            return null;
+        }
+
+        /*
+        if (checker.hasOuterClass()) {
+            // we don't transform inner classes for now
+            // TODO -- see if we can match and transform inner classes via the outer class
+            return null;
+        }
+        */
+
+        // TODO-- reconsider this as it is a bit dodgy as far as security is concerned
+    
+        if (loader == null) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+
+        // if rules were woven into this class at build time then bind them to the woven trigger code
+
+        if (!wovenClasses.isEmpty()) {
+            WovenClassRegistry.WovenClass wovenClass = wovenClasses.get(internalName);
+            if (wovenClass != null) {
+                newBuffer = transformWoven(wovenClass, newBuffer, internalName, loader, classBeingRedefined);
             }
+        }
 
-            // if we need to traverse the interfaces then we have a DAG to deal with so
-            // we had better find a way to avoid doing things twice
+        // if we need to traverse the interfaces then we have a DAG to deal with so
+        // we had better find a way to avoid doing things twice
 
-            LinkedList<String> toVisit = null;
-            HashSet<String> visited = null;
+        LinkedList<String> toVisit = null;
+        HashSet<String> visited = null;
 
-            // ok, we need to check whether there are any class scripts associated with this class and if so
-            // we will consider transforming the byte code
+        // ok, we need to check whether there are any class scripts associated with this class and if so
+        // we will consider transforming the byte code
 
-            // TODO -- there are almost certainly concurrency issues to deal with here if rules are being loaded/unloaded
+        // TODO -- there are almost certainly concurrency issues to deal with here if rules are being loaded/unloaded
 
-            newBuffer = tryTransform(newBuffer, internalName, loader, internalName, false);
+        newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, internalName, false);
 
-            int dotIdx = internalName.lastIndexOf('.');
+        int dotIdx = internalName.lastIndexOf('.');
 
-            if (dotIdx > 0) {
-                newBuffer = tryTransform(newBuffer, internalName, loader, internalName.substring(dotIdx + 1), false);
-            }
+        if (dotIdx > 0) {
+            newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, internalName.substring(dotIdx + 1), false);
+        }
 
-            if (scriptRepository.checkInterfaces()) {
-                // now we need to do the same for any interface scripts
-                // n.b. resist the temptation to call classBeingRedefined.getInterfaces() as this will
-                // cause the class to be resolved, losing any changes we install
+        if (snapshot.checkAnnotations()) {
+            // rules which target annotations are found by looking up each annotation in the bytecode
+            newBuffer = tryTransformAnnotations(snapshot, newBuffer, internalName, loader, checker);
+        }
 
-                // we need to check the transitive closure of the binary links
-                // Class implements Interface and Interface extends Interface for this class
-                // which in general is a DAG.
+        if (snapshot.checkInterfaces()) {
+            // now we need to do the same for any interface scripts
+            // n.b. resist the temptation to call classBeingRedefined.getInterfaces() as this will
+            // cause the class to be resolved, losing any changes we install
 
-                toVisit = new LinkedList<String>();
-                visited = new HashSet<String>();
+            // we need to check the transitive closure of the binary links
+            // Class implements Interface and Interface extends Interface for this class
+            // which in general is a DAG.
 
-                // we start with the original list of implemented interfaces
+            toVisit = new LinkedList<String>();
+            visited = new HashSet<String>();
 
-                int interfaceCount = checker.getInterfaceCount();
-                for (int i = 0; i < interfaceCount; i++) {
-                    String interfaceName = checker.getInterface(i);
-                    toVisit.add(interfaceName);
-                }
+            // we start with the original list of implemented interfaces
 
-                // ok now check each interface in turn while pushing its super interfaces
-                // until we no longer have any new interfaces to check
-
-                while (!toVisit.isEmpty()) {
-                    String interfaceName = toVisit.pop();
-                    String internalInterfaceName = TypeHelper.internalizeClass(interfaceName);
-                    if (!visited.contains(interfaceName)) {
-                        // avoid visiting  this interface again
-                        visited.add(interfaceName);
-                        // now see if we have any rules for this interface
-                        newBuffer = tryTransform(newBuffer, internalName, loader, internalInterfaceName, true);
-                        dotIdx = internalInterfaceName.lastIndexOf('.');
-                        if (dotIdx >= 0) {
-                            newBuffer = tryTransform(newBuffer, internalName, loader, internalInterfaceName.substring(dotIdx + 1), true);
-                        }
-                        // check the extends list of this interface for new interfaces to consider
-                        ClassChecker newChecker = getClassChecker(interfaceName, originalLoader);
-                        if (newChecker != null) {
-                            interfaceCount = newChecker.getInterfaceCount();
-                            for (int i = 0; i < interfaceCount; i++) {
-                                interfaceName = newChecker.getInterface(i);
-                                toVisit.add(interfaceName);
-                            }
+            int interfaceCount = checker.getInterfaceCount();
+            for (int i = 0; i < interfaceCount; i++) {
+                String interfaceName = checker.getInterface(i);
+                toVisit.add(interfaceName);
+            }
+
+            // ok now check each interface in turn while pushing its super interfaces
+            // until we no longer have any new interfaces to check
+
+            while (!toVisit.isEmpty()) {
+                String interfaceName = toVisit.pop();
+                String internalInterfaceName = TypeHelper.internalizeClass(interfaceName);
+                if (!visited.contains(interfaceName)) {
+                    // avoid visiting  this interface again
+                    visited.add(interfaceName);
+                    // now see if we have any rules for this interface
+                    newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, internalInterfaceName, true);
+                    dotIdx = internalInterfaceName.lastIndexOf('.');
+                    if (dotIdx >= 0) {
+                        newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, internalInterfaceName.substring(dotIdx + 1), true);
+                    }
+                    // check the extends list of this interface for new interfaces to consider
+                    ClassChecker newChecker = getClassChecker(interfaceName, originalLoader);
+                    if (newChecker != null) {
+                        interfaceCount = newChecker.getInterfaceCount();
+                        for (int i = 0; i < interfaceCount; i++) {
+                            interfaceName = newChecker.getInterface(i);
+                            toVisit.add(interfaceName);
                         }
                     }
                 }
             }
+        }
 
-            // checking supers is expensive so we obey the switch which disables it
-            
-            if (!skipOverrideRules()) {
-                // ok, now check the superclass for this class and so on
+        // checking supers is expensive so we obey the switch which disables it
+        
+        if (!snapshot.skipOverrideRules()) {
+            // ok, now check the superclass for this class and so on
 
-                String superName = checker.getSuper();
+            String superName = checker.getSuper();
 
-                while (superName != null) {
-                    // we need to check the super class structure
-                    // n.b. we use the original loader here because we don't want to search the system loader
-                    // when we have a class in the bootstrap loader
-                    checker = getClassChecker(superName, originalLoader);
+            while (superName != null) {
+                // we need to check the super class structure
+                // n.b. we use the original loader here because we don't want to search the system loader
+                // when we have a class in the bootstrap loader
+                checker = getClassChecker(superName, originalLoader);
 
-                    if (checker == null || checker.hasOuterClass()) {
-                        // we don't transform inner classes for now
-                        // TODO -- see if we can match and transform inner classes via the outer class
-                        break;
-                    }
+                if (checker == null || checker.hasOuterClass()) {
+                    // we don't transform inner classes for now
+                    // TODO -- see if we can match and transform inner classes via the outer class
+                    break;
+                }
 
-                    newBuffer = tryTransform(newBuffer, internalName, loader, superName, false, true);
-                    dotIdx = superName.lastIndexOf('.');
-                    if (dotIdx > 0) {
-                        newBuffer = tryTransform(newBuffer, internalName, loader, superName.substring(dotIdx + 1), false, true);
-                    }
+                newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, superName, false, true);
+                dotIdx = superName.lastIndexOf('.');
+                if (dotIdx > 0) {
+                    newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, superName.substring(dotIdx + 1), false, true);
+                }
 
-                    if (scriptRepository.checkInterfaces()) {
-                        // we need to do another DAG visit but only for interfaces not already considered
+                if (snapshot.checkInterfaces()) {
+                    // we need to do another DAG visit but only for interfaces not already considered
 
-                        int interfaceCount = checker.getInterfaceCount();
-                        for (int i = 0; i < interfaceCount; i++) {
-                            String interfaceName = checker.getInterface(i);
-                            toVisit.add(interfaceName);
-                        }
-                        
-                        // ok now check each interface in turn while pushing its super interfaces
-                        // until we no longer have any new interfaces to check
-
-                        while(!toVisit.isEmpty()) {
-                            String interfaceName = toVisit.pop();
-                            String internalInterfaceName = TypeHelper.internalizeClass(interfaceName);
-                            if (!visited.contains(interfaceName)) {
-                                // avoid visiting  this interface again
-                                visited.add(interfaceName);
-                                // now see if we have any rules for this interface
-                                newBuffer = tryTransform(newBuffer, internalName, loader, internalInterfaceName, true, true);
-                                dotIdx = interfaceName.lastIndexOf('.');
-                                if (dotIdx >= 0) {
-                                    newBuffer = tryTransform(newBuffer, internalName, loader, internalInterfaceName.substring(dotIdx + 1), true, true);
-                                }
-                                // check the extends list of this interface for new interfaces to consider
-                                ClassChecker newChecker = getClassChecker(interfaceName, originalLoader);
-                                if (newChecker != null) {
-                                    interfaceCount = newChecker.getInterfaceCount();
-                                    for (int i = 0; i < interfaceCount; i++) {
-                                        interfaceName = newChecker.getInterface(i);
-                                        toVisit.add(interfaceName);
-                                    }
+                    int interfaceCount = checker.getInterfaceCount();
+                    for (int i = 0; i < interfaceCount; i++) {
+                        String interfaceName = checker.getInterface(i);
+                        toVisit.add(interfaceName);
+                    }
+                    
+                    // ok now check each interface in turn while pushing its super interfaces
+                    // until we no longer have any new interfaces to check
+
+                    while(!toVisit.isEmpty()) {
+                        String interfaceName = toVisit.pop();
+                        String internalInterfaceName = TypeHelper.internalizeClass(interfaceName);
+                        if (!visited.contains(interfaceName)) {
+                            // avoid visiting  this interface again
+                            visited.add(interfaceName);
+                            // now see if we have any rules for this interface
+                            newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, internalInterfaceName, true, true);
+                            dotIdx = interfaceName.lastIndexOf('.');
+                            if (dotIdx >= 0) {
+                                newBuffer = tryTransform(snapshot, newBuffer, internalName, loader, internalInterfaceName.substring(dotIdx + 1), true, true);
+                            }
+                            // check the extends list of this interface for new interfaces to consider
+                            ClassChecker newChecker = getClassChecker(interfaceName, originalLoader);
+                            if (newChecker != null) {
+                                interfaceCount = newChecker.getInterfaceCount();
+                                for (int i = 0; i < interfaceCount; i++) {
+                                    interfaceName = newChecker.getInterface(i);
+                                    toVisit.add(interfaceName);
                                 }
                             }
                         }
                     }
-                    // move on to the next super
-                    superName = checker.getSuper();
                 }
+                // move on to the next super
+                superName = checker.getSuper();
             }
+        }
 
-            if (newBuffer != classfileBuffer) {
-                // see if we need to dump the transformed bytecode for checking
-                maybeDumpClass(internalName, newBuffer);
-                newBuffer = maybeVerifyTransformedBytes(originalLoader, internalName, protectionDomain, newBuffer);
-                return newBuffer;
-            } else {
-                return null;
-            }
-        } finally {
-            if (enabled) {
-                Rule.enableTriggersInternal();
-            }
+        if (newBuffer != classfileBuffer) {
+            // see if we need to dump the transformed bytecode for checking
+            maybeDumpClass(internalName, newBuffer);
+            newBuffer = maybeVerifyTransformedBytes(originalLoader, internalName, protectionDomain, newBuffer);
+            return newBuffer;
+        } else {
+            return null;
         }
     }
 
@@ -500,6 +595,53 @@ public class Transformer implements ClassFileTransformer {
      */
     public static final String DISALLOW_DOWNCAST = BYTEMAN_PACKAGE_PREFIX + "disallow.downcast";
 
+    /**
+     * system property set (to any value) in order to type check and compile rules on a background thread as
+     * soon as their trigger code has been injected rather than when they are first triggered
+     */
+    public static final String BACKGROUND_COMPILE = BYTEMAN_PACKAGE_PREFIX + "background.compile";
+
+    /**
+     * system property which limits the number of classes passed to the JVM in each call to retransformClasses
+     * when rules are loaded or unloaded. the default is to pass all affected classes in a single call.
+     */
+    public static final String RETRANSFORM_CHUNK_SIZE = BYTEMAN_PACKAGE_PREFIX + "retransform.chunk.size";
+
+    /**
+     * system property which specifies a target time in milliseconds for each call to retransformClasses. when
+     * this is set the number of classes retransformed in each call is reduced until calls complete within the
+     * target and, in asynchronous mode, the retransforming thread pauses for this long between calls.
+     */
+    public static final String RETRANSFORM_PAUSE_MILLIS = BYTEMAN_PACKAGE_PREFIX + "retransform.pause.millis";
+
+    /**
+     * system property set (to any value) in order to retransform classes affected by a rule update on a
+     * background thread, allowing the agent listener to return before the update has been fully applied
+     */
+    public static final String RETRANSFORM_ASYNC = BYTEMAN_PACKAGE_PREFIX + "retransform.async";
+
+    /**
+     * system property identifying a directory in which to cache transformed bytecode so that it can be
+     * reused when the same rules are applied to the same classes in a later run. this is only read when
+     * the agent starts.
+     */
+    public static final String TRANSFORM_CACHE_DIR = BYTEMAN_PACKAGE_PREFIX + "transform.cache.directory";
+
+    /**
+     * system property which limits the total size in megabytes of the segments held in the transform cache
+     * directory. the oldest segments are deleted when the cache is opened if the limit is exceeded and no
+     * more transforms are saved once it is reached. the default is 64. this is only read when the agent starts.
+     */
+    public static final String TRANSFORM_CACHE_LIMIT = BYTEMAN_PACKAGE_PREFIX + "transform.cache.limit";
+
+    private static final long DEFAULT_TRANSFORM_CACHE_LIMIT = 64L * 1024 * 1024;
+
+    /**
+     * system property which can be set to false to stop the agent emitting Java Flight Recorder events
+     * when a recording is running. this is only read when the agent starts.
+     */
+    public static final String FLIGHT_RECORDER_EVENTS = BYTEMAN_PACKAGE_PREFIX + "jfr.events";
+
     /**
      * disable triggering of rules inside the current thread
      * @param isUser true if this was called by rule code false if called internally by Byteman
@@ -664,6 +806,62 @@ public class Transformer implements ClassFileTransformer {
         return disallowDowncast;
     }
 
+    /**
+     * check whether rules are type checked and compiled in the background ahead of their first firing
+     * @return true if background compilation is enabled otherwise false
+     */
+    public static boolean isBackgroundCompile()
+    {
+        if (allowConfigUpdate()) {
+            synchronized (configLock) {
+                return backgroundCompile;
+            }
+        }
+        return backgroundCompile;
+    }
+
+    /**
+     * return the maximum number of classes to be retransformed in each call to retransformClasses
+     * @return the maximum chunk size or 0 if classes should all be retransformed in one call
+     */
+    public static int getRetransformChunkSize()
+    {
+        if (allowConfigUpdate()) {
+            synchronized (configLock) {
+                return retransformChunkSize;
+            }
+        }
+        return retransformChunkSize;
+    }
+
+    /**
+     * return the target time for each call to retransformClasses
+     * @return the target time in milliseconds or 0 if there is no target
+     */
+    public static long getRetransformPauseMillis()
+    {
+        if (allowConfigUpdate()) {
+            synchronized (configLock) {
+                return retransformPauseMillis;
+            }
+        }
+        return retransformPauseMillis;
+    }
+
+    /**
+     * check whether classes affected by rule updates are retransformed in the background
+     * @return true if asynchronous retransformation is enabled otherwise false
+     */
+    public static boolean isRetransformAsync()
+    {
+        if (allowConfigUpdate()) {
+            synchronized (configLock) {
+                return retransformAsync;
+            }
+        }
+        return retransformAsync;
+    }
+
     /**
      * check whether compilation of rules is enabled or disabled
      * @return true if compilation of rules is enabled otherwise false
@@ -746,6 +944,141 @@ public class Transformer implements ClassFileTransformer {
         return transformContext.transform(targetClassBytes);
     }
 
+    /**
+     * install the rules recorded in a registry of classes woven at build time. woven scripts are not added
+     * to the script repository so they are never injected into classes as they are loaded. instead, when a
+     * woven class is loaded the rules are bound to the trigger code it already contains.
+     *
+     * the keys embedded in woven trigger code are derived from the rule name so rule names must be unique
+     * across all registries, as must the woven classes. a registry which reuses a rule name or class from
+     * a previously added registry is rejected without installing any of its rules.
+     * @param registryBytes the contents of the registry
+     * @param path the file or resource the registry was read from
+     * @throws Exception if the registry or one of its scripts is in error or it clashes with a previously
+     * added registry
+     */
+    public void addWovenRules(byte[] registryBytes, String path) throws Exception
+    {
+        WovenClassRegistry registry = WovenClassRegistry.read(new ByteArrayInputStream(registryBytes));
+        // computing a digest now ensures the digest classes are not first loaded from inside a transform
+        WovenClassRegistry.digest(registryBytes);
+        ScriptRepository repository = new ScriptRepository(skipOverrideRules);
+        Map<String, RuleScript> scripts = new HashMap<String, RuleScript>();
+        List<String> texts = registry.getScriptTexts();
+        List<String> files = registry.getScriptFiles();
+        for (int i = 0; i < texts.size(); i++) {
+            for (RuleScript ruleScript : repository.processScripts(texts.get(i), files.get(i))) {
+                String name = ruleScript.getName();
+                if (wovenScripts.containsKey(name) || scripts.put(name, ruleScript) != null) {
+                    throw new Exception("Transformer : duplicate woven rule name " + name + " in registry " + path);
+                }
+            }
+        }
+        for (WovenClassRegistry.WovenClass wovenClass : registry.getClasses()) {
+            if (wovenClasses.containsKey(wovenClass.getClassName())) {
+                throw new Exception("Transformer : woven class " + wovenClass.getClassName() + " in registry " + path + " already woven by another registry");
+            }
+            for (WovenClassRegistry.Step step : wovenClass.getSteps()) {
+                if (!scripts.containsKey(step.getRuleName())) {
+                    throw new Exception("Transformer : woven rule " + step.getRuleName() + " not found in registry " + path);
+                }
+            }
+        }
+
+        // ok, the registry is valid so install it
+
+        wovenScripts.putAll(scripts);
+        for (WovenClassRegistry.WovenClass wovenClass : registry.getClasses()) {
+            for (WovenClassRegistry.Step step : wovenClass.getSteps()) {
+                // make sure no other rule is given a key which is embedded in the woven trigger code
+                Rule.reserveKeys(step.getRuleKeys());
+            }
+            wovenClasses.put(wovenClass.getClassName(), wovenClass);
+        }
+    }
+
+    /**
+     * bind the rules woven into a class to its trigger code
+     * @param wovenClass the registry details for the class
+     * @param buffer the bytecode of the class being loaded
+     * @param className the name of the class being loaded
+     * @param loader the loader of the class being loaded
+     * @param classBeingRedefined the class if it is being retransformed otherwise null
+     * @return the bytecode to be installed
+     */
+    private byte[] transformWoven(WovenClassRegistry.WovenClass wovenClass, byte[] buffer, String className, ClassLoader loader, Class<?> classBeingRedefined)
+    {
+        String digest = WovenClassRegistry.digest(buffer);
+        if (digest.equals(wovenClass.getWovenDigest())) {
+            // if the class is being retransformed the rules bound when it was loaded are still in place
+            if (classBeingRedefined == null) {
+                for (WovenClassRegistry.Step step : wovenClass.getSteps()) {
+                    RuleScript ruleScript = wovenScripts.get(step.getRuleName());
+                    TransformContext transformContext = new TransformContext(this, ruleScript, className, loader, helperManager);
+                    transformContext.bindWoven(step.getTriggers());
+                }
+            }
+        } else if (digest.equals(wovenClass.getOriginalDigest())) {
+            // the class was packaged without being woven so inject the rules now
+            for (WovenClassRegistry.Step step : wovenClass.getSteps()) {
+                RuleScript ruleScript = wovenScripts.get(step.getRuleName());
+                buffer = transform(ruleScript, loader, className, buffer);
+            }
+        } else if (isVerbose()) {
+            System.out.println("org.jboss.byteman.agent.Transformer : class " + className + " does not match the woven rule registry so woven rules will not be installed");
+        }
+        return buffer;
+    }
+
+    /**
+     * return the cache used to save and reuse transformed bytecode
+     * @return the cache or null if caching is not enabled
+     */
+    public TransformCache getTransformCache()
+    {
+        return transformCache;
+    }
+
+    /**
+     * release resources held by the transformer. this is called from a shutdown hook installed by the
+     * agent so it must not rely on any other agent thread still running
+     */
+    public void shutdown()
+    {
+        synchronized (this) {
+            if (backgroundCompiler != null) {
+                backgroundCompiler.shutdown();
+            }
+        }
+        if (transformCache != null) {
+            transformCache.close();
+        }
+    }
+
+    /**
+     * called when a rule has been successfully injected into a trigger method. if background compilation is
+     * enabled the rule is queued so that it can be type checked and compiled before it is first triggered.
+     * @param rule the injected rule
+     */
+    public void notifyInjected(Rule rule)
+    {
+        if (isBackgroundCompile()) {
+            getBackgroundCompiler().submit(rule);
+        }
+    }
+
+    /**
+     * return the background compiler, creating it if needed
+     * @return the background compiler
+     */
+    private synchronized BackgroundCompiler getBackgroundCompiler()
+    {
+        if (backgroundCompiler == null) {
+            backgroundCompiler = new BackgroundCompiler(loadCache);
+        }
+        return backgroundCompiler;
+    }
+
     /**
      * check whether a class should not be considered for transformation
      * @param clazz the class to check
@@ -780,20 +1113,77 @@ public class Transformer implements ClassFileTransformer {
         return false;
     }
 
-    private byte[] tryTransform(byte[] buffer, String name, ClassLoader loader, String key, boolean isInterface)
+    private byte[] tryTransform(ScriptRepository.Snapshot snapshot, byte[] buffer, String name, ClassLoader loader, String key, boolean isInterface)
     {
-        return tryTransform(buffer, name, loader, key, isInterface, false);
+        return tryTransform(snapshot, buffer, name, loader, key, isInterface, false);
     }
 
-    private byte[] tryTransform(byte[] buffer, String name, ClassLoader loader, String key, boolean isInterface, boolean isOverride)
+    private byte[] tryTransform(ScriptRepository.Snapshot snapshot, byte[] buffer, String name, ClassLoader loader, String key, boolean isInterface, boolean isOverride)
     {
         List<RuleScript> ruleScripts;
 
         if (isInterface) {
-            ruleScripts = scriptRepository.scriptsForInterfaceName(key);
+            ruleScripts = snapshot.scriptsForInterfaceName(key);
         } else {
-            ruleScripts = scriptRepository.scriptsForClassName(key);
+            ruleScripts = snapshot.scriptsForClassName(key);
         }
+
+        return tryTransform(buffer, name, loader, ruleScripts, isOverride);
+    }
+
+    /**
+     * apply any rules which target an annotation attached to the class being transformed or to one
+     * of its methods
+     * @param snapshot the snapshot of the installed rules
+     * @param buffer the current bytecode
+     * @param name the name of the class being transformed
+     * @param loader the loader of the class being transformed
+     * @param checker a checker for the bytecode of the class being transformed
+     * @return the transformed bytecode or the original buffer if no rules applied
+     */
+    private byte[] tryTransformAnnotations(ScriptRepository.Snapshot snapshot, byte[] buffer, String name, ClassLoader loader, ClassChecker checker)
+    {
+        // a script may be found under more than one annotation so make sure we only apply it once
+        List<RuleScript> ruleScripts = null;
+
+        int annotationCount = checker.getAnnotationCount();
+        for (int i = 0; i < annotationCount; i++) {
+            List<RuleScript> scripts = snapshot.scriptsForClassAnnotation(checker.getAnnotation(i));
+            if (scripts != null) {
+                for (RuleScript script : scripts) {
+                    if (ruleScripts == null) {
+                        ruleScripts = new LinkedList<RuleScript>();
+                    }
+                    if (!ruleScripts.contains(script)) {
+                        ruleScripts.add(script);
+                    }
+                }
+            }
+        }
+
+        int methodAnnotationCount = checker.getMethodAnnotationCount();
+        for (int i = 0; i < methodAnnotationCount; i++) {
+            List<RuleScript> scripts = snapshot.scriptsForMethodAnnotation(checker.getMethodAnnotation(i));
+            if (scripts != null) {
+                for (RuleScript script : scripts) {
+                    // these scripts name their target class using a pattern
+                    if (ClassPatternIndex.matchesTarget(script.getTargetClass(), name)) {
+                        if (ruleScripts == null) {
+                            ruleScripts = new LinkedList<RuleScript>();
+                        }
+                        if (!ruleScripts.contains(script)) {
+                            ruleScripts.add(script);
+                        }
+                    }
+                }
+            }
+        }
+
+        return tryTransform(buffer, name, loader, ruleScripts, false);
+    }
+
+    private byte[] tryTransform(byte[] buffer, String name, ClassLoader loader, List<RuleScript> ruleScripts, boolean isOverride)
+    {
         byte[] newBuffer = buffer;
 
         if (ruleScripts != null) {
@@ -807,12 +1197,16 @@ public class Transformer implements ClassFileTransformer {
                     // we only transform via isOverride rules if isOverride is true
                     // we tarsnform via any matchign rules if isOverride is false
                     if (!isOverride || ruleScript.isOverride()) {
-                        // only do the transform if the script has not been deleted
-                        synchronized (ruleScript) {
-                            if (!ruleScript.isDeleted()) {
-                                maybeDumpClassIntermediate(name, newBuffer);
-                                newBuffer = transform(ruleScript, loader, name, newBuffer);
-                            }
+                        // only do the transform if the script has not been deleted. we don't lock the
+                        // script while we transform so that other threads can use it to transform other
+                        // classes in parallel. the transform context rechecks for deletion under the
+                        // script lock when it records the transform and discards the transformed
+                        // bytecode if the script was deleted in the meantime
+                        if (!ruleScript.isDeleted()) {
+                            maybeDumpClassIntermediate(name, newBuffer);
+                            byte[] transformed = transform(ruleScript, loader, name, newBuffer);
+                            statistics.recordRuleAttempt(transformed != newBuffer);
+                            newBuffer = transformed;
                         }
                     }
                 } catch (Throwable th) {
@@ -915,6 +1309,8 @@ public class Transformer implements ClassFileTransformer {
             return new org.jboss.byteman.agent.check.LoadedClassChecker(clazz);
         }
 
+        long start = System.nanoTime();
+
         // ok, instead try loading the bytecode as a resource - user-defined loaders may not support this but
         // at least the JVM system and boot loaders should
 
@@ -937,6 +1333,7 @@ public class Transformer implements ClassFileTransformer {
                     }
                     count += read;
                 }
+                statistics.recordCheckerLoad(System.nanoTime() - start);
                 return new org.jboss.byteman.agent.check.BytecodeChecker(bytecode);
             } else {
                 // throw new IOException("unable to load bytecode for for class " + name);
@@ -1059,6 +1456,32 @@ public class Transformer implements ClassFileTransformer {
      */
     protected final HelperManager helperManager;
 
+    /**
+     * counters recording the cost of transforming and retransforming classes
+     */
+    protected final AgentStatistics statistics;
+
+    /**
+     * the compiler used to check and compile injected rules in the background when this is enabled.
+     * this is only created when it is first needed
+     */
+    private BackgroundCompiler backgroundCompiler;
+
+    /**
+     * cache of transformed bytecode or null if caching is not enabled
+     */
+    private final TransformCache transformCache;
+
+    /**
+     * registry details for classes into which rules were woven at build time indexed by class name
+     */
+    private final Map<String, WovenClassRegistry.WovenClass> wovenClasses = new ConcurrentHashMap<String, WovenClassRegistry.WovenClass>();
+
+    /**
+     * the scripts for rules woven into classes at build time indexed by rule name
+     */
+    private final Map<String, RuleScript> wovenScripts = new ConcurrentHashMap<String, RuleScript>();
+
     /* configuration values defined via system property settings */
 
     /**
@@ -1122,6 +1545,26 @@ public class Transformer implements ClassFileTransformer {
      */
     private static boolean disallowDowncast = computeDisallowDowncast();
 
+    /**
+     * switch which determines whether rules are type checked and compiled in the background
+     */
+    private static boolean backgroundCompile = computeBackgroundCompile();
+
+    /**
+     * the maximum number of classes passed in each call to retransformClasses or 0 for no limit
+     */
+    private static int retransformChunkSize = computeRetransformChunkSize();
+
+    /**
+     * the target time in milliseconds for each call to retransformClasses or 0 for no target
+     */
+    private static long retransformPauseMillis = computeRetransformPauseMillis();
+
+    /**
+     * switch which determines whether classes affected by rule updates are retransformed in the background
+     */
+    private static boolean retransformAsync = computeRetransformAsync();
+
     /**
      * master switch which determines whether or not config values can be updated
      */
@@ -1205,6 +1648,50 @@ public class Transformer implements ClassFileTransformer {
         return (System.getProperty(DISALLOW_DOWNCAST) != null);
     }
 
+    private static boolean computeBackgroundCompile() {
+        return (System.getProperty(BACKGROUND_COMPILE) != null);
+    }
+
+    private static long computeTransformCacheLimit() {
+        String value = System.getProperty(TRANSFORM_CACHE_LIMIT);
+        if (value != null) {
+            try {
+                return Math.max(Long.parseLong(value.trim()), 0L) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                System.err.println("org.jboss.byteman.agent.Transformer : invalid value for " + TRANSFORM_CACHE_LIMIT + " : " + value);
+            }
+        }
+        return DEFAULT_TRANSFORM_CACHE_LIMIT;
+    }
+
+    private static int computeRetransformChunkSize() {
+        String value = System.getProperty(RETRANSFORM_CHUNK_SIZE);
+        if (value != null) {
+            try {
+                return Math.max(Integer.parseInt(value.trim()), 0);
+            } catch (NumberFormatException e) {
+                System.err.println("org.jboss.byteman.agent.Transformer : invalid value for " + RETRANSFORM_CHUNK_SIZE + " : " + value);
+            }
+        }
+        return 0;
+    }
+
+    private static long computeRetransformPauseMillis() {
+        String value = System.getProperty(RETRANSFORM_PAUSE_MILLIS);
+        if (value != null) {
+            try {
+                return Math.max(Long.parseLong(value.trim()), 0L);
+            } catch (NumberFormatException e) {
+                System.err.println("org.jboss.byteman.agent.Transformer : invalid value for " + RETRANSFORM_PAUSE_MILLIS + " : " + value);
+            }
+        }
+        return 0L;
+    }
+
+    private static boolean computeRetransformAsync() {
+        return (System.getProperty(RETRANSFORM_ASYNC) != null);
+    }
+
     private void checkConfiguration(String property)
     {
         // n.b. this needs to be kept up to date with each new config setting that is added
@@ -1302,6 +1789,34 @@ public class Transformer implements ClassFileTransformer {
                 disallowDowncast = value;
             }
         }
+
+        if (BACKGROUND_COMPILE.equals(property)) {
+            boolean value = computeBackgroundCompile();
+            synchronized (configLock) {
+                backgroundCompile = value;
+            }
+        }
+
+        if (RETRANSFORM_CHUNK_SIZE.equals(property)) {
+            int value = computeRetransformChunkSize();
+            synchronized (configLock) {
+                retransformChunkSize = value;
+            }
+        }
+
+        if (RETRANSFORM_PAUSE_MILLIS.equals(property)) {
+            long value = computeRetransformPauseMillis();
+            synchronized (configLock) {
+                retransformPauseMillis = value;
+            }
+        }
+
+        if (RETRANSFORM_ASYNC.equals(property)) {
+            boolean value = computeRetransformAsync();
+            synchronized (configLock) {
+                retransformAsync = value;
+            }
+        }
     }
 
     /* helper methods to dump class files */
@@ -0,0 +1,478 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a record of the rules which were woven into application classes at build time. for each woven class the
+ * registry records a digest of the class bytecode before and after weaving and, for each rule script which
+ * was injected, the trigger methods, the rule keys embedded in the woven trigger code and the bindings the
+ * trigger code supplies. the agent uses this to bind rules to the woven trigger code when the class is loaded
+ * without having to parse or transform its bytecode. the registry also records the text of the woven scripts.
+ */
+public class WovenClassRegistry
+{
+    /**
+     * the resource name under which the registry is saved by default
+     */
+    public static final String DEFAULT_RESOURCE = "META-INF/byteman/woven.rules";
+
+    public WovenClassRegistry()
+    {
+        scriptTexts = new ArrayList<String>();
+        scriptFiles = new ArrayList<String>();
+        classes = new LinkedHashMap<String, WovenClass>();
+    }
+
+    /**
+     * record a script whose rules may have been woven into classes in the registry
+     * @param text the script text
+     * @param file the file the script was read from
+     */
+    public void addScript(String text, String file)
+    {
+        scriptTexts.add(text);
+        scriptFiles.add(file);
+    }
+
+    public List<String> getScriptTexts()
+    {
+        return scriptTexts;
+    }
+
+    public List<String> getScriptFiles()
+    {
+        return scriptFiles;
+    }
+
+    /**
+     * record a woven class, replacing any previous record for a class with the same name
+     * @param wovenClass the woven class details
+     */
+    public void addClass(WovenClass wovenClass)
+    {
+        classes.put(wovenClass.getClassName(), wovenClass);
+    }
+
+    /**
+     * find the record for a woven class
+     * @param className the class name in external format
+     * @return the record or null if the class was not woven
+     */
+    public WovenClass lookup(String className)
+    {
+        return classes.get(className);
+    }
+
+    public Collection<WovenClass> getClasses()
+    {
+        return classes.values();
+    }
+
+    /**
+     * compute the digest used to identify woven and unwoven class bytecode
+     * @param bytes the bytecode
+     * @return a hex encoded digest
+     */
+    public static String digest(byte[] bytes)
+    {
+        try {
+            byte[] hash = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(bytes);
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (int i = 0; i < hash.length; i++) {
+                int b = hash[i] & 0xff;
+                builder.append(HEX_DIGITS[b >> 4]);
+                builder.append(HEX_DIGITS[b & 0xf]);
+            }
+            return builder.toString();
+        } catch (Exception e) {
+            // SHA-1 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * read a registry previously saved by calling write
+     * @param stream the stream to read from
+     * @return the registry
+     * @throws IOException if the stream cannot be read or does not contain a registry
+     */
+    public static WovenClassRegistry read(InputStream stream) throws IOException
+    {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("WovenClassRegistry.read : invalid woven rule registry");
+        }
+        WovenClassRegistry registry = new WovenClassRegistry();
+        int scriptCount = in.readInt();
+        for (int i = 0; i < scriptCount; i++) {
+            String text = readString(in);
+            String file = readString(in);
+            registry.addScript(text, file);
+        }
+        int classCount = in.readInt();
+        for (int i = 0; i < classCount; i++) {
+            String className = readString(in);
+            String originalDigest = readString(in);
+            String wovenDigest = readString(in);
+            int stepCount = in.readInt();
+            List<Step> steps = new ArrayList<Step>(stepCount);
+            for (int j = 0; j < stepCount; j++) {
+                String ruleName = readString(in);
+                int triggerCount = in.readInt();
+                List<Trigger> triggers = new ArrayList<Trigger>(triggerCount);
+                for (int k = 0; k < triggerCount; k++) {
+                    String methodName = readString(in);
+                    String descriptor = readString(in);
+                    int access = in.readInt();
+                    String[] exceptions = null;
+                    int exceptionCount = in.readInt();
+                    if (exceptionCount >= 0) {
+                        exceptions = new String[exceptionCount];
+                        for (int l = 0; l < exceptionCount; l++) {
+                            exceptions[l] = readString(in);
+                        }
+                    }
+                    String ruleKey = readString(in);
+                    int variableCount = in.readInt();
+                    List<Variable> variables = new ArrayList<Variable>(variableCount);
+                    for (int l = 0; l < variableCount; l++) {
+                        String name = readString(in);
+                        String variableDescriptor = readOptionalString(in);
+                        int localIndex = in.readInt();
+                        int callArrayIndex = in.readInt();
+                        String alias = readOptionalString(in);
+                        variables.add(new Variable(name, variableDescriptor, localIndex, callArrayIndex, alias));
+                    }
+                    triggers.add(new Trigger(methodName, descriptor, access, exceptions, ruleKey, variables));
+                }
+                steps.add(new Step(ruleName, triggers));
+            }
+            registry.addClass(new WovenClass(className, originalDigest, wovenDigest, steps));
+        }
+        return registry;
+    }
+
+    /**
+     * save the registry
+     * @param stream the stream to write to
+     * @throws IOException if the registry cannot be written
+     */
+    public void write(OutputStream stream) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(scriptTexts.size());
+        for (int i = 0; i < scriptTexts.size(); i++) {
+            writeString(out, scriptTexts.get(i));
+            writeString(out, scriptFiles.get(i));
+        }
+        out.writeInt(classes.size());
+        for (WovenClass wovenClass : classes.values()) {
+            writeString(out, wovenClass.getClassName());
+            writeString(out, wovenClass.getOriginalDigest());
+            writeString(out, wovenClass.getWovenDigest());
+            out.writeInt(wovenClass.getSteps().size());
+            for (Step step : wovenClass.getSteps()) {
+                writeString(out, step.getRuleName());
+                out.writeInt(step.getTriggers().size());
+                for (Trigger trigger : step.getTriggers()) {
+                    writeString(out, trigger.getMethodName());
+                    writeString(out, trigger.getDescriptor());
+                    out.writeInt(trigger.getAccess());
+                    String[] exceptions = trigger.getExceptions();
+                    if (exceptions == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(exceptions.length);
+                        for (String exception : exceptions) {
+                            writeString(out, exception);
+                        }
+                    }
+                    writeString(out, trigger.getRuleKey());
+                    out.writeInt(trigger.getVariables().size());
+                    for (Variable variable : trigger.getVariables()) {
+                        writeString(out, variable.getName());
+                        writeOptionalString(out, variable.getDescriptor());
+                        out.writeInt(variable.getLocalIndex());
+                        out.writeInt(variable.getCallArrayIndex());
+                        writeOptionalString(out, variable.getAlias());
+                    }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException
+    {
+        byte[] bytes = string.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String string) throws IOException
+    {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            writeString(out, string);
+        }
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException
+    {
+        return (in.readBoolean() ? readString(in) : null);
+    }
+
+    /**
+     * the details of a class into which one or more rule scripts were woven
+     */
+    public static class WovenClass
+    {
+        /**
+         * @param className the class name in external format
+         * @param originalDigest the digest of the class bytecode before weaving
+         * @param wovenDigest the digest of the class bytecode after weaving
+         * @param steps the scripts woven into the class in the order they were applied
+         */
+        public WovenClass(String className, String originalDigest, String wovenDigest, List<Step> steps)
+        {
+            this.className = className;
+            this.originalDigest = originalDigest;
+            this.wovenDigest = wovenDigest;
+            this.steps = steps;
+        }
+
+        public String getClassName()
+        {
+            return className;
+        }
+
+        public String getOriginalDigest()
+        {
+            return originalDigest;
+        }
+
+        public String getWovenDigest()
+        {
+            return wovenDigest;
+        }
+
+        public List<Step> getSteps()
+        {
+            return steps;
+        }
+
+        private final String className;
+        private final String originalDigest;
+        private final String wovenDigest;
+        private final List<Step> steps;
+    }
+
+    /**
+     * the details of a single rule script woven into a class
+     */
+    public static class Step
+    {
+        /**
+         * @param ruleName the name of the rule
+         * @param triggers the details of each trigger method the rule was injected into
+         */
+        public Step(String ruleName, List<Trigger> triggers)
+        {
+            this.ruleName = ruleName;
+            this.triggers = triggers;
+        }
+
+        public String getRuleName()
+        {
+            return ruleName;
+        }
+
+        public List<Trigger> getTriggers()
+        {
+            return triggers;
+        }
+
+        /**
+         * return the keys embedded in the woven trigger code
+         * @return the key of the rule injected into each trigger method
+         */
+        public List<String> getRuleKeys()
+        {
+            List<String> ruleKeys = new ArrayList<String>(triggers.size());
+            for (Trigger trigger : triggers) {
+                ruleKeys.add(trigger.getRuleKey());
+            }
+            return ruleKeys;
+        }
+
+        private final String ruleName;
+        private final List<Trigger> triggers;
+    }
+
+    /**
+     * the details of a trigger method into which a rule was injected. this records the type information and
+     * variable bindings which the trigger pass computed for the rule so that a rule can be bound to the woven
+     * trigger code without transforming the class.
+     */
+    public static class Trigger
+    {
+        /**
+         * @param methodName the name of the trigger method
+         * @param descriptor the descriptor of the trigger method
+         * @param access the access flags of the trigger method
+         * @param exceptions the exceptions declared by the trigger method or null if it declares none
+         * @param ruleKey the key of the rule injected into the trigger method
+         * @param variables the bindings of the rule in the order they appear in its binding list
+         */
+        public Trigger(String methodName, String descriptor, int access, String[] exceptions, String ruleKey, List<Variable> variables)
+        {
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.access = access;
+            this.exceptions = exceptions;
+            this.ruleKey = ruleKey;
+            this.variables = variables;
+        }
+
+        public String getMethodName()
+        {
+            return methodName;
+        }
+
+        public String getDescriptor()
+        {
+            return descriptor;
+        }
+
+        public int getAccess()
+        {
+            return access;
+        }
+
+        public String[] getExceptions()
+        {
+            return exceptions;
+        }
+
+        public String getRuleKey()
+        {
+            return ruleKey;
+        }
+
+        public List<Variable> getVariables()
+        {
+            return variables;
+        }
+
+        private final String methodName;
+        private final String descriptor;
+        private final int access;
+        private final String[] exceptions;
+        private final String ruleKey;
+        private final List<Variable> variables;
+    }
+
+    /**
+     * the details of a rule binding as computed by the trigger pass
+     */
+    public static class Variable
+    {
+        /**
+         * @param name the name of the bound variable
+         * @param descriptor the type of the variable identified from the trigger method or null if it is not known
+         * @param localIndex the local variable slot of a local variable binding
+         * @param callArrayIndex the index of the variable's value in the array passed by the trigger code
+         * @param alias the name of the parameter binding a local variable binding is aliased to or null
+         */
+        public Variable(String name, String descriptor, int localIndex, int callArrayIndex, String alias)
+        {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.localIndex = localIndex;
+            this.callArrayIndex = callArrayIndex;
+            this.alias = alias;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getDescriptor()
+        {
+            return descriptor;
+        }
+
+        public int getLocalIndex()
+        {
+            return localIndex;
+        }
+
+        public int getCallArrayIndex()
+        {
+            return callArrayIndex;
+        }
+
+        public String getAlias()
+        {
+            return alias;
+        }
+
+        private final String name;
+        private final String descriptor;
+        private final int localIndex;
+        private final int callArrayIndex;
+        private final String alias;
+    }
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    // registries which recorded the pre-weave bytecode used the magic number 0x424d5752 and are no longer readable
+    private static final int MAGIC = 0x424d5732;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final List<String> scriptTexts;
+    private final List<String> scriptFiles;
+    private final Map<String, WovenClass> classes;
+}
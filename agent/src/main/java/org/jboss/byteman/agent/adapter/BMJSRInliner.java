@@ -23,6 +23,7 @@
 */
 package org.jboss.byteman.agent.adapter;
 
+import org.jboss.byteman.agent.TransformContext;
 import org.objectweb.asm.ClassAdapter;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
@@ -34,14 +35,32 @@ import org.objectweb.asm.MethodVisitor;
 public class BMJSRInliner extends ClassAdapter
 {
     public BMJSRInliner(ClassVisitor cv)
+    {
+        this(cv, null);
+    }
+
+    /**
+     * create an inliner which only inlines methods which are to be injected with trigger code. all
+     * other method visits are passed straight through to the next visitor so that when it is a class
+     * writer created from the class reader the methods are copied as is rather than being regenerated.
+     * @param cv the next visitor
+     * @param transformContext the context for the transform or null if all methods should be inlined
+     */
+    public BMJSRInliner(ClassVisitor cv, TransformContext transformContext)
     {
         super(cv);
+        this.transformContext = transformContext;
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions)
     {
         MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        if (transformContext != null && !transformContext.injectIntoMethod(name, desc)) {
+            return mv;
+        }
         return new BMJSRInlinerAdapter(mv, access, name, desc, signature, exceptions);
     }
+
+    private TransformContext transformContext;
 }
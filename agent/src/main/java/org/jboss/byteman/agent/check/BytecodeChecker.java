@@ -29,13 +29,13 @@ import org.jboss.byteman.rule.type.TypeHelper;
 import org.objectweb.asm.ClassReader;
 
 /**
- * a private class which can be used to derive the super and interfaces of a class from its defining bytecode
+ * a private class which can be used to derive the super, interfaces and annotations of a class from its defining bytecode
  */
 public class BytecodeChecker implements ClassChecker {
     ClassStructureAdapter adapter;
 
     public BytecodeChecker(byte[] buffer) {
-        // run a pass over the bytecode to identify the interfaces
+        // run a pass over the bytecode to identify the interfaces and annotations
         ClassReader cr = new ClassReader(buffer);
         adapter = new ClassStructureAdapter();
         cr.accept(adapter, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
@@ -64,4 +64,20 @@ public class BytecodeChecker implements ClassChecker {
     public String getInterface(int idx) {
         return TypeHelper.internalizeClass(adapter.getInterfaces()[idx]);
     }
+
+    public int getAnnotationCount() {
+        return adapter.getAnnotations().size();
+    }
+
+    public String getAnnotation(int idx) {
+        return adapter.getAnnotations().get(idx);
+    }
+
+    public int getMethodAnnotationCount() {
+        return adapter.getMethodAnnotations().size();
+    }
+
+    public String getMethodAnnotation(int idx) {
+        return adapter.getMethodAnnotations().get(idx);
+    }
 }
@@ -26,7 +26,8 @@
 package org.jboss.byteman.agent.check;
 
 /**
- * interface hiding how we check the names of a class's super, outer class and implemented interfaces.
+ * interface hiding how we check the names of a class's super, outer class, implemented interfaces and
+ * annotations.
  */
 public interface ClassChecker {
     /**
@@ -59,4 +60,30 @@ public interface ClassChecker {
      * @return the name of a specific interface in the implements list of this class
      */
     public String getInterface(int idx);
-}
\ No newline at end of file
+
+    /**
+     * identify how many annotations are attached to this class
+     * @return how many annotations are attached to this class
+     */
+    public int getAnnotationCount();
+
+    /**
+     * identify the type name of a specific annotation attached to this class
+     * @param idx the index of the annotation in the list
+     * @return the name of the annotation type
+     */
+    public String getAnnotation(int idx);
+
+    /**
+     * identify how many distinct annotation types are attached to the methods of this class
+     * @return how many distinct annotation types are attached to the methods of this class
+     */
+    public int getMethodAnnotationCount();
+
+    /**
+     * identify the type name of a specific annotation attached to one or more methods of this class
+     * @param idx the index of the annotation type in the list
+     * @return the name of the annotation type
+     */
+    public String getMethodAnnotation(int idx);
+}
@@ -26,10 +26,18 @@
 package org.jboss.byteman.agent.check;
 
 import org.objectweb.asm.*;
+import org.objectweb.asm.commons.EmptyVisitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * a simple and <em>quick</em> adapter used to scan a class's bytecode definition for the name of its superclass,
- * its enclosing class and the interfaces it implements directly
+ * its enclosing class, the interfaces it implements directly and the annotations attached to the class and
+ * its methods. annotation values are not visited.
  */
 
 public class ClassStructureAdapter implements ClassVisitor {
@@ -37,6 +45,10 @@ public class ClassStructureAdapter implements ClassVisitor {
     private String[] interfaces = null;
     private String superName = null;
     private String outerClass = null;
+    private List<String> annotations = null;
+    private List<String> methodAnnotations = null;
+    private Map<String, List<String>> annotatedMethods = null;
+    private final MethodAnnotationVisitor methodAnnotationVisitor = new MethodAnnotationVisitor();
 
     public boolean isInterface() {
         return isInterface;
@@ -54,6 +66,30 @@ public class ClassStructureAdapter implements ClassVisitor {
         return interfaces;
     }
 
+    /**
+     * @return the type names of the annotations attached to the class
+     */
+    public List<String> getAnnotations() {
+        return (annotations == null ? Collections.<String>emptyList() : annotations);
+    }
+
+    /**
+     * @return the distinct type names of the annotations attached to methods of the class
+     */
+    public List<String> getMethodAnnotations() {
+        return (methodAnnotations == null ? Collections.<String>emptyList() : methodAnnotations);
+    }
+
+    /**
+     * @param name the name of a method
+     * @param desc the descriptor of the method
+     * @return the type names of the annotations attached to the method
+     */
+    public List<String> getMethodAnnotations(String name, String desc) {
+        List<String> result = (annotatedMethods == null ? null : annotatedMethods.get(name + desc));
+        return (result == null ? Collections.<String>emptyList() : result);
+    }
+
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         this.isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
         this.interfaces = interfaces;
@@ -69,6 +105,10 @@ public class ClassStructureAdapter implements ClassVisitor {
     }
 
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        if (annotations == null) {
+            annotations = new ArrayList<String>();
+        }
+        annotations.add(Type.getType(desc).getClassName());
         return null;
     }
 
@@ -85,10 +125,48 @@ public class ClassStructureAdapter implements ClassVisitor {
     }
 
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-        return null;
+        // methods are visited one at a time so we can reuse the same visitor
+        methodAnnotationVisitor.name = name;
+        methodAnnotationVisitor.desc = desc;
+        return methodAnnotationVisitor;
     }
 
     public void visitEnd() {
         // do nothimg
     }
+
+    /**
+     * a method visitor which only records the annotations attached to the method
+     */
+    private class MethodAnnotationVisitor extends EmptyVisitor {
+        String name;
+        String desc;
+
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            String typeName = Type.getType(desc).getClassName();
+            if (annotatedMethods == null) {
+                annotatedMethods = new HashMap<String, List<String>>();
+                methodAnnotations = new ArrayList<String>();
+            }
+            String key = this.name + this.desc;
+            List<String> entry = annotatedMethods.get(key);
+            if (entry == null) {
+                entry = new ArrayList<String>();
+                annotatedMethods.put(key, entry);
+            }
+            entry.add(typeName);
+            if (!methodAnnotations.contains(typeName)) {
+                methodAnnotations.add(typeName);
+            }
+            return null;
+        }
+
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+            return null;
+        }
+
+        public AnnotationVisitor visitAnnotationDefault() {
+            return null;
+        }
+    }
 }
@@ -65,4 +65,24 @@ public class LoadedClassChecker implements ClassChecker {
     public String getInterface(int idx) {
         return interfaces[idx].getName();
     }
+
+    // we don't report annotations for loaded classes because resolving them can load the annotation
+    // types. annotations are only needed for the class actually being transformed and that is always
+    // checked from its bytecode
+
+    public int getAnnotationCount() {
+        return 0;
+    }
+
+    public String getAnnotation(int idx) {
+        throw new IndexOutOfBoundsException();
+    }
+
+    public int getMethodAnnotationCount() {
+        return 0;
+    }
+
+    public String getMethodAnnotation(int idx) {
+        throw new IndexOutOfBoundsException();
+    }
 }
@@ -35,6 +35,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.jboss.byteman.agent.ClassPatternIndex;
 import org.jboss.byteman.agent.LocationType;
 import org.jboss.byteman.agent.RuleScript;
 import org.jboss.byteman.agent.ScriptRepository;
@@ -142,6 +143,13 @@ public class RuleCheck {
 
             String targetClassName = script.getTargetClass();
             Class targetClass = null;
+
+            if (ClassPatternIndex.isPattern(targetClassName) || script.getTargetClassAnnotation() != null) {
+                // we have no way of enumerating the classes which might match a pattern or annotation
+                warning("WARNING : Unable to check rule \"" + script.getName() + "\" loaded from " + script.getFile() + " line " + script.getLine() + " against pattern " + targetClassName);
+                continue;
+            }
+
             try {
                 targetClass = loader.loadClass(targetClassName);
             } catch (ClassNotFoundException e) {
@@ -322,7 +330,7 @@ public class RuleCheck {
         // apply to the parent method. so we need to find a candidate method for the rule and
         // then see if we can use it to set up the type info needed to type check the rule
 
-        String targetMethodName =  script.getTargetMethod();
+        String targetMethodName =  script.getTargetMethodSpec();
         String targetName = TypeHelper.parseMethodName(targetMethodName);
         String targetDesc = TypeHelper.parseMethodDescriptor(targetMethodName);
 
@@ -23,6 +23,7 @@
 */
 package org.jboss.byteman.rule;
 
+import org.jboss.byteman.agent.FlightRecorderSupport;
 import org.jboss.byteman.agent.HelperManager;
 import org.jboss.byteman.rule.type.TypeGroup;
 import org.jboss.byteman.rule.type.Type;
@@ -46,6 +47,10 @@ import java.io.*;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 
@@ -129,11 +134,24 @@ public class Rule
     /**
      * flag set to true only after the rule has been type checked
      */
-    private boolean checked;
+    private volatile boolean checked;
     /**
      * flag set to true only after the rule has been type checked successfully
      */
-    private boolean checkFailed;
+    private volatile boolean checkFailed;
+    /**
+     * the task which type checks and compiles the rule. the first thread which needs the rule checked,
+     * either a thread which triggers the rule or the background compiler, installs the task and runs it.
+     * the task runs without holding the rule's monitor so a thread which is resolving classes on behalf
+     * of the rule never holds a lock which a triggering thread might need. other threads obtain the
+     * outcome from the task.
+     */
+    private final AtomicReference<FutureTask<Boolean>> typeCheckCompile;
+    /**
+     * flag set to true once the rule has been purged. this is written without holding the rule lock
+     * because purge is called while holding the rule script lock
+     */
+    private volatile boolean purged;
 
     /**
      * return type of the rule's trigger method
@@ -173,6 +191,7 @@ public class Rule
         typeGroup = new TypeGroup(loader);
         bindings = new Bindings();
         checked = false;
+        typeCheckCompile = new AtomicReference<FutureTask<Boolean>>();
         triggerClass = null;
         triggerMethod = null;
         triggerDescriptor = null;
@@ -182,11 +201,33 @@ public class Rule
         accessibleMethods = null;
         // this is only set when the rule is created via a real installed transformer
         this.helperManager =  helperManager;
+        // the parse tree is shared by all rules derived from the script so we only parse the text once
+        ruleTree = ruleScript.getParseTree();
+
+        ParseNode eventTree = (ParseNode)ruleTree.getChild(0);
+        ParseNode conditionTree = (ParseNode)ruleTree.getChild(1);
+        ParseNode actionTree = (ParseNode)ruleTree.getChild(2);
+
+        event = Event.create(this, eventTree);
+        condition = Condition.create(this, conditionTree);
+        action = Action.create(this, actionTree);
+        key = null;
+    }
+
+    /**
+     * parse the text of a rule script. this is normally only called once per script by
+     * RuleScript.getParseTree() which retains the result for use by every Rule created from the script.
+     * @param ruleScript the script whose text is to be parsed
+     * @return the parse tree for the rule's event, condition and action
+     * @throws ParseException if the rule text contains syntax errors
+     */
+    public static ParseNode parse(RuleScript ruleScript) throws ParseException
+    {
         ECAGrammarParser parser = null;
         try {
-            String file = getFile();
+            String file = ruleScript.getFile();
             ECATokenLexer lexer = new ECATokenLexer(new StringReader(ruleScript.getRuleText()));
-            lexer.setStartLine(getLine());
+            lexer.setStartLine(ruleScript.getLine());
             lexer.setFile(file);
             parser = new ECAGrammarParser(lexer);
             parser.setFile(file);
@@ -196,7 +237,7 @@ public class Rule
                 message += parser.getErrors();
                 throw new ParseException(message);
             }
-            ruleTree = (ParseNode) parse.value;
+            return (ParseNode) parse.value;
         } catch (ParseException pe) {
             throw pe;
         } catch (Throwable th) {
@@ -207,15 +248,6 @@ public class Rule
             message += "\n" + th.getMessage();
             throw new ParseException(message);
         }
-
-        ParseNode eventTree = (ParseNode)ruleTree.getChild(0);
-        ParseNode conditionTree = (ParseNode)ruleTree.getChild(1);
-        ParseNode actionTree = (ParseNode)ruleTree.getChild(2);
-
-        event = Event.create(this, eventTree);
-        condition = Condition.create(this, conditionTree);
-        action = Action.create(this, actionTree);
-        key = null;
     }
 
     public TypeGroup getTypeGroup()
@@ -272,6 +304,15 @@ public class Rule
         return ruleScript.getFile();
     }
 
+    /**
+     * retrieve the text of the BIND, IF and DO clauses of the rule
+     * @return the rule text
+     */
+    public String getRuleText()
+    {
+        return ruleScript.getRuleText();
+    }
+
     public Event getEvent()
     {
         return event;
@@ -297,6 +338,14 @@ public class Rule
         return triggerDescriptor;
     }
 
+    public int getTriggerAccess() {
+        return triggerAccess;
+    }
+
+    public String[] getTriggerExceptions() {
+        return triggerExceptions;
+    }
+
     public Type getReturnType()
     {
         return returnType;
@@ -430,59 +479,119 @@ public class Rule
     }
 
     /**
-     * typecheck and then compile this rule unless either action has been tried before
+     * typecheck and then compile this rule unless either action has been tried before. this is normally
+     * called when the rule is first triggered but it is also called from the background compiler thread
+     * when background compilation is enabled. if another thread is already checking the rule then the
+     * calling thread waits for the outcome unless it holds the monitor of the trigger class loader. in
+     * that case the other thread may need the loader to resolve types so rather than risk deadlock the
+     * call returns false and the trigger is ignored.
      * @return true if the rule successfully type checks and then compiles under this call or a previous
-     * call or false if either operation has previously failed or fails under this call.
+     * call or false if either operation has previously failed or fails under this call or the rule has
+     * been purged or is being checked by another thread which may need a lock held by this thread.
      */
-    private synchronized boolean ensureTypeCheckedCompiled()
+    public boolean ensureTypeCheckedCompiled()
     {
-        if (checkFailed) {
+        if (purged) {
             return false;
         }
 
-        if (!checked) {
-            // ensure we don't trigger any code inside the type check or compile
-            // n.b. we may still allow recursive triggering while executing
-            boolean triggerEnabled = false;
-            String detail = "";
-            try {
-                typeCheck();
-                compile();
-                checked = true;
-                installed();
-            } catch (TypeWarningException te) {
-                checkFailed = true;
-                if (Transformer.isVerbose()) {
-                    StringWriter stringWriter = new StringWriter();
-                    PrintWriter writer = new PrintWriter(stringWriter);
-                    writer.println("Rule.ensureTypeCheckedCompiled : warning type checking rule " + getName());
-                    te.printStackTrace(writer);
-                    detail = stringWriter.toString();
-                    System.out.println(detail);
+        FutureTask<Boolean> task = typeCheckCompile.get();
+
+        if (task == null) {
+            FutureTask<Boolean> newTask = new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() {
+                    return typeCheckAndCompile();
+                }
+            });
+            if (typeCheckCompile.compareAndSet(null, newTask)) {
+                newTask.run();
+            }
+            task = typeCheckCompile.get();
+        }
+
+        if (!task.isDone() && loader != null && Thread.holdsLock(loader)) {
+            if (Transformer.isVerbose()) {
+                System.out.println("Rule.ensureTypeCheckedCompiled : ignoring trigger for rule " + getName() + " while another thread is type checking it");
+            }
+            return false;
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                } catch (ExecutionException ee) {
+                    // the task only fails with an unchecked exception so pass it on
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof Error) {
+                        throw (Error)cause;
+                    }
+                    throw (RuntimeException)cause;
                 }
-            } catch (TypeException te) {
-                checkFailed = true;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * typecheck and then compile this rule. this is only ever run once for a given rule
+     * @return true if the rule successfully type checks and then compiles otherwise false
+     */
+    private boolean typeCheckAndCompile()
+    {
+        if (purged) {
+            return false;
+        }
+
+        // ensure we don't trigger any code inside the type check or compile
+        // n.b. we may still allow recursive triggering while executing
+        boolean triggerEnabled = false;
+        String detail = "";
+        Object event = (FlightRecorderSupport.RULE_COMPILED.isEnabled() ? FlightRecorderSupport.RULE_COMPILED.begin() : null);
+        try {
+            typeCheck();
+            compile();
+            checked = true;
+            installed();
+        } catch (TypeWarningException te) {
+            checkFailed = true;
+            if (Transformer.isVerbose()) {
                 StringWriter stringWriter = new StringWriter();
                 PrintWriter writer = new PrintWriter(stringWriter);
-                writer.println("Rule.ensureTypeCheckedCompiled : error type checking rule " + getName());
+                writer.println("Rule.ensureTypeCheckedCompiled : warning type checking rule " + getName());
                 te.printStackTrace(writer);
                 detail = stringWriter.toString();
                 System.out.println(detail);
-            } catch (CompileException ce) {
-                checkFailed = true;
-                StringWriter stringWriter = new StringWriter();
-                PrintWriter writer = new PrintWriter(stringWriter);
-                writer.println("Rule.ensureTypeCheckedCompiled : error compiling rule " + getName());
-                ce.printStackTrace(writer);
-                detail = stringWriter.toString();
-                System.out.println(detail);
             }
-
-            ruleScript.recordCompile(triggerClass, loader, !checkFailed, detail);
-            return !checkFailed;
+        } catch (TypeException te) {
+            checkFailed = true;
+            StringWriter stringWriter = new StringWriter();
+            PrintWriter writer = new PrintWriter(stringWriter);
+            writer.println("Rule.ensureTypeCheckedCompiled : error type checking rule " + getName());
+            te.printStackTrace(writer);
+            detail = stringWriter.toString();
+            System.out.println(detail);
+        } catch (CompileException ce) {
+            checkFailed = true;
+            StringWriter stringWriter = new StringWriter();
+            PrintWriter writer = new PrintWriter(stringWriter);
+            writer.println("Rule.ensureTypeCheckedCompiled : error compiling rule " + getName());
+            ce.printStackTrace(writer);
+            detail = stringWriter.toString();
+            System.out.println(detail);
         }
 
-        return true;
+        ruleScript.recordCompile(triggerClass, loader, !checkFailed, detail);
+        if (event != null) {
+            FlightRecorderSupport.RULE_COMPILED.commit(event, getName(), triggerClass, isCompileToBytecode(), !checkFailed);
+        }
+        return !checkFailed;
     }
 
     /**
@@ -544,6 +653,11 @@ public class Rule
 
             helperImplementationClass = Compiler.getHelperAdapter(this, helperClass, compileToBytecode);
         }
+
+        if (purged) {
+            // we raced with a purge so don't hang on to the adapter
+            helperImplementationClass = null;
+        }
     }
 
     /**
@@ -667,6 +781,21 @@ public class Rule
 
     private void execute(Object recipient, Object[] args) throws ExecuteException
     {
+        if (ruleScript.isDisabled()) {
+            return;
+        }
+
+        // count the trigger even if it gets sampled out so the trigger count reflects
+        // how often the trigger location was reached
+
+        statistics.recordTrigger();
+
+        // a sampled rule skips most triggers so decide before doing anything costly
+
+        if (!ruleScript.sample()) {
+            return;
+        }
+
         // type check and createHelperAdapter the rule now if it has not already been done
 
         if (ensureTypeCheckedCompiled()) {
@@ -676,6 +805,16 @@ public class Rule
             // an implementation of execute from the rule source. for now we create a generic
             // helper and call the generic execute method which interprets the rule
             HelperAdapter helper;
+            Class helperImplementationClass = this.helperImplementationClass;
+            if (helperImplementationClass == null) {
+                // the rule has been purged since we checked it
+                return;
+            }
+            // flight recorder events are only created when a recording is collecting them
+            Object triggerEvent = (FlightRecorderSupport.RULE_TRIGGERED.isEnabled() ? FlightRecorderSupport.RULE_TRIGGERED.begin() : null);
+            boolean reportCondition = FlightRecorderSupport.RULE_CONDITION.isEnabled();
+            Object savedCondition = (reportCondition ? FlightRecorderSupport.beginCondition() : null);
+            long start = System.nanoTime();
             try {
                 Constructor constructor = helperImplementationClass.getConstructor(Rule.class);
                 helper = (HelperAdapter)constructor.newInstance(this);
@@ -688,6 +827,7 @@ public class Rule
                 e.printStackTrace(System.out);
                 return;
             } catch (InvocationTargetException e) {
+                statistics.recordException();
                 e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
             } catch (InstantiationException e) {
                 // should not happen
@@ -705,19 +845,62 @@ public class Rule
                 e.printStackTrace(System.out);
                 return;
             } catch (EarlyReturnException e) {
+                // the action completed with a RETURN
+                statistics.recordFired();
                 throw e;
             } catch (ThrowException e) {
+                // the action completed with a THROW
+                statistics.recordFired();
                 throw e;
             } catch (ExecuteException e) {
+                statistics.recordException();
                 System.out.println(getName() + " : " + e);
                 throw e;
             } catch (Throwable throwable) {
+                statistics.recordException();
                 System.out.println(getName() + " : " + throwable);
                 throw new ExecuteException(getName() + "  : caught " + throwable, throwable);
+            } finally {
+                statistics.recordTime(System.nanoTime() - start);
+                if (reportCondition) {
+                    boolean matched = FlightRecorderSupport.endCondition(savedCondition);
+                    FlightRecorderSupport.RULE_CONDITION.emit(getName(), triggerClass, matched);
+                }
+                if (triggerEvent != null) {
+                    FlightRecorderSupport.RULE_TRIGGERED.commit(triggerEvent, getName(), triggerClass, triggerMethod);
+                }
             }
         }
     }
 
+    /**
+     * called from the helper adapter when the rule condition evaluates to true
+     */
+    public void recordMatched()
+    {
+        statistics.recordMatched();
+        if (FlightRecorderSupport.RULE_CONDITION.isEnabled()) {
+            FlightRecorderSupport.conditionMatched();
+        }
+    }
+
+    /**
+     * called from the helper adapter when the rule action completes normally
+     */
+    public void recordFired()
+    {
+        statistics.recordFired();
+    }
+
+    /**
+     * retrieve the runtime counters for this rule
+     * @return the counters
+     */
+    public RuleStatistics getStatistics()
+    {
+        return statistics;
+    }
+
     /**
      * called when a trigger is compiled for the rule to provide a String key which can be used
      * at execution time to obtain a handle on the rule instance
@@ -731,10 +914,61 @@ public class Rule
             return key;
         }
         
-        String key = getName() + "_" + nextId();
-        this.key = key;
-        ruleKeyMap.put(key, this);
-        return key;
+        synchronized (Rule.class) {
+            String key = getName() + "_" + nextId();
+            this.key = key;
+            ruleKeyMap.put(key, this);
+            return key;
+        }
+    }
+
+    /**
+     * install keys recorded when trigger code was generated for a set of rules in a previous run so that
+     * the previously generated trigger code can be reused. either all the keys are installed or, if any of
+     * them is already in use, none are.
+     * @param rules the rules which need keys
+     * @param keys the keys embedded in the trigger code for each rule
+     * @return true if the keys were installed otherwise false
+     */
+    public static boolean restoreKeys(List<Rule> rules, List<String> keys)
+    {
+        synchronized (Rule.class) {
+            for (int i = 0; i < rules.size(); i++) {
+                if (rules.get(i).key != null || ruleKeyMap.containsKey(keys.get(i))) {
+                    return false;
+                }
+            }
+            for (int i = 0; i < rules.size(); i++) {
+                Rule rule = rules.get(i);
+                String key = keys.get(i);
+                rule.key = key;
+                ruleKeyMap.put(key, rule);
+            }
+            // make sure we never generate these keys again
+            reserveKeys(keys);
+            return true;
+        }
+    }
+
+    /**
+     * ensure that keys embedded in trigger code generated outside this JVM are never generated for
+     * any other rule
+     * @param keys the keys to be reserved
+     */
+    public static void reserveKeys(Collection<String> keys)
+    {
+        synchronized (Rule.class) {
+            for (String key : keys) {
+                try {
+                    int id = Integer.parseInt(key.substring(key.lastIndexOf('_') + 1));
+                    if (id >= nextId) {
+                        nextId = id + 1;
+                    }
+                } catch (NumberFormatException nfe) {
+                    // cannot happen for a key we generated
+                }
+            }
+        }
     }
 
     /**
@@ -754,11 +988,27 @@ public class Rule
     {
         // nothing to do unless we actually allocated a key
         if (key != null) {
-            ruleKeyMap.remove(key);
+            synchronized (Rule.class) {
+                ruleKeyMap.remove(key);
+            }
             if (checked) {
                 uninstalled();
             }
         }
+        release();
+    }
+
+    /**
+     * drop this rule's reference to its helper adapter class. generated adapters are defined in a
+     * dedicated loader so this allows the adapter class to be unloaded once every rule which employs
+     * it has been purged. the rule cannot be type checked, compiled or executed after this call.
+     */
+    private void release()
+    {
+        // n.b. this may race with the type check and compile code. setting the flag first suffices
+        // because compile clears the helper class if it sees the flag set
+        purged = true;
+        helperImplementationClass = null;
     }
 
     /**
@@ -842,7 +1092,12 @@ public class Rule
      * operation.
      */
 
-    private Class helperImplementationClass;
+    private volatile Class helperImplementationClass;
+
+    /**
+     * counts of how often this rule has been triggered, matched and fired and how long it took
+     */
+    private final RuleStatistics statistics = new RuleStatistics();
 
     /**
      * a getter allowing the helper class for the rule to be identified
@@ -896,6 +1151,24 @@ public class Rule
         return index;
     }
 
+    /**
+     * retrieve the non-public fields accessed by this rule in the order in which they were registered
+     * @return the list of fields or null if no non-public field is accessed
+     */
+    public List<Field> getAccessibleFields()
+    {
+        return accessibleFields;
+    }
+
+    /**
+     * retrieve the non-public methods invoked by this rule in the order in which they were registered
+     * @return the list of methods or null if no non-public method is invoked
+     */
+    public List<Method> getAccessibleMethods()
+    {
+        return accessibleMethods;
+    }
+
     public Object getAccessibleField(Object owner, int fieldIndex) throws ExecuteException
     {
         try {
@@ -926,6 +1199,63 @@ public class Rule
         }
     }
 
+    /**
+     * invoke a non-public method on behalf of a compiled rule. compiled helper adapters call this
+     * rather than Method.invoke so that failures are reported as an ExecuteException in the same
+     * way as when the rule is interpreted
+     * @param method the method linked into the compiled helper adapter
+     * @param target the recipient of the call or null for a static method
+     * @param args the call arguments
+     * @return the result of the call
+     * @throws ExecuteException if the call fails or the method throws an exception
+     */
+    public static Object invokeAccessibleMethod(Method method, Object target, Object[] args) throws ExecuteException
+    {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable th = e.getCause();
+            if (th instanceof ExecuteException) {
+                throw (ExecuteException)th;
+            }
+            throw new ExecuteException("Rule.invokeAccessibleMethod : exception invoking method " + method.getName(), th);
+        } catch (Exception e) {
+            throw new ExecuteException("Rule.invokeAccessibleMethod : unexpected error invoking method " + method.getName(), e);
+        }
+    }
+
+    /**
+     * read a non-public field on behalf of a compiled rule
+     * @param field the field linked into the compiled helper adapter
+     * @param owner the instance owning the field or null for a static field
+     * @return the field value
+     * @throws ExecuteException if the field cannot be read
+     */
+    public static Object getAccessibleField(Field field, Object owner) throws ExecuteException
+    {
+        try {
+            return field.get(owner);
+        } catch (Exception e) {
+            throw new ExecuteException("Rule.getAccessibleField : error accessing field " + field.getName(), e);
+        }
+    }
+
+    /**
+     * write a non-public field on behalf of a compiled rule
+     * @param field the field linked into the compiled helper adapter
+     * @param owner the instance owning the field or null for a static field
+     * @param value the value to be assigned
+     * @throws ExecuteException if the field cannot be written
+     */
+    public static void setAccessibleField(Field field, Object owner, Object value) throws ExecuteException
+    {
+        try {
+            field.set(owner, value);
+        } catch (Exception e) {
+            throw new ExecuteException("Rule.setAccessibleField : error assigning field " + field.getName(), e);
+        }
+    }
+
     public long getObjectSize(Object o)
     {
         return helperManager.getObjectSize(o);
@@ -0,0 +1,155 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.rule;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * runtime counters for a rule. counts are accumulated in a set of stripes indexed by thread so that
+ * threads firing the same rule concurrently mostly update different cache lines. each stripe is
+ * padded out to a full cache line. a snapshot sums the stripes so it may not reflect updates which
+ * are in progress while it is being taken.
+ */
+public class RuleStatistics
+{
+    /**
+     * index of the count of calls to the rule's trigger code
+     */
+    public static final int TRIGGERS = 0;
+    /**
+     * index of the count of times the rule condition evaluated to true
+     */
+    public static final int MATCHED = 1;
+    /**
+     * index of the count of times the rule action ran to completion
+     */
+    public static final int FIRED = 2;
+    /**
+     * index of the count of times rule execution failed with an exception
+     */
+    public static final int EXCEPTIONS = 3;
+    /**
+     * index of the total time spent executing the rule in nanoseconds
+     */
+    public static final int TOTAL_NANOS = 4;
+    /**
+     * index of the longest time spent executing the rule in nanoseconds
+     */
+    public static final int MAX_NANOS = 5;
+    /**
+     * the number of values recorded
+     */
+    public static final int SIZE = 6;
+
+    public RuleStatistics()
+    {
+        counters = new AtomicLongArray(STRIPES * STRIPE_WIDTH);
+    }
+
+    public void recordTrigger()
+    {
+        counters.incrementAndGet(stripe() + TRIGGERS);
+    }
+
+    public void recordMatched()
+    {
+        counters.incrementAndGet(stripe() + MATCHED);
+    }
+
+    public void recordFired()
+    {
+        counters.incrementAndGet(stripe() + FIRED);
+    }
+
+    public void recordException()
+    {
+        counters.incrementAndGet(stripe() + EXCEPTIONS);
+    }
+
+    /**
+     * record the time taken by one execution of the rule
+     * @param nanos the elapsed time in nanoseconds
+     */
+    public void recordTime(long nanos)
+    {
+        int base = stripe();
+        counters.addAndGet(base + TOTAL_NANOS, nanos);
+        long max = counters.get(base + MAX_NANOS);
+        while (nanos > max && !counters.compareAndSet(base + MAX_NANOS, max, nanos)) {
+            max = counters.get(base + MAX_NANOS);
+        }
+    }
+
+    /**
+     * sum the counters into an array indexed by TRIGGERS, MATCHED etc
+     * @param values an array of length at least SIZE to which the counts are added. the maximum
+     * time is combined by taking the larger of the current and the supplied value.
+     * @param reset true if the counters should be zeroed as they are read
+     */
+    public void addTo(long[] values, boolean reset)
+    {
+        for (int i = 0; i < STRIPES; i++) {
+            int base = i * STRIPE_WIDTH;
+            for (int j = 0; j < SIZE; j++) {
+                long value = (reset ? counters.getAndSet(base + j, 0L) : counters.get(base + j));
+                if (j == MAX_NANOS) {
+                    values[j] = Math.max(values[j], value);
+                } else {
+                    values[j] += value;
+                }
+            }
+        }
+    }
+
+    /**
+     * the offset of the first counter in the current thread's stripe
+     */
+    private static int stripe()
+    {
+        // thread ids are allocated sequentially so they spread well without hashing
+        return ((int)Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_WIDTH;
+    }
+
+    /**
+     * the number of longs per stripe. 8 longs fill a 64 byte cache line
+     */
+    private static final int STRIPE_WIDTH = 8;
+
+    /**
+     * the number of stripes, the smallest power of two no less than the number of processors
+     * up to a limit of 16 which keeps the per rule footprint down to 1K
+     */
+    private static final int STRIPES;
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors && stripes < 16) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray counters;
+}
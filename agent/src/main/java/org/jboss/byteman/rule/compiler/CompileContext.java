@@ -41,12 +41,24 @@ public class CompileContext
     private int localCount;
     private int localMax;
     private MethodVisitor mv;
+    private String compiledHelperName;
 
-    CompileContext(MethodVisitor mv)
+    CompileContext(MethodVisitor mv, String compiledHelperName)
     {
         sourceLine = -1;
         stackCount = stackMax = localCount = localMax = 0;
         this.mv = mv;
+        this.compiledHelperName = compiledHelperName;
+    }
+
+    /**
+     * return the internal name of the helper adapter class into which code is being compiled. compiled
+     * code uses this to address the static fields of the adapter which link non-public fields and methods
+     * @return the internal name of the generated helper adapter class
+     */
+    public String getCompiledHelperName()
+    {
+        return compiledHelperName;
     }
 
     public int getSourceLine()
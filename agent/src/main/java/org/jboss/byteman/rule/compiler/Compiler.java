@@ -33,7 +33,18 @@ import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.*;
 
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * A class which compiles a rule by generating a subclass of the rule's helperClass which implements
@@ -44,6 +55,22 @@ public class Compiler implements Opcodes
     public static Class getHelperAdapter(Rule rule, Class helperClass, boolean compileToBytecode) throws CompileException
     {
         Class adapterClass;
+        // see if we have already generated an adapter of the right shape for this rule in the
+        // same loader. this happens when the rule script has been injected into several trigger
+        // classes or methods and we are now compiling yet another rule instance derived from it.
+
+        ClassLoader loader = rule.getLoader();
+        String adapterKey = getAdapterKey(rule, helperClass, compileToBytecode);
+
+        adapterClass = lookupHelperAdapter(loader, adapterKey);
+
+        if (adapterClass != null) {
+            if (Transformer.isVerbose()) {
+                System.out.println("Compiler.getHelperAdapter : reusing helper adapter " + adapterClass.getName() + " for rule " + rule.getName());
+            }
+            return adapterClass;
+        }
+
         // ok we have to create the adapter class
 
         // n.b. we don't bother synchronizing here -- if another rule is racing to create an adapter
@@ -67,8 +94,10 @@ public class Compiler implements Opcodes
             Transformer.maybeDumpClass(externalName, classBytes);
             // ensure the class is loaded
             // think we need to load the generated helper using the class loader of the trigger class
-            ClassLoader loader = rule.getLoader();
             adapterClass = loadHelperAdapter(loader, externalName, classBytes);
+            if (compileToBytecode) {
+                linkAccessibleMembers(rule, adapterClass);
+            }
         } catch(CompileException ce) {
             throw ce;
         } catch (Throwable th) {
@@ -79,9 +108,124 @@ public class Compiler implements Opcodes
             }
         }
 
+        registerHelperAdapter(loader, adapterKey, adapterClass);
+
         return adapterClass;
     }
 
+    /**
+     * compute a key which identifies the shape of the helper adapter generated for a rule. two rules which
+     * share a key can share the same adapter class provided they are loaded by the same trigger class loader.
+     * the key includes the rule text and its source position, the helper class, the compilation mode, the
+     * trigger method return type, the name, type and call array slot of each binding and the non-public
+     * members accessed by the rule since these are all the rule details baked into the generated bytecode.
+     * @param rule the type checked rule for which an adapter is required
+     * @param helperClass the helper class for the rule
+     * @param compileToBytecode true if the adapter is to be compiled otherwise false
+     * @return the key
+     */
+    private static String getAdapterKey(Rule rule, Class helperClass, boolean compileToBytecode)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(compileToBytecode ? "compiled " : "interpreted ");
+        builder.append(helperClass.getName());
+        builder.append('\n');
+        builder.append(rule.getName());
+        builder.append('\n');
+        builder.append(rule.getFile());
+        builder.append(':');
+        builder.append(rule.getLine());
+        builder.append('\n');
+        builder.append(rule.getRuleText());
+        builder.append('\n');
+        org.jboss.byteman.rule.type.Type returnType = rule.getReturnType();
+        builder.append(returnType == null ? "" : returnType.getName());
+        builder.append('\n');
+        Iterator<Binding> iterator = rule.getBindings().iterator();
+        while (iterator.hasNext()) {
+            Binding binding = iterator.next();
+            builder.append(binding.getName());
+            builder.append(':');
+            builder.append(binding.getType().getName());
+            builder.append(':');
+            builder.append(binding.getCallArrayIndex());
+            if (binding.isUpdated()) {
+                builder.append(":updated");
+            }
+            if (binding.isAlias()) {
+                builder.append(":alias=");
+                builder.append(binding.getAlias().getName());
+            }
+            builder.append('\n');
+        }
+        List<Field> accessibleFields = rule.getAccessibleFields();
+        if (accessibleFields != null) {
+            for (Field field : accessibleFields) {
+                builder.append(field.toString());
+                builder.append('\n');
+            }
+        }
+        List<Method> accessibleMethods = rule.getAccessibleMethods();
+        if (accessibleMethods != null) {
+            for (Method method : accessibleMethods) {
+                builder.append(method.toString());
+                builder.append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * look for a previously generated helper adapter with a given key derived from a given trigger class loader
+     * @param triggerClassLoader the class loader of the trigger class
+     * @param adapterKey the key identifying the shape of the required adapter
+     * @return the adapter class or null if no such adapter is available
+     */
+    private static Class lookupHelperAdapter(ClassLoader triggerClassLoader, String adapterKey)
+    {
+        synchronized (adapterCache) {
+            Map<String, WeakReference<Class<?>>> adapters = adapterCache.get(triggerClassLoader);
+            if (adapters == null) {
+                return null;
+            }
+            WeakReference<Class<?>> ref = adapters.get(adapterKey);
+            if (ref == null) {
+                return null;
+            }
+            Class<?> adapterClass = ref.get();
+            if (adapterClass == null) {
+                adapters.remove(adapterKey);
+            }
+            return adapterClass;
+        }
+    }
+
+    /**
+     * record a newly generated helper adapter so that it can be reused by other rules with the same key
+     * @param triggerClassLoader the class loader of the trigger class
+     * @param adapterKey the key identifying the shape of the adapter
+     * @param adapterClass the adapter class
+     */
+    private static void registerHelperAdapter(ClassLoader triggerClassLoader, String adapterKey, Class<?> adapterClass)
+    {
+        synchronized (adapterCache) {
+            Map<String, WeakReference<Class<?>>> adapters = adapterCache.get(triggerClassLoader);
+            if (adapters == null) {
+                adapters = new HashMap<String, WeakReference<Class<?>>>();
+                adapterCache.put(triggerClassLoader, adapters);
+            }
+            adapters.put(adapterKey, new WeakReference<Class<?>>(adapterClass));
+        }
+    }
+
+    /**
+     * a cache of generated helper adapters indexed by trigger class loader and then by adapter key. both
+     * the loader and the adapter are weakly referenced. an adapter is retained as long as some rule which
+     * employs it is still installed and a loader entry is dropped once the loader becomes unreachable.
+     */
+    private static final WeakHashMap<ClassLoader, Map<String, WeakReference<Class<?>>>> adapterCache =
+            new WeakHashMap<ClassLoader, Map<String, WeakReference<Class<?>>>>();
+
     private static byte[] compileBytes(Rule rule, Class helperClass, String helperName, String compiledHelperName, boolean compileToBytecode) throws Exception
     {
         ClassWriter cw = new ClassWriter(0);
@@ -119,6 +263,26 @@ public class Compiler implements Opcodes
         fv = cw.visitField(ACC_PRIVATE, "rule", "Lorg/jboss/byteman/rule/Rule;", "Lorg/jboss/byteman/rule/Rule;", null);
         fv.visitEnd();
         }
+        if (compileToBytecode) {
+        // compiled code accesses non-public fields and methods via a static field per member
+        // which is linked to the relevant Field or Method once the adapter class has been loaded
+        //
+        // private static Field accessibleField$<N>;
+        // private static Method accessibleMethod$<N>;
+
+        List<Field> accessibleFields = rule.getAccessibleFields();
+        int fieldCount = (accessibleFields == null ? 0 : accessibleFields.size());
+        for (int i = 0; i < fieldCount; i++) {
+            fv = cw.visitField(ACC_PRIVATE | ACC_STATIC, accessibleFieldName(i), "Ljava/lang/reflect/Field;", null, null);
+            fv.visitEnd();
+        }
+        List<Method> accessibleMethods = rule.getAccessibleMethods();
+        int methodCount = (accessibleMethods == null ? 0 : accessibleMethods.size());
+        for (int i = 0; i < methodCount; i++) {
+            fv = cw.visitField(ACC_PRIVATE | ACC_STATIC, accessibleMethodName(i), "Ljava/lang/reflect/Method;", null, null);
+            fv.visitEnd();
+        }
+        }
         {
         // we need a constructor which takes a Rule as argument
         // if the helper implements a constructor which takes a Rule as argument then we invoke it
@@ -396,7 +560,7 @@ public class Compiler implements Opcodes
             // private void execute0()
             mv = cw.visitMethod(ACC_PRIVATE, "execute0", "()V", null, new String[] { "org/jboss/byteman/rule/exception/ExecuteException" });
             mv.visitCode();
-            CompileContext compileContext = new CompileContext(mv);
+            CompileContext compileContext = new CompileContext(mv, compiledHelperName);
             // make sure we set the first line number before generating any code
             compileContext.notifySourceLine(rule.getLine());
             compileContext.addLocalCount(3); // for this and 2 object args
@@ -408,8 +572,20 @@ public class Compiler implements Opcodes
             mv.visitJumpInsn(IFEQ, l0);
             compileContext.addStackCount(-1);
             // then
+            // rule.recordMatched();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, compiledHelperName, "rule", "Lorg/jboss/byteman/rule/Rule;");
+            compileContext.addStackCount(1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "org/jboss/byteman/rule/Rule", "recordMatched", "()V");
+            compileContext.addStackCount(-1);
             rule.getAction().compile(mv, compileContext);
-            // fire();
+            // rule.recordFired();
+            // n.b. this is skipped when the action returns or throws
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, compiledHelperName, "rule", "Lorg/jboss/byteman/rule/Rule;");
+            compileContext.addStackCount(1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "org/jboss/byteman/rule/Rule", "recordFired", "()V");
+            compileContext.addStackCount(-1);
             // end if
             mv.visitLabel(l0);
             // this will match the ENDRULE line
@@ -437,9 +613,17 @@ public class Compiler implements Opcodes
             Label l0 = new Label();
             mv.visitJumpInsn(IFEQ, l0);
             // then
+            // rule.recordMatched();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, compiledHelperName, "rule", "Lorg/jboss/byteman/rule/Rule;");
+            mv.visitMethodInsn(INVOKEVIRTUAL, "org/jboss/byteman/rule/Rule", "recordMatched", "()V");
             // fire();
             mv.visitVarInsn(ALOAD, 0);
             mv.visitMethodInsn(INVOKESPECIAL, compiledHelperName, "fire", "()V");
+            // rule.recordFired();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, compiledHelperName, "rule", "Lorg/jboss/byteman/rule/Rule;");
+            mv.visitMethodInsn(INVOKEVIRTUAL, "org/jboss/byteman/rule/Rule", "recordFired", "()V");
             // end if
             mv.visitLabel(l0);
             // return
@@ -507,6 +691,57 @@ public class Compiler implements Opcodes
         return cw.toByteArray();
     }
 
+    /**
+     * return the name of the static field of a compiled helper adapter which links compiled code to the
+     * non-public field registered with the rule at the supplied index
+     * @param fieldIndex the index of the field in the rule's accessible field list
+     * @return the name of the static field
+     */
+    public static String accessibleFieldName(int fieldIndex)
+    {
+        return "accessibleField$" + fieldIndex;
+    }
+
+    /**
+     * return the name of the static field of a compiled helper adapter which links compiled code to the
+     * non-public method registered with the rule at the supplied index
+     * @param methodIndex the index of the method in the rule's accessible method list
+     * @return the name of the static field
+     */
+    public static String accessibleMethodName(int methodIndex)
+    {
+        return "accessibleMethod$" + methodIndex;
+    }
+
+    /**
+     * install the Field and Method objects registered with the rule during type checking into the
+     * static fields of a freshly loaded compiled helper adapter. this is done once when the adapter
+     * class is defined so that compiled code can invoke the reflective accessor directly rather than
+     * looking the member up via the helper adapter and rule on every access.
+     * @param rule the rule whose code was compiled into the adapter
+     * @param adapterClass the compiled helper adapter class
+     * @throws Exception if the static fields cannot be updated
+     */
+    private static void linkAccessibleMembers(Rule rule, Class<?> adapterClass) throws Exception
+    {
+        List<Field> accessibleFields = rule.getAccessibleFields();
+        if (accessibleFields != null) {
+            for (int i = 0; i < accessibleFields.size(); i++) {
+                Field linkField = adapterClass.getDeclaredField(accessibleFieldName(i));
+                linkField.setAccessible(true);
+                linkField.set(null, accessibleFields.get(i));
+            }
+        }
+        List<Method> accessibleMethods = rule.getAccessibleMethods();
+        if (accessibleMethods != null) {
+            for (int i = 0; i < accessibleMethods.size(); i++) {
+                Field linkField = adapterClass.getDeclaredField(accessibleMethodName(i));
+                linkField.setAccessible(true);
+                linkField.set(null, accessibleMethods.get(i));
+            }
+        }
+    }
+
     private static int nextId = 0;
 
     private static synchronized int nextId()
@@ -550,9 +785,79 @@ public class Compiler implements Opcodes
         // application types. the defalt helper will be accessible because it is loaded bby the
         // ootstrap loader. custom helpers need to be made avvailable to the applicattion either
         // by deployng them with it or by locating them in the JVM classpath.
+        // n.b. each adapter gets a loader of its own so that the adapter class can be unloaded
+        // as soon as the rules which employ it have been purged
         ClassbyteClassLoader loader = new ClassbyteClassLoader(triggerClassLoader);
 
-        return loader.addClass(helperAdapterName, classBytes);
+        Class<?> adapterClass = loader.addClass(helperAdapterName, classBytes);
+
+        trackHelperAdapterLoader(loader);
+
+        return adapterClass;
     }
 
+    /**
+     * return a count of the generated helper adapter classes which are still live i.e. whose defining
+     * loader has not yet been reclaimed by the garbage collector
+     * @return the count of live helper adapter classes
+     */
+    public static int getLiveHelperAdapterCount()
+    {
+        synchronized (liveAdapterLoaders) {
+            expungeReclaimedLoaders();
+            return liveAdapterLoaders.size();
+        }
+    }
+
+    /**
+     * return a count of all the helper adapter classes which have been generated and defined since the
+     * agent was started
+     * @return the count of defined helper adapter classes
+     */
+    public static int getDefinedHelperAdapterCount()
+    {
+        synchronized (liveAdapterLoaders) {
+            return definedAdapterCount;
+        }
+    }
+
+    /**
+     * record the loader used to define a new helper adapter so that we can detect when it is reclaimed
+     * @param loader the loader which defined the adapter
+     */
+    private static void trackHelperAdapterLoader(ClassLoader loader)
+    {
+        synchronized (liveAdapterLoaders) {
+            expungeReclaimedLoaders();
+            liveAdapterLoaders.add(new WeakReference<ClassLoader>(loader, reclaimedAdapterLoaders));
+            definedAdapterCount++;
+        }
+    }
+
+    /**
+     * drop references to adapter loaders which have been reclaimed. must be called synchronized on
+     * liveAdapterLoaders
+     */
+    private static void expungeReclaimedLoaders()
+    {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = reclaimedAdapterLoaders.poll()) != null) {
+            liveAdapterLoaders.remove(ref);
+        }
+    }
+
+    /**
+     * weak references to the loaders of all helper adapters which have not yet been reclaimed
+     */
+    private static final Set<Reference<ClassLoader>> liveAdapterLoaders = new HashSet<Reference<ClassLoader>>();
+
+    /**
+     * queue to which the garbage collector posts references to reclaimed adapter loaders
+     */
+    private static final ReferenceQueue<ClassLoader> reclaimedAdapterLoaders = new ReferenceQueue<ClassLoader>();
+
+    /**
+     * count of all helper adapters defined so far
+     */
+    private static int definedAdapterCount = 0;
 }
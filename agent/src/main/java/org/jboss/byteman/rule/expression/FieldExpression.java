@@ -25,6 +25,7 @@ package org.jboss.byteman.rule.expression;
 
 import org.jboss.byteman.rule.binding.Binding;
 import org.jboss.byteman.rule.compiler.CompileContext;
+import org.jboss.byteman.rule.compiler.Compiler;
 import org.jboss.byteman.rule.type.Type;
 import org.jboss.byteman.rule.type.TypeGroup;
 import org.jboss.byteman.rule.exception.TypeException;
@@ -275,19 +276,17 @@ public class FieldExpression extends AssignableExpression
                 compileContext.addStackCount(expected - 1);
             } else {
                 // since this is a private field we need to do the access using reflection
-                // stack the helper, owner and the field index
-                mv.visitVarInsn(Opcodes.ALOAD, 0);
+                // stack the Field linked into the helper adapter and then the owner
+                mv.visitFieldInsn(Opcodes.GETSTATIC, compileContext.getCompiledHelperName(), Compiler.accessibleFieldName(fieldIndex), "Ljava/lang/reflect/Field;");
                 compileContext.addStackCount(1);
                 owner.compile(mv, compileContext);
-                mv.visitLdcInsn(fieldIndex);
-                compileContext.addStackCount(1);
-                // use the HelperAdapter method getAccessibleField to get the field value
-                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE,
-                        Type.internalName(HelperAdapter.class),
+                // use Rule.getAccessibleField to get the field value
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                        "org/jboss/byteman/rule/Rule",
                         "getAccessibleField",
-                        "(Ljava/lang/Object;I)Ljava/lang/Object;");
-                // we popped three words and added one object as result
-                compileContext.addStackCount(-2);
+                        "(Ljava/lang/reflect/Field;Ljava/lang/Object;)Ljava/lang/Object;");
+                // we popped two words and added one object as result
+                compileContext.addStackCount(-1);
                 // convert Object to primitive or cast to subtype if required
                 compileTypeConversion(Type.OBJECT, type, mv, compileContext);
             }
@@ -445,24 +444,24 @@ public class FieldExpression extends AssignableExpression
                 if (type.isPrimitive()) {
                     compileBox(Type.boxType(type),  mv, compileContext);
                 }
-                // stack the helper and then dupx2 it so it goes under the owner and value
-                // [.. val(s) owner  valObj ==> val(s) owner valObj helper ]
-                mv.visitVarInsn(Opcodes.ALOAD, 0);
-                // [.. val(s) owner  valObj helper ==> val(s) helper owner valObj helper ]
+                // stack the linked Field and then dupx2 it so it goes under the owner and value
+                // [.. val(s) owner  valObj ==> val(s) owner valObj field ]
+                mv.visitFieldInsn(Opcodes.GETSTATIC, compileContext.getCompiledHelperName(), Compiler.accessibleFieldName(fieldIndex), "Ljava/lang/reflect/Field;");
+                // [.. val(s) owner  valObj field ==> val(s) field owner valObj field ]
                 mv.visitInsn(Opcodes.DUP_X2);
                 // stack now has 2 more words so count them
                 compileContext.addStackCount(2);
-                // now pop the redundant top word and stack the field index instead
-                // [.. val(s) helper owner valObj helper ==> val(s) helper owner valObj index ]
+                // now pop the redundant top word
+                // [.. val(s) field owner valObj field ==> val(s) field owner valObj ]
                 mv.visitInsn(Opcodes.POP);
-                mv.visitLdcInsn(fieldIndex);
-                // use the HelperAdapter method setAccessibleField to set the field value
-                mv.visitMethodInsn(Opcodes.INVOKEINTERFACE,
-                        Type.internalName(HelperAdapter.class),
+                compileContext.addStackCount(-1);
+                // use Rule.setAccessibleField to set the field value
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                        "org/jboss/byteman/rule/Rule",
                         "setAccessibleField",
-                        "(Ljava/lang/Object;Ljava/lang/Object;I)V");
-                // we popped four args
-                compileContext.addStackCount(-4);
+                        "(Ljava/lang/reflect/Field;Ljava/lang/Object;Ljava/lang/Object;)V");
+                // we popped three args
+                compileContext.addStackCount(-3);
             }
 
             // check the stack height is ok
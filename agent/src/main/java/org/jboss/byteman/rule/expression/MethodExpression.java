@@ -24,6 +24,7 @@
 package org.jboss.byteman.rule.expression;
 
 import org.jboss.byteman.rule.compiler.CompileContext;
+import org.jboss.byteman.rule.compiler.Compiler;
 import org.jboss.byteman.rule.type.Type;
 import org.jboss.byteman.rule.type.TypeGroup;
 import org.jboss.byteman.rule.binding.Binding;
@@ -431,9 +432,10 @@ public class MethodExpression extends Expression
             mv.visitInsn(Opcodes.POP);
             compileContext.addStackCount(-1);
         } else {
-            // if we are calling a method by reflection then we need to stack the current helper then
-            // the recipient or null if there is none and then build an object array on the stack
-            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            // if we are calling a method by reflection then we need to stack the Method linked into
+            // the helper adapter then the recipient or null if there is none and then build an object
+            // array on the stack
+            mv.visitFieldInsn(Opcodes.GETSTATIC, compileContext.getCompiledHelperName(), Compiler.accessibleMethodName(methodIndex), "Ljava/lang/reflect/Method;");
             compileContext.addStackCount(1);
             if (recipient != null) {
                 // compile code for recipient
@@ -461,15 +463,13 @@ public class MethodExpression extends Expression
                 // compile code to stack argument and type convert/box if necessary
                 argument.compile(mv, compileContext);
                 compileTypeConversion(argType, paramType, mv, compileContext);
-                compileBox(paramType, mv, compileContext);
+                if (paramType.isPrimitive()) {
+                    compileBox(Type.boxType(paramType), mv, compileContext);
+                }
                 // that's 3 extra words which now get removed
                 mv.visitInsn(Opcodes.AASTORE);
                 compileContext.addStackCount(-3);
             }
-            // now stack the method object index
-            mv.visitLdcInsn(methodIndex);
-            compileContext.addStackCount(1);
-
             // enable triggering before we call the method
             // this adds an extra value to the stack so modify the compile context to ensure
             // we increase the maximum height if necessary
@@ -478,14 +478,14 @@ public class MethodExpression extends Expression
             mv.visitInsn(Opcodes.POP);
             compileContext.addStackCount(-1);
             
-            // ok, we  now have the recipient, args array and method index on the stack
-            // so we can call the HelperAdapter method  to do the actual reflective invocation
-            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE,
-                    Type.internalName(HelperAdapter.class),
+            // ok, we  now have the method, recipient and args array on the stack
+            // so we can call Rule.invokeAccessibleMethod to do the actual reflective invocation
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                    "org/jboss/byteman/rule/Rule",
                     "invokeAccessibleMethod",
-                    "(Ljava/lang/Object;[Ljava/lang/Object;I)Ljava/lang/Object;");
-            // we popped 4 words and left one in its place
-            compileContext.addStackCount(-3);
+                    "(Ljava/lang/reflect/Method;Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;");
+            // we popped 3 words and left one in its place
+            compileContext.addStackCount(-2);
             if (type == Type.VOID) {
                 mv.visitInsn(Opcodes.POP);
                 compileContext.addStackCount(-1);
@@ -497,7 +497,7 @@ public class MethodExpression extends Expression
             // now disable triggering again
             // this temporarily adds an extra value to the stack -- n.b. no need to increment and
             // then decrement the stack height here because the previous enable call will already have
-            // bumped the max when we had 4 slots on the stack and any return value on the stack will
+            // bumped the max when we had 3 slots on the stack and any return value on the stack will
             // occupy at most 2 slots
 
             mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/jboss/byteman/rule/Rule", "disableTriggersInternal", "()Z");
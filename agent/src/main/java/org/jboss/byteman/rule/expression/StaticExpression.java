@@ -24,6 +24,7 @@
 package org.jboss.byteman.rule.expression;
 
 import org.jboss.byteman.rule.compiler.CompileContext;
+import org.jboss.byteman.rule.compiler.Compiler;
 import org.jboss.byteman.rule.type.Type;
 import org.jboss.byteman.rule.type.TypeGroup;
 import org.jboss.byteman.rule.exception.TypeException;
@@ -148,18 +149,17 @@ public class StaticExpression extends AssignableExpression
             compileContext.addStackCount(expected);
         } else {
             // since this is a private field we need to do the access using reflection
-            // stack the helper, a null owner and the field index
-            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            // stack the Field linked into the helper adapter and a null owner
+            mv.visitFieldInsn(Opcodes.GETSTATIC, compileContext.getCompiledHelperName(), Compiler.accessibleFieldName(fieldIndex), "Ljava/lang/reflect/Field;");
             mv.visitInsn(Opcodes.ACONST_NULL);
-            mv.visitLdcInsn(fieldIndex);
-            compileContext.addStackCount(3);
-            // use the HelperAdapter method getAccessibleField to get the field value
-            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE,
-                    Type.internalName(HelperAdapter.class),
+            compileContext.addStackCount(2);
+            // use Rule.getAccessibleField to get the field value
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                    "org/jboss/byteman/rule/Rule",
                     "getAccessibleField",
-                    "(Ljava/lang/Object;I)Ljava/lang/Object;");
-            // we popped three words and added one object as result
-            compileContext.addStackCount(-2);
+                    "(Ljava/lang/reflect/Field;Ljava/lang/Object;)Ljava/lang/Object;");
+            // we popped two words and added one object as result
+            compileContext.addStackCount(-1);
             // convert Object to primitive or cast to subtype if required
             compileTypeConversion(Type.OBJECT, type, mv, compileContext);
         }
@@ -232,26 +232,23 @@ public class StaticExpression extends AssignableExpression
             if (type.isPrimitive()) {
                 compileBox(Type.boxType(type), mv, compileContext);
             }
-            // stack the helper and then swap it so it goes under the value
-            // [.. val(s) valObj ==> val(s) valObj helper ==> val(s) helper valObj]
-            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            // stack the linked Field and then swap it so it goes under the value
+            // [.. val(s) valObj ==> val(s) valObj field ==> val(s) field valObj]
+            mv.visitFieldInsn(Opcodes.GETSTATIC, compileContext.getCompiledHelperName(), Compiler.accessibleFieldName(fieldIndex), "Ljava/lang/reflect/Field;");
             mv.visitInsn(Opcodes.SWAP);
             // stack a null owner then swap it so it goes under the value
-            // [val(s) helper valObj ==> val(s) helper valObj null ==> val(s) helper null valObj]
+            // [val(s) field valObj ==> val(s) field valObj null ==> val(s) field null valObj]
             mv.visitInsn(Opcodes.ACONST_NULL);
             mv.visitInsn(Opcodes.SWAP);
-            // now stack the field index
-            // [.. val(s) helper null valObj ==> val(s) helper null valObj index ]
-            mv.visitLdcInsn(fieldIndex);
-            // we added three more words
-            compileContext.addStackCount(3);
-            // use the HelperAdapter method setAccessibleField to set the field value
-            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE,
-                    Type.internalName(HelperAdapter.class),
+            // we added two more words
+            compileContext.addStackCount(2);
+            // use Rule.setAccessibleField to set the field value
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                    "org/jboss/byteman/rule/Rule",
                     "setAccessibleField",
-                    "(Ljava/lang/Object;Ljava/lang/Object;I)V");
-            // we popped four args
-            compileContext.addStackCount(-4);
+                    "(Ljava/lang/reflect/Field;Ljava/lang/Object;Ljava/lang/Object;)V");
+            // we popped three args
+            compileContext.addStackCount(-3);
         }
 
         if (compileContext.getStackCount() !=  currentStack) {
@@ -23,6 +23,7 @@
 */
 package org.jboss.byteman.rule.expression;
 
+import org.jboss.byteman.agent.ClassPatternIndex;
 import org.jboss.byteman.rule.compiler.CompileContext;
 import org.jboss.byteman.rule.exception.TypeWarningException;
 import org.jboss.byteman.rule.type.Type;
@@ -387,7 +388,6 @@ public class ThrowExpression extends Expression
         String triggerMethodName = rule.getTriggerMethod();
         String descriptor = rule.getTriggerDescriptor();
         Class<?>[] paramTypes = null;
-        boolean isQualified = targetClassName.contains(".");
         boolean isClass = !rule.isInterface();
         try {
             Class<?> triggerClass = loader.loadClass(triggerClassName);
@@ -400,8 +400,7 @@ public class ThrowExpression extends Expression
             while (superIterator.hasNext()) {
                 Class<?> nextClass = superIterator.next();
                 String nextClassName = nextClass.getName();
-                if (nextClassName.equals(targetClassName) ||
-                        (!isQualified && nextClassName.endsWith("." + targetClassName))) {
+                if (ClassPatternIndex.matchesTarget(targetClassName, nextClassName)) {
                     // check whether the trigger method overrides a method on this class
                     if (paramTypes == null) {
                         paramTypes = createParamTypes(descriptor, loader);
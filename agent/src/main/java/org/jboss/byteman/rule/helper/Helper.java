@@ -27,6 +27,7 @@ import org.jboss.byteman.rule.Rule;
 import org.jboss.byteman.rule.exception.ExecuteException;
 import org.jboss.byteman.synchronization.*;
 import org.jboss.byteman.synchronization.Timer;
+import org.jboss.byteman.agent.FlightRecorderSupport;
 import org.jboss.byteman.agent.Transformer;
 
 import java.io.*;
@@ -268,6 +269,94 @@ public class Helper
         return traceClose(identifier);
     }
 
+    // flight recorder support
+    /**
+     * builtin to test whether a Java Flight Recorder recording is running
+     * @return true if a recording is running otherwise false
+     */
+    public boolean jfrRecording()
+    {
+        return FlightRecorderSupport.isRecording();
+    }
+
+    /**
+     * emit a Java Flight Recorder event with no fields
+     * @param name the name of the event type. a name with no package qualifier is prefixed with
+     * org.jboss.byteman.rule.
+     * @return true if the event was committed to a running recording otherwise false
+     */
+    public boolean jfrEvent(String name)
+    {
+        return FlightRecorderSupport.emitRuleEvent(name, new String[0], new Object[0]);
+    }
+
+    /**
+     * emit a Java Flight Recorder event with one field. the type of each field is fixed by the value
+     * supplied the first time an event with the given name is emitted. numeric, boolean and char values
+     * are recorded with the corresponding primitive type and anything else is recorded as a String.
+     * @param name the name of the event type. a name with no package qualifier is prefixed with
+     * org.jboss.byteman.rule.
+     * @param field1 the name of the first field
+     * @param value1 the value of the first field
+     * @return true if the event was committed to a running recording otherwise false
+     */
+    public boolean jfrEvent(String name, String field1, Object value1)
+    {
+        return FlightRecorderSupport.emitRuleEvent(name, new String[] { field1 }, new Object[] { value1 });
+    }
+
+    /**
+     * emit a Java Flight Recorder event with two fields
+     * @param name the name of the event type
+     * @param field1 the name of the first field
+     * @param value1 the value of the first field
+     * @param field2 the name of the second field
+     * @param value2 the value of the second field
+     * @return true if the event was committed to a running recording otherwise false
+     */
+    public boolean jfrEvent(String name, String field1, Object value1, String field2, Object value2)
+    {
+        return FlightRecorderSupport.emitRuleEvent(name, new String[] { field1, field2 }, new Object[] { value1, value2 });
+    }
+
+    /**
+     * emit a Java Flight Recorder event with three fields
+     * @param name the name of the event type
+     * @param field1 the name of the first field
+     * @param value1 the value of the first field
+     * @param field2 the name of the second field
+     * @param value2 the value of the second field
+     * @param field3 the name of the third field
+     * @param value3 the value of the third field
+     * @return true if the event was committed to a running recording otherwise false
+     */
+    public boolean jfrEvent(String name, String field1, Object value1, String field2, Object value2,
+                            String field3, Object value3)
+    {
+        return FlightRecorderSupport.emitRuleEvent(name, new String[] { field1, field2, field3 },
+                new Object[] { value1, value2, value3 });
+    }
+
+    /**
+     * emit a Java Flight Recorder event with four fields
+     * @param name the name of the event type
+     * @param field1 the name of the first field
+     * @param value1 the value of the first field
+     * @param field2 the name of the second field
+     * @param value2 the value of the second field
+     * @param field3 the name of the third field
+     * @param value3 the value of the third field
+     * @param field4 the name of the fourth field
+     * @param value4 the value of the fourth field
+     * @return true if the event was committed to a running recording otherwise false
+     */
+    public boolean jfrEvent(String name, String field1, Object value1, String field2, Object value2,
+                            String field3, Object value3, String field4, Object value4)
+    {
+        return FlightRecorderSupport.emitRuleEvent(name, new String[] { field1, field2, field3, field4 },
+                new Object[] { value1, value2, value3, value4 });
+    }
+
     // flag support
     /**
      * set a flag keyed by the supplied object if it is not already set
@@ -438,7 +527,15 @@ public class Helper
     {
         Waiter waiter = getWaiter(identifier, true);
 
-        waiter.waitFor(millisecs);
+        try {
+            waiter.waitFor(millisecs);
+        } finally {
+            // a waiter pre-signalled by a mustMeet signal stays in the map until the signalling
+            // thread wakes up and removes it. drop it now or a repeat wait will consume the same signal
+            if (waiter.isSignalled()) {
+                removeWaiter(identifier, waiter);
+            }
+        }
     }
 
     /**
@@ -515,10 +612,9 @@ public class Helper
                 }
             }
 
-            // remove the association between the waiter and the wait map
-            synchronized (waitMap) {
-                removeWaiter(identifier);
-            }
+            // remove the association between the waiter and the wait map unless the
+            // waiting thread has already done so and started a new wait
+            removeWaiter(identifier, waiter);
             return true;
         }
     }
@@ -632,10 +728,9 @@ public class Helper
                     }
                 }
             }
-            // remove the association between the waiter and the wait map
-            synchronized (waitMap) {
-                removeWaiter(identifier);
-            }
+            // remove the association between the waiter and the wait map unless the
+            // waiting thread has already done so and started a new wait
+            removeWaiter(identifier, waiter);
             return true;
         }
     }
@@ -3215,6 +3310,52 @@ public class Helper
         }
     }
 
+    // management support
+
+    /**
+     * return a snapshot of the counters created by rules. this is provided for use by the agent's
+     * management interface rather than as a builtin
+     * @return a map from each counter identifier to its current value
+     */
+    public static Map<Object, Integer> getCounterValues()
+    {
+        synchronized (counterMap) {
+            Map<Object, Integer> values = new HashMap<Object, Integer>();
+            for (Map.Entry<Object, Counter> entry : counterMap.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().count(false));
+            }
+            return values;
+        }
+    }
+
+    /**
+     * return a snapshot of the timers created by rules. this is provided for use by the agent's
+     * management interface rather than as a builtin
+     * @return a map from each timer identifier to its elapsed time in milliseconds
+     */
+    public static Map<Object, Long> getTimerValues()
+    {
+        synchronized (timerMap) {
+            Map<Object, Long> values = new HashMap<Object, Long>();
+            for (Map.Entry<Object, Timer> entry : timerMap.entrySet()) {
+                values.put(entry.getKey(), entry.getValue().getElapsedTime());
+            }
+            return values;
+        }
+    }
+
+    /**
+     * return a snapshot of the flags set by rules. this is provided for use by the agent's management
+     * interface rather than as a builtin
+     * @return the identifiers of the flags which are currently set
+     */
+    public static Set<Object> getFlagValues()
+    {
+        synchronized (flagSet) {
+            return new HashSet<Object>(flagSet);
+        }
+    }
+
     //  private and protected implementation
 
     private StackTraceElement[] stack = null;
@@ -3399,7 +3540,25 @@ public class Helper
      */
     private Waiter removeWaiter(Object object)
     {
-        return waitMap.remove(object);
+        synchronized (waitMap) {
+            return waitMap.remove(object);
+        }
+    }
+
+    /**
+     * remove a specific waiter object used to target wait and signal
+     * requests associated with a specific identifying object leaving
+     * any other waiter which has replaced it in place
+     * @param object the identifer for the waiter
+     * @param waiter the waiter to be removed
+     */
+    private void removeWaiter(Object object, Waiter waiter)
+    {
+        synchronized (waitMap) {
+            if (waitMap.get(object) == waiter) {
+                waitMap.remove(object);
+            }
+        }
     }
 
     private static int nextFileIndex = 0;
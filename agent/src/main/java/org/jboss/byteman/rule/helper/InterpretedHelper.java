@@ -136,7 +136,9 @@ public class InterpretedHelper extends Helper implements HelperAdapter
         // System.out.println(rule.getName() + " execute0");
         bind();
         if (test()) {
+            rule.recordMatched();
             fire();
+            rule.recordFired();
         }
     }
 
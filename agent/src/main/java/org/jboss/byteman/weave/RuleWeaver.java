@@ -0,0 +1,354 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+package org.jboss.byteman.weave;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.byteman.agent.RuleScript;
+import org.jboss.byteman.agent.Transform;
+import org.jboss.byteman.agent.TransformContext;
+import org.jboss.byteman.agent.Transformer;
+import org.jboss.byteman.agent.WovenClassRegistry;
+import org.jboss.byteman.rule.Rule;
+
+/**
+ * offline weaver which injects rule trigger code into compiled classes at build time. classes are transformed
+ * using exactly the same matching and injection code as the agent. the woven classes replace the originals
+ * and a registry recording the woven scripts, trigger methods, rule keys and rule bindings is saved alongside them.
+ *
+ * woven classes must be run with the agent installed and passed the registry using the woven: option.
+ * when a woven class is loaded the agent binds the rules to the woven trigger code rather than transforming
+ * the class so woven rules execute exactly as if the agent had injected them.
+ */
+public class RuleWeaver
+{
+    public RuleWeaver()
+    {
+        ruleTexts = new ArrayList<String>();
+        ruleFiles = new ArrayList<String>();
+        wovenClasses = new ArrayList<String>();
+        errors = new ArrayList<String>();
+        output = null;
+        verbose = false;
+    }
+
+    public void setPrintStream(PrintStream printStream)
+    {
+        output = printStream;
+    }
+
+    public void setVerbose()
+    {
+        verbose = true;
+    }
+
+    /**
+     * add a script whose rules are to be woven
+     * @param file the script file
+     * @return true if the file was read otherwise false
+     */
+    public boolean addRuleFile(String file)
+    {
+        try {
+            ruleTexts.add(new String(readBytes(new FileInputStream(new File(file)))));
+            ruleFiles.add(file);
+        } catch (IOException ioe) {
+            error("ERROR : Unable to read file : " + file + " : " + ioe);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * weave the rules into all classes found below a class directory, replacing the original class files
+     * with the woven versions, and save a registry of the woven classes. if the registry file already
+     * exists then classes it records as woven by the same scripts are left as they are.
+     * @param classesDirectory the root directory of the classes to be woven
+     * @param registryFile the file to which the registry should be written
+     * @param parent a loader able to resolve the dependencies of the classes to be woven
+     * @return true if weaving succeeded otherwise false
+     */
+    public boolean weave(File classesDirectory, File registryFile, ClassLoader parent)
+    {
+        WovenClassRegistry previous = null;
+
+        if (registryFile.isFile()) {
+            try {
+                previous = WovenClassRegistry.read(new FileInputStream(registryFile));
+            } catch (IOException ioe) {
+                error("ERROR : Unable to read woven rule registry : " + registryFile + " : " + ioe);
+                return false;
+            }
+            // the keys embedded in previously woven classes must not be generated again
+            for (WovenClassRegistry.WovenClass wovenClass : previous.getClasses()) {
+                for (WovenClassRegistry.Step step : wovenClass.getSteps()) {
+                    Rule.reserveKeys(step.getRuleKeys());
+                }
+            }
+        }
+
+        boolean sameScripts = (previous != null && previous.getScriptTexts().equals(ruleTexts));
+
+        WeavingTransformer transformer;
+        ClassLoader loader;
+
+        try {
+            transformer = new WeavingTransformer(ruleFiles, ruleTexts);
+            loader = new URLClassLoader(new URL[] { classesDirectory.toURI().toURL() }, parent);
+        } catch (Exception e) {
+            error("ERROR : Unable to process rule scripts : " + e);
+            return false;
+        }
+
+        WovenClassRegistry registry = new WovenClassRegistry();
+
+        for (int i = 0; i < ruleTexts.size(); i++) {
+            registry.addScript(ruleTexts.get(i), ruleFiles.get(i));
+        }
+
+        List<File> classFiles = new ArrayList<File>();
+        findClassFiles(classesDirectory, classFiles);
+        int prefixLength = classesDirectory.getPath().length() + 1;
+
+        for (File classFile : classFiles) {
+            String path = classFile.getPath();
+            String className = path.substring(prefixLength, path.length() - ".class".length()).replace(File.separatorChar, '.');
+            byte[] bytes;
+            try {
+                bytes = readBytes(new FileInputStream(classFile));
+            } catch (IOException ioe) {
+                error("ERROR : Unable to read class file : " + classFile + " : " + ioe);
+                continue;
+            }
+
+            if (previous != null) {
+                WovenClassRegistry.WovenClass wovenClass = previous.lookup(className);
+                if (wovenClass != null && WovenClassRegistry.digest(bytes).equals(wovenClass.getWovenDigest())) {
+                    if (sameScripts) {
+                        // already woven by an earlier build
+                        registry.addClass(wovenClass);
+                        wovenClasses.add(className);
+                    } else {
+                        error("ERROR : Class " + className + " was woven using different rule scripts and must be recompiled before it can be rewoven");
+                    }
+                    continue;
+                }
+            }
+
+            List<WovenClassRegistry.Step> steps = new ArrayList<WovenClassRegistry.Step>();
+            byte[] wovenBytes = transformer.weave(loader, className, bytes, steps, errors);
+
+            if (wovenBytes == null || steps.isEmpty()) {
+                continue;
+            }
+
+            try {
+                FileOutputStream fos = new FileOutputStream(classFile);
+                try {
+                    fos.write(wovenBytes);
+                } finally {
+                    fos.close();
+                }
+            } catch (IOException ioe) {
+                error("ERROR : Unable to write class file : " + classFile + " : " + ioe);
+                continue;
+            }
+
+            registry.addClass(new WovenClassRegistry.WovenClass(className, WovenClassRegistry.digest(bytes), WovenClassRegistry.digest(wovenBytes), steps));
+            wovenClasses.add(className);
+            info("Wove " + steps.size() + " rule" + (steps.size() == 1 ? "" : "s") + " into class " + className);
+        }
+
+        try {
+            File registryDirectory = registryFile.getParentFile();
+            if (registryDirectory != null && !registryDirectory.isDirectory() && !registryDirectory.mkdirs()) {
+                throw new IOException("unable to create directory " + registryDirectory);
+            }
+            FileOutputStream fos = new FileOutputStream(registryFile);
+            try {
+                registry.write(fos);
+            } finally {
+                fos.close();
+            }
+        } catch (IOException ioe) {
+            error("ERROR : Unable to write woven rule registry : " + registryFile + " : " + ioe);
+        }
+
+        return errors.isEmpty();
+    }
+
+    /**
+     * return the names of the classes recorded as woven by the last call to weave
+     * @return the list of class names
+     */
+    public List<String> getWovenClasses()
+    {
+        return wovenClasses;
+    }
+
+    public boolean hasError()
+    {
+        return !errors.isEmpty();
+    }
+
+    public List<String> getErrorMessages()
+    {
+        return errors;
+    }
+
+    private void findClassFiles(File directory, List<File> classFiles)
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findClassFiles(file, classFiles);
+            } else if (file.getName().endsWith(".class")) {
+                classFiles.add(file);
+            }
+        }
+    }
+
+    private static byte[] readBytes(InputStream is) throws IOException
+    {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                bytes.write(buffer, 0, count);
+            }
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private void info(String msg)
+    {
+        if (verbose && output != null) {
+            output.println(msg);
+        }
+    }
+
+    private void error(String msg)
+    {
+        errors.add(msg);
+        if (output != null) {
+            output.println(msg);
+        }
+    }
+
+    /**
+     * a transformer which records the details of each rule it injects
+     */
+    private static class WeavingTransformer extends Transformer
+    {
+        WeavingTransformer(List<String> ruleFiles, List<String> ruleTexts) throws Exception
+        {
+            super(null, ruleFiles, ruleTexts, false);
+        }
+
+        /**
+         * transform a class recording each rule script injected into it
+         * @param loader the loader used to resolve the class structure
+         * @param className the name of the class
+         * @param bytes the class bytecode
+         * @param steps a list to which the details of each injected script are appended
+         * @param errors a list to which any error messages are appended
+         * @return the woven bytecode or null if no rules were injected or injection failed
+         */
+        byte[] weave(ClassLoader loader, String className, byte[] bytes, List<WovenClassRegistry.Step> steps, List<String> errors)
+        {
+            this.steps = steps;
+            this.errors = errors;
+            int errorCount = errors.size();
+            byte[] wovenBytes;
+            try {
+                wovenBytes = transform(loader, className.replace('.', '/'), null, null, bytes);
+            } catch (Exception e) {
+                errors.add("ERROR : Unable to weave class " + className + " : " + e);
+                wovenBytes = null;
+            } finally {
+                this.steps = null;
+                this.errors = null;
+            }
+            return (errors.size() == errorCount ? wovenBytes : null);
+        }
+
+        @Override
+        public byte[] transform(RuleScript ruleScript, ClassLoader loader, String className, byte[] targetClassBytes)
+        {
+            TransformContext transformContext = new TransformContext(this, ruleScript, className, loader, helperManager);
+            int transformCount;
+
+            synchronized (ruleScript) {
+                transformCount = ruleScript.getTransformedCount();
+            }
+
+            byte[] newBytes = transformContext.transform(targetClassBytes);
+            List<WovenClassRegistry.Trigger> triggers = transformContext.getWovenTriggers();
+
+            if (triggers != null) {
+                steps.add(new WovenClassRegistry.Step(ruleScript.getName(), triggers));
+            } else if (newBytes != targetClassBytes) {
+                errors.add("ERROR : Unable to record trigger keys for rule " + ruleScript.getName() + " in class " + className);
+            } else {
+                synchronized (ruleScript) {
+                    List<Transform> transforms = ruleScript.getTransformed();
+                    for (int i = transformCount; transforms != null && i < transforms.size(); i++) {
+                        Transform transform = transforms.get(i);
+                        if (transform.getThrowable() != null) {
+                            errors.add("ERROR : Failed to weave rule " + ruleScript.getName() + " into class " + className + " : " + transform.getDetail());
+                        }
+                    }
+                }
+            }
+
+            return newBytes;
+        }
+
+        private List<WovenClassRegistry.Step> steps;
+        private List<String> errors;
+    }
+
+    private List<String> ruleTexts;
+    private List<String> ruleFiles;
+    private List<String> wovenClasses;
+    private List<String> errors;
+    private PrintStream output;
+    private boolean verbose;
+}
@@ -0,0 +1,137 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.helpertests;
+
+import org.jboss.byteman.tests.Test;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Test to ensure the agent and the jfrEvent builtin emit flight recorder events while a recording
+ * is running and nothing otherwise. the flight recorder API is driven reflectively because it is not
+ * available on every JVM the tests are compiled against. the test does nothing when it is missing.
+ */
+public class TestFlightRecorder extends Test
+{
+    public TestFlightRecorder()
+    {
+        super(TestFlightRecorder.class.getCanonicalName());
+    }
+
+    public void test() throws Exception
+    {
+        Class<?> recordingClass;
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        } catch (ClassNotFoundException e) {
+            return;
+        }
+
+        // no events are emitted until a recording is started
+        assertFalse(isRecording());
+        assertFalse(triggerMethod(1));
+
+        Object recording = recordingClass.newInstance();
+        Method enable = recordingClass.getMethod("enable", String.class);
+        enable.invoke(recording, "org.jboss.byteman.RuleTriggered");
+        enable.invoke(recording, "org.jboss.byteman.RuleConditionEvaluated");
+        enable.invoke(recording, "org.jboss.byteman.rule.TestFlightRecorder");
+        recordingClass.getMethod("start").invoke(recording);
+
+        File file = File.createTempFile("byteman", ".jfr");
+        try {
+            assertTrue(isRecording());
+            assertTrue(triggerMethod(2));
+            assertFalse(triggerMethod(0));
+
+            recordingClass.getMethod("stop").invoke(recording);
+            assertFalse(isRecording());
+            assertFalse(triggerMethod(3));
+
+            Object path = File.class.getMethod("toPath").invoke(file);
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+
+            Class<?> recordingFileClass = Class.forName("jdk.jfr.consumer.RecordingFile");
+            List<?> events = (List<?>)recordingFileClass.getMethod("readAllEvents", pathClass).invoke(null, path);
+
+            int triggered = 0;
+            int matched = 0;
+            int unmatched = 0;
+            int emitted = 0;
+            for (Object event : events) {
+                String name = eventName(event);
+                if (name.equals("org.jboss.byteman.RuleTriggered")) {
+                    if ("test flight recorder event".equals(getValue(event, "ruleName"))) {
+                        assertEquals(TestFlightRecorder.class.getName(), getValue(event, "triggerClass"));
+                        triggered++;
+                    }
+                } else if (name.equals("org.jboss.byteman.RuleConditionEvaluated")) {
+                    if ("test flight recorder event".equals(getValue(event, "ruleName"))) {
+                        if (Boolean.TRUE.equals(getValue(event, "matched"))) {
+                            matched++;
+                        } else {
+                            unmatched++;
+                        }
+                    }
+                } else if (name.equals("org.jboss.byteman.rule.TestFlightRecorder")) {
+                    // the field types are taken from the values supplied by the rule
+                    assertEquals(Integer.valueOf(2), getValue(event, "count"));
+                    assertEquals("run 2", getValue(event, "label"));
+                    emitted++;
+                }
+            }
+            assertEquals(2, triggered);
+            assertEquals(1, matched);
+            assertEquals(1, unmatched);
+            assertEquals(1, emitted);
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            file.delete();
+        }
+    }
+
+    private String eventName(Object event) throws Exception
+    {
+        Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+        return (String)eventType.getClass().getMethod("getName").invoke(eventType);
+    }
+
+    private Object getValue(Object event, String field) throws Exception
+    {
+        return event.getClass().getMethod("getValue", String.class).invoke(event, field);
+    }
+
+    public boolean triggerMethod(int count)
+    {
+        return false;
+    }
+
+    public boolean isRecording()
+    {
+        return false;
+    }
+}
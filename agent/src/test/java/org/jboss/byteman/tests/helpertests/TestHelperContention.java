@@ -0,0 +1,429 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.helpertests;
+
+import org.jboss.byteman.tests.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test to ensure the helper builtins which manage shared state behave correctly when they are
+ * called from many threads at once using both the same key and distinct keys. each trigger method
+ * below is replaced by a rule which calls the builtin of the same name. the checks are invariants
+ * which must continue to hold if the builtins are reimplemented to reduce contention.
+ */
+public class TestHelperContention extends Test
+{
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 1000;
+    private static final int ROUNDS = 100;
+    private static final long TIMEOUT = 30000;
+
+    public TestHelperContention()
+    {
+        super(TestHelperContention.class.getCanonicalName());
+    }
+
+    public void testCounters() throws Exception
+    {
+        final String shared = "contention counter";
+        runThreads(new Task() {
+            public void run(int thread) throws Exception {
+                String distinct = "contention counter " + thread;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    increment(shared);
+                    increment(distinct);
+                }
+            }
+        });
+        assertEquals(THREADS * ITERATIONS, readCounter(shared));
+        for (int thread = 0; thread < THREADS; thread++) {
+            assertEquals(ITERATIONS, readCounter("contention counter " + thread));
+        }
+    }
+
+    public void testCountDowns() throws Exception
+    {
+        final String shared = "contention countdown";
+        final AtomicInteger sharedFired = new AtomicInteger();
+        final AtomicInteger distinctFired = new AtomicInteger();
+        // a countdown created with count n returns true on the (n + 1)th call
+        assertTrue(createCountDown(shared, THREADS * ITERATIONS - 1));
+        for (int thread = 0; thread < THREADS; thread++) {
+            assertTrue(createCountDown("contention countdown " + thread, ITERATIONS - 1));
+        }
+        runThreads(new Task() {
+            public void run(int thread) throws Exception {
+                String distinct = "contention countdown " + thread;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    if (countDown(shared)) {
+                        sharedFired.incrementAndGet();
+                    }
+                    if (countDown(distinct)) {
+                        // the last decrement of a distinct countdown must be the thread's last call
+                        assertEquals(ITERATIONS - 1, i);
+                        distinctFired.incrementAndGet();
+                    }
+                }
+            }
+        });
+        assertEquals(1, sharedFired.get());
+        assertEquals(THREADS, distinctFired.get());
+    }
+
+    public void testFlags() throws Exception
+    {
+        final String shared = "contention flag";
+        final AtomicInteger flagged = new AtomicInteger();
+        final AtomicInteger cleared = new AtomicInteger();
+        runThreads(new Task() {
+            public void run(int thread) throws Exception {
+                String distinct = "contention flag " + thread;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    if (flag(shared)) {
+                        flagged.incrementAndGet();
+                    }
+                    if (clear(shared)) {
+                        cleared.incrementAndGet();
+                    }
+                    // no other thread uses this flag so every call must change its state
+                    assertTrue(flag(distinct));
+                    assertTrue(isFlagged(distinct));
+                    assertFalse(flag(distinct));
+                    assertTrue(clear(distinct));
+                    assertFalse(isFlagged(distinct));
+                }
+            }
+        });
+        // every successful set must be matched by a successful clear
+        assertTrue(flagged.get() > 0);
+        assertEquals(flagged.get(), cleared.get());
+        assertFalse(isFlagged(shared));
+    }
+
+    public void testRendezvous() throws Exception
+    {
+        final String shared = "contention rendezvous";
+        final AtomicLong ordinalSum = new AtomicLong();
+        final AtomicInteger firstCount = new AtomicInteger();
+        assertTrue(createRendezvous(shared, THREADS));
+        runThreads(new Task() {
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < ROUNDS; i++) {
+                    int ordinal = rendezvous(shared, TIMEOUT);
+                    assertTrue(ordinal >= 0 && ordinal < THREADS);
+                    ordinalSum.addAndGet(ordinal);
+                    if (ordinal == 0) {
+                        firstCount.incrementAndGet();
+                    }
+                }
+            }
+        });
+        // each round must hand out every ordinal from 0 to THREADS - 1 exactly once
+        assertEquals(ROUNDS, firstCount.get());
+        assertEquals((long)ROUNDS * THREADS * (THREADS - 1) / 2, ordinalSum.get());
+        assertTrue(deleteRendezvous(shared, THREADS));
+    }
+
+    public void testJoins() throws Exception
+    {
+        // each thread acts as the parent of its own join so the joins run concurrently
+        runThreads(new Task() {
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < ROUNDS / 10; i++) {
+                    final String key = "contention join " + thread + " " + i;
+                    assertTrue(createJoin(key, THREADS));
+                    Thread[] children = new Thread[THREADS];
+                    for (int j = 0; j < THREADS; j++) {
+                        children[j] = new Thread() {
+                            public void run() {
+                                joinEnlist(key);
+                            }
+                        };
+                        children[j].start();
+                    }
+                    assertTrue(joinWait(key, THREADS, TIMEOUT));
+                    for (int j = 0; j < THREADS; j++) {
+                        assertFalse(children[j].isAlive());
+                    }
+                }
+            }
+        });
+    }
+
+    public void testTimers() throws Exception
+    {
+        final String shared = "contention timer";
+        assertTrue(createTimer(shared));
+        runThreads(new Task() {
+            public void run(int thread) throws Exception {
+                String distinct = "contention timer " + thread;
+                assertTrue(createTimer(distinct));
+                long lastShared = 0;
+                long lastDistinct = 0;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    long elapsedShared = getElapsedTime(shared);
+                    long elapsedDistinct = getElapsedTime(distinct);
+                    // successive readings made by one thread must never go backwards
+                    assertTrue(elapsedShared >= lastShared);
+                    assertTrue(elapsedDistinct >= lastDistinct);
+                    lastShared = elapsedShared;
+                    lastDistinct = elapsedDistinct;
+                }
+                assertTrue(deleteTimer(distinct));
+            }
+        });
+        assertTrue(deleteTimer(shared));
+    }
+
+    public void testWaiters() throws Exception
+    {
+        // each pair of threads passes signals back and forth using a distinct key
+        final AtomicInteger woken = new AtomicInteger();
+        runThreads(new Task() {
+            public void run(int thread) throws Exception {
+                String key = "contention waiter " + (thread / 2);
+                for (int i = 0; i < ROUNDS; i++) {
+                    if (thread % 2 == 0) {
+                        waitFor(key, TIMEOUT);
+                        woken.incrementAndGet();
+                    } else {
+                        // the rule passes mustMeet so the signal waits for the other thread and is never lost
+                        signalWake(key);
+                    }
+                }
+            }
+        });
+        assertEquals((THREADS / 2) * ROUNDS, woken.get());
+    }
+
+    public void testTrace() throws Exception
+    {
+        final String shared = "contention trace";
+        File file = File.createTempFile("contention", ".txt");
+        try {
+            assertTrue(openTrace(shared, file.getPath()));
+            runThreads(new Task() {
+                public void run(int thread) throws Exception {
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        assertTrue(traceln(shared, "thread " + thread + " line " + i));
+                    }
+                }
+            });
+            assertTrue(closeTrace(shared));
+
+            // every line must be written whole and each thread's lines must appear in order
+            int[] next = new int[THREADS];
+            int count = 0;
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                while (line != null) {
+                    String[] words = line.split(" ");
+                    assertEquals(4, words.length);
+                    int thread = Integer.parseInt(words[1]);
+                    assertEquals(next[thread], Integer.parseInt(words[3]));
+                    next[thread]++;
+                    count++;
+                    line = reader.readLine();
+                }
+            } finally {
+                reader.close();
+            }
+            assertEquals(THREADS * ITERATIONS, count);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private interface Task
+    {
+        public void run(int thread) throws Exception;
+    }
+
+    /**
+     * run a task in THREADS threads at once, releasing them together, and fail if any of them
+     * fails or does not complete within the timeout
+     */
+    private void runThreads(final Task task) throws Exception
+    {
+        final Object lock = new Object();
+        final boolean[] started = new boolean[1];
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        synchronized (lock) {
+                            while (!started[0]) {
+                                lock.wait();
+                            }
+                        }
+                        task.run(thread);
+                    } catch (Throwable th) {
+                        synchronized (failures) {
+                            failures.add(th);
+                        }
+                    }
+                }
+            };
+            // a deadlocked thread must not stop the JVM exiting
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        synchronized (lock) {
+            started[0] = true;
+            lock.notifyAll();
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (int i = 0; i < THREADS; i++) {
+            threads[i].join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (threads[i].isAlive()) {
+                fail("thread " + i + " did not complete");
+            }
+        }
+        synchronized (failures) {
+            if (!failures.isEmpty()) {
+                Throwable th = failures.get(0);
+                if (th instanceof Error) {
+                    throw (Error)th;
+                }
+                throw (Exception)th;
+            }
+        }
+    }
+
+    // trigger methods which are replaced by rules calling the builtin of the same name
+
+    public void increment(String key)
+    {
+    }
+
+    public int readCounter(String key)
+    {
+        return -1;
+    }
+
+    public boolean createCountDown(String key, int count)
+    {
+        return false;
+    }
+
+    public boolean countDown(String key)
+    {
+        return false;
+    }
+
+    public boolean flag(String key)
+    {
+        return false;
+    }
+
+    public boolean isFlagged(String key)
+    {
+        return false;
+    }
+
+    public boolean clear(String key)
+    {
+        return false;
+    }
+
+    public boolean createRendezvous(String key, int expected)
+    {
+        return false;
+    }
+
+    public int rendezvous(String key, long millis)
+    {
+        return -1;
+    }
+
+    public boolean deleteRendezvous(String key, int expected)
+    {
+        return false;
+    }
+
+    public boolean createJoin(String key, int max)
+    {
+        return false;
+    }
+
+    public boolean joinEnlist(String key)
+    {
+        return false;
+    }
+
+    public boolean joinWait(String key, int count, long millis)
+    {
+        return false;
+    }
+
+    public boolean createTimer(String key)
+    {
+        return false;
+    }
+
+    public long getElapsedTime(String key)
+    {
+        return -1;
+    }
+
+    public boolean deleteTimer(String key)
+    {
+        return false;
+    }
+
+    public void waitFor(String key, long millis)
+    {
+    }
+
+    public boolean signalWake(String key)
+    {
+        return false;
+    }
+
+    public boolean openTrace(String key, String fileName)
+    {
+        return false;
+    }
+
+    public boolean traceln(String key, String message)
+    {
+        return false;
+    }
+
+    public boolean closeTrace(String key)
+    {
+        return false;
+    }
+}
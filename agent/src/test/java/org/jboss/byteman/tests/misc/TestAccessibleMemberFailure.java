@@ -0,0 +1,69 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.rule.exception.ExecuteException;
+import org.jboss.byteman.tests.Test;
+
+/**
+ * Test to ensure an exception thrown by a non-public method called from a rule is reported as an
+ * ExecuteException carrying the original exception whether the rule is interpreted or compiled
+ */
+public class TestAccessibleMemberFailure extends Test
+{
+    public TestAccessibleMemberFailure()
+    {
+        super(TestAccessibleMemberFailure.class.getCanonicalName());
+    }
+
+    private int value = 17;
+
+    public void test()
+    {
+        // a successful call to a private method and a private field read behave normally
+        assertEquals(34, triggerMethod(2));
+
+        try {
+            triggerMethod(-1);
+            fail("exception thrown by private method was not propagated");
+        } catch (ExecuteException e) {
+            Throwable cause = e.getCause();
+            assertTrue(cause instanceof IllegalStateException);
+            assertEquals("negative multiplier -1", cause.getMessage());
+        }
+    }
+
+    public int triggerMethod(int multiplier)
+    {
+        return 0;
+    }
+
+    private int multiply(int multiplier)
+    {
+        if (multiplier < 0) {
+            throw new IllegalStateException("negative multiplier " + multiplier);
+        }
+        return value * multiplier;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.tests.Test;
+import org.jboss.byteman.tests.auxiliary.TestAnnotationAuxiliary;
+
+/**
+ * Test class to ensure injection into annotated classes and methods works as expected
+ */
+public class TestAnnotationInjection extends Test
+{
+    public TestAnnotationInjection()
+    {
+        super(TestAnnotationInjection.class.getName());
+    }
+
+    public void test()
+    {
+        try {
+        TestAnnotationAuxiliary testAuxiliary = new TestAnnotationAuxiliary(this);
+        log("calling TestAnnotationAuxiliary.testMethod");
+        testAuxiliary.testMethod();
+        log("called TestAnnotationAuxiliary.testMethod");
+        log("calling TestAnnotationAuxiliary.annotatedMethod");
+        testAuxiliary.annotatedMethod();
+        log("called TestAnnotationAuxiliary.annotatedMethod");
+        log("calling TestAnnotationAuxiliary.plainMethod");
+        testAuxiliary.plainMethod();
+        log("called TestAnnotationAuxiliary.plainMethod");
+        } catch (Exception e) {
+            log(e);
+        }
+
+        checkOutput();
+    }
+
+    @Override
+    public String getExpected() {
+        logExpected("calling TestAnnotationAuxiliary.testMethod");
+        logExpected("ENTRY triggered in @TestAnnotation.testMethod");
+        logExpected("inside TestAnnotationAuxiliary.testMethod");
+        logExpected("called TestAnnotationAuxiliary.testMethod");
+        logExpected("calling TestAnnotationAuxiliary.annotatedMethod");
+        logExpected("ENTRY triggered in @TestAnnotation method");
+        logExpected("inside TestAnnotationAuxiliary.annotatedMethod");
+        logExpected("called TestAnnotationAuxiliary.annotatedMethod");
+        // the method pattern only matches annotated methods
+        logExpected("calling TestAnnotationAuxiliary.plainMethod");
+        logExpected("inside TestAnnotationAuxiliary.plainMethod");
+        logExpected("called TestAnnotationAuxiliary.plainMethod");
+
+        return super.getExpected();
+    }
+}
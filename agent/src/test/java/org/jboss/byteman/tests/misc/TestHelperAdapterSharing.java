@@ -0,0 +1,127 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.tests.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test to ensure that when an interface rule is injected into several trigger classes in the same loader
+ * all the resulting rule instances share a single helper adapter
+ */
+public class TestHelperAdapterSharing extends Test
+{
+    public TestHelperAdapterSharing()
+    {
+        super(TestHelperAdapterSharing.class.getName());
+    }
+
+    public void test() throws Exception
+    {
+        int defined = getDefinedHelperAdapterCount();
+
+        Shape[] shapes = { new Triangle(), new Square(), new Pentagon() };
+        for (int i = 0; i < shapes.length; i++) {
+            log("sides " + shapes[i].sides(i + 1));
+        }
+
+        synchronized (triggers) {
+            for (Object trigger : triggers) {
+                log("triggered with " + trigger);
+            }
+        }
+
+        // all three rule instances employ the same adapter
+
+        assertEquals(1, getDefinedHelperAdapterCount() - defined);
+
+        checkOutput();
+    }
+
+    /**
+     * called from the rule actions to record that they have fired
+     * @param value the rule's trigger method argument
+     */
+    public static void triggered(Object value)
+    {
+        synchronized (triggers) {
+            triggers.add(value);
+        }
+    }
+
+    private static int getDefinedHelperAdapterCount() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.jboss.byteman:type=AgentStatistics");
+        return (Integer)server.getAttribute(name, "DefinedHelperAdapterCount");
+    }
+
+    @Override
+    public String getExpected() {
+        logExpected("sides 3");
+        logExpected("sides 8");
+        logExpected("sides 15");
+        logExpected("triggered with 1");
+        logExpected("triggered with 2");
+        logExpected("triggered with 3");
+
+        return super.getExpected();
+    }
+
+    private static final List<Object> triggers = new ArrayList<Object>();
+
+    public interface Shape
+    {
+        public int sides(int scale);
+    }
+
+    public static class Triangle implements Shape
+    {
+        public int sides(int scale)
+        {
+            return 3 * scale;
+        }
+    }
+
+    public static class Square implements Shape
+    {
+        public int sides(int scale)
+        {
+            return 4 * scale;
+        }
+    }
+
+    public static class Pentagon implements Shape
+    {
+        public int sides(int scale)
+        {
+            return 5 * scale;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.tests.Test;
+import org.jboss.byteman.tests.auxiliary.TestEntryExitAuxiliarySub;
+import org.jboss.byteman.tests.auxiliary.TestEntryExitAuxiliary;
+
+/**
+ * Test class to ensure injection into classes and interfaces identified by a wildcard pattern works as expected
+ */
+public class TestPatternInjection extends Test
+{
+    public TestPatternInjection()
+    {
+        super(TestPatternInjection.class.getName());
+    }
+
+    public void test()
+    {
+        try {
+        TestEntryExitAuxiliary testAuxiliary;
+        log("creating TestEntryExitAuxiliarySub");
+        testAuxiliary = new TestEntryExitAuxiliarySub(this);
+        log("created TestEntryExitAuxiliarySub");
+        log("calling TestEntryExitAuxiliarySub.testMethod");
+        testAuxiliary.testMethod();
+        log("called TestEntryExitAuxiliarySub.testMethod");
+        } catch (Exception e) {
+            log(e);
+        }
+
+        checkOutput();
+    }
+
+    @Override
+    public String getExpected() {
+        logExpected("creating TestEntryExitAuxiliarySub");
+        logExpected("inside TestEntryExitAuxiliary(Test)");
+        logExpected("inside TestEntryExitAuxiliarySub(Test)");
+        logExpected("created TestEntryExitAuxiliarySub");
+        logExpected("calling TestEntryExitAuxiliarySub.testMethod");
+        // the qualified pattern matches both the subclass and the superclass
+        logExpected("ENTRY triggered in org.jboss.byteman.tests.auxiliary.TestEntryExitAuxiliarySub.testMethod");
+        logExpected("inside TestEntryExitAuxiliarySub.testMethod");
+        logExpected("calling TestEntryExitAuxiliary.testMethod");
+        // the interface pattern only matches the superclass which implements TestInterface. interface
+        // rules are injected after class rules so their ENTRY trigger runs first
+        logExpected("ENTRY triggered in Test*face.testMethod");
+        logExpected("ENTRY triggered in org.jboss.byteman.tests.auxiliary.TestEntryExitAuxiliarySub.testMethod");
+        logExpected("inside TestEntryExitAuxiliary.testMethod");
+        logExpected("called TestEntryExitAuxiliary.testMethod");
+        // the unqualified pattern only matches the subclass
+        logExpected("EXIT triggered in *AuxiliarySub.testMethod");
+        logExpected("called TestEntryExitAuxiliarySub.testMethod");
+
+        return super.getExpected();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.agent.AgentStatistics;
+import org.jboss.byteman.agent.RetransformScheduler;
+import org.jboss.byteman.agent.Transformer;
+import org.jboss.byteman.tests.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test to ensure the retransform scheduler isolates a class which fails to retransform and reports the
+ * classes it skips. the scheduler is driven with a dummy Instrumentation which records each call to
+ * retransformClasses. in synchronous mode this checks that a failing chunk is split until the failing
+ * class is isolated. in asynchronous mode, selected by setting org.jboss.byteman.retransform.async, it
+ * checks that batches are applied on a background thread and that a batch interrupted by shutdown still
+ * completes, reporting the classes it did not retransform
+ */
+public class TestRetransformScheduler extends Test
+{
+    public TestRetransformScheduler()
+    {
+        super(TestRetransformScheduler.class.getCanonicalName());
+    }
+
+    public void test() throws Exception
+    {
+        if (Transformer.isRetransformAsync()) {
+            checkAsync();
+        } else {
+            checkSplit();
+        }
+    }
+
+    /**
+     * run with a chunk size of 4
+     */
+    private void checkSplit() throws Exception
+    {
+        DummyInstrumentation dummy = new DummyInstrumentation(Double.class, null);
+        RetransformScheduler scheduler = new RetransformScheduler(dummy.getInstrumentation(), new AgentStatistics());
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        Recorder recorder = new Recorder();
+
+        scheduler.retransform(CLASSES, out, recorder);
+        out.flush();
+
+        // the second chunk fails so it is split in half and the failing half is split again
+
+        List<List<Class<?>>> expected = new ArrayList<List<Class<?>>>();
+        expected.add(Arrays.<Class<?>>asList(String.class, Integer.class, Long.class, Short.class));
+        expected.add(Arrays.<Class<?>>asList(Byte.class, Double.class, Float.class, Character.class));
+        expected.add(Arrays.<Class<?>>asList(Byte.class, Double.class));
+        expected.add(Arrays.<Class<?>>asList(Byte.class));
+        expected.add(Arrays.<Class<?>>asList(Double.class));
+        expected.add(Arrays.<Class<?>>asList(Float.class, Character.class));
+        assertEquals(expected, dummy.getCalls());
+
+        assertTrue(recorder.await());
+        assertEquals(Arrays.<Class<?>>asList(Double.class), recorder.getSkipped());
+        String text = output.toString();
+        assertTrue(text, text.contains("ERROR failed to retransform class java.lang.Double"));
+        assertFalse(text, text.contains("retransformed class java.lang.Double"));
+        assertTrue(text, text.contains("retransformed class java.lang.Float"));
+        assertTrue(text, text.contains("retransformed 7 of 8 classes in 2 chunks"));
+    }
+
+    /**
+     * run with a chunk size of 1 and a pause of 100 milliseconds
+     */
+    private void checkAsync() throws Exception
+    {
+        // a failing class is isolated and the completion is run by the background thread
+
+        DummyInstrumentation dummy = new DummyInstrumentation(Double.class, null);
+        RetransformScheduler scheduler = new RetransformScheduler(dummy.getInstrumentation(), new AgentStatistics());
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        Recorder recorder = new Recorder();
+
+        scheduler.retransform(CLASSES, out, recorder);
+        out.flush();
+        assertEquals("scheduled retransformation of 8 classes", output.toString().trim());
+        assertTrue(recorder.await());
+        assertEquals(Arrays.<Class<?>>asList(Double.class), recorder.getSkipped());
+        assertNotSame(Thread.currentThread(), recorder.getThread());
+        assertEquals(CLASSES.length, dummy.getCalls().size());
+        scheduler.shutdown();
+
+        // shutting down while the scheduler is pausing between chunks abandons the rest of the batch
+        // but the batch is still completed and the classes which were not retransformed are reported
+
+        CountDownLatch started = new CountDownLatch(1);
+        dummy = new DummyInstrumentation(null, started);
+        scheduler = new RetransformScheduler(dummy.getInstrumentation(), new AgentStatistics());
+        recorder = new Recorder();
+
+        scheduler.retransform(CLASSES, new PrintWriter(new StringWriter()), recorder);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertTrue(recorder.await());
+        List<Class<?>> outstanding = new ArrayList<Class<?>>(Arrays.<Class<?>>asList(CLASSES));
+        for (List<Class<?>> call : dummy.getCalls()) {
+            outstanding.removeAll(call);
+        }
+        assertFalse(outstanding.isEmpty());
+        assertEquals(outstanding, recorder.getSkipped());
+        assertTrue("interrupt was not restored", recorder.wasInterrupted());
+    }
+
+    /**
+     * completion which records the classes skipped by a batch
+     */
+    private static class Recorder implements RetransformScheduler.Completion
+    {
+        public void completed(List<Class<?>> skipped)
+        {
+            this.skipped = new ArrayList<Class<?>>(skipped);
+            this.thread = Thread.currentThread();
+            this.interrupted = thread.isInterrupted();
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException
+        {
+            return latch.await(10, TimeUnit.SECONDS);
+        }
+
+        List<Class<?>> getSkipped()
+        {
+            return skipped;
+        }
+
+        Thread getThread()
+        {
+            return thread;
+        }
+
+        boolean wasInterrupted()
+        {
+            return interrupted;
+        }
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile List<Class<?>> skipped;
+        private volatile Thread thread;
+        private volatile boolean interrupted;
+    }
+
+    /**
+     * an Instrumentation which records the classes passed to each retransformClasses call and rejects
+     * any call which includes a specific class
+     */
+    private static class DummyInstrumentation implements InvocationHandler
+    {
+        DummyInstrumentation(Class<?> failing, CountDownLatch started)
+        {
+            this.failing = failing;
+            this.started = started;
+        }
+
+        Instrumentation getInstrumentation()
+        {
+            return (Instrumentation)Proxy.newProxyInstance(Instrumentation.class.getClassLoader(), new Class<?>[] { Instrumentation.class }, this);
+        }
+
+        List<List<Class<?>>> getCalls()
+        {
+            synchronized (calls) {
+                return new ArrayList<List<Class<?>>>(calls);
+            }
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            if (!method.getName().equals("retransformClasses")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            List<Class<?>> classes = Arrays.asList((Class<?>[])args[0]);
+            synchronized (calls) {
+                calls.add(classes);
+            }
+            if (started != null) {
+                started.countDown();
+            }
+            if (classes.contains(failing)) {
+                throw new UnmodifiableClassException(failing.getName());
+            }
+            return null;
+        }
+
+        private final Class<?> failing;
+        private final CountDownLatch started;
+        private final List<List<Class<?>>> calls = new ArrayList<List<Class<?>>>();
+    }
+
+    private static final Class<?>[] CLASSES = {
+            String.class, Integer.class, Long.class, Short.class, Byte.class, Double.class, Float.class, Character.class
+    };
+}
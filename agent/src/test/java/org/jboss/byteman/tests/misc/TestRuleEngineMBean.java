@@ -0,0 +1,141 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.agent.RuleScript;
+import org.jboss.byteman.agent.ScriptRepository;
+import org.jboss.byteman.tests.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Test to ensure the rule engine management bean exposes installed rules and helper state as open
+ * data and can disable and enable a rule
+ */
+public class TestRuleEngineMBean extends Test
+{
+    public TestRuleEngineMBean()
+    {
+        super(TestRuleEngineMBean.class.getCanonicalName());
+    }
+
+    public void test() throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.jboss.byteman:type=RuleEngine");
+
+        triggerMethod();
+
+        CompositeData rule = findRule(server, name);
+        assertEquals(TestRuleEngineMBean.class.getName(), rule.get("targetClass"));
+        assertEquals("triggerMethod", rule.get("targetMethod"));
+        assertEquals(Boolean.TRUE, rule.get("enabled"));
+        assertEquals(Long.valueOf(1), rule.get("triggerCount"));
+        assertEquals(Long.valueOf(1), rule.get("firedCount"));
+        CompositeData[] transforms = (CompositeData[])rule.get("transforms");
+        assertTrue(transforms.length >= 1);
+        assertEquals(TestRuleEngineMBean.class.getName(), transforms[0].get("className"));
+
+        assertEquals(Integer.valueOf(1), counterValue(server, name));
+
+        // counters whose identifiers print the same are listed separately
+        TabularData counters = (TabularData)server.getAttribute(name, "Counters");
+        assertNotNull(counters.get(new Object[] { "42" }));
+        boolean found = false;
+        for (Object value : counters.values()) {
+            String key = (String)((CompositeData)value).get("key");
+            if (key.startsWith("42 (java.lang.Integer@")) {
+                assertEquals(Integer.valueOf(1), ((CompositeData)value).get("value"));
+                found = true;
+            }
+        }
+        assertTrue("no entry for Integer counter 42", found);
+
+        String[] flags = (String[])server.getAttribute(name, "Flags");
+        assertTrue(Arrays.asList(flags).contains("rule engine flag"));
+        TabularData timers = (TabularData)server.getAttribute(name, "Timers");
+        assertNotNull(timers.get(new Object[] { "rule engine timer" }));
+
+        // a disabled rule is not executed
+        Object[] params = new Object[] { "test rule engine mbean" };
+        String[] signature = new String[] { String.class.getName() };
+        assertEquals(Boolean.TRUE, server.invoke(name, "disableRule", params, signature));
+        triggerMethod();
+        assertEquals(Integer.valueOf(1), counterValue(server, name));
+        assertEquals(Boolean.FALSE, findRule(server, name).get("enabled"));
+
+        assertEquals(Boolean.TRUE, server.invoke(name, "enableRule", params, signature));
+        triggerMethod();
+        assertEquals(Integer.valueOf(2), counterValue(server, name));
+
+        assertEquals(Boolean.FALSE, server.invoke(name, "disableRule", new Object[] { "no such rule" }, signature));
+    }
+
+    public void testRedefineKeepsDisabled() throws Exception
+    {
+        String text = "RULE redefined rule\n" +
+                "CLASS " + TestRuleEngineMBean.class.getName() + "\n" +
+                "METHOD triggerMethod\n" +
+                "AT ENTRY\n" +
+                "IF TRUE\n" +
+                "DO traceln(\"redefined rule fired\")\n" +
+                "ENDRULE\n";
+        ScriptRepository repository = new ScriptRepository(false);
+        RuleScript script = repository.processScripts(text, "redefine.btm").get(0);
+        assertNull(repository.addScript(script));
+        script.setDisabled(true);
+
+        RuleScript redefined = repository.processScripts(text, "redefine.btm").get(0);
+        assertSame(script, repository.addScript(redefined));
+        assertTrue(redefined.isDisabled());
+    }
+
+    private CompositeData findRule(MBeanServer server, ObjectName name) throws Exception
+    {
+        CompositeData[] rules = (CompositeData[])server.getAttribute(name, "Rules");
+        for (CompositeData rule : rules) {
+            if ("test rule engine mbean".equals(rule.get("name"))) {
+                return rule;
+            }
+        }
+        fail("rule not found");
+        return null;
+    }
+
+    private Integer counterValue(MBeanServer server, ObjectName name) throws Exception
+    {
+        TabularData counters = (TabularData)server.getAttribute(name, "Counters");
+        CompositeData counter = counters.get(new Object[] { "rule engine counter" });
+        return (counter == null ? null : (Integer)counter.get("value"));
+    }
+
+    public void triggerMethod()
+    {
+    }
+}
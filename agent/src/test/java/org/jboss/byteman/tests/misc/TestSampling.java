@@ -0,0 +1,119 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.agent.RuleScript;
+import org.jboss.byteman.agent.ScriptRepository;
+import org.jboss.byteman.tests.Test;
+
+import java.util.List;
+
+/**
+ * Test to ensure a rule with a SAMPLE clause is only executed for the requested fraction of
+ * its triggers and that invalid SAMPLE clauses are rejected
+ */
+public class TestSampling extends Test
+{
+    private static final int TRIGGERS = 10000;
+
+    public TestSampling()
+    {
+        super(TestSampling.class.getCanonicalName());
+    }
+
+    public void testSampling()
+    {
+        for (int i = 0; i < TRIGGERS; i++) {
+            triggerMethod();
+        }
+
+        assertEquals(TRIGGERS, readCounter("sampling every trigger"));
+
+        // the expected count is 1000 with a standard deviation of 30 so this cannot fail by chance
+        int sampled = readCounter("sampling one in ten");
+        assertTrue("sampled " + sampled, sampled > 700 && sampled < 1300);
+    }
+
+    public void testParse() throws Exception
+    {
+        ScriptRepository repository = new ScriptRepository(false);
+        List<RuleScript> scripts = repository.processScripts(getRuleText("SAMPLE 1  IN 1000"), "sample.btm");
+        RuleScript script = scripts.get(0);
+        assertEquals(1, script.getSampleCount());
+        assertEquals(1000, script.getSamplePeriod());
+        assertTrue(script.toString().contains("SAMPLE 1 IN 1000\n"));
+
+        // reparsing the listed script gives the same rule
+        script = repository.processScripts(script.toString(), "sample.btm").get(0);
+        assertEquals(1, script.getSampleCount());
+        assertEquals(1000, script.getSamplePeriod());
+
+        // sampling every trigger is the same as not sampling
+        script = repository.processScripts(getRuleText("SAMPLE 3 IN 3"), "sample.btm").get(0);
+        assertEquals(0, script.getSamplePeriod());
+        assertTrue(script.sample());
+        assertFalse(script.toString().contains("SAMPLE"));
+
+        checkInvalid("SAMPLE 0 IN 10");
+        checkInvalid("SAMPLE 11 IN 10");
+        checkInvalid("SAMPLE 1 OF 10");
+        checkInvalid("SAMPLE 1 IN");
+        checkInvalid("SAMPLE one IN ten");
+    }
+
+    private void checkInvalid(String clause)
+    {
+        try {
+            new ScriptRepository(false).processScripts(getRuleText(clause), "sample.btm");
+            fail("accepted " + clause);
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("SAMPLE"));
+        }
+    }
+
+    private String getRuleText(String sampleClause)
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("RULE sample parse rule\n");
+        buffer.append("CLASS TestSampling\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append(sampleClause);
+        buffer.append("\nAT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO traceln(\"sample parse rule fired\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public void triggerMethod()
+    {
+    }
+
+    public int readCounter(String name)
+    {
+        return -1;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.misc;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Test to ensure transforms are written to the transform cache by one run and reused by the next. this
+ * repeats TestInterfaceInjection then checks the agent statistics. the second run is identified by setting
+ * system property org.jboss.byteman.tests.transform.cache.reused. a third run identified by setting system
+ * property org.jboss.byteman.tests.transform.cache.evicted limits the cache size to zero so the cached
+ * transforms are evicted and no new ones are saved
+ */
+public class TestTransformCache extends TestInterfaceInjection
+{
+    public void test()
+    {
+        super.test();
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.jboss.byteman:type=AgentStatistics");
+            long hits = (Long)server.getAttribute(name, "TransformCacheHits");
+            long stores = (Long)server.getAttribute(name, "TransformCacheStores");
+            if (Boolean.getBoolean("org.jboss.byteman.tests.transform.cache.evicted")) {
+                assertEquals(0, hits);
+                assertEquals(0, stores);
+            } else if (Boolean.getBoolean("org.jboss.byteman.tests.transform.cache.reused")) {
+                assertTrue("no transforms reused from cache", hits > 0);
+                assertEquals(0, stores);
+            } else {
+                assertEquals(0, hits);
+                assertTrue("no transforms written to cache", stores > 0);
+            }
+        } catch (Exception e) {
+            fail("unable to read agent statistics : " + e);
+        }
+    }
+}
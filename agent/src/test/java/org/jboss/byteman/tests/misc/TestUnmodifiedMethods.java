@@ -0,0 +1,206 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.misc;
+
+import org.jboss.byteman.tests.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test to ensure that when a rule is injected into a class the methods which do not receive a trigger
+ * are copied into the transformed class exactly as they were. the transformed bytecode is obtained by
+ * running the agent with org.jboss.byteman.dump.generated.classes set and the method_info structures,
+ * including their Code attributes and frames, are compared with those in the original class file
+ */
+public class TestUnmodifiedMethods extends Test
+{
+    public TestUnmodifiedMethods()
+    {
+        super(TestUnmodifiedMethods.class.getName());
+    }
+
+    public void test() throws Exception
+    {
+        // n.b. using Target.class here would load and transform the class before the stale dump
+        // file can be removed
+
+        String resource = getClass().getName().replace('.', '/') + "$Target.class";
+        File dumpDir = new File(System.getProperty("org.jboss.byteman.dump.generated.classes.directory"));
+        File dumpFile = new File(dumpDir, resource);
+
+        // Target is only loaded and transformed once the first instance is created so make sure
+        // there is no dump file left over from a previous run
+
+        dumpFile.delete();
+
+        Target target = new Target();
+        log("sum " + target.sum(4));
+        log("parse " + target.parse("12") + " " + target.parse("twelve"));
+        log("trigger " + target.trigger(3));
+
+        assertTrue("transformed class was not dumped to " + dumpFile, dumpFile.isFile());
+
+        Map<String, byte[]> original = readMethods(readBytes(getClass().getClassLoader().getResourceAsStream(resource)));
+        Map<String, byte[]> transformed = readMethods(readBytes(new FileInputStream(dumpFile)));
+
+        assertEquals(original.keySet(), transformed.keySet());
+        for (String method : original.keySet()) {
+            boolean identical = Arrays.equals(original.get(method), transformed.get(method));
+            if (method.startsWith("trigger(")) {
+                assertFalse("trigger method " + method + " was not transformed", identical);
+            } else {
+                assertTrue("method " + method + " was modified", identical);
+            }
+        }
+
+        checkOutput();
+    }
+
+    /**
+     * index the raw bytes of each method_info structure in a class file by method name and descriptor
+     * @param bytes the class file bytes
+     * @return the map of method bytes
+     */
+    private static Map<String, byte[]> readMethods(byte[] bytes)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(8); // skip magic and version
+        int count = buffer.getShort() & 0xffff;
+        String[] utf8 = new String[count];
+        for (int i = 1; i < count; i++) {
+            int tag = buffer.get();
+            switch (tag) {
+                case 1: // Utf8
+                    byte[] chars = new byte[buffer.getShort() & 0xffff];
+                    buffer.get(chars);
+                    utf8[i] = new String(chars);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    buffer.position(buffer.position() + 8);
+                    i++;
+                    break;
+                case 7: // Class
+                case 8: // String
+                case 16: // MethodType
+                    buffer.position(buffer.position() + 2);
+                    break;
+                case 15: // MethodHandle
+                    buffer.position(buffer.position() + 3);
+                    break;
+                default: // Integer, Float, field and method refs, NameAndType, InvokeDynamic
+                    buffer.position(buffer.position() + 4);
+                    break;
+            }
+        }
+        buffer.position(buffer.position() + 6); // skip access flags, this class and super class
+        int interfaceCount = buffer.getShort() & 0xffff;
+        buffer.position(buffer.position() + 2 * interfaceCount);
+        int fieldCount = buffer.getShort() & 0xffff;
+        for (int i = 0; i < fieldCount; i++) {
+            buffer.position(buffer.position() + 6);
+            skipAttributes(buffer);
+        }
+        Map<String, byte[]> methods = new HashMap<String, byte[]>();
+        int methodCount = buffer.getShort() & 0xffff;
+        for (int i = 0; i < methodCount; i++) {
+            int start = buffer.position();
+            buffer.getShort(); // access flags
+            String name = utf8[buffer.getShort() & 0xffff];
+            String desc = utf8[buffer.getShort() & 0xffff];
+            skipAttributes(buffer);
+            byte[] method = new byte[buffer.position() - start];
+            System.arraycopy(bytes, start, method, 0, method.length);
+            methods.put(name + desc, method);
+        }
+        return methods;
+    }
+
+    private static void skipAttributes(ByteBuffer buffer)
+    {
+        int attributeCount = buffer.getShort() & 0xffff;
+        for (int i = 0; i < attributeCount; i++) {
+            buffer.getShort(); // name
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    private static byte[] readBytes(InputStream is) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = is.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        is.close();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String getExpected() {
+        logExpected("sum 10");
+        logExpected("parse 12 -1");
+        logExpected("trigger 9");
+
+        return super.getExpected();
+    }
+
+    /**
+     * a class with one trigger method and several methods whose bytecode needs stack map frames
+     */
+    public static class Target
+    {
+        public int sum(int n)
+        {
+            int total = 0;
+            for (int i = 1; i <= n; i++) {
+                total += i;
+            }
+            return total;
+        }
+
+        public int parse(String value)
+        {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public int trigger(int value)
+        {
+            return (value > 0 ? value * 2 : 0);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.submit;
+
+import org.jboss.byteman.agent.AgentStatistics;
+import org.jboss.byteman.agent.submit.ScriptText;
+import org.jboss.byteman.agent.submit.Submit;
+import org.jboss.byteman.tests.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test to ensure the agent records the cost of transforming and retransforming classes and reports
+ * it via the listener and the platform MBean server
+ */
+public class TestAgentStatistics extends Test
+{
+    public TestAgentStatistics()
+    {
+        super(TestAgentStatistics.class.getCanonicalName());
+    }
+
+    public void test() throws Exception
+    {
+        Submit submit = new Submit();
+        List<ScriptText> scripts = new ArrayList<ScriptText>();
+        scripts.add(new ScriptText("agentstats", getRuleText()));
+
+        // discard counts for classes loaded while the test was starting up
+        submit.getAgentStatistics(true);
+
+        // installing the rule retransforms this class which is already loaded
+        submit.addScripts(scripts);
+
+        try {
+            triggerMethod();
+            // the target class is transformed as it is loaded
+            new Target().targetMethod();
+
+            Map<String, Long> stats = parse(submit.getAgentStatistics());
+            assertTrue(stats.get("classesChecked") >= 2);
+            assertTrue(stats.get("classesTransformed") >= 2);
+            assertTrue(stats.get("rulesInjected") >= 2);
+            assertTrue(stats.get("rulesAttempted") >= stats.get("rulesInjected"));
+            assertTrue(stats.get("maxTransformNanos") > 0);
+            assertTrue(stats.get("transformNanos") >= stats.get("maxTransformNanos"));
+            // injected trigger code always adds to the size of a class
+            assertTrue(stats.get("bytesOut") > stats.get("bytesIn"));
+            assertTrue(stats.get("retransformCalls") >= 1);
+            assertTrue(stats.get("retransformedClasses") >= 1);
+            assertTrue(stats.get("retransformNanos") >= stats.get("maxRetransformNanos"));
+            assertTrue(stats.get("definedHelperAdapters") >= 0);
+            assertTrue(submit.getAgentStatistics().contains("slowTransform "));
+
+            // the same counters are published through JMX
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.jboss.byteman:type=AgentStatistics");
+            Long transformed = (Long)server.getAttribute(name, "ClassesTransformed");
+            assertTrue(transformed >= stats.get("classesTransformed"));
+
+            // resetting returns the current counts then zeroes them
+            submit.getAgentStatistics(true);
+            stats = parse(submit.getAgentStatistics());
+            assertEquals(0L, stats.get("classesTransformed").longValue());
+            assertEquals(0L, stats.get("retransformCalls").longValue());
+        } finally {
+            submit.deleteScripts(scripts);
+        }
+    }
+
+    public void testHelperAdapterUnloading() throws Exception
+    {
+        Submit submit = new Submit();
+        List<ScriptText> scripts = new ArrayList<ScriptText>();
+        scripts.add(new ScriptText("adapterstats", getAdapterRuleText()));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.jboss.byteman:type=AgentStatistics");
+
+        int live = getLiveHelperAdapterCount(server, name);
+        int defined = (Integer)server.getAttribute(name, "DefinedHelperAdapterCount");
+
+        // the rule uses a custom helper so an adapter is generated even when it is interpreted
+
+        submit.addScripts(scripts);
+        try {
+            adapterMethod();
+            assertEquals(defined + 1, ((Integer)server.getAttribute(name, "DefinedHelperAdapterCount")).intValue());
+            assertEquals(live + 1, getLiveHelperAdapterCount(server, name));
+        } finally {
+            submit.deleteScripts(scripts);
+        }
+
+        // once the rule has been unloaded its adapter should be reclaimed
+
+        for (int i = 0; i < 50 && getLiveHelperAdapterCount(server, name) > live; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertEquals(live, getLiveHelperAdapterCount(server, name));
+    }
+
+    private int getLiveHelperAdapterCount(MBeanServer server, ObjectName name) throws Exception
+    {
+        return (Integer)server.getAttribute(name, "LiveHelperAdapterCount");
+    }
+
+    public void testNestedTransforms() throws Exception
+    {
+        // a class loaded while another class is being transformed must not have its time counted twice
+        AgentStatistics statistics = new AgentStatistics();
+        AgentStatistics.TransformRecord outer = statistics.beginTransform("Outer", 100);
+        AgentStatistics.TransformRecord inner = statistics.beginTransform("Inner", 100);
+        Thread.sleep(100);
+        statistics.endTransform(inner, null);
+        statistics.endTransform(outer, null);
+
+        assertEquals(2, statistics.getClassesChecked());
+        assertTrue(statistics.getTransformNanos() >= 100000000L);
+        assertTrue(statistics.getTransformNanos() < 200000000L);
+        String[] slowest = statistics.getSlowestTransforms();
+        assertEquals(2, slowest.length);
+        assertTrue(slowest[0], slowest[0].startsWith("Inner "));
+        assertTrue(slowest[1], slowest[1].startsWith("Outer "));
+    }
+
+    private Map<String, Long> parse(String results) throws Exception
+    {
+        Map<String, Long> stats = new HashMap<String, Long>();
+        BufferedReader reader = new BufferedReader(new StringReader(results));
+        String line = reader.readLine();
+        while (line != null) {
+            int idx = line.indexOf(' ');
+            if (idx > 0 && !line.startsWith("slowTransform ")) {
+                stats.put(line.substring(0, idx), Long.valueOf(line.substring(idx + 1)));
+            }
+            line = reader.readLine();
+        }
+        return stats;
+    }
+
+    private String getRuleText()
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("RULE agentstats retransform rule\n");
+        buffer.append("CLASS TestAgentStatistics\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO traceln(\"agentstats retransform rule fired\")\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE agentstats load rule\n");
+        buffer.append("CLASS TestAgentStatistics$Target\n");
+        buffer.append("METHOD targetMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO traceln(\"agentstats load rule fired\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    private String getAdapterRuleText()
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("RULE agentstats adapter rule\n");
+        buffer.append("CLASS TestAgentStatistics\n");
+        buffer.append("METHOD adapterMethod\n");
+        buffer.append("HELPER org.jboss.byteman.tests.helpers.Default\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"agentstats adapter rule fired\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public void triggerMethod()
+    {
+    }
+
+    public void adapterMethod()
+    {
+    }
+
+    public static class Target
+    {
+        public void targetMethod()
+        {
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.submit;
+
+import org.jboss.byteman.agent.submit.Submit;
+import org.jboss.byteman.tests.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test to ensure the agent listener handles several commands pipelined on a single connection
+ * and serves several connections at once
+ */
+public class TestPipelinedListener extends Test
+{
+    public TestPipelinedListener()
+    {
+        super(TestPipelinedListener.class.getCanonicalName());
+    }
+
+    public void test() throws Exception
+    {
+        // send all the commands before reading any of the responses
+
+        Socket socket = new Socket(Submit.DEFAULT_ADDRESS, Submit.DEFAULT_PORT);
+        try {
+            StringBuffer commands = new StringBuffer();
+            commands.append("VERSION\n");
+            commands.append("LOAD\n");
+            commands.append("SCRIPT pipelined\n");
+            commands.append(getRuleText());
+            commands.append("ENDSCRIPT\n");
+            commands.append("ENDLOAD\n");
+            commands.append("LIST\n");
+            OutputStream os = socket.getOutputStream();
+            os.write(commands.toString().getBytes());
+            os.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            String version = readResponse(in);
+            assertTrue(version.length() > 0);
+            readResponse(in);
+            String listed = readResponse(in);
+            assertTrue(listed.contains("RULE pipelined rule"));
+
+            callTriggerMethod();
+
+            // reuse the same connection for a second batch of commands
+
+            commands = new StringBuffer();
+            commands.append("DELETEALL\n");
+            commands.append("LIST\n");
+            os.write(commands.toString().getBytes());
+            os.flush();
+
+            readResponse(in);
+            listed = readResponse(in);
+            assertFalse(listed.contains("RULE pipelined rule"));
+
+            callTriggerMethod();
+        } finally {
+            socket.close();
+        }
+
+        // a client which stops sending part way through a command gets an error response and then
+        // the connection is closed
+
+        checkTruncated("LOAD\n");
+        checkTruncated("SYS\n");
+        checkTruncated("SETSYSPROPS\n");
+        checkTruncated("REPLACE\nSCRIPT truncated\n" + getRuleText() + "ENDSCRIPT\n");
+
+        // run several clients at once while another connection is held open but idle
+
+        final Socket idle = new Socket(Submit.DEFAULT_ADDRESS, Submit.DEFAULT_PORT);
+        final List<String> failures = new ArrayList<String>();
+        Thread[] clients = new Thread[4];
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i] = new Thread() {
+                    public void run()
+                    {
+                        Submit submit = new Submit();
+                        try {
+                            for (int j = 0; j < 10; j++) {
+                                submit.getAgentVersion();
+                                submit.listAllRules();
+                            }
+                        } catch (Exception e) {
+                            synchronized (failures) {
+                                failures.add(e.toString());
+                            }
+                        }
+                    }
+                };
+                clients[i].start();
+            }
+            for (int i = 0; i < clients.length; i++) {
+                clients[i].join();
+            }
+        } finally {
+            idle.close();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+
+        checkOutput();
+    }
+
+    private void checkTruncated(String command) throws Exception
+    {
+        Socket socket = new Socket(Submit.DEFAULT_ADDRESS, Submit.DEFAULT_PORT);
+        try {
+            OutputStream os = socket.getOutputStream();
+            os.write(command.getBytes());
+            os.flush();
+            socket.shutdownOutput();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String response = readResponse(in);
+            assertTrue(response, response.startsWith("ERROR"));
+            assertNull(in.readLine());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private String readResponse(BufferedReader in) throws Exception
+    {
+        StringBuffer response = new StringBuffer();
+        String line = in.readLine();
+        while (line != null && !line.trim().equals("OK")) {
+            response.append(line);
+            response.append('\n');
+            line = in.readLine();
+        }
+        assertNotNull(line);
+        return response.toString();
+    }
+
+    private void callTriggerMethod()
+    {
+        log("calling TestPipelinedListener.triggerMethod");
+        triggerMethod();
+        log("called TestPipelinedListener.triggerMethod");
+    }
+
+    private String getRuleText()
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("RULE pipelined rule\n");
+        buffer.append("CLASS TestPipelinedListener\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO $0.log(\"triggered pipelined rule\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public void triggerMethod()
+    {
+        log("inside TestPipelinedListener.triggerMethod");
+    }
+
+    @Override
+    public String getExpected()
+    {
+        logExpected("calling TestPipelinedListener.triggerMethod");
+        logExpected("triggered pipelined rule");
+        logExpected("inside TestPipelinedListener.triggerMethod");
+        logExpected("called TestPipelinedListener.triggerMethod");
+        logExpected("calling TestPipelinedListener.triggerMethod");
+        logExpected("inside TestPipelinedListener.triggerMethod");
+        logExpected("called TestPipelinedListener.triggerMethod");
+
+        return super.getExpected();
+    }
+}
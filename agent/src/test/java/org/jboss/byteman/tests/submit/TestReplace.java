@@ -0,0 +1,255 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.submit;
+
+import org.jboss.byteman.agent.submit.ScriptText;
+import org.jboss.byteman.agent.submit.Submit;
+import org.jboss.byteman.tests.Test;
+import org.jboss.byteman.tests.helpers.LifecycleHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test to ensure dynamic replacement of a rule set works ok and leaves the installed rules
+ * alone when the replacement is in error
+ */
+public class TestReplace extends Test
+{
+    public TestReplace()
+    {
+        super(TestReplace.class.getCanonicalName());
+    }
+
+    public void test()
+    {
+        Submit submit = new Submit();
+        List<ScriptText> scripts = new ArrayList<ScriptText>();
+        scripts.add(new ScriptText("replace", getRuleText()));
+        List<ScriptText> replacements = new ArrayList<ScriptText>();
+        replacements.add(new ScriptText("replace", getReplacementRuleText()));
+        List<ScriptText> broken = new ArrayList<ScriptText>();
+        broken.add(new ScriptText("replace", getBrokenRuleText()));
+
+        try {
+            submit.addScripts(scripts);
+        } catch (Exception e) {
+            System.out.println("exception submitting script");
+            fail();
+        }
+
+        callTriggerMethod();
+
+        try {
+            submit.replaceScripts(replacements);
+        } catch (Exception e) {
+            System.out.println("exception replacing script");
+            fail();
+        }
+
+        callTriggerMethod();
+
+        try {
+            submit.replaceScripts(broken);
+            log("replaced broken script");
+        } catch (Exception e) {
+            log("failed to replace broken script");
+        }
+
+        callTriggerMethod();
+
+        try {
+            submit.deleteScripts(replacements);
+        } catch (Exception e) {
+            System.out.println("exception deleting script");
+            fail();
+        }
+
+        checkOutput();
+    }
+
+    private void callTriggerMethod()
+    {
+        try {
+            log("calling TestReplace.triggerMethod");
+            triggerMethod();
+            log("called TestReplace.triggerMethod");
+        } catch (Exception e) {
+            log(e);
+        } catch (Throwable th) {
+            System.out.println("unexpected throwable " + th);
+            fail();
+        }
+    }
+
+    public String getRuleText()
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("HELPER org.jboss.byteman.tests.helpers.LifecycleHelper\n");
+
+        buffer.append("RULE rule 1\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered rule 1\")\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE rule 2\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT EXIT\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered rule 2\")\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE rule 3\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT EXIT\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered rule 3\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public String getReplacementRuleText()
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("HELPER org.jboss.byteman.tests.helpers.LifecycleHelper\n");
+
+        buffer.append("RULE rule 1\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered rule 1\")\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE rule 2\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT EXIT\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered revised rule 2\")\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE rule 4\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT EXIT\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered rule 4\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public String getBrokenRuleText()
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("HELPER org.jboss.byteman.tests.helpers.LifecycleHelper\n");
+
+        buffer.append("RULE rule 1\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered broken rule 1\")\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE rule 2\n");
+        buffer.append("CLASS TestReplace\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT EXIT\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO log(\"triggered broken rule 2\"\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public void triggerMethod()
+    {
+        log("inside TestReplace.triggerMethod");
+    }
+
+    @Override
+    public String getExpected() {
+        logExpected("calling TestReplace.triggerMethod");
+        logExpected("activated org.jboss.byteman.tests.helpers.LifecycleHelper");
+        logExpected("installed rule 1");
+        logExpected("triggered rule 1");
+        logExpected("inside TestReplace.triggerMethod");
+        logExpected("installed rule 2");
+        logExpected("triggered rule 2");
+        logExpected("installed rule 3");
+        logExpected("triggered rule 3");
+        logExpected("called TestReplace.triggerMethod");
+        logExpected("uninstalled rule 2");
+        logExpected("uninstalled rule 3");
+        logExpected("calling TestReplace.triggerMethod");
+        logExpected("installed rule 1");
+        logExpected("triggered rule 1");
+        logExpected("inside TestReplace.triggerMethod");
+        logExpected("installed rule 2");
+        logExpected("triggered revised rule 2");
+        logExpected("installed rule 4");
+        logExpected("triggered rule 4");
+        logExpected("called TestReplace.triggerMethod");
+        logExpected("failed to replace broken script");
+        logExpected("calling TestReplace.triggerMethod");
+        logExpected("triggered rule 1");
+        logExpected("inside TestReplace.triggerMethod");
+        logExpected("triggered revised rule 2");
+        logExpected("triggered rule 4");
+        logExpected("called TestReplace.triggerMethod");
+        // rule 1 was left installed by the replace but was injected a second time when the class was
+        // retransformed so it has two rule instances to uninstall
+        logExpected("uninstalled rule 1");
+        logExpected("uninstalled rule 1");
+        logExpected("uninstalled rule 2");
+        logExpected("uninstalled rule 4");
+        logExpected("deactivated org.jboss.byteman.tests.helpers.LifecycleHelper");
+
+        return super.getExpected();
+    }
+
+    // redirect output to the lifecycle helper so we can also check interleaved output from its
+    // lifecycle methods
+
+    public void log(String string)
+    {
+        LifecycleHelper.logShared(string);
+    }
+
+    public String getOutput()
+    {
+        return LifecycleHelper.getOutput();
+    }
+}
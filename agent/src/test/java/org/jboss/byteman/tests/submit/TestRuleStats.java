@@ -0,0 +1,150 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.submit;
+
+import org.jboss.byteman.agent.submit.RuleStats;
+import org.jboss.byteman.agent.submit.ScriptText;
+import org.jboss.byteman.agent.submit.Submit;
+import org.jboss.byteman.tests.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test to ensure the agent counts rule triggers, matches, firings and exceptions and reports
+ * and resets them on request
+ */
+public class TestRuleStats extends Test
+{
+    public TestRuleStats()
+    {
+        super(TestRuleStats.class.getCanonicalName());
+    }
+
+    public void test() throws Exception
+    {
+        Submit submit = new Submit();
+        List<ScriptText> scripts = new ArrayList<ScriptText>();
+        scripts.add(new ScriptText("stats", getRuleText()));
+
+        submit.addScripts(scripts);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                triggerMethod(i);
+                sampledMethod();
+            }
+            try {
+                triggerMethod(-1);
+            } catch (Exception e) {
+                // expected
+            }
+
+            List<RuleStats> stats = submit.getRuleStats();
+            RuleStats counted = findStats(stats, "stats counted rule");
+            assertEquals(11, counted.getTriggerCount());
+            assertEquals(5, counted.getMatchedCount());
+            assertEquals(5, counted.getFiredCount());
+            assertEquals(0, counted.getExceptionCount());
+            assertTrue(counted.getMaxNanos() <= counted.getTotalNanos());
+
+            // a rule which completes by throwing still counts as fired
+            RuleStats thrown = findStats(stats, "stats throw rule");
+            assertEquals(11, thrown.getTriggerCount());
+            assertEquals(1, thrown.getMatchedCount());
+            assertEquals(1, thrown.getFiredCount());
+
+            // triggers which are sampled out are still counted
+            RuleStats sampled = findStats(stats, "stats sampled rule");
+            assertEquals(10, sampled.getTriggerCount());
+            assertTrue(sampled.getFiredCount() <= sampled.getTriggerCount());
+
+            // resetting returns the current counts then zeroes them
+
+            counted = findStats(submit.getRuleStats(true), "stats counted rule");
+            assertEquals(11, counted.getTriggerCount());
+
+            triggerMethod(0);
+
+            counted = findStats(submit.getRuleStats(), "stats counted rule");
+            assertEquals(1, counted.getTriggerCount());
+            assertEquals(1, counted.getMatchedCount());
+            assertEquals(1, counted.getFiredCount());
+        } finally {
+            submit.deleteScripts(scripts);
+        }
+    }
+
+    private RuleStats findStats(List<RuleStats> stats, String ruleName)
+    {
+        for (RuleStats ruleStats : stats) {
+            if (ruleStats.getRuleName().equals(ruleName)) {
+                assertEquals(TestRuleStats.class.getName(), ruleStats.getTriggerClass());
+                return ruleStats;
+            }
+        }
+        fail("no statistics for rule " + ruleName);
+        return null;
+    }
+
+    private String getRuleText()
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("RULE stats counted rule\n");
+        buffer.append("CLASS TestRuleStats\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF $1 % 2 == 0\n");
+        buffer.append("DO traceln(\"stats counted rule fired for \" + $1)\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE stats throw rule\n");
+        buffer.append("CLASS TestRuleStats\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF $1 < 0\n");
+        buffer.append("DO throw new IllegalArgumentException(\"negative\")\n");
+        buffer.append("ENDRULE\n");
+
+        buffer.append("RULE stats sampled rule\n");
+        buffer.append("CLASS TestRuleStats\n");
+        buffer.append("METHOD sampledMethod\n");
+        buffer.append("SAMPLE 1 IN 1000\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO traceln(\"stats sampled rule fired\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public void triggerMethod(int i)
+    {
+    }
+
+    public void sampledMethod()
+    {
+    }
+}
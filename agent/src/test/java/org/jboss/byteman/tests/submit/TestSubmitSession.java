@@ -0,0 +1,139 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+package org.jboss.byteman.tests.submit;
+
+import org.jboss.byteman.agent.submit.ScriptText;
+import org.jboss.byteman.agent.submit.Submit;
+import org.jboss.byteman.agent.submit.SubmitSession;
+import org.jboss.byteman.tests.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test to ensure a submit session can send batches of requests over a single connection
+ */
+public class TestSubmitSession extends Test
+{
+    public TestSubmitSession()
+    {
+        super(TestSubmitSession.class.getCanonicalName());
+    }
+
+    public void test() throws Exception
+    {
+        List<ScriptText> scripts = new ArrayList<ScriptText>();
+        scripts.add(new ScriptText("session", getRuleText("session rule")));
+
+        SubmitSession session = new Submit().openSession();
+        try {
+            List<String> responses = session.batch().addScripts(scripts).listAllRules().submit();
+            assertEquals(2, responses.size());
+            assertTrue(responses.get(1).contains("RULE session rule"));
+
+            callTriggerMethod();
+
+            // an error reported for one request must not stop the rest of the batch
+
+            try {
+                session.batch().submitRequest("BOGUS\n").deleteScripts(scripts).submit();
+                fail("expected error response to bogus request");
+            } catch (Exception e) {
+                log("bogus request rejected");
+            }
+
+            assertFalse(session.listAllRules().contains("RULE session rule"));
+
+            callTriggerMethod();
+
+            // stream a script from a file over the same connection
+
+            File file = File.createTempFile("session", ".btm");
+            file.deleteOnExit();
+            FileWriter writer = new FileWriter(file);
+            writer.write(getRuleText("streamed rule"));
+            writer.close();
+            List<String> files = new ArrayList<String>();
+            files.add(file.getPath());
+
+            session.addRulesFromFiles(files);
+            callTriggerMethod();
+            session.deleteRulesFromFiles(files);
+
+            assertTrue(session.isOpen());
+        } finally {
+            session.close();
+        }
+
+        checkOutput();
+    }
+
+    private void callTriggerMethod()
+    {
+        log("calling TestSubmitSession.triggerMethod");
+        triggerMethod();
+        log("called TestSubmitSession.triggerMethod");
+    }
+
+    private String getRuleText(String name)
+    {
+        StringBuffer buffer = new StringBuffer();
+
+        buffer.append("RULE " + name + "\n");
+        buffer.append("CLASS TestSubmitSession\n");
+        buffer.append("METHOD triggerMethod\n");
+        buffer.append("AT ENTRY\n");
+        buffer.append("IF TRUE\n");
+        buffer.append("DO $0.log(\"triggered " + name + "\")\n");
+        buffer.append("ENDRULE\n");
+
+        return buffer.toString();
+    }
+
+    public void triggerMethod()
+    {
+        log("inside TestSubmitSession.triggerMethod");
+    }
+
+    @Override
+    public String getExpected()
+    {
+        logExpected("calling TestSubmitSession.triggerMethod");
+        logExpected("triggered session rule");
+        logExpected("inside TestSubmitSession.triggerMethod");
+        logExpected("called TestSubmitSession.triggerMethod");
+        logExpected("bogus request rejected");
+        logExpected("calling TestSubmitSession.triggerMethod");
+        logExpected("inside TestSubmitSession.triggerMethod");
+        logExpected("called TestSubmitSession.triggerMethod");
+        logExpected("calling TestSubmitSession.triggerMethod");
+        logExpected("triggered streamed rule");
+        logExpected("inside TestSubmitSession.triggerMethod");
+        logExpected("called TestSubmitSession.triggerMethod");
+
+        return super.getExpected();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+* JBoss, Home of Professional Open Source
+* Copyright 2013, Red Hat and individual contributors
+* by the @authors tag. See the copyright.txt in the distribution for a
+* full listing of individual contributors.
+*
+* This is free software; you can redistribute it and/or modify it
+* under the terms of the GNU Lesser General Public License as
+* published by the Free Software Foundation; either version 2.1 of
+* the License, or (at your option) any later version.
+*
+* This software is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+* Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public
+* License along with this software; if not, write to the Free
+* Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+* 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+*
+* @authors Andrew Dinn
+*/
+
+package org.jboss.byteman.tests.weave;
+
+import org.jboss.byteman.agent.WovenClassRegistry;
+import org.jboss.byteman.tests.Test;
+import org.jboss.byteman.tests.auxiliary.TestWeavingAuxiliary;
+import org.jboss.byteman.weave.RuleWeaver;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * Test class to ensure rules woven into classes at build time execute when the woven classes are
+ * run with the agent and the woven rule registry
+ */
+public class TestRuleWeaver extends Test
+{
+    public TestRuleWeaver()
+    {
+        super(TestRuleWeaver.class.getName());
+    }
+
+    public void test() throws Exception
+    {
+        File classesDir = new File("target/woven-test-classes");
+        File registry = new File(classesDir, WovenClassRegistry.DEFAULT_RESOURCE);
+        String classPath = TestWeavingAuxiliary.class.getName().replace('.', '/') + ".class";
+        File classFile = new File(classesDir, classPath);
+        deleteAll(classesDir);
+        classFile.getParentFile().mkdirs();
+        byte[] original = readBytes(getClass().getClassLoader().getResourceAsStream(classPath));
+        FileOutputStream fos = new FileOutputStream(classFile);
+        fos.write(original);
+        fos.close();
+
+        RuleWeaver weaver = new RuleWeaver();
+        weaver.setPrintStream(System.out);
+        weaver.addRuleFile("target/test-classes/scripts/weave/TestRuleWeaver.btm");
+        assertTrue(weaver.weave(classesDir, registry, getClass().getClassLoader()));
+        assertEquals(Arrays.asList(TestWeavingAuxiliary.class.getName()), weaver.getWovenClasses());
+        byte[] woven = readBytes(new FileInputStream(classFile));
+        assertFalse(Arrays.equals(original, woven));
+
+        // the woven rules run when the registry is supplied as a file or as a resource
+
+        log("running with woven registry file");
+        run(classesDir, "woven:" + registry.getPath());
+        log("running with woven registry resource");
+        run(classesDir, "woven:" + WovenClassRegistry.DEFAULT_RESOURCE);
+
+        // without the registry the woven trigger code does nothing
+
+        log("running without woven registry");
+        run(classesDir, "listener:false");
+
+        // supplying the same registry twice means the rule names clash so the agent refuses to start
+
+        String output = execute(classesDir, "woven:" + registry.getPath() + ",woven:" + WovenClassRegistry.DEFAULT_RESOURCE);
+        assertTrue(output, output.contains("duplicate woven rule name"));
+        assertFalse(output, output.contains("woven hello world"));
+
+        // reweaving with the same rules leaves the woven class as it is
+
+        weaver = new RuleWeaver();
+        weaver.addRuleFile("target/test-classes/scripts/weave/TestRuleWeaver.btm");
+        assertTrue(weaver.weave(classesDir, registry, getClass().getClassLoader()));
+        assertEquals(Arrays.asList(TestWeavingAuxiliary.class.getName()), weaver.getWovenClasses());
+        assertTrue(Arrays.equals(woven, readBytes(new FileInputStream(classFile))));
+
+        checkOutput();
+    }
+
+    private void run(File classesDir, String agentOption) throws Exception
+    {
+        String output = execute(classesDir, agentOption);
+        for (String line : output.split("\n")) {
+            log(line);
+        }
+    }
+
+    private String execute(File classesDir, String agentOption) throws Exception
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        String agentJar = System.getProperty("byteman.test.agent.jar");
+        ProcessBuilder builder = new ProcessBuilder(java, "-javaagent:" + agentJar + "=" + agentOption,
+                "-cp", classesDir.getPath(), TestWeavingAuxiliary.class.getName());
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        StringBuilder output = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            output.append(line);
+            output.append('\n');
+        }
+        output.append("exit ");
+        output.append(process.waitFor());
+        return output.toString();
+    }
+
+    private static byte[] readBytes(InputStream is) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = is.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        is.close();
+        return bytes.toByteArray();
+    }
+
+    private static void deleteAll(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Override
+    public String getExpected() {
+        logExpected("running with woven registry file");
+        logExpected("woven entry trigger for world");
+        logExpected("woven exit trigger for world using hello");
+        logExpected("woven hello world");
+        logExpected("exit 0");
+        logExpected("running with woven registry resource");
+        logExpected("woven entry trigger for world");
+        logExpected("woven exit trigger for world using hello");
+        logExpected("woven hello world");
+        logExpected("exit 0");
+        logExpected("running without woven registry");
+        logExpected("hello world");
+        logExpected("exit 0");
+
+        return super.getExpected();
+    }
+}
@@ -27,6 +27,7 @@
 @rem
 @rem usage: bmsubmit [-o outfile] [-p port] [-h host] [-l|-u] [script1 . . . scriptN]
 @rem        bmsubmit [-o outfile] [-p port] [-h host] [-b | -s] bootjar1 . . .
+@rem        bmsubmit [-o outfile] [-p port] [-h host] -r script1 . . . scriptN
 @rem        bmsubmit [-o outfile] [-p port] [-h host] -c
 @rem        bmsubmit [-o outfile] [-p port] [-h host] -y [prop1[=[value1]]. . .]
 @rem        bmsubmit [-o outfile] [-p port] [-h host] -v
@@ -37,6 +38,8 @@
 @rem      with no scripts list all installed rules
 @rem   -u uninstall rules in script1 . . . scriptN
 @rem      with no scripts uninstall all installed rules
+@rem   -r replace the rules installed from script1 . . . scriptN with the rules
+@rem      they now contain
 @rem
 @rem   -b install jar files bootjar1 etc into bootstrap classpath
 @rem
@@ -81,6 +84,7 @@ echo either to list, install or uninstall rule scripts
 echo.
 echo usage: bmsubmit [-o outfile] [-p port] [-h host] [-l^|-u] [script1 . . . scriptN]
 echo        bmsubmit [-o outfile] [-p port] [-h host] [-b ^| -s] bootjar1 . . .
+echo        bmsubmit [-o outfile] [-p port] [-h host] -r script1 . . . scriptN
 echo        bmsubmit [-o outfile] [-p port] [-h host] -c
 echo        bmsubmit [-o outfile] [-p port] [-h host] -y [prop1[=[value1]]. . .]
 echo        bmsubmit [-o outfile] [-p port] [-h host] -v
@@ -91,6 +95,8 @@ echo   -l (default) install rules in script1 . . . scriptN
 echo      with no scripts list all installed rules
 echo   -u uninstall rules in script1 . . . scriptN
 echo      with no scripts uninstall all installed rules
+echo   -r replace the rules installed from script1 . . . scriptN with the rules
+echo      they now contain
 echo.
 echo   -b install jar files bootjar1 etc into bootstrap classpath
 echo.
@@ -26,6 +26,7 @@
 #
 # usage: bmsubmit [-o outfile] [-p port] [-h host] [-l|-u] [script1 . . . scriptN]
 #        bmsubmit [-o outfile] [-p port] [-h host] [-b | -s] bootjar1 . . .
+#        bmsubmit [-o outfile] [-p port] [-h host] -r script1 . . . scriptN
 #        bmsubmit [-o outfile] [-p port] [-h host] -c
 #        bmsubmit [-o outfile] [-p port] [-h host] -y [prop1[=[value1]]. . .]
 #        bmsubmit [-o outfile] [-p port] [-h host] -v
@@ -36,6 +37,8 @@
 #      with no scripts list all installed rules
 #   -u uninstall rules in script1 . . . scriptN
 #      with no scripts uninstall all installed rules
+#   -r replace the rules installed from script1 . . . scriptN with the rules
+#      they now contain
 #
 #   -b install jar files bootjar1 etc into bootstrap classpath
 #
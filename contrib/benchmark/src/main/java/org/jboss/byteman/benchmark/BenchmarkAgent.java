@@ -0,0 +1,59 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import java.lang.instrument.Instrumentation;
+
+/**
+ * a trivial java agent which makes the JVM's Instrumentation instance available to benchmarks which
+ * need to drive a Retransformer directly. the benchmarks jar names this class as its premain class
+ * so the agent is installed by adding -javaagent:benchmarks.jar to the forked JVM's arguments.
+ */
+public class BenchmarkAgent
+{
+    public static void premain(String args, Instrumentation inst)
+    {
+        instrumentation = inst;
+    }
+
+    public static void agentmain(String args, Instrumentation inst)
+    {
+        instrumentation = inst;
+    }
+
+    /**
+     * @return the instrumentation instance supplied when the agent was installed
+     * @throws IllegalStateException if the agent has not been installed
+     */
+    public static Instrumentation getInstrumentation()
+    {
+        if (instrumentation == null) {
+            throw new IllegalStateException("BenchmarkAgent : agent not installed. run with -jvmArgsAppend -javaagent:<path to benchmarks.jar>");
+        }
+        return instrumentation;
+    }
+
+    private static volatile Instrumentation instrumentation;
+}
@@ -0,0 +1,240 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a synthetic hierarchy of classes and interfaces generated as bytecode for use as benchmark
+ * targets. classes are arranged in chains of a given depth, each class extending the previous one
+ * in its chain. every class implements a given number of interfaces drawn in rotation from a shared
+ * pool and every class and interface declares method int work(int) so that rules which name the
+ * method can be injected into any class in the hierarchy.
+ *
+ * the generated types live in a tests package because the transformer ignores all other classes
+ * in the org.jboss.byteman package tree.
+ */
+public class ClassHierarchy
+{
+    /**
+     * the package in which the generated types are defined
+     */
+    public static final String PACKAGE = "org.jboss.byteman.tests.benchmark.generated";
+
+    /**
+     * the kinds of rule which can be generated for a hierarchy
+     */
+    public enum RuleKind
+    {
+        /**
+         * rules which name a specific class at the bottom of a chain
+         */
+        CLASS,
+        /**
+         * rules which name an interface and so apply to every class which implements it
+         */
+        INTERFACE,
+        /**
+         * rules which name the class at the top of a chain as an overriding target and so apply to
+         * every class in the chain
+         */
+        OVERRIDE
+    }
+
+    /**
+     * generate a hierarchy
+     * @param classCount the total number of classes to generate
+     * @param depth the number of classes in each chain of subclasses
+     * @param interfaceCount the number of interfaces in the pool
+     * @param fanOut the number of interfaces implemented by each class
+     */
+    public ClassHierarchy(int classCount, int depth, int interfaceCount, int fanOut)
+    {
+        if (classCount <= 0 || depth <= 0 || interfaceCount < 0 || fanOut < 0 || fanOut > interfaceCount) {
+            throw new IllegalArgumentException("ClassHierarchy : invalid hierarchy dimensions");
+        }
+        this.classCount = classCount;
+        this.depth = depth;
+        this.chainCount = (classCount + depth - 1) / depth;
+        this.interfaceCount = interfaceCount;
+        this.fanOut = fanOut;
+        this.bytecode = new LinkedHashMap<String, byte[]>();
+        this.classNames = new ArrayList<String>(classCount);
+        generate();
+    }
+
+    /**
+     * @return the bytecode of every generated type indexed by class name in dot format. supertypes
+     * precede their subtypes in iteration order.
+     */
+    public Map<String, byte[]> getBytecode()
+    {
+        return bytecode;
+    }
+
+    /**
+     * @return the names of the generated classes excluding the interfaces in dot format
+     */
+    public List<String> getClassNames()
+    {
+        return classNames;
+    }
+
+    /**
+     * generate the text of a script containing rules which apply to this hierarchy. all the rules
+     * trigger at entry to method work and do nothing.
+     * @param kind the kind of rules to generate
+     * @param ruleCount the number of rules to generate
+     * @return the script text
+     */
+    public String getRuleText(RuleKind kind, int ruleCount)
+    {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < ruleCount; i++) {
+            buffer.append("RULE hierarchy ");
+            buffer.append(kind);
+            buffer.append(" ");
+            buffer.append(i);
+            buffer.append("\n");
+            // spread the rules evenly across the chains
+            int chain = (int)((long)i * chainCount / ruleCount);
+            switch (kind) {
+                case CLASS:
+                    buffer.append("CLASS ");
+                    buffer.append(className(chain, Math.min(depth, classCount - chain * depth) - 1));
+                    break;
+                case INTERFACE:
+                    if (interfaceCount == 0) {
+                        throw new IllegalArgumentException("ClassHierarchy : cannot generate interface rules without interfaces");
+                    }
+                    buffer.append("INTERFACE ");
+                    buffer.append(interfaceName(i % interfaceCount));
+                    break;
+                case OVERRIDE:
+                    buffer.append("CLASS ^");
+                    buffer.append(className(chain, 0));
+                    break;
+            }
+            buffer.append("\nMETHOD work\nAT ENTRY\nIF TRUE\nDO NOTHING\nENDRULE\n");
+        }
+        return buffer.toString();
+    }
+
+    private void generate()
+    {
+        for (int i = 0; i < interfaceCount; i++) {
+            bytecode.put(interfaceName(i), generateInterface(interfaceName(i)));
+        }
+
+        int index = 0;
+        for (int chain = 0; chain < chainCount; chain++) {
+            String superName = "java.lang.Object";
+            for (int level = 0; level < depth && index < classCount; level++, index++) {
+                String name = className(chain, level);
+                String[] interfaces = new String[fanOut];
+                for (int j = 0; j < fanOut; j++) {
+                    interfaces[j] = interfaceName((index + j) % interfaceCount);
+                }
+                bytecode.put(name, generateClass(name, superName, interfaces, index));
+                classNames.add(name);
+                superName = name;
+            }
+        }
+    }
+
+    private byte[] generateInterface(String name)
+    {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT,
+                internalize(name), null, "java/lang/Object", null);
+        cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "work", "(I)I", null, null).visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private byte[] generateClass(String name, String superName, String[] interfaces, int index)
+    {
+        String internalSuperName = internalize(superName);
+        String[] internalInterfaces = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            internalInterfaces[i] = internalize(interfaces[i]);
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalize(name), null,
+                internalSuperName, internalInterfaces);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, internalSuperName, "<init>", "()V");
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // int work(int i) { return i + index; }
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "work", "(I)I", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ILOAD, 1);
+        mv.visitLdcInsn(Integer.valueOf(index));
+        mv.visitInsn(Opcodes.IADD);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private String className(int chain, int level)
+    {
+        return PACKAGE + ".C" + chain + "_" + level;
+    }
+
+    private String interfaceName(int index)
+    {
+        return PACKAGE + ".I" + index;
+    }
+
+    private static String internalize(String name)
+    {
+        return name.replace('.', '/');
+    }
+
+    private final int classCount;
+    private final int depth;
+    private final int chainCount;
+    private final int interfaceCount;
+    private final int fanOut;
+    private final Map<String, byte[]> bytecode;
+    private final List<String> classNames;
+}
@@ -0,0 +1,71 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * a class loader which defines classes from bytecode held in memory. the bytecode is also made
+ * available as resources so that the transformer can inspect super types which have not yet been
+ * loaded.
+ */
+public class GeneratedClassLoader extends ClassLoader
+{
+    /**
+     * create a loader for a set of generated classes
+     * @param parent the loader to which all other classes are delegated
+     * @param bytecode the bytecode of each class indexed by class name in dot format
+     */
+    public GeneratedClassLoader(ClassLoader parent, Map<String, byte[]> bytecode)
+    {
+        super(parent);
+        this.bytecode = bytecode;
+    }
+
+    protected Class<?> findClass(String name) throws ClassNotFoundException
+    {
+        byte[] bytes = bytecode.get(name);
+        if (bytes == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+
+    public InputStream getResourceAsStream(String name)
+    {
+        if (name.endsWith(".class")) {
+            String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+            byte[] bytes = bytecode.get(className);
+            if (bytes != null) {
+                return new ByteArrayInputStream(bytes);
+            }
+        }
+        return super.getResourceAsStream(name);
+    }
+
+    private final Map<String, byte[]> bytecode;
+}
@@ -0,0 +1,210 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import org.jboss.byteman.rule.helper.Helper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * measures the throughput and latency of the helper builtins which manage state shared between
+ * rules. every such builtin synchronizes on a single global map so these figures show how the
+ * builtins scale as threads are added. the keys parameter selects whether all threads use the
+ * same key or each thread uses its own key. the latter shows the cost of contention on the map
+ * as distinct from contention on the state for a given key.
+ *
+ * the number of threads is set using the JMH -t option. HelperBenchmarkRunner runs the benchmarks
+ * with a series of thread counts. builtins which need a thread to block until another thread
+ * signals it, joins and waiters, cannot be driven sensibly by JMH. they are exercised by the
+ * TestHelperContention stress test in the agent test suite which also checks that the builtins
+ * behave correctly under contention.
+ *
+ * run with -rf json to obtain results in a machine readable format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HelperBenchmark
+{
+    /**
+     * how the benchmark threads choose the key passed to each builtin
+     */
+    public enum KeyMode
+    {
+        /**
+         * all threads use the same key
+         */
+        SAME,
+        /**
+         * each thread uses a key of its own
+         */
+        DISTINCT
+    }
+
+    /**
+     * how long a thread waits at a rendezvous. threads stop at the end of each iteration without
+     * coordinating with each other so a rendezvous may never complete
+     */
+    private static final long RENDEZVOUS_TIMEOUT = 10;
+
+    @Param({"SAME", "DISTINCT"})
+    public KeyMode keys;
+
+    private final Helper helper = new BenchmarkHelper();
+
+    private final AtomicInteger nextKey = new AtomicInteger();
+
+    private int threads;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkParams params)
+    {
+        threads = params.getThreads();
+    }
+
+    /**
+     * the key used by each benchmark thread along with any state the thread owns
+     */
+    @State(Scope.Thread)
+    public static class ThreadState
+    {
+        Object key;
+
+        File traceFile;
+
+        @Setup(Level.Trial)
+        public void setup(HelperBenchmark benchmark) throws Exception
+        {
+            int index = benchmark.nextKey.getAndIncrement();
+            key = (benchmark.keys == KeyMode.SAME ? "shared" : "thread " + index);
+            Helper helper = benchmark.helper;
+
+            // only the first thread to arrive creates the state for a shared key
+            if (benchmark.keys == KeyMode.DISTINCT || index == 0) {
+                helper.createCounter(key);
+                helper.createTimer(key);
+                int expected = (benchmark.keys == KeyMode.SAME ? benchmark.threads : 1);
+                helper.createRendezvous(key, expected, true);
+                traceFile = File.createTempFile("byteman-benchmark", ".txt");
+                helper.openTrace(key, traceFile.getPath());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(HelperBenchmark benchmark)
+        {
+            if (traceFile != null) {
+                Helper helper = benchmark.helper;
+                helper.deleteCounter(key);
+                helper.deleteTimer(key);
+                helper.deleteRendezvous(key, (benchmark.keys == KeyMode.SAME ? benchmark.threads : 1));
+                helper.closeTrace(key);
+                traceFile.delete();
+            }
+        }
+    }
+
+    @Benchmark
+    public int incrementCounter(ThreadState state)
+    {
+        return helper.incrementCounter(state.key);
+    }
+
+    @Benchmark
+    public int readCounter(ThreadState state)
+    {
+        return helper.readCounter(state.key);
+    }
+
+    @Benchmark
+    public boolean flagAndClear(ThreadState state)
+    {
+        helper.flag(state.key);
+        return helper.clear(state.key);
+    }
+
+    @Benchmark
+    public boolean createAndCountDown(ThreadState state)
+    {
+        // a countdown created with count 1 is removed by the second decrement
+        helper.createCountDown(state.key, 1);
+        helper.countDown(state.key);
+        return helper.countDown(state.key);
+    }
+
+    @Benchmark
+    public long readTimer(ThreadState state)
+    {
+        return helper.getElapsedTimeFromTimer(state.key);
+    }
+
+    @Benchmark
+    public boolean signalWithoutWaiter(ThreadState state)
+    {
+        return helper.signalWake(state.key);
+    }
+
+    @Benchmark
+    public int rendezvous(ThreadState state)
+    {
+        return helper.rendezvous(state.key, RENDEZVOUS_TIMEOUT);
+    }
+
+    @Benchmark
+    public boolean traceln(ThreadState state)
+    {
+        return helper.traceln(state.key, "benchmark trace line");
+    }
+
+    /**
+     * a helper which can be used without a rule. none of the benchmarked builtins refer to the rule
+     */
+    private static class BenchmarkHelper extends Helper
+    {
+        public BenchmarkHelper()
+        {
+            super(null);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * runs HelperBenchmark once for each thread count from 1 up to a maximum, doubling the count each
+ * time, and writes the results for each run as JSON. run it using
+ *
+ *   java -cp benchmarks.jar org.jboss.byteman.benchmark.HelperBenchmarkRunner [maxThreads [resultDir]]
+ *
+ * the maximum defaults to the number of available processors and the results are written to files
+ * named helper-N-threads.json in the current directory unless another directory is supplied.
+ */
+public class HelperBenchmarkRunner
+{
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        File resultDir = new File(".");
+
+        if (args.length > 2) {
+            usage();
+        }
+        if (args.length > 0) {
+            try {
+                maxThreads = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                usage();
+            }
+            if (maxThreads <= 0) {
+                usage();
+            }
+        }
+        if (args.length > 1) {
+            resultDir = new File(args[1]);
+        }
+
+        int threads = 1;
+        while (true) {
+            File resultFile = new File(resultDir, "helper-" + threads + "-threads.json");
+            Options options = new OptionsBuilder()
+                    .include(HelperBenchmark.class.getName())
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultFile.getPath())
+                    .build();
+            new Runner(options).run();
+            if (threads == maxThreads) {
+                break;
+            }
+            threads = Math.min(threads * 2, maxThreads);
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage : HelperBenchmarkRunner [maxThreads [resultDir]]");
+        System.exit(1);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import org.jboss.byteman.agent.Retransformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures the latency of installing and removing rules using Retransformer.installScript and
+ * Retransformer.removeScripts in a JVM which has loaded every class in a synthetic class hierarchy.
+ * the retransformer is driven directly rather than via the agent listener so the figures exclude
+ * any network or parsing overhead in the client.
+ *
+ * these benchmarks need access to the JVM's Instrumentation instance. run them using
+ *
+ *   java -jar benchmarks.jar RetransformBenchmark -jvmArgsAppend -javaagent:benchmarks.jar
+ *
+ * adding -rf json to obtain results in a machine readable format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public abstract class RetransformBenchmark
+{
+    @Param({"10000", "50000"})
+    public int classCount;
+
+    @Param({"10"})
+    public int depth;
+
+    @Param({"100"})
+    public int interfaceCount;
+
+    @Param({"5"})
+    public int fanOut;
+
+    @Param({"CLASS", "INTERFACE", "OVERRIDE"})
+    public ClassHierarchy.RuleKind ruleKind;
+
+    @Param({"1", "10", "100"})
+    public int ruleCount;
+
+    protected Retransformer retransformer;
+
+    protected List<String> scripts;
+
+    protected List<String> scriptNames;
+
+    protected PrintWriter out;
+
+    /**
+     * references to the loaded classes which ensure they cannot be unloaded
+     */
+    private List<Class<?>> loaded;
+
+    @Setup(Level.Trial)
+    public void populate() throws Exception
+    {
+        Instrumentation inst = BenchmarkAgent.getInstrumentation();
+        List<String> empty = Collections.emptyList();
+        retransformer = new Retransformer(inst, empty, empty, true);
+        inst.addTransformer(retransformer, true);
+
+        ClassHierarchy hierarchy = new ClassHierarchy(classCount, depth, interfaceCount, fanOut);
+        ClassLoader loader = new GeneratedClassLoader(RetransformBenchmark.class.getClassLoader(), hierarchy.getBytecode());
+        loaded = new ArrayList<Class<?>>();
+        for (String name : hierarchy.getClassNames()) {
+            loaded.add(loader.loadClass(name));
+        }
+
+        scripts = Collections.singletonList(hierarchy.getRuleText(ruleKind, ruleCount));
+        scriptNames = Collections.singletonList("hierarchy.btm");
+        out = new PrintWriter(new NullWriter());
+    }
+
+    @TearDown(Level.Trial)
+    public void depopulate()
+    {
+        BenchmarkAgent.getInstrumentation().removeTransformer(retransformer);
+        loaded = null;
+    }
+
+    /**
+     * measures installation of the rules. they are removed again after each operation
+     */
+    @State(Scope.Benchmark)
+    public static class Install extends RetransformBenchmark
+    {
+        @TearDown(Level.Invocation)
+        public void remove() throws Exception
+        {
+            retransformer.removeScripts(scripts, out);
+        }
+
+        @Benchmark
+        public void installScript() throws Exception
+        {
+            retransformer.installScript(scripts, scriptNames, out);
+        }
+    }
+
+    /**
+     * measures removal of the rules. they are installed before each operation
+     */
+    @State(Scope.Benchmark)
+    public static class Remove extends RetransformBenchmark
+    {
+        @Setup(Level.Invocation)
+        public void install() throws Exception
+        {
+            retransformer.installScript(scripts, scriptNames, out);
+        }
+
+        @Benchmark
+        public void removeScripts() throws Exception
+        {
+            retransformer.removeScripts(scripts, out);
+        }
+    }
+
+    /**
+     * a writer which discards the retransformer's progress messages
+     */
+    private static class NullWriter extends Writer
+    {
+        public void write(char[] cbuf, int off, int len)
+        {
+        }
+
+        public void flush()
+        {
+        }
+
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import org.jboss.byteman.agent.RuleScript;
+import org.jboss.byteman.agent.Transformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures the time taken to pass every type in a synthetic class hierarchy through
+ * Transformer.transform, as happens when the classes are loaded with the agent installed. the
+ * parameters select the shape and size of the hierarchy and the kind and number of rules
+ * installed. dividing the class count by the time per operation gives the transform throughput.
+ *
+ * each operation uses a new transformer because injected rules are registered with the rule
+ * engine until the transformer's scripts are purged. the types are never actually defined so
+ * super types are always inspected by reading their bytecode, the worst case for a class load.
+ *
+ * run with -rf json to obtain results in a machine readable format.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark
+{
+    @Param({"10000", "50000"})
+    public int classCount;
+
+    @Param({"1", "10"})
+    public int depth;
+
+    @Param({"100"})
+    public int interfaceCount;
+
+    @Param({"0", "5"})
+    public int fanOut;
+
+    @Param({"CLASS", "INTERFACE", "OVERRIDE"})
+    public ClassHierarchy.RuleKind ruleKind;
+
+    @Param({"0", "10", "100"})
+    public int ruleCount;
+
+    private String[] names;
+
+    private byte[][] bytes;
+
+    private List<String> scripts;
+
+    private PurgingTransformer transformer;
+
+    private ClassLoader loader;
+
+    @Setup(Level.Trial)
+    public void generate()
+    {
+        ClassHierarchy hierarchy = new ClassHierarchy(classCount, depth, interfaceCount, fanOut);
+        Map<String, byte[]> bytecode = hierarchy.getBytecode();
+        names = new String[bytecode.size()];
+        bytes = new byte[bytecode.size()][];
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : bytecode.entrySet()) {
+            names[i] = entry.getKey().replace('.', '/');
+            bytes[i] = entry.getValue();
+            i++;
+        }
+        scripts = new ArrayList<String>();
+        if (ruleCount > 0) {
+            scripts.add(hierarchy.getRuleText(ruleKind, ruleCount));
+        }
+        loader = new GeneratedClassLoader(TransformBenchmark.class.getClassLoader(), bytecode);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTransformer() throws Exception
+    {
+        transformer = new PurgingTransformer(scripts);
+    }
+
+    @TearDown(Level.Invocation)
+    public void purgeTransformer()
+    {
+        transformer.purge();
+        transformer = null;
+    }
+
+    @Benchmark
+    public int transformAll() throws Exception
+    {
+        int transformed = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (transformer.transform(loader, names[i], null, null, bytes[i]) != null) {
+                transformed++;
+            }
+        }
+        return transformed;
+    }
+
+    /**
+     * a transformer which can discard the rules it has injected so that the rule engine does not
+     * accumulate rules from one benchmark operation to the next
+     */
+    private static class PurgingTransformer extends Transformer
+    {
+        public PurgingTransformer(List<String> scripts) throws Exception
+        {
+            super(null, Collections.nCopies(scripts.size(), "hierarchy.btm"), scripts, false);
+        }
+
+        public void purge()
+        {
+            for (RuleScript ruleScript : scriptRepository.currentRules()) {
+                ruleScript.purge();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import org.jboss.byteman.agent.Transformer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * a class loader which defines the classes in a given package itself, passing their bytecode through
+ * a byteman Transformer as it goes. this allows benchmarks to run rules without installing the agent.
+ * all other classes, including the byteman classes used by the injected trigger code, are delegated
+ * to the parent loader.
+ */
+public class TransformingClassLoader extends ClassLoader
+{
+    /**
+     * create a loader which transforms the classes in a given package
+     * @param parent the loader from which class bytes are read and to which other classes are delegated
+     * @param transformer the transformer used to inject rules into the classes
+     * @param packageName the name of the package whose classes are to be transformed
+     */
+    public TransformingClassLoader(ClassLoader parent, Transformer transformer, String packageName)
+    {
+        super(parent);
+        this.transformer = transformer;
+        this.packagePrefix = packageName + ".";
+    }
+
+    /**
+     * @return the number of classes defined by this loader which had rule code injected into them
+     */
+    public int getTransformedCount()
+    {
+        return transformedCount;
+    }
+
+    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+    {
+        if (!name.startsWith(packagePrefix)) {
+            return super.loadClass(name, resolve);
+        }
+
+        Class<?> clazz = findLoadedClass(name);
+
+        if (clazz == null) {
+            String internalName = name.replace('.', '/');
+            byte[] bytes = readClassBytes(internalName);
+            try {
+                byte[] newBytes = transformer.transform(this, internalName, null, null, bytes);
+                if (newBytes != null) {
+                    bytes = newBytes;
+                    transformedCount++;
+                }
+            } catch (Exception e) {
+                throw new ClassNotFoundException("TransformingClassLoader : failed to transform " + name, e);
+            }
+            clazz = defineClass(name, bytes, 0, bytes.length);
+        }
+
+        if (resolve) {
+            resolveClass(clazz);
+        }
+
+        return clazz;
+    }
+
+    private byte[] readClassBytes(String internalName) throws ClassNotFoundException
+    {
+        InputStream is = getParent().getResourceAsStream(internalName + ".class");
+        if (is == null) {
+            throw new ClassNotFoundException("TransformingClassLoader : cannot find bytecode for " + internalName);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new ClassNotFoundException("TransformingClassLoader : failed to read bytecode for " + internalName, e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private final Transformer transformer;
+    private final String packagePrefix;
+    private int transformedCount;
+}
@@ -0,0 +1,202 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+import org.jboss.byteman.agent.Transformer;
+import org.jboss.byteman.tests.benchmark.TriggerTarget;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * measures the steady state cost of executing a method into which rules have been injected. rules
+ * are injected into class TriggerTarget by a Transformer created without an agent so the figures
+ * exclude any listener or retransformation activity. the parameters select
+ *
+ * <ul>
+ * <li>the location of the rules (ENTRY, EXIT, INVOKE, READ, WRITE, LINE or THROW)</li>
+ * <li>whether the rule condition is true or false</li>
+ * <li>whether rules are interpreted or compiled to bytecode</li>
+ * <li>how many rules are injected at the same location (0 provides a baseline)</li>
+ * <li>optionally, the period of a SAMPLE clause added to each rule</li>
+ * </ul>
+ *
+ * run with -prof gc to obtain the bytes allocated per firing from the gc.alloc.rate.norm figure.
+ *
+ * n.b. the compile to bytecode setting is read once when class Transformer is initialised so each
+ * parameter combination must run in a forked JVM. do not run these benchmarks with -f 0.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TriggerBenchmark
+{
+    /**
+     * the name of the class into which rules are injected. it must not be referenced as a class
+     * literal or it will be loaded untransformed by the benchmark's own loader
+     */
+    public static final String TARGET_CLASS = "org.jboss.byteman.tests.benchmark.TriggerTarget";
+
+    @Param({"ENTRY", "EXIT", "INVOKE", "READ", "WRITE", "LINE", "THROW"})
+    public String location;
+
+    @Param({"false", "true"})
+    public boolean condition;
+
+    @Param({"false", "true"})
+    public boolean compiled;
+
+    @Param({"0", "1", "10"})
+    public int ruleCount;
+
+    /**
+     * if greater than 0 each rule includes a clause SAMPLE 1 IN sample. pass -p sample=1000 to
+     * measure the cost of triggers which are sampled out
+     */
+    @Param({"0"})
+    public int sample;
+
+    private Triggers target;
+
+    private char kind;
+
+    private int arg;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        // this must be set before class Transformer is initialised. the property name is a
+        // constant so referring to it here does not initialise the class
+        System.setProperty(Transformer.COMPILE_TO_BYTECODE, Boolean.toString(compiled));
+
+        List<String> scripts = new ArrayList<String>();
+        if (ruleCount > 0) {
+            scripts.add(getRuleText());
+        }
+        Transformer transformer = new Transformer(null, Collections.nCopies(scripts.size(), "benchmark.btm"), scripts, false);
+
+        ClassLoader parent = TriggerBenchmark.class.getClassLoader();
+        String packageName = TARGET_CLASS.substring(0, TARGET_CLASS.lastIndexOf('.'));
+        TransformingClassLoader loader = new TransformingClassLoader(parent, transformer, packageName);
+        target = (Triggers)loader.loadClass(TARGET_CLASS).newInstance();
+
+        if (ruleCount > 0 && loader.getTransformedCount() == 0) {
+            throw new IllegalStateException("TriggerBenchmark : failed to inject rules at " + location);
+        }
+
+        kind = location.charAt(0);
+
+        // rules are type checked and compiled when they are first triggered so do that now
+        invoke();
+    }
+
+    @Benchmark
+    public int invoke()
+    {
+        int i = arg;
+        switch (kind) {
+            case 'E':
+                return target.entry(i);
+            case 'I':
+                return target.invoke(i);
+            case 'R':
+                return target.read(i);
+            case 'W':
+                return target.write(i);
+            case 'L':
+                return target.line(i);
+            case 'T':
+                return target.thrown(i);
+        }
+        throw new IllegalStateException("TriggerBenchmark : unknown location " + location);
+    }
+
+    private String getRuleText()
+    {
+        StringBuilder buffer = new StringBuilder();
+        for (int i = 0; i < ruleCount; i++) {
+            buffer.append("RULE bench ");
+            buffer.append(location);
+            buffer.append(" ");
+            buffer.append(i);
+            buffer.append("\nCLASS ");
+            buffer.append(TARGET_CLASS);
+            buffer.append("\nMETHOD ");
+            buffer.append(getMethodName());
+            if (sample > 0) {
+                buffer.append("\nSAMPLE 1 IN ");
+                buffer.append(sample);
+            }
+            buffer.append("\nAT ");
+            buffer.append(getLocationText());
+            // the argument is never negative so this selects whether the condition passes or fails
+            buffer.append(condition ? "\nIF $1 >= 0" : "\nIF $1 < 0");
+            buffer.append("\nDO NOTHING\nENDRULE\n");
+        }
+        return buffer.toString();
+    }
+
+    private String getMethodName()
+    {
+        if (location.equals("ENTRY") || location.equals("EXIT")) {
+            return "entry";
+        } else if (location.equals("THROW")) {
+            return "thrown";
+        } else {
+            return location.toLowerCase();
+        }
+    }
+
+    private String getLocationText()
+    {
+        if (location.equals("INVOKE")) {
+            return "INVOKE callee";
+        } else if (location.equals("READ") || location.equals("WRITE")) {
+            return location + " value";
+        } else if (location.equals("LINE")) {
+            // the constant is inlined by the compiler so this does not load the target class
+            return "LINE " + TriggerTarget.LINE_NUMBER;
+        } else {
+            return location;
+        }
+    }
+}
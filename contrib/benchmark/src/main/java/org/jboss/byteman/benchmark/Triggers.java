@@ -0,0 +1,64 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.benchmark;
+
+/**
+ * the operations a benchmark target class exposes to the benchmarks. the target is defined by a
+ * TransformingClassLoader so benchmarks can only call it through an interface loaded by their own loader.
+ * each method performs a trivial operation on its argument so that only the injected trigger code
+ * contributes any significant cost.
+ */
+public interface Triggers
+{
+    /**
+     * target for AT ENTRY and AT EXIT rules
+     */
+    public int entry(int i);
+
+    /**
+     * target for AT INVOKE rules which call method callee
+     */
+    public int invoke(int i);
+
+    /**
+     * target for AT READ rules which read field value
+     */
+    public int read(int i);
+
+    /**
+     * target for AT WRITE rules which write field value
+     */
+    public int write(int i);
+
+    /**
+     * target for AT LINE rules
+     */
+    public int line(int i);
+
+    /**
+     * target for AT THROW rules. the thrown exception is preallocated and caught in the same method
+     */
+    public int thrown(int i);
+}
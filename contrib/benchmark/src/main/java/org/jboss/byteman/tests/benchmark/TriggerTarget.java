@@ -0,0 +1,85 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.tests.benchmark;
+
+import org.jboss.byteman.benchmark.Triggers;
+
+/**
+ * the class into which benchmark rules are injected. it lives in a tests package because the
+ * transformer ignores all other classes in the org.jboss.byteman package tree.
+ */
+public class TriggerTarget implements Triggers
+{
+    /**
+     * the source line of the statement in method line which is the target of AT LINE rules. the
+     * benchmark fails during setup if this gets out of step with the code.
+     */
+    public static final int LINE_NUMBER = 68;
+
+    private static final RuntimeException EXCEPTION = new RuntimeException("benchmark");
+
+    private int value;
+
+    public int entry(int i)
+    {
+        return i;
+    }
+
+    public int invoke(int i)
+    {
+        return callee(i);
+    }
+
+    public int read(int i)
+    {
+        return value + i;
+    }
+
+    public int write(int i)
+    {
+        value = i;
+        return i;
+    }
+
+    public int line(int i)
+    {
+        int j = i + 1;
+        return j - 1;
+    }
+
+    public int thrown(int i)
+    {
+        try {
+            throw EXCEPTION;
+        } catch (RuntimeException e) {
+            return i;
+        }
+    }
+
+    private int callee(int i)
+    {
+        return i;
+    }
+}
@@ -0,0 +1,196 @@
+package org.jboss.byteman.contrib.rulecheck;
+
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013, Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * @authors Andrew Dinn
+ */
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.plugins.annotations.Component;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.classworlds.realm.ClassRealm;
+import org.jboss.byteman.agent.WovenClassRegistry;
+import org.jboss.byteman.weave.RuleWeaver;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.List;
+
+/**
+ * Weave byteman script rules into the compiled classes. The woven classes must be run with the
+ * byteman agent installed and the option woven:META-INF/byteman/woven.rules (or the configured
+ * registry location) passed to the agent.
+ */
+@Mojo( name = "weave", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.COMPILE_PLUS_RUNTIME)
+public class RuleWeaveMojo extends AbstractMojo
+{
+    @Component
+    private MavenProject project;
+
+    @Component
+    private PluginDescriptor descriptor;
+
+    /**
+     * Location of the script.
+     */
+    @Parameter( defaultValue = "${basedir}/src/main/byteman", property = "scriptDir", required = true )
+    private File scriptDir;
+
+    /**
+     * Location of the classes to weave
+     */
+    @Parameter( defaultValue = "${project.build.outputDirectory}", property = "classesDirectory", required = true )
+    private File classesDirectory;
+
+    /**
+     * Location to save the registry of woven rules. It is saved under the classes directory by
+     * default so that it is packaged with the woven classes
+     */
+    @Parameter( defaultValue = "${project.build.outputDirectory}/" + WovenClassRegistry.DEFAULT_RESOURCE, property = "registry", required = true )
+    private File registry;
+
+    /**
+     * Fail build when weaving returns error
+     */
+    @Parameter(defaultValue = "true", property = "failOnError")
+    private boolean failOnError;
+
+    /*
+     * Skip the weaving
+     */
+    @Parameter(defaultValue = "false", property = "skip")
+    private boolean skip;
+
+    /**
+     * include specified script files
+     */
+    @Parameter(property = "includes")
+    private String[] includes;
+
+    /**
+     * exclude specified script files
+     */
+    @Parameter(property = "excludes")
+    private String[] excludes;
+
+    /**
+     * verbose
+     */
+    @Parameter(defaultValue = "false" , property = "verbose")
+    boolean verbose;
+
+    public void execute() throws MojoExecutionException {
+        List<File> scripts;
+
+        if(skip) {
+            getLog().info("Weaving byteman scripts is skipped");
+            return;
+        }
+
+        try {
+            if(verbose) {
+                getLog().info("find byteman script in " + scriptDir);
+            }
+            String includeList = (includes == null || includes.length == 0 ? "**/*.btm" : join(includes));
+            String excludeList = (excludes == null ? "" : join(excludes));
+            scripts = FileUtils.getFiles(scriptDir, includeList, excludeList);
+        } catch (Exception e) {
+            getLog().debug("Can not find " + scriptDir);
+            return;
+        }
+
+        if(scripts.size() == 0) {
+            getLog().info("No byteman script in " + scriptDir);
+            return;
+        }
+
+        ClassRealm realm = descriptor.getClassRealm();
+
+        try {
+            List<String> classpathElements = project.getCompileClasspathElements();
+            classpathElements.addAll(project.getRuntimeClasspathElements());
+            for (String element : classpathElements)
+            {
+                // the classes being woven are loaded from the classes directory by the weaver
+                if (new File(element).equals(classesDirectory)) {
+                    continue;
+                }
+                if(verbose) {
+                    getLog().info(element);
+                } else {
+                    getLog().debug(element);
+                }
+                realm.addURL(new File(element).toURI().toURL());
+            }
+        } catch (DependencyResolutionRequiredException e) {
+            getLog().warn(e);
+        } catch (MalformedURLException e) {
+            getLog().warn(e);
+        }
+
+        RuleWeaver weaver = new RuleWeaver();
+        if (verbose) {
+            weaver.setVerbose();
+        }
+        for(File script : scripts) {
+            if(verbose) {
+                getLog().info("add script " + script);
+            }else {
+                getLog().debug("add script " + script);
+            }
+            weaver.addRuleFile(script.getAbsolutePath());
+        }
+
+        getLog().info("Weaving " + scripts.size() + " byteman scripts into " + classesDirectory);
+        weaver.weave(classesDirectory, registry, realm);
+        getLog().info("Wove rules into " + weaver.getWovenClasses().size() + " classes");
+
+        if(weaver.hasError()) {
+            List<String> errors = weaver.getErrorMessages();
+            getLog().error("Weaving byteman script rules failed with " + errors.size() + " errors");
+            for(String error : errors) {
+                getLog().error(error);
+            }
+            if(failOnError) {
+                throw new MojoExecutionException("weave byteman script rules failed with " + errors.size() + " errors");
+            }
+        }
+    }
+
+    private static String join(String[] patterns)
+    {
+        StringBuffer buffer = new StringBuffer();
+        for(int i = 0; i < patterns.length; i++) {
+            buffer.append(patterns[i]);
+            if(i != patterns.length - 1) buffer.append(",");
+        }
+        return buffer.toString();
+    }
+}
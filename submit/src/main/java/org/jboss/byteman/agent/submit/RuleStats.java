@@ -0,0 +1,143 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * (C) 2013,
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent.submit;
+
+/**
+ * runtime counters reported by the agent for a rule injected into a given trigger class
+ */
+public class RuleStats
+{
+    private String ruleName;
+    private String triggerClass;
+    private long triggerCount;
+    private long matchedCount;
+    private long firedCount;
+    private long exceptionCount;
+    private long totalNanos;
+    private long maxNanos;
+
+    public RuleStats(String ruleName, String triggerClass, long triggerCount, long matchedCount, long firedCount,
+                     long exceptionCount, long totalNanos, long maxNanos)
+    {
+        this.ruleName = ruleName;
+        this.triggerClass = triggerClass;
+        this.triggerCount = triggerCount;
+        this.matchedCount = matchedCount;
+        this.firedCount = firedCount;
+        this.exceptionCount = exceptionCount;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * parse a line of the agent's response to a STATS request
+     * @param line the line containing tab separated fields
+     * @return the counters
+     * @throws Exception if the line is not in the expected format
+     */
+    static RuleStats parse(String line) throws Exception
+    {
+        String[] fields = line.split("\t");
+        if (fields.length != 8) {
+            throw new Exception("Invalid rule statistics line [" + line + "]");
+        }
+        try {
+            return new RuleStats(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                    Long.parseLong(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[6]),
+                    Long.parseLong(fields[7]));
+        } catch (NumberFormatException e) {
+            throw new Exception("Invalid rule statistics line [" + line + "]", e);
+        }
+    }
+
+    public String getRuleName()
+    {
+        return ruleName;
+    }
+
+    /**
+     * @return the name of the class into which the rule was injected
+     */
+    public String getTriggerClass()
+    {
+        return triggerClass;
+    }
+
+    /**
+     * @return the number of times the rule's trigger code was executed
+     */
+    public long getTriggerCount()
+    {
+        return triggerCount;
+    }
+
+    /**
+     * @return the number of times the rule condition evaluated to true
+     */
+    public long getMatchedCount()
+    {
+        return matchedCount;
+    }
+
+    /**
+     * @return the number of times the rule action completed
+     */
+    public long getFiredCount()
+    {
+        return firedCount;
+    }
+
+    /**
+     * @return the number of times execution of the rule failed with an exception
+     */
+    public long getExceptionCount()
+    {
+        return exceptionCount;
+    }
+
+    /**
+     * @return the total time spent executing the rule in nanoseconds
+     */
+    public long getTotalNanos()
+    {
+        return totalNanos;
+    }
+
+    /**
+     * @return the longest time spent on a single execution of the rule in nanoseconds
+     */
+    public long getMaxNanos()
+    {
+        return maxNanos;
+    }
+
+    public String toString()
+    {
+        return ruleName + " in " + triggerClass + " : triggered " + triggerCount + " matched " + matchedCount +
+                " fired " + firedCount + " exceptions " + exceptionCount + " total " + totalNanos + "ns max " +
+                maxNanos + "ns";
+    }
+}
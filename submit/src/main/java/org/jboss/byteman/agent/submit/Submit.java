@@ -592,13 +592,8 @@ public class Submit
             return "";
         }
 
-        StringBuilder str = new StringBuilder("LOAD\n");
-        for (ScriptText scriptText : scripts) {
-            str.append("SCRIPT " + scriptText.getFileName() + '\n');
-            str.append(scriptText.getText()).append('\n');
-            str.append("ENDSCRIPT\n");
-        }
-        str.append("ENDLOAD\n");
+        StringWriter str = new StringWriter();
+        writeScripts(str, "LOAD", scripts);
 
         return submitRequest(str.toString());
     }
@@ -686,13 +681,8 @@ public class Submit
             return "";
         }
 
-        StringBuilder str = new StringBuilder("DELETE\n");
-        for (ScriptText scriptText : scripts) {
-            str.append("SCRIPT " + scriptText.getFileName() + '\n');
-            str.append(scriptText.getText()).append('\n');
-            str.append("ENDSCRIPT\n");
-        }
-        str.append("ENDDELETE\n");
+        StringWriter str = new StringWriter();
+        writeScripts(str, "DELETE", scripts);
 
         return submitRequest(str.toString());
     }
@@ -719,6 +709,74 @@ public class Submit
 
         return submitRequest(str.toString());
     }
+
+    /**
+     * Replaces the rules previously deployed into Byteman from the local files
+     * found at the given paths with the rules those files now contain. The
+     * rule definitions found in the files are actually passed down directly to
+     * Byteman, not the file paths themselves, and each file path is used to
+     * identify the rules which were previously deployed from it.
+     *
+     * @param filePaths
+     *            the local files containing the revised rule definitions
+     *
+     * @return the results of the replacement
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String replaceRulesFromFiles(List<String> filePaths) throws Exception {
+        List<ScriptText> scripts = getRulesFromRuleFiles(filePaths);
+        return replaceScripts(scripts);
+    }
+
+    /**
+     * Replaces the rules previously deployed into Byteman from the given
+     * streams with the rules the streams now contain.
+     *
+     * This method is useful for using rules files from the classpath.
+     *
+     * @param resourceStreams
+     * input streams containing the revised rule definitions
+     *
+     * @return the results of the replacement
+     *
+     * @throws Exception
+     *           if the request failed
+     */
+    public String replaceRulesFromResources(List<InputStream> resourceStreams) throws Exception {
+        List<ScriptText> scripts = getRulesFromRuleStreams(resourceStreams);
+        return replaceScripts(scripts);
+    }
+
+    /**
+     * Atomically replaces the rules previously deployed into Byteman from
+     * each script with the rules the script now contains. Rules whose
+     * definition is unchanged are left installed, changed rules are redefined,
+     * new rules are installed and rules which no longer appear in the script
+     * are uninstalled, with all affected classes retransformed in a single
+     * pass. If any script contains an error no installed rules are changed.
+     *
+     * @param scripts
+     *            the revised scripts, each identified by the file name it was
+     *            previously deployed with
+     *
+     * @return the results of the replacement
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String replaceScripts(List<ScriptText> scripts) throws Exception {
+        if (scripts == null || scripts.size() == 0) {
+            return "";
+        }
+
+        StringWriter str = new StringWriter();
+        writeScripts(str, "REPLACE", scripts);
+
+        return submitRequest(str.toString());
+    }
+
     /**
      * Sets system properties in the Byteman agent VM.
      * If Byteman was configured for strict mode, only Byteman related
@@ -772,6 +830,80 @@ public class Submit
         return props;
     }
 
+    /**
+     * Returns the runtime counters the Byteman agent keeps for each installed
+     * rule, one entry per rule and trigger class.
+     *
+     * @return the counters for each rule
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public List<RuleStats> getRuleStats() throws Exception {
+        return getRuleStats(false);
+    }
+
+    /**
+     * Returns the runtime counters the Byteman agent keeps for each installed
+     * rule, one entry per rule and trigger class, optionally resetting the
+     * counters to zero.
+     *
+     * @param reset
+     *            true if the agent should zero the counters once they have
+     *            been read
+     *
+     * @return the counters for each rule
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public List<RuleStats> getRuleStats(boolean reset) throws Exception {
+        String results = submitRequest(reset ? "RESETSTATS\n" : "STATS\n");
+        List<RuleStats> stats = new ArrayList<RuleStats>();
+        BufferedReader reader = new BufferedReader(new StringReader(results));
+        String line = reader.readLine();
+        while (line != null) {
+            if (line.length() > 0) {
+                stats.add(RuleStats.parse(line));
+            }
+            line = reader.readLine();
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the counters the Byteman agent keeps to record the cost of
+     * transforming and retransforming classes. Each line of the result holds a
+     * counter name followed by its value. Lines named slowTransform describe the
+     * slowest class transforms seen by the agent.
+     *
+     * @return the agent counters, one per line
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String getAgentStatistics() throws Exception {
+        return getAgentStatistics(false);
+    }
+
+    /**
+     * Returns the counters the Byteman agent keeps to record the cost of
+     * transforming and retransforming classes, optionally resetting them to
+     * zero.
+     *
+     * @param reset
+     *            true if the agent should zero the counters once they have
+     *            been read
+     *
+     * @return the agent counters, one per line
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String getAgentStatistics(boolean reset) throws Exception {
+        return submitRequest(reset ? "RESETAGENTSTATS\n" : "AGENTSTATS\n");
+    }
+
     /**
      * Submits the generic request string to the Byteman agent for processing.
      *
@@ -794,6 +926,43 @@ public class Submit
         }
     }
 
+    /**
+     * Opens a session which keeps a single connection to the Byteman agent open
+     * so that a sequence of requests can be submitted without connecting for each
+     * one. The session must be closed once it is no longer needed.
+     *
+     * @return the session
+     *
+     * @throws Exception
+     *             if the connection cannot be opened
+     */
+    public SubmitSession openSession() throws Exception {
+        return new SubmitSession(this.address, this.port);
+    }
+
+    /**
+     * Writes a script upload request to the given output.
+     *
+     * @param out
+     *            the output the request is written to
+     * @param command
+     *            one of LOAD, DELETE or REPLACE
+     * @param scripts
+     *            the scripts to be included in the request
+     *
+     * @throws IOException
+     *             if the output cannot be written
+     */
+    static void writeScripts(Writer out, String command, List<ScriptText> scripts) throws IOException {
+        out.write(command + "\n");
+        for (ScriptText scriptText : scripts) {
+            out.write("SCRIPT " + scriptText.getFileName() + '\n');
+            out.write(scriptText.getText());
+            out.write("\nENDSCRIPT\n");
+        }
+        out.write("END" + command + "\n");
+    }
+
     private List<ScriptText> getRulesFromRuleStreams(List<InputStream> streams) throws Exception {
         if (streams == null || streams.size() == 0) {
             return new ArrayList<ScriptText>(0);
@@ -862,7 +1031,7 @@ public class Submit
         }
     }
 
-    private boolean confirmRuleFileValidity(String path) {
+    static boolean confirmRuleFileValidity(String path) {
         // right now, we only check if its a readable file, do we want to see if
         // its parsable, too?
         File file = new File(path);
@@ -872,6 +1041,60 @@ public class Submit
         return true;
     }
 
+    /**
+     * Reads the response to a single request, which is terminated by a line
+     * containing OK.
+     *
+     * @param in
+     *            the input the response is read from
+     * @param requireEnd
+     *            true if the connection must not be closed before the end of
+     *            the response is read
+     *
+     * @return the response text
+     *
+     * @throws Exception
+     *             if the agent reported an error or the response was incomplete
+     */
+    static String readResponse(BufferedReader in, boolean requireEnd) throws Exception {
+        StringBuilder str = new StringBuilder();
+        StringBuilder errorStr = null; // will be non-null if an error was reported by the agent
+
+        String line = in.readLine();
+        while (line != null && !line.trim().equals("OK")) {
+            line = line.trim();
+
+            if (line.startsWith("ERROR") || line.startsWith("EXCEPTION")) {
+                if (errorStr == null) {
+                    errorStr = new StringBuilder();
+                }
+            }
+
+            // if an error was detected, gobble up the text coming over the wire as part of the error message
+            if (errorStr != null) {
+                errorStr.append(line).append('\n');
+            }
+
+            str.append(line).append('\n');
+            line = in.readLine();
+        }
+
+        if (line == null && requireEnd) {
+            throw new IOException("The remote byteman agent closed the connection before completing its response");
+        }
+
+        if (errorStr != null) {
+            StringBuilder msg = new StringBuilder();
+            msg.append("The remote byteman agent reported an error:\n").append(errorStr);
+            if (!errorStr.toString().equals(str.toString())) {
+                msg.append("\nThe full response received from the byteman agent follows:\n").append(str);
+            }
+            throw new Exception(msg.toString());
+        }
+
+        return str.toString();
+    }
+
     private class Comm {
         private Socket commSocket;
         private BufferedReader commInput;
@@ -935,38 +1158,7 @@ public class Submit
         }
 
         public String readResponse() throws Exception {
-            StringBuilder str = new StringBuilder();
-            StringBuilder errorStr = null; // will be non-null if an error was reported by the agent
-
-            String line = this.commInput.readLine();
-            while (line != null && !line.trim().equals("OK")) {
-                line = line.trim();
-
-                if (line.startsWith("ERROR") || line.startsWith("EXCEPTION")) {
-                    if (errorStr == null) {
-                        errorStr = new StringBuilder();
-                    }
-                }
-
-                // if an error was detected, gobble up the text coming over the wire as part of the error message
-                if (errorStr != null) {
-                    errorStr.append(line).append('\n');
-                }
-
-                str.append(line).append('\n');
-                line = this.commInput.readLine();
-            }
-
-            if (errorStr != null) {
-                StringBuilder msg = new StringBuilder();
-                msg.append("The remote byteman agent reported an error:\n").append(errorStr);
-                if (!errorStr.toString().equals(str.toString())) {
-                    msg.append("\nThe full response received from the byteman agent follows:\n").append(str);
-                }
-                throw new Exception(msg.toString());
-            }
-
-            return str.toString();
+            return Submit.readResponse(this.commInput, false);
         }
     }
 
@@ -982,11 +1174,15 @@ public class Submit
         int startIdx = 0;
         int maxIdx = args.length;
         boolean deleteRules = false;
+        boolean replaceRules = false;
         boolean addBoot = false;
         boolean addSys = false;
         boolean showVersion = false;
         boolean showAddedClassloaderJars = false;
         boolean sysProps = false;
+        boolean showStats = false;
+        boolean resetStats = false;
+        boolean showAgentStats = false;
         int optionCount = 0;
         PrintStream out = System.out;
 
@@ -1036,6 +1232,10 @@ public class Submit
                 deleteRules = true;
                 startIdx++;
                 optionCount++;
+            } else if (args[startIdx].equals("-r")) {
+                replaceRules = true;
+                startIdx++;
+                optionCount++;
             } else if (args[startIdx].equals("-l")) {
                 startIdx++;
                 optionCount++;
@@ -1055,6 +1255,19 @@ public class Submit
                 addSys = true;
                 startIdx ++;
                 optionCount++;
+            } else if (args[startIdx].equals("-t")) {
+                showStats = true;
+                startIdx++;
+                optionCount++;
+            } else if (args[startIdx].equals("-z")) {
+                showStats = true;
+                resetStats = true;
+                startIdx++;
+                optionCount++;
+            } else if (args[startIdx].equals("-a")) {
+                showAgentStats = true;
+                startIdx++;
+                optionCount++;
             } else if (args[startIdx].equals("-y")) {
                 sysProps = true;
                 startIdx++;
@@ -1070,7 +1283,7 @@ public class Submit
 
         // must have some file args if adding to sys or boot classpath
 
-        if (startIdx == maxIdx && (addBoot || addSys)) {
+        if (startIdx == maxIdx && (addBoot || addSys || replaceRules)) {
             usage(out, 1);
         }
 
@@ -1083,6 +1296,14 @@ public class Submit
                 String agentVersion = client.getAgentVersion();
                 String clientVersion = client.getClientVersion();
                 results = "Agent Version: " + agentVersion + "\nClient Version: " + clientVersion;
+            } else if (showStats) {
+                StringBuilder str = new StringBuilder();
+                for (RuleStats stats : client.getRuleStats(resetStats)) {
+                    str.append(stats).append('\n');
+                }
+                results = str.toString();
+            } else if (showAgentStats) {
+                results = client.getAgentStatistics();
             } else if (showAddedClassloaderJars) {
                 List<String> bootJars = client.getLoadedBootClassloaderJars();
                 List<String> sysJars = client.getLoadedSystemClassloaderJars();
@@ -1142,6 +1363,8 @@ public class Submit
                     } else {
                         if (deleteRules) {
                             results = client.deleteRulesFromFiles(argsList);
+                        } else if (replaceRules) {
+                            results = client.replaceRulesFromFiles(argsList);
                         } else {
                             // the default behavior (or if -l was explicitly specified) is to do this
                             results = client.addRulesFromFiles(argsList);
@@ -1171,10 +1394,13 @@ public class Submit
     private static void usage(PrintStream out, int exitCode)
     {
         out.println("usage : Submit [-o outfile] [-p port] [-h hostname] [-l|-u] [scriptfile . . .]");
+        out.println("        Submit [-o outfile] [-p port] [-h hostname] -r scriptfile . . .");
         out.println("        Submit [-o outfile] [-p port] [-h hostname] [-b|-s] jarfile . . .");
         out.println("        Submit [-o outfile] [-p port] [-h hostname] [-c]");
         out.println("        Submit [-o outfile] [-p port] [-h hostname] [-y] [prop1[=[value1]]. . .]");
         out.println("        Submit [-o outfile] [-p port] [-h hostname] [-v]");
+        out.println("        Submit [-o outfile] [-p port] [-h hostname] [-t|-z]");
+        out.println("        Submit [-o outfile] [-p port] [-h hostname] [-a]");
         out.println("        -o redirects output from System.out to outfile");
         out.println("        -p specifies listener port");
         out.println("        -h specifies listener host");
@@ -1182,6 +1408,8 @@ public class Submit
         out.println("                     with no scriptfile means list all currently loaded rules");
         out.println("        -u with scriptfile(s) means unload all rules in scriptfile(s)");
         out.println("           with no scriptfile means unload all currently loaded rules");
+        out.println("        -r with scriptfile(s) means replace all rules loaded from scriptfile(s) with the rules");
+        out.println("           they now contain, retransforming affected classes once");
         out.println("        -b with jarfile(s) means add jars to bootstrap classpath");
         out.println("        -s with jarfile(s) means add jars to system classpath");
         out.println("        -c prints the jars that have been added to the system and boot classloaders");
@@ -1191,6 +1419,9 @@ public class Submit
         out.println("             prop= sets system property 'prop' to an empty string");
         out.println("             prop unsets system property 'prop'");
         out.println("        -v prints the version of the byteman agent and this client");
+        out.println("        -t prints how often each rule has been triggered and fired and the time it has taken");
+        out.println("        -z prints the same details as -t then resets them to zero");
+        out.println("        -a prints the time the agent has spent transforming and retransforming classes");
         if (out != System.out) {
             out.close();
         }
@@ -0,0 +1,429 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2013 Red Hat and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ * (C) 2013,
+ * @authors Andrew Dinn
+ */
+
+package org.jboss.byteman.agent.submit;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection to a Byteman agent which stays open across requests. A session
+ * avoids the cost of connecting to the agent for every request and allows a
+ * batch of requests to be sent in one go, with the agent returning all of the
+ * responses once the batch has been processed. Script files are streamed to
+ * the agent as they are read so large script sets need not be held in memory.
+ *
+ * A session is obtained by calling {@link Submit#openSession()} and must be
+ * closed once it is no longer needed. A session should not be used by more
+ * than one thread at a time.
+ *
+ * Note that, like {@link Submit}, this class has no dependencies on any other
+ * Byteman class.
+ */
+public class SubmitSession implements Closeable
+{
+    private Socket socket;
+    private BufferedReader input;
+    private Writer output;
+
+    SubmitSession(String address, int port) throws Exception {
+        this.socket = new Socket(address, port);
+        try {
+            this.input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.output = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        } catch (Exception e) {
+            try {
+                this.socket.close();
+            } catch (Exception e1) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the version of the remote Byteman agent.
+     *
+     * @return the version of the remote Byteman agent
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String getAgentVersion() throws Exception {
+        String version = submitRequest("VERSION\n");
+        return (version != null) ? version.trim() : "0";
+    }
+
+    /**
+     * Tells the Byteman agent to list all deployed rules.
+     *
+     * @return all the rules deployed in the Byteman agent
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String listAllRules() throws Exception {
+        return submitRequest("LIST\n");
+    }
+
+    /**
+     * Tells the Byteman agent to delete all rules.
+     *
+     * @return the results of the delete-all request to the Byteman agent
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String deleteAllRules() throws Exception {
+        return submitRequest("DELETEALL\n");
+    }
+
+    /**
+     * Deploys rule scripts into Byteman
+     *
+     * @param scripts
+     *            scripts to be deployed to Byteman
+     *
+     * @return the results of the deployment
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String addScripts(List<ScriptText> scripts) throws Exception {
+        return batch().addScripts(scripts).submitOne();
+    }
+
+    /**
+     * Deletes rules from Byteman.
+     *
+     * @param scripts
+     *            rule scripts to be deleted from Byteman
+     *
+     * @return the results of the deletion
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String deleteScripts(List<ScriptText> scripts) throws Exception {
+        return batch().deleteScripts(scripts).submitOne();
+    }
+
+    /**
+     * Atomically replaces the rules previously deployed into Byteman from
+     * each script with the rules the script now contains.
+     *
+     * @param scripts
+     *            the revised scripts, each identified by the file name it was
+     *            previously deployed with
+     *
+     * @return the results of the replacement
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String replaceScripts(List<ScriptText> scripts) throws Exception {
+        return batch().replaceScripts(scripts).submitOne();
+    }
+
+    /**
+     * Deploys rules into Byteman, streaming the rule definitions from the
+     * local files found at the given paths.
+     *
+     * @param filePaths
+     *            the local files containing the rule definitions to be deployed
+     *            to Byteman
+     *
+     * @return the results of the deployment
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String addRulesFromFiles(List<String> filePaths) throws Exception {
+        return batch().addRulesFromFiles(filePaths).submitOne();
+    }
+
+    /**
+     * Deletes rules from Byteman, streaming the rule definitions from the
+     * local files found at the given paths.
+     *
+     * @param filePaths
+     *            the local files containing the rule definitions to be deleted
+     *            from Byteman
+     *
+     * @return the results of the deletion
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String deleteRulesFromFiles(List<String> filePaths) throws Exception {
+        return batch().deleteRulesFromFiles(filePaths).submitOne();
+    }
+
+    /**
+     * Replaces the rules previously deployed into Byteman from the local files
+     * found at the given paths, streaming the revised rule definitions from
+     * the files.
+     *
+     * @param filePaths
+     *            the local files containing the revised rule definitions
+     *
+     * @return the results of the replacement
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String replaceRulesFromFiles(List<String> filePaths) throws Exception {
+        return batch().replaceRulesFromFiles(filePaths).submitOne();
+    }
+
+    /**
+     * Submits the generic request string to the Byteman agent for processing.
+     *
+     * @param request
+     *            the request to submit
+     *
+     * @return the response that the Byteman agent replied with
+     *
+     * @throws Exception
+     *             if the request failed
+     */
+    public String submitRequest(String request) throws Exception {
+        return batch().submitRequest(request).submitOne();
+    }
+
+    /**
+     * Creates an empty batch of requests. Requests added to the batch are only
+     * sent to the agent when the batch is submitted.
+     *
+     * @return the batch
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * Closes the connection to the Byteman agent. The session cannot be used
+     * after it has been closed.
+     */
+    public void close() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close(); // also closes the in/out streams
+        } catch (Exception e) {
+            // no need to abort, we are closing this object anyway
+        } finally {
+            socket = null;
+            input = null;
+            output = null;
+        }
+    }
+
+    /**
+     * @return true if the session has not been closed
+     */
+    public boolean isOpen() {
+        return socket != null;
+    }
+
+    /**
+     * A sequence of requests which are sent to the agent in one write. The
+     * agent processes the requests in order and returns their responses in
+     * the same order.
+     */
+    public class Batch
+    {
+        private List<Request> requests = new ArrayList<Request>();
+
+        private Batch() {
+        }
+
+        public Batch addScripts(List<ScriptText> scripts) {
+            return addScripts("LOAD", scripts);
+        }
+
+        public Batch deleteScripts(List<ScriptText> scripts) {
+            return addScripts("DELETE", scripts);
+        }
+
+        public Batch replaceScripts(List<ScriptText> scripts) {
+            return addScripts("REPLACE", scripts);
+        }
+
+        public Batch addRulesFromFiles(List<String> filePaths) throws Exception {
+            return addFiles("LOAD", filePaths);
+        }
+
+        public Batch deleteRulesFromFiles(List<String> filePaths) throws Exception {
+            return addFiles("DELETE", filePaths);
+        }
+
+        public Batch replaceRulesFromFiles(List<String> filePaths) throws Exception {
+            return addFiles("REPLACE", filePaths);
+        }
+
+        public Batch listAllRules() {
+            return submitRequest("LIST\n");
+        }
+
+        public Batch deleteAllRules() {
+            return submitRequest("DELETEALL\n");
+        }
+
+        /**
+         * Adds a generic request string to the batch.
+         *
+         * @param request
+         *            the request to submit
+         *
+         * @return this batch
+         */
+        public Batch submitRequest(final String request) {
+            requests.add(new Request() {
+                public void write(Writer out) throws IOException {
+                    out.write(request);
+                }
+            });
+            return this;
+        }
+
+        /**
+         * @return the number of requests in the batch
+         */
+        public int size() {
+            return requests.size();
+        }
+
+        /**
+         * Sends all the requests in the batch to the agent then reads all of
+         * their responses. If the agent reports an error for any request the
+         * remaining responses are still read before the error is thrown so
+         * the session can continue to be used.
+         *
+         * @return the response to each request in the order the requests were
+         *         added
+         *
+         * @throws Exception
+         *             if the request failed
+         */
+        public List<String> submit() throws Exception {
+            if (socket == null) {
+                throw new IOException("SubmitSession.submit : session has been closed");
+            }
+            List<String> responses = new ArrayList<String>(requests.size());
+            Exception error = null;
+            try {
+                for (Request request : requests) {
+                    request.write(output);
+                }
+                output.flush();
+                for (int i = 0; i < requests.size(); i++) {
+                    try {
+                        responses.add(Submit.readResponse(input, true));
+                    } catch (IOException ioe) {
+                        throw ioe;
+                    } catch (Exception e) {
+                        responses.add(null);
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                }
+            } catch (IOException ioe) {
+                // we cannot tell where the agent got to so the connection is no use any more
+                close();
+                throw ioe;
+            } finally {
+                requests.clear();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return responses;
+        }
+
+        private String submitOne() throws Exception {
+            if (requests.isEmpty()) {
+                return "";
+            }
+            return submit().get(0);
+        }
+
+        private Batch addScripts(final String command, final List<ScriptText> scripts) {
+            if (scripts == null || scripts.size() == 0) {
+                return this;
+            }
+            requests.add(new Request() {
+                public void write(Writer out) throws IOException {
+                    Submit.writeScripts(out, command, scripts);
+                }
+            });
+            return this;
+        }
+
+        private Batch addFiles(final String command, final List<String> filePaths) throws Exception {
+            if (filePaths == null || filePaths.size() == 0) {
+                return this;
+            }
+            // abort if a script file was invalid - we never submit the request if at least one was invalid
+            for (String filePath : filePaths) {
+                if (!Submit.confirmRuleFileValidity(filePath)) {
+                    throw new Exception("Invalid rule file: " + filePath);
+                }
+            }
+            requests.add(new Request() {
+                public void write(Writer out) throws IOException {
+                    char[] buffer = new char[4096];
+                    out.write(command + "\n");
+                    for (String filePath : filePaths) {
+                        out.write("SCRIPT " + filePath + '\n');
+                        Reader reader = new InputStreamReader(new FileInputStream(filePath));
+                        try {
+                            int read = reader.read(buffer);
+                            while (read > 0) {
+                                out.write(buffer, 0, read);
+                                read = reader.read(buffer);
+                            }
+                        } finally {
+                            reader.close();
+                        }
+                        out.write("\nENDSCRIPT\n");
+                    }
+                    out.write("END" + command + "\n");
+                }
+            });
+            return this;
+        }
+    }
+
+    /**
+     * A request which writes itself to the agent connection when its batch is submitted.
+     */
+    private interface Request {
+        void write(Writer out) throws IOException;
+    }
+}